@@ -0,0 +1,71 @@
+package com.zhongan.devpilot.gateway.completions.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 代码补全结果缓存
+ * <p>
+ * IDE 在切换焦点、撤销或者重新触发时经常会发送完全相同的补全请求, 命中缓存时直接返回之前的 {@code CodeMessage} JSON,
+ * 不再请求上游模型. 缓存有容量上限和过期时间, 并记录命中、未命中和淘汰次数.
+ */
+@Component
+public class CompletionCache {
+    private final Cache<CompletionKey, String> cache;
+
+    public CompletionCache(AppCommonProperties appCommonProperties) {
+        AppCommonProperties.CompletionCacheConfig config = appCommonProperties.getOpenAiCodeCompletion().getCache();
+        if (config.isEnabled()) {
+            this.cache = Caffeine.newBuilder()
+                    .maximumSize(config.getMaximumSize())
+                    .expireAfterWrite(config.getExpireAfterWrite())
+                    .recordStats()
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * 查询缓存的补全结果
+     *
+     * @param key 缓存键
+     * @return 补全结果, 未命中或者缓存未启用时返回 null
+     */
+    public String get(CompletionKey key) {
+        if (cache == null) {
+            return null;
+        }
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * 缓存补全结果
+     *
+     * @param key        缓存键
+     * @param completion 补全结果
+     */
+    public void put(CompletionKey key, String completion) {
+        if (cache != null) {
+            cache.put(key, completion);
+        }
+    }
+
+    /**
+     * @return 缓存命中、未命中和淘汰统计, 缓存未启用时返回空统计
+     */
+    public CacheStats stats() {
+        return cache == null ? CacheStats.empty() : cache.stats();
+    }
+
+    /**
+     * @return 底层缓存, 缓存未启用时返回 null
+     */
+    public Cache<CompletionKey, String> getNativeCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,85 @@
+package com.zhongan.devpilot.gateway.completions.cache;
+
+/**
+ * 代码补全缓存的键
+ * <p>
+ * 直接在字符上计算 128 位哈希, 不持有原始文档, 也不需要将文档编码为字节. 计算时 {@code \r\n} 归一化为 {@code \n},
+ * 这样不同换行风格的相同内容会命中同一个缓存.
+ */
+public final class CompletionKey {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final long NULL_MARKER = 0x5bd1e9955bd1e995L;
+
+    private final long high;
+    private final long low;
+
+    private CompletionKey(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * 根据多个文本片段计算缓存键, 片段的边界会参与哈希, 因此 {@code ("ab", "c")} 与 {@code ("a", "bc")} 不同
+     *
+     * @param parts 文本片段, 允许为 null
+     * @return 缓存键
+     */
+    public static CompletionKey of(CharSequence... parts) {
+        long h1 = FNV_OFFSET_BASIS;
+        long h2 = GOLDEN_GAMMA;
+        for (CharSequence part : parts) {
+            if (part == null) {
+                h1 = (h1 ^ NULL_MARKER) * FNV_PRIME;
+                h2 = Long.rotateLeft(h2 ^ NULL_MARKER, 29) * GOLDEN_GAMMA;
+                continue;
+            }
+            int length = part.length();
+            int hashed = 0;
+            for (int i = 0; i < length; i++) {
+                char c = part.charAt(i);
+                if (c == '\r' && i + 1 < length && part.charAt(i + 1) == '\n') {
+                    continue;
+                }
+                h1 = (h1 ^ c) * FNV_PRIME;
+                h2 = Long.rotateLeft(h2 + c * GOLDEN_GAMMA, 31) * 0xbf58476d1ce4e5b9L;
+                hashed++;
+            }
+            // 片段长度作为分隔符
+            h1 = (h1 ^ hashed) * FNV_PRIME;
+            h2 = Long.rotateLeft(h2 ^ hashed, 29) * GOLDEN_GAMMA;
+        }
+        return new CompletionKey(mix(h1 ^ Long.rotateLeft(h2, 17)), mix(h2 ^ h1));
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompletionKey that)) {
+            return false;
+        }
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high ^ low);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
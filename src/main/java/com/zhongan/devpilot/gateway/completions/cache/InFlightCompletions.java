@@ -0,0 +1,117 @@
+package com.zhongan.devpilot.gateway.completions.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 合并相同的进行中代码补全请求(single-flight)
+ * <p>
+ * IDE 重试或者多个编辑窗口打开同一文件时, 会同时发送多个相同的补全请求. 相同 {@link CompletionKey} 的并发请求共享同一个上游调用,
+ * 后到的请求直接订阅进行中的结果. 单个订阅者取消不会取消共享的上游调用, 只有所有订阅者都取消后上游调用才会被取消.
+ * <p>
+ * 结果按 {@link Mono#cache()} 保存, 在上游完成和移除之间加入的请求直接得到同一个结果, 不会再次调用上游.
+ */
+@Slf4j
+@Component
+public class InFlightCompletions {
+    private final ConcurrentHashMap<CompletionKey, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * 执行补全请求, 如果相同的请求正在进行中, 则共享其结果
+     *
+     * @param key      缓存键
+     * @param supplier 上游调用
+     * @return 补全结果
+     */
+    public Mono<String> execute(CompletionKey key, Supplier<Mono<String>> supplier) {
+        return Mono.defer(() -> {
+            while (true) {
+                Flight flight = inFlight.get(key);
+                if (flight == null) {
+                    Flight created = new Flight(key, supplier);
+                    flight = inFlight.putIfAbsent(key, created);
+                    if (flight == null) {
+                        created.acquire();
+                        return created.join();
+                    }
+                }
+                if (flight.acquire()) {
+                    coalescedCount.incrementAndGet();
+                    log.info("OpenAiProviderCoalesced: {}", key);
+                    return flight.join();
+                }
+                // 所有订阅者刚刚取消, 上游调用正在被取消, 发起新的调用
+                inFlight.remove(key, flight);
+            }
+        });
+    }
+
+    /**
+     * @return 当前进行中的上游调用数量
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return 累计被合并的请求数量
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * 一次共享的上游调用. 订阅者计数为 -1 表示所有订阅者都已取消, 不能再加入
+     */
+    private final class Flight {
+        private final CompletionKey key;
+
+        private final Sinks.Empty<Void> cancel = Sinks.empty();
+
+        private final AtomicInteger subscribers = new AtomicInteger();
+
+        private final Mono<String> result;
+
+        private Flight(CompletionKey key, Supplier<Mono<String>> supplier) {
+            this.key = key;
+            this.result = Mono.defer(supplier)
+                    .takeUntilOther(cancel.asMono())
+                    // 上游完成或出错后移除, 只移除自己, 避免误删新的请求
+                    .doFinally(signalType -> inFlight.remove(key, this))
+                    .cache();
+        }
+
+        private boolean acquire() {
+            while (true) {
+                int count = subscribers.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (subscribers.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private Mono<String> join() {
+            return result.doOnCancel(this::release);
+        }
+
+        private void release() {
+            if (subscribers.decrementAndGet() == 0 && subscribers.compareAndSet(0, -1)) {
+                inFlight.remove(key, this);
+                cancel.tryEmitEmpty();
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.zhongan.devpilot.gateway.completions.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
+import reactor.core.publisher.Flux;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * 解释命令的响应缓存
+ * <p>
+ * 同一段代码上的解释命令经常被不同的人重复执行, 采样温度足够低时结果是确定的. 是否缓存按发送给上游的请求体中的
+ * 采样温度判断. 缓存键是发送给上游的完整请求(模型、消息和参数)的哈希, 缓存值是上游返回的完整字节流, 保存在堆外内存中,
+ * 按占用的字节数限制容量并设置过期时间. 同时记录上游每个数据块的边界, 命中时按相同的分块回放, 客户端看到的 SSE 帧
+ * 与直接请求上游一致.
+ * <p>
+ * 堆外内存使用引用计数, 淘汰时立即释放, 不等待 GC: 淘汰在写入的线程上同步执行, 正在回放的响应持有引用, 回放结束后释放.
+ * 因此占用的堆外内存不超过容量上限加上正在回放的响应.
+ * <p>
+ * 只缓存正常结束(finish_reason 为 stop)的响应, 由调用方判断.
+ */
+@Component
+public class ResponseCache {
+    private final AppCommonProperties.ResponseCacheConfig config;
+
+    private static final NettyDataBufferFactory BUFFER_FACTORY = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+
+    private final Cache<CompletionKey, Entry> cache;
+
+    public ResponseCache(AppCommonProperties appCommonProperties) {
+        this.config = appCommonProperties.getResponseCache();
+        if (config.isEnabled()) {
+            this.cache = Caffeine.newBuilder()
+                    .maximumWeight(config.getMaxMemory().toBytes())
+                    .weigher((CompletionKey key, Entry entry) -> entry.size())
+                    .expireAfterWrite(config.getExpireAfterWrite())
+                    // 在写入的线程上淘汰并释放, 占用的内存不会超过上限
+                    .executor(Runnable::run)
+                    .removalListener((CompletionKey key, Entry entry, RemovalCause cause) -> {
+                        if (entry != null) {
+                            entry.data.release();
+                        }
+                    })
+                    .recordStats()
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * 请求是否可以使用缓存
+     *
+     * @param command     解释命令的类型, 对话请求为 null
+     * @param requestJson 发送给上游的请求体, 按其中的 temperature 判断, 没有 temperature 时上游使用默认温度, 不缓存
+     * @return 是否可以缓存
+     */
+    public boolean isEligible(String command, byte[] requestJson) {
+        if (cache == null || command == null) {
+            return false;
+        }
+        List<String> commands = config.getCommands();
+        if (commands != null && !commands.isEmpty() && !commands.contains(command)) {
+            return false;
+        }
+        Double temperature = sentTemperature(requestJson);
+        return temperature != null && temperature <= config.getMaxTemperature();
+    }
+
+    /**
+     * 读取请求体顶层的 temperature, 不解析其它字段的值
+     */
+    static Double sentTemperature(byte[] requestJson) {
+        try (JsonParser parser = JacksonMapper.sharedMapper().getMapper().createParser(requestJson)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("temperature".equals(name)) {
+                    return value.isNumeric() ? parser.getDoubleValue() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 查询缓存的响应并开始回放
+     * <p>
+     * 返回的响应持有缓存内容的引用, 必须订阅, 回放结束或者取消时释放.
+     *
+     * @param key 缓存键
+     * @return 响应数据, 未命中或者缓存未启用时返回 null
+     */
+    public Flux<DataBuffer> replay(CompletionKey key) {
+        if (cache == null) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(key);
+        // 查询之后可能同时被淘汰释放
+        if (entry == null || !entry.retain()) {
+            return null;
+        }
+        return entry.replay()
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                .doFinally(signalType -> entry.data.release());
+    }
+
+    /**
+     * 创建一个响应记录器
+     *
+     * @return 记录器
+     */
+    public Recorder recorder() {
+        return new Recorder((int) Math.min(config.getMaxEntrySize().toBytes(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * 将记录的响应复制到堆外内存并缓存
+     *
+     * @param key      缓存键
+     * @param recorder 记录器
+     */
+    public void put(CompletionKey key, Recorder recorder) {
+        if (cache == null || recorder.overflow || recorder.length == 0) {
+            return;
+        }
+        ByteBuf data = UnpooledByteBufAllocator.DEFAULT.directBuffer(recorder.length, recorder.length);
+        data.writeBytes(recorder.bytes, 0, recorder.length);
+        cache.put(key, new Entry(data, Arrays.copyOf(recorder.chunkEnds, recorder.chunks)));
+    }
+
+    /**
+     * @return 缓存命中、未命中和淘汰统计, 缓存未启用时返回空统计
+     */
+    public CacheStats stats() {
+        return cache == null ? CacheStats.empty() : cache.stats();
+    }
+
+    /**
+     * @return 缓存占用的堆外内存字节数
+     */
+    public long memoryUsed() {
+        if (cache == null) {
+            return 0;
+        }
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    /**
+     * 缓存的响应, 缓存持有一个引用, 淘汰时释放
+     */
+    private static final class Entry {
+        private final ByteBuf data;
+
+        private final int[] chunkEnds;
+
+        private Entry(ByteBuf data, int[] chunkEnds) {
+            this.data = data;
+            this.chunkEnds = chunkEnds;
+        }
+
+        private int size() {
+            return data.capacity();
+        }
+
+        /**
+         * @return 是否获取了引用, 已经被释放时返回 false
+         */
+        private boolean retain() {
+            try {
+                data.retain();
+                return true;
+            } catch (IllegalReferenceCountException e) {
+                return false;
+            }
+        }
+
+        /**
+         * 按上游原来的分块回放, 每个数据块都是堆外内存的视图, 不复制, 写出后由写出方释放
+         */
+        private Flux<DataBuffer> replay() {
+            return Flux.range(0, chunkEnds.length).map(i -> {
+                int start = i == 0 ? 0 : chunkEnds[i - 1];
+                return BUFFER_FACTORY.wrap(data.retainedSlice(start, chunkEnds[i] - start));
+            });
+        }
+    }
+
+    /**
+     * 记录转发给客户端的响应, 超过单个响应的大小上限后不再记录
+     * <p>
+     * 非线程安全, 每个响应使用一个实例.
+     */
+    public static final class Recorder {
+        private final int maxBytes;
+
+        private byte[] bytes = new byte[4096];
+
+        private int length;
+
+        private int[] chunkEnds = new int[64];
+
+        private int chunks;
+
+        private boolean overflow;
+
+        private Recorder(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * 记录一个数据块, 不改变 buffer 的读指针
+         *
+         * @param buffer 上游返回的数据
+         */
+        public void append(DataBuffer buffer) {
+            int count = buffer.readableByteCount();
+            if (overflow || count == 0) {
+                return;
+            }
+            if (length + count > maxBytes) {
+                overflow = true;
+                bytes = null;
+                return;
+            }
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.min(Math.max(bytes.length * 2, length + count), maxBytes));
+            }
+            try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    ByteBuffer byteBuffer = iterator.next();
+                    int remaining = byteBuffer.remaining();
+                    byteBuffer.get(byteBuffer.position(), bytes, length, remaining);
+                    length += remaining;
+                }
+            }
+            if (chunks == chunkEnds.length) {
+                chunkEnds = Arrays.copyOf(chunkEnds, chunks * 2);
+            }
+            chunkEnds[chunks++] = length;
+        }
+    }
+}
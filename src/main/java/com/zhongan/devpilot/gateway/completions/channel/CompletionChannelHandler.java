@@ -0,0 +1,291 @@
+package com.zhongan.devpilot.gateway.completions.channel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.zhongan.devpilot.gateway.completions.context.DocumentContext;
+import com.zhongan.devpilot.gateway.completions.document.DocumentStore;
+import com.zhongan.devpilot.gateway.completions.document.DocumentVersionException;
+import com.zhongan.devpilot.gateway.completions.providers.Provider;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeCompletionRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CompletionChannelRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CompletionChannelResponse;
+import com.zhongan.devpilot.gateway.completions.session.CompletionSessionRegistry;
+import com.zhongan.devpilot.gateway.completions.tokenizer.TokenCounter;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.filter.CodeCompletionGatewayFilterFactory;
+import com.zhongan.devpilot.gateway.filter.TokenRateLimitGatewayFilterFactory;
+import com.zhongan.devpilot.gateway.ratelimit.RateLimiter;
+import com.zhongan.devpilot.gateway.ratelimit.UserKeyResolver;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.publisher.SynchronousSink;
+import reactor.util.concurrent.Queues;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import static com.zhongan.devpilot.gateway.constant.Constants.EMPTY_CODE_MESSAGE;
+import static com.zhongan.devpilot.gateway.constant.Constants.SESSION_ID_HEADER;
+import static com.zhongan.devpilot.gateway.constant.Constants.STREAM_DONE_EVENT;
+
+/**
+ * WebSocket 补全通道
+ * <p>
+ * 编辑器与网关保持一个连接, 每次按键发送一个带 id 的补全请求, 响应消息带有相同的 id, 多个请求在同一个连接上交替返回.
+ * 不再为每次按键建立 HTTP 请求, 也不经过网关路由和请求体缓存过滤器. 请求体、文档增量同步和 {@link Provider} 都与 HTTP 接口相同,
+ * 补全提供者、上下文窗口和限流器取自配置的代码补全路由的过滤器, 同一个用户通过 HTTP 和通道发送的请求共用一份配额.
+ * <p>
+ * 取消: 客户端可以发送 cancel 消息取消指定的请求; 同一会话同一文件上的新请求会取代进行中的旧请求, 与 HTTP 接口共用
+ * {@link CompletionSessionRegistry}. 连接关闭时取消所有进行中的请求.
+ * <p>
+ * 背压: 读取消息与发送响应互不等待. 每个请求的响应作为一个 Flux 放入有界队列后合并发送, 客户端读得慢时只有对应的请求不再向上游
+ * 请求更多的增量, 不在网关中无限缓冲, cancel 消息仍然立即处理. 每个连接同时处理的请求有上限, 超过时直接返回 busy;
+ * 等待发送的响应超过上限时关闭连接.
+ */
+@Slf4j
+@Component
+public class CompletionChannelHandler implements WebSocketHandler {
+    private final JacksonMapper jacksonMapper;
+
+    private final JavaType requestType;
+
+    private final AppCommonProperties.CompletionChannelConfig config;
+
+    private final CompletionSessionRegistry completionSessionRegistry;
+
+    private final DocumentStore documentStore;
+
+    private final TokenCounter tokenCounter;
+
+    private final UserKeyResolver userKeyResolver;
+
+    private final CodeCompletionGatewayFilterFactory codeCompletionFilterFactory;
+
+    private final TokenRateLimitGatewayFilterFactory tokenRateLimitFilterFactory;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public CompletionChannelHandler(AppCommonProperties appCommonProperties, CompletionSessionRegistry completionSessionRegistry,
+                                    DocumentStore documentStore, TokenCounter tokenCounter, UserKeyResolver userKeyResolver,
+                                    CodeCompletionGatewayFilterFactory codeCompletionFilterFactory,
+                                    TokenRateLimitGatewayFilterFactory tokenRateLimitFilterFactory) {
+        this.jacksonMapper = JacksonMapper.sharedMapper();
+        this.requestType = jacksonMapper.getMapper().constructType(CompletionChannelRequest.class);
+        this.config = appCommonProperties.getOpenAiCodeCompletion().getChannel();
+        this.completionSessionRegistry = completionSessionRegistry;
+        this.documentStore = documentStore;
+        this.tokenCounter = tokenCounter;
+        this.userKeyResolver = userKeyResolver;
+        this.codeCompletionFilterFactory = codeCompletionFilterFactory;
+        this.tokenRateLimitFilterFactory = tokenRateLimitFilterFactory;
+    }
+
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        HandshakeInfo handshakeInfo = session.getHandshakeInfo();
+        HttpHeaders headers = handshakeInfo.getHeaders();
+        String sessionId = headers.getFirst(SESSION_ID_HEADER);
+        String userKey = userKeyResolver.resolve(headers, handshakeInfo.getRemoteAddress());
+        Connection connection = new Connection(session.getId(), sessionId, userKey);
+        // 只有读取消息的线程放入响应, 不需要串行化
+        Sinks.Many<Flux<CompletionChannelResponse>> responses = Sinks.many().unicast()
+                .onBackpressureBuffer(Queues.<Flux<CompletionChannelResponse>>get(config.getMaxPendingResponses()).get());
+        Mono<Void> inbound = session.receive()
+                .handle((WebSocketMessage message, SynchronousSink<Void> sink) -> {
+                    Flux<CompletionChannelResponse> response = dispatch(connection, message);
+                    if (response != null && responses.tryEmitNext(response).isFailure()) {
+                        sink.error(new PendingResponsesExceededException());
+                    }
+                })
+                .then()
+                .onErrorResume(PendingResponsesExceededException.class, e -> {
+                    log.warn("CompletionChannelOverflow: {}", connection.id);
+                    return session.close(CloseStatus.POLICY_VIOLATION.withReason("too many pending responses"));
+                })
+                .doFinally(signalType -> {
+                    // 客户端关闭连接后不再需要进行中的请求, 已经结束的响应仍然发送
+                    connection.cancelAll();
+                    responses.tryEmitComplete();
+                });
+        // 各个请求的响应按客户端的读取速度合并发送
+        Flux<WebSocketMessage> outbound = responses.asFlux()
+                .flatMap(Function.identity(), config.getMaxPendingResponses())
+                .map(response -> new WebSocketMessage(WebSocketMessage.Type.TEXT,
+                        session.bufferFactory().wrap(jacksonMapper.toJsonBytes(response))));
+        return Mono.when(inbound, session.send(outbound))
+                .doFirst(connections::incrementAndGet)
+                .doFinally(signalType -> {
+                    connection.cancelAll();
+                    connections.decrementAndGet();
+                });
+    }
+
+    /**
+     * 处理一个消息, 只做解析、限流和登记, 不等待上游和发送
+     *
+     * @return 请求的响应, cancel 消息没有响应时为 null
+     */
+    private Flux<CompletionChannelResponse> dispatch(Connection connection, WebSocketMessage message) {
+        CompletionChannelRequest channelRequest;
+        try {
+            channelRequest = jacksonMapper.fromJson(message.getPayload().asInputStream(), requestType);
+        } catch (RuntimeException e) {
+            log.warn("CompletionChannelInvalidMessage: {}", e.toString());
+            return Flux.just(error(null, "invalid message"));
+        }
+        String id = channelRequest.getId();
+        if (CompletionChannelRequest.CANCEL.equals(channelRequest.getType())) {
+            connection.cancel(id);
+            return null;
+        }
+        if (!CompletionChannelRequest.COMPLETE.equals(channelRequest.getType()) || id == null || channelRequest.getRequest() == null) {
+            return Flux.just(error(id, "invalid message"));
+        }
+        if (connection.inFlight.containsKey(id)) {
+            return Flux.just(error(id, "duplicate id"));
+        }
+        try {
+            return complete(connection, id, channelRequest.isStream(), channelRequest.getRequest());
+        } catch (RuntimeException e) {
+            // 只结束这个请求, 不关闭连接
+            log.warn("CompletionChannelInvalidRequest: {}, {}", id, e.toString());
+            return Flux.just(error(id, "invalid request"));
+        }
+    }
+
+    private Flux<CompletionChannelResponse> complete(Connection connection, String id, boolean stream, CodeCompletionRequest request) {
+        CodeCompletionGatewayFilterFactory.CompletionRoute route = codeCompletionFilterFactory.getRoute(config.getRouteId());
+        if (route == null) {
+            log.warn("CompletionChannelRouteMissing: {}", config.getRouteId());
+            return Flux.just(error(id, "completion route unavailable"));
+        }
+        if (connection.inFlight.size() >= config.getMaxInFlight()) {
+            return Flux.just(CompletionChannelResponse.of(id, CompletionChannelResponse.BUSY));
+        }
+        // 路由没有配置限流时不限制
+        RateLimiter rateLimiter = tokenRateLimitFilterFactory.getRateLimiter(config.getRouteId());
+        long waitNanos = rateLimiter == null ? 0 : rateLimiter.tryAcquire(connection.userKey);
+        if (waitNanos > 0) {
+            CompletionChannelResponse response = CompletionChannelResponse.of(id, CompletionChannelResponse.RATE_LIMITED);
+            response.setRetryAfterMillis(Math.max(waitNanos / 1_000_000, 1));
+            return Flux.just(response);
+        }
+        // 没有会话标识时以连接作为会话, 同一连接同一文件上的新请求仍然取代旧请求
+        String sessionId = ObjectUtils.firstNonNull(connection.sessionId, request.getSessionId(), connection.id);
+        String document;
+        try {
+            document = documentStore.resolve(request, connection.userKey, sessionId);
+        } catch (DocumentVersionException e) {
+            CompletionChannelResponse response = CompletionChannelResponse.of(id, CompletionChannelResponse.RESYNC);
+            response.setVersion(e.getCurrentVersion());
+            return Flux.just(response);
+        }
+        // 按 token 预算只保留光标附近的代码, 上游耗时与文件大小无关
+        DocumentContext documentContext = DocumentContext.build(request, document, route.contextWindow());
+        int promptTokens = tokenCounter.count(documentContext.getPrefix()) + tokenCounter.count(documentContext.getSuffix());
+        Provider provider = route.provider();
+        // 与 HTTP 接口一样, 上游没有返回结果时返回空的补全结果
+        Flux<ServerSentEvent<String>> events = stream ? provider.streamCompletions(documentContext)
+                : provider.generateCompletions(documentContext)
+                .defaultIfEmpty(EMPTY_CODE_MESSAGE)
+                .map(completion -> ServerSentEvent.builder(completion).event(STREAM_DONE_EVENT).build())
+                .flux();
+        Sinks.One<Boolean> cancel = Sinks.one();
+        connection.inFlight.put(id, cancel);
+        AtomicBoolean done = new AtomicBoolean();
+        return completionSessionRegistry.supersedable(connection.userKey, sessionId, request.getFilePath(), events)
+                .takeUntilOther(cancel.asMono())
+                .map(event -> {
+                    boolean last = STREAM_DONE_EVENT.equals(event.event());
+                    if (last) {
+                        done.set(true);
+                    }
+                    CompletionChannelResponse response = CompletionChannelResponse.of(id,
+                            last ? CompletionChannelResponse.DONE : CompletionChannelResponse.DELTA);
+                    response.setData(event.data());
+                    return response;
+                })
+                // 被取消或者被新请求取代时没有结束事件
+                .concatWith(Mono.fromSupplier(() -> done.get() ? null : CompletionChannelResponse.of(id, CompletionChannelResponse.CANCELLED)))
+                .onErrorResume(e -> {
+                    log.error("CompletionChannelError: {}", id, e);
+                    return Mono.just(error(id, "completion failed"));
+                })
+                .doFinally(signalType -> {
+                    connection.inFlight.remove(id, cancel);
+                    if (rateLimiter != null) {
+                        rateLimiter.charge(connection.userKey, promptTokens);
+                    }
+                });
+    }
+
+    private static CompletionChannelResponse error(String id, String message) {
+        CompletionChannelResponse response = CompletionChannelResponse.of(id, CompletionChannelResponse.ERROR);
+        response.setMessage(message);
+        return response;
+    }
+
+    /**
+     * @return 当前打开的连接数量
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * 等待发送的响应超过上限
+     */
+    private static final class PendingResponsesExceededException extends RuntimeException {
+        private PendingResponsesExceededException() {
+            super("too many pending responses", null, false, false);
+        }
+    }
+
+    /**
+     * 连接的会话、用户和进行中的请求. 消息按顺序处理, 只有请求结束时会从其它线程移除
+     */
+    private static final class Connection {
+        private final String id;
+
+        /**
+         * 握手请求头中的会话标识, 没有时为 null
+         */
+        private final String sessionId;
+
+        private final String userKey;
+
+        private final Map<String, Sinks.One<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+        private Connection(String id, String sessionId, String userKey) {
+            this.id = id;
+            this.sessionId = sessionId;
+            this.userKey = userKey;
+        }
+
+        private void cancel(String id) {
+            Sinks.One<Boolean> cancel = id == null ? null : inFlight.get(id);
+            if (cancel != null) {
+                cancel.tryEmitValue(Boolean.TRUE);
+            }
+        }
+
+        private void cancelAll() {
+            inFlight.values().forEach(cancel -> cancel.tryEmitValue(Boolean.TRUE));
+        }
+    }
+}
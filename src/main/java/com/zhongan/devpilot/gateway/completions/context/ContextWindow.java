@@ -0,0 +1,317 @@
+package com.zhongan.devpilot.gateway.completions.context;
+
+import com.zhongan.devpilot.gateway.completions.tokenizer.TokenCounter;
+import com.zhongan.devpilot.gateway.utils.TextSlice;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 光标附近的上下文窗口
+ * <p>
+ * 按 token 预算裁剪光标前后的代码, 使发送给模型的内容大小与文件大小无关. 预算按比例分配给光标前和光标后, 一侧没有用完的预算
+ * 会分给另一侧. 裁剪以行为单位, 并在窗口边缘附近优先选择空行或者顶层代码行作为边界. 文件头部的 package、import 等声明可以单独保留.
+ * <p>
+ * 只从光标处向两侧扫描到预算用完为止, 不会遍历整个文档.
+ */
+@Slf4j
+public final class ContextWindow {
+    /**
+     * 在窗口边缘多大比例的范围内寻找块边界
+     */
+    private static final int BOUNDARY_SEARCH_DIVISOR = 8;
+
+    private static final String[] HEADER_PREFIXES = {
+            "package ", "import ", "from ", "#include", "using ", "require", "use "
+    };
+
+    private static final String[] COMMENT_PREFIXES = {
+            "//", "/*", "*", "#!"
+    };
+
+    private final TokenCounter tokenCounter;
+
+    private final int maxTokens;
+
+    private final double prefixRatio;
+
+    private final boolean preserveHeader;
+
+    private final int maxHeaderTokens;
+
+    /**
+     * @param tokenCounter    token 计数器
+     * @param maxTokens       光标前后内容的 token 预算, 不大于 0 时不裁剪
+     * @param prefixRatio     分配给光标前内容的预算比例
+     * @param preserveHeader  是否保留文件头部的 package、import 等声明
+     * @param maxHeaderTokens 文件头部的 token 上限, 超过时不保留文件头部
+     */
+    public ContextWindow(TokenCounter tokenCounter, int maxTokens, double prefixRatio, boolean preserveHeader, int maxHeaderTokens) {
+        if (prefixRatio < 0 || prefixRatio > 1) {
+            throw new IllegalArgumentException("prefixRatio must be between 0 and 1: " + prefixRatio);
+        }
+        this.tokenCounter = tokenCounter;
+        this.maxTokens = maxTokens;
+        this.prefixRatio = prefixRatio;
+        this.preserveHeader = preserveHeader;
+        this.maxHeaderTokens = maxHeaderTokens;
+    }
+
+    /**
+     * 裁剪文档上下文
+     *
+     * @param documentContext 文档上下文
+     */
+    public void apply(DocumentContext documentContext) {
+        if (maxTokens <= 0) {
+            return;
+        }
+        String document = documentContext.getDocument();
+        int cursor = documentContext.cursorOffset();
+
+        int headerEnd = 0;
+        int headerTokens = 0;
+        if (preserveHeader) {
+            headerEnd = headerEnd(document, cursor);
+            if (headerEnd > 0) {
+                headerTokens = count(document, 0, headerEnd);
+                if (headerTokens > maxHeaderTokens || headerTokens >= maxTokens) {
+                    headerEnd = 0;
+                    headerTokens = 0;
+                }
+            }
+        }
+
+        int budget = maxTokens - headerTokens;
+        int prefixBudget = (int) (budget * prefixRatio);
+        Cut prefix = cutBackward(document, headerEnd, cursor, prefixBudget);
+        Cut suffix = cutForward(document, cursor, budget - prefix.tokens);
+        if (prefix.truncated && !suffix.truncated && budget - suffix.tokens > prefixBudget) {
+            // 光标后的内容没有用完预算, 剩余的预算分给光标前
+            prefix = cutBackward(document, headerEnd, cursor, budget - suffix.tokens);
+        }
+
+        if (prefix.position > headerEnd) {
+            documentContext.setWindowStart(prefix.position);
+            if (headerEnd > 0) {
+                documentContext.setHeader(TextSlice.of(document, 0, headerEnd));
+            }
+        }
+        if (suffix.position < document.length()) {
+            documentContext.setWindowEnd(suffix.position);
+        }
+        if (prefix.truncated || suffix.truncated) {
+            log.debug("ContextWindow: path={}, length={}, window=[{}, {}), header={}, tokens={}",
+                    documentContext.getPath(), document.length(), prefix.position, suffix.position, headerEnd,
+                    headerTokens + prefix.tokens + suffix.tokens);
+        }
+    }
+
+    /**
+     * 从光标处向前按行扫描, 直到预算用完
+     */
+    private Cut cutBackward(String document, int lower, int cursor, int budget) {
+        int position = cursor;
+        int used = 0;
+        while (position > lower) {
+            int lineStart = Math.max(lower, document.lastIndexOf('\n', position - 2) + 1);
+            int tokens = count(document, lineStart, position);
+            if (used + tokens > budget) {
+                if (position == cursor) {
+                    // 光标所在行本身超过预算, 只保留靠近光标的部分
+                    return partialBackward(document, lineStart, cursor, budget);
+                }
+                int boundary = backwardBoundary(document, position, cursor, used);
+                return new Cut(boundary, used - count(document, position, boundary), true);
+            }
+            used += tokens;
+            position = lineStart;
+        }
+        return new Cut(position, used, false);
+    }
+
+    /**
+     * 在窗口开头附近寻找块边界: 空行之后, 或者顶层代码行
+     */
+    private int backwardBoundary(String document, int start, int cursor, int used) {
+        int limit = used / BOUNDARY_SEARCH_DIVISOR;
+        int skipped = 0;
+        int lineStart = start;
+        while (skipped <= limit) {
+            int lineEnd = document.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd >= cursor) {
+                break;
+            }
+            lineEnd++;
+            if (isBlank(document, lineStart, lineEnd)) {
+                return lineEnd;
+            }
+            if (lineStart > start && isTopLevel(document, lineStart)) {
+                return lineStart;
+            }
+            skipped += count(document, lineStart, lineEnd);
+            lineStart = lineEnd;
+        }
+        return start;
+    }
+
+    private Cut partialBackward(String document, int lineStart, int cursor, int budget) {
+        int low = lineStart;
+        int high = cursor;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (count(document, middle, cursor) <= budget) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        // 不从代理对中间切开, 向光标方向移动只会减少 token
+        if (splitsSurrogatePair(document, low) && low < cursor) {
+            low++;
+        }
+        return new Cut(low, count(document, low, cursor), true);
+    }
+
+    /**
+     * 从光标处向后按行扫描, 直到预算用完
+     */
+    private Cut cutForward(String document, int cursor, int budget) {
+        int length = document.length();
+        int position = cursor;
+        int used = 0;
+        while (position < length) {
+            int lineEnd = document.indexOf('\n', position);
+            lineEnd = lineEnd < 0 ? length : lineEnd + 1;
+            int tokens = count(document, position, lineEnd);
+            if (used + tokens > budget) {
+                if (position == cursor) {
+                    return partialForward(document, cursor, lineEnd, budget);
+                }
+                int boundary = forwardBoundary(document, cursor, position, used);
+                return new Cut(boundary, used - count(document, boundary, position), true);
+            }
+            used += tokens;
+            position = lineEnd;
+        }
+        return new Cut(position, used, false);
+    }
+
+    /**
+     * 在窗口末尾附近寻找块边界: 空行之前
+     */
+    private int forwardBoundary(String document, int cursor, int end, int used) {
+        int limit = used / BOUNDARY_SEARCH_DIVISOR;
+        int skipped = 0;
+        int lineEnd = end;
+        while (skipped <= limit && lineEnd > cursor) {
+            int lineStart = Math.max(cursor, document.lastIndexOf('\n', lineEnd - 2) + 1);
+            if (lineStart == cursor) {
+                break;
+            }
+            if (isBlank(document, lineStart, lineEnd)) {
+                return lineStart;
+            }
+            skipped += count(document, lineStart, lineEnd);
+            lineEnd = lineStart;
+        }
+        return end;
+    }
+
+    private Cut partialForward(String document, int cursor, int lineEnd, int budget) {
+        int low = cursor;
+        int high = lineEnd;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (count(document, cursor, middle) <= budget) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (splitsSurrogatePair(document, low) && low > cursor) {
+            low--;
+        }
+        return new Cut(low, count(document, cursor, low), true);
+    }
+
+    /**
+     * 文件头部的结束位置: 从文件开头起连续的 package、import 声明以及其中的注释和空行, 到最后一个声明行结束
+     */
+    private int headerEnd(String document, int cursor) {
+        int headerEnd = 0;
+        int tokens = 0;
+        int lineStart = 0;
+        while (lineStart < cursor) {
+            int lineEnd = document.indexOf('\n', lineStart);
+            lineEnd = lineEnd < 0 ? document.length() : lineEnd + 1;
+            if (lineEnd > cursor) {
+                break;
+            }
+            int contentStart = lineStart;
+            while (contentStart < lineEnd && document.charAt(contentStart) <= ' ') {
+                contentStart++;
+            }
+            if (startsWithAny(document, contentStart, HEADER_PREFIXES)) {
+                headerEnd = lineEnd;
+            } else if (contentStart < lineEnd && !startsWithAny(document, contentStart, COMMENT_PREFIXES)) {
+                break;
+            }
+            tokens += count(document, lineStart, lineEnd);
+            if (tokens > maxHeaderTokens) {
+                return 0;
+            }
+            lineStart = lineEnd;
+        }
+        return headerEnd;
+    }
+
+    private int count(String document, int start, int end) {
+        return tokenCounter.count(TextSlice.of(document, start, end));
+    }
+
+    /**
+     * 位置是否在一个补充平面字符的高、低代理之间
+     */
+    private static boolean splitsSurrogatePair(String document, int position) {
+        return position > 0 && position < document.length()
+                && Character.isHighSurrogate(document.charAt(position - 1)) && Character.isLowSurrogate(document.charAt(position));
+    }
+
+    private static boolean startsWithAny(String document, int offset, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (document.startsWith(prefix, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBlank(String document, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (document.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 顶层代码行: 没有缩进, 也不是右括号开头
+     */
+    private static boolean isTopLevel(String document, int lineStart) {
+        if (lineStart >= document.length()) {
+            return false;
+        }
+        char c = document.charAt(lineStart);
+        return c > ' ' && c != '}' && c != ')' && c != ']';
+    }
+
+    /**
+     * 裁剪结果
+     *
+     * @param position  窗口边界在文档中的位置
+     * @param tokens    窗口内的 token 数量
+     * @param truncated 是否因为预算而被裁剪
+     */
+    private record Cut(int position, int tokens, boolean truncated) {
+    }
+}
@@ -1,9 +1,16 @@
 package com.zhongan.devpilot.gateway.completions.context;
 
+import java.util.List;
+
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeCompletionRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeExcerpt;
+import com.zhongan.devpilot.gateway.utils.TextSlice;
 import lombok.Data;
 
 /**
  * 文档上下文
+ * <p>
+ * 只持有一份文档内容, 光标前后的字符串都是文档的视图. 经过 {@link ContextWindow} 裁剪后, 光标前后的字符串只包含窗口内的部分.
  *
  * @author Jerry.Chen
  */
@@ -25,21 +32,65 @@ public class DocumentContext {
     private Integer cursor;
 
     /**
-     * 光标前的字符串
+     * 代码补全类型
+     * 1. comment: 注释补全;
+     * 2. inline: 单行补全;
      */
-    private String prefix;
+    private String completionType;
 
     /**
-     * 光标后的字符串
+     * 上下文窗口在文档中的开始位置(包含)
      */
-    private String suffix;
+    private int windowStart;
 
     /**
-     * 代码补全类型
-     * 1. comment: 注释补全;
-     * 2. inline: 单行补全;
+     * 上下文窗口在文档中的结束位置(不包含), 为 null 时表示文档末尾
      */
-    private String completionType;
+    private Integer windowEnd;
+
+    /**
+     * 窗口之外保留的文件头部(package、import 等), 窗口已经包含文件头部时为 null
+     */
+    private TextSlice header;
+
+    /**
+     * 仓库名称, 用于检索仓库中相关的代码片段, 为 null 时不检索
+     */
+    private String repoName;
+
+    /**
+     * 最近查看的其它文件中的代码片段, 没有时为 null
+     */
+    private List<CodeExcerpt> recentExcerpts;
+
+    /**
+     * 从仓库中检索到的相关代码片段, 已经按模板格式拼接, 没有时为 null
+     */
+    private String contextSnippets;
+
+    /**
+     * @return 光标前的字符串, 光标位置不大于 1 时为整个文档
+     */
+    public TextSlice getPrefix() {
+        return TextSlice.of(document, windowStart, cursorOffset());
+    }
+
+    /**
+     * @return 光标后的字符串, 光标位置不大于 1 时为空
+     */
+    public TextSlice getSuffix() {
+        return TextSlice.of(document, cursorOffset(), windowEnd == null ? document.length() : windowEnd);
+    }
+
+    /**
+     * @return 光标在文档中的实际位置
+     */
+    int cursorOffset() {
+        if (cursor != null && cursor > 1) {
+            return Math.min(cursor, document.length());
+        }
+        return document.length();
+    }
 
     /**
      * 构建文档上下文
@@ -55,17 +106,39 @@ public class DocumentContext {
         documentContext.setDocument(document);
         documentContext.setPath(path);
         documentContext.setCursor(cursor);
-        if (cursor > 1) {
-            // 获取光标前的字符串
-            String prefix = document.substring(0, cursor);
-            String suffix = document.substring(cursor);
-            documentContext.setPrefix(prefix);
-            documentContext.setSuffix(suffix);
-        } else {
-            documentContext.setPrefix(document);
-            documentContext.setSuffix("");
-        }
         documentContext.setCompletionType(completionType);
         return documentContext;
     }
+
+    /**
+     * 构建文档上下文, 并按 token 预算裁剪光标前后的内容
+     *
+     * @param document       文档内容
+     * @param path           文档路径
+     * @param cursor         光标位置
+     * @param completionType 代码补全类型
+     * @param contextWindow  上下文窗口
+     * @return 文档上下文
+     */
+    public static DocumentContext build(String document, String path, Integer cursor, String completionType, ContextWindow contextWindow) {
+        DocumentContext documentContext = build(document, path, cursor, completionType);
+        contextWindow.apply(documentContext);
+        return documentContext;
+    }
+
+    /**
+     * 根据补全请求构建文档上下文, 并按 token 预算裁剪光标前后的内容
+     *
+     * @param completionRequest 补全请求
+     * @param document          完整文档, 增量同步时由保存的文档得到
+     * @param contextWindow     上下文窗口
+     * @return 文档上下文
+     */
+    public static DocumentContext build(CodeCompletionRequest completionRequest, String document, ContextWindow contextWindow) {
+        DocumentContext documentContext = build(document, completionRequest.getFilePath(), completionRequest.getPosition(),
+                completionRequest.getCompletionType(), contextWindow);
+        documentContext.setRepoName(completionRequest.getRepoName());
+        documentContext.setRecentExcerpts(completionRequest.getRecentExcerpts());
+        return documentContext;
+    }
 }
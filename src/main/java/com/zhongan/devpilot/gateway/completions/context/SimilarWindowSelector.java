@@ -0,0 +1,341 @@
+package com.zhongan.devpilot.gateway.completions.context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeExcerpt;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.rag.lexical.CodeTokenizer;
+import com.zhongan.devpilot.gateway.utils.TextSlice;
+
+/**
+ * 从最近查看的文件中选择与光标附近最相似的代码窗口
+ * <p>
+ * 光标前 {@code windowLines} 行代码的词集合作为查询, 在每个文件片段上按行滑动同样大小的窗口, 计算两个词集合的 Jaccard 相似度,
+ * 每个文件保留最相似的窗口. 词在扫描字符时直接计算滚动哈希并映射到固定大小的位图, 不生成字符串; 窗口移动一行时只加入新的一行、
+ * 移除旧的一行, 交集和并集的大小增量维护, 每个字符最多处理两次. 位图和计数数组按线程复用, 不随请求分配.
+ * <p>
+ * 关键字按哈希过滤, 避免同一种语言的任意两段代码因为 {@code public}、{@code return} 等关键字而相似. 哈希冲突只会使相似度略有偏差.
+ */
+public final class SimilarWindowSelector {
+    private static final int BUCKET_BITS = 13;
+
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+
+    private static final int KEYWORD_BITS = 16;
+
+    /**
+     * 每处理这么多行检查一次截止时间
+     */
+    private static final int DEADLINE_CHECK_LINES = 32;
+
+    private static final long[] KEYWORD_FILTER = new long[(1 << KEYWORD_BITS) / Long.SIZE];
+
+    static {
+        for (String keyword : CodeTokenizer.keywords()) {
+            int hash = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                hash = hash * 31 + keyword.charAt(i);
+            }
+            int bucket = keywordBucket(hash);
+            KEYWORD_FILTER[bucket >>> 6] |= 1L << bucket;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final AppCommonProperties.CrossFileConfig config;
+
+    public SimilarWindowSelector(AppCommonProperties.CrossFileConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * 选择相似的代码窗口
+     *
+     * @param documentContext 文档上下文
+     * @param deadline        截止时间({@link System#nanoTime()}), 到期后只使用已经计算的窗口
+     * @return 按相似度从高到低的窗口, 不包含当前文件
+     */
+    public List<Snippet> select(DocumentContext documentContext, long deadline) {
+        List<CodeExcerpt> excerpts = documentContext.getRecentExcerpts();
+        if (excerpts == null || excerpts.isEmpty()) {
+            return List.of();
+        }
+        Scratch scratch = SCRATCH.get();
+        TextSlice prefix = documentContext.getPrefix();
+        int queryStart = lineStartBefore(prefix, prefix.length(), config.getWindowLines());
+        int querySize = scratch.query(prefix, queryStart, prefix.length());
+        if (querySize == 0) {
+            return List.of();
+        }
+        List<Snippet> snippets = new ArrayList<>();
+        int limit = Math.min(excerpts.size(), config.getMaxExcerpts());
+        for (int i = 0; i < limit; i++) {
+            CodeExcerpt excerpt = excerpts.get(i);
+            if (excerpt == null || excerpt.getContent() == null || samePath(excerpt.getFilePath(), documentContext.getPath())) {
+                continue;
+            }
+            Snippet snippet = best(scratch, excerpt, querySize, deadline);
+            if (snippet != null && snippet.similarity() >= config.getMinSimilarity()) {
+                snippets.add(snippet);
+            }
+            if (System.nanoTime() - deadline > 0) {
+                break;
+            }
+        }
+        snippets.sort(Comparator.comparingDouble(Snippet::similarity).reversed());
+        return snippets.size() > config.getMaxSnippets() ? snippets.subList(0, config.getMaxSnippets()) : snippets;
+    }
+
+    /**
+     * 在一个文件片段上滑动窗口, 返回最相似的窗口
+     */
+    private Snippet best(Scratch scratch, CodeExcerpt excerpt, int querySize, long deadline) {
+        String content = excerpt.getContent();
+        int end = Math.min(content.length(), config.getMaxExcerptChars());
+        int[] lines = scratch.lineStarts(content, end);
+        int lineCount = scratch.lineCount;
+        if (lineCount == 0) {
+            return null;
+        }
+        int window = Math.min(Math.max(config.getWindowLines(), 1), lineCount);
+        int stride = Math.max(config.getWindowStride(), 1);
+        for (int line = 0; line < window; line++) {
+            scratch.add(content, lines[line], lines[line + 1]);
+        }
+        double bestSimilarity = scratch.similarity(querySize);
+        int bestStart = 0;
+        int start = 1;
+        for (; start + window <= lineCount; start++) {
+            if (start % DEADLINE_CHECK_LINES == 0 && System.nanoTime() - deadline > 0) {
+                break;
+            }
+            scratch.remove(content, lines[start - 1], lines[start]);
+            scratch.add(content, lines[start + window - 1], lines[start + window]);
+            if (start % stride == 0 || start + window == lineCount) {
+                double similarity = scratch.similarity(querySize);
+                if (similarity > bestSimilarity) {
+                    bestSimilarity = similarity;
+                    bestStart = start;
+                }
+            }
+        }
+        // 移除最后一个窗口, 计数数组恢复为全 0 供下一个片段使用
+        int last = start - 1;
+        for (int line = last; line < last + window; line++) {
+            scratch.remove(content, lines[line], lines[line + 1]);
+        }
+        return new Snippet(excerpt.getFilePath(), bestStart + 1, bestStart + window,
+                content.substring(lines[bestStart], lines[bestStart + window]), bestSimilarity);
+    }
+
+    /**
+     * 从 end 向前数 n 行, 返回第一行的开始位置
+     */
+    private static int lineStartBefore(CharSequence text, int end, int n) {
+        int i = end;
+        // 光标所在的行也算一行
+        int lines = 0;
+        while (i > 0) {
+            if (text.charAt(i - 1) == '\n' && ++lines >= n) {
+                break;
+            }
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * 判断两个路径是否指向同一个文件. 客户端可能发送绝对路径或者相对于仓库的路径, 一个是另一个的后缀时也认为相同
+     *
+     * @param excerptPath 路径, 允许为 null
+     * @param path        另一个路径, 允许为 null
+     * @return 是否为同一个文件, 任意一个为 null 时为 false
+     */
+    public static boolean samePath(String excerptPath, String path) {
+        if (excerptPath == null || path == null) {
+            return false;
+        }
+        String a = excerptPath.replace('\\', '/');
+        String b = path.replace('\\', '/');
+        return a.equals(b) || a.endsWith("/" + b) || b.endsWith("/" + a);
+    }
+
+    private static int bucket(int hash) {
+        return (hash * 0x9E3779B9) >>> (Integer.SIZE - BUCKET_BITS);
+    }
+
+    private static int keywordBucket(int hash) {
+        return (hash * 0x85EBCA6B) >>> (Integer.SIZE - KEYWORD_BITS);
+    }
+
+    private static boolean isKeyword(int hash) {
+        int bucket = keywordBucket(hash);
+        return (KEYWORD_FILTER[bucket >>> 6] & (1L << bucket)) != 0;
+    }
+
+    private static boolean isWordChar(char c) {
+        if (c < 128) {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '$';
+        }
+        return Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * 选择的代码窗口
+     *
+     * @param path       文件路径
+     * @param startLine  在片段中的开始行, 从 1 开始
+     * @param endLine    在片段中的结束行(包含)
+     * @param content    窗口内容
+     * @param similarity Jaccard 相似度
+     */
+    public record Snippet(String path, int startLine, int endLine, String content, double similarity) {
+    }
+
+    /**
+     * 按线程复用的查询位图、窗口计数和行偏移
+     */
+    private static final class Scratch {
+        private static final int QUERY = 0;
+
+        private static final int ADD = 1;
+
+        private static final int REMOVE = 2;
+
+        private final long[] queryBits = new long[BUCKETS / Long.SIZE];
+
+        /**
+         * 窗口中每个桶的词数量
+         */
+        private final int[] counts = new int[BUCKETS];
+
+        private int[] lineStarts = new int[256];
+
+        private int lineCount;
+
+        /**
+         * 查询中不同桶的数量
+         */
+        private int querySize;
+
+        /**
+         * 窗口中不同桶的数量
+         */
+        private int windowSize;
+
+        /**
+         * 窗口与查询共同的桶的数量
+         */
+        private int intersection;
+
+        /**
+         * 计算查询的位图
+         *
+         * @return 查询中不同桶的数量
+         */
+        private int query(CharSequence text, int start, int end) {
+            Arrays.fill(queryBits, 0);
+            querySize = 0;
+            windowSize = 0;
+            intersection = 0;
+            forEachWord(text, start, end, QUERY);
+            return querySize;
+        }
+
+        private void add(CharSequence text, int start, int end) {
+            forEachWord(text, start, end, ADD);
+        }
+
+        private void remove(CharSequence text, int start, int end) {
+            forEachWord(text, start, end, REMOVE);
+        }
+
+        private double similarity(int querySize) {
+            int union = querySize + windowSize - intersection;
+            return union == 0 ? 0 : (double) intersection / union;
+        }
+
+        /**
+         * 计算每行的开始位置, lineStarts[lineCount] 为结束位置
+         */
+        private int[] lineStarts(String content, int end) {
+            int n = 0;
+            int start = 0;
+            for (int i = 0; i < end; i++) {
+                if (content.charAt(i) == '\n') {
+                    n = addLine(n, start);
+                    start = i + 1;
+                }
+            }
+            if (start < end) {
+                n = addLine(n, start);
+            }
+            lineStarts[n] = end;
+            lineCount = n;
+            return lineStarts;
+        }
+
+        private int addLine(int n, int start) {
+            if (n + 1 >= lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineStarts.length * 2);
+            }
+            lineStarts[n] = start;
+            return n + 1;
+        }
+
+        /**
+         * 依次计算每个词的滚动哈希, 跳过单个字符、纯数字和关键字
+         */
+        private void forEachWord(CharSequence text, int start, int end, int operation) {
+            int i = start;
+            while (i < end) {
+                char c = text.charAt(i);
+                if (!isWordChar(c)) {
+                    i++;
+                    continue;
+                }
+                int hash = 0;
+                int length = 0;
+                boolean digits = true;
+                while (i < end && isWordChar(c = text.charAt(i))) {
+                    hash = hash * 31 + c;
+                    digits &= c >= '0' && c <= '9';
+                    length++;
+                    i++;
+                }
+                if (length > 1 && !digits && !isKeyword(hash)) {
+                    accept(bucket(hash), operation);
+                }
+            }
+        }
+
+        private void accept(int bucket, int operation) {
+            long mask = 1L << bucket;
+            boolean inQuery = (queryBits[bucket >>> 6] & mask) != 0;
+            switch (operation) {
+                case QUERY -> {
+                    if (!inQuery) {
+                        queryBits[bucket >>> 6] |= mask;
+                        querySize++;
+                    }
+                }
+                case ADD -> {
+                    if (counts[bucket]++ == 0) {
+                        windowSize++;
+                        intersection += inQuery ? 1 : 0;
+                    }
+                }
+                default -> {
+                    if (--counts[bucket] == 0) {
+                        windowSize--;
+                        intersection -= inQuery ? 1 : 0;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.zhongan.devpilot.gateway.completions.document;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeCompletionRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.DocumentEdit;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.ratelimit.UserKeyResolver;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 编辑器会话中打开的文档
+ * <p>
+ * 客户端第一次请求时发送完整文档和版本号, 之后只发送相对于某个版本的增量修改和新的版本号, 不再每次按键都上传整个文件.
+ * 文档按用户、会话和路径保存在 {@link PieceTable} 中, 按字符数量限制总内存, 超过后淘汰最久未使用的文档.
+ * 只有用户标识来自认证信息(受信任的用户请求头或者凭证)时才保存文档, 其它用户即使知道会话标识也读不到文档;
+ * 按客户端地址识别的用户可能共用同一个出口地址, 不保存文档, 只带增量修改的请求要求客户端发送完整文档.
+ * <p>
+ * 增量修改的基础版本与保存的版本不一致、文档已经被淘汰或者修改超出文档范围时抛出 {@link DocumentVersionException},
+ * 客户端重新发送完整文档即可恢复.
+ */
+@Slf4j
+@Component
+public class DocumentStore {
+    private final AppCommonProperties.DocumentSyncConfig config;
+
+    private final Cache<String, SyncedDocument> documents;
+
+    private final LongAdder resyncCount = new LongAdder();
+
+    public DocumentStore(AppCommonProperties appCommonProperties) {
+        this.config = appCommonProperties.getOpenAiCodeCompletion().getDocumentSync();
+        if (config.isEnabled()) {
+            this.documents = Caffeine.newBuilder()
+                    .maximumWeight(config.getMaxChars())
+                    .weigher((String key, SyncedDocument document) -> document.text.memoryChars())
+                    .expireAfterAccess(config.getExpireAfterAccess())
+                    .build();
+        } else {
+            this.documents = null;
+        }
+    }
+
+    /**
+     * 获取请求的完整文档: 请求中有完整文档时直接使用, 带版本号时同时保存; 只有增量修改时应用到保存的文档上
+     *
+     * @param completionRequest 补全请求
+     * @param userKey           {@link UserKeyResolver} 返回的用户标识, 不是来自认证信息时不保存文档
+     * @param sessionId         编辑器会话标识
+     * @return 完整文档
+     * @throws DocumentVersionException 需要客户端重新发送完整文档
+     */
+    public String resolve(CodeCompletionRequest completionRequest, String userKey, String sessionId) {
+        String document = completionRequest.getDocument();
+        boolean authenticated = UserKeyResolver.isAuthenticated(userKey);
+        if (document != null || completionRequest.getEdits() == null) {
+            if (authenticated && document != null && completionRequest.getDocumentVersion() != null) {
+                open(userKey, sessionId, completionRequest.getFilePath(), completionRequest.getDocumentVersion(), document);
+            }
+            return document;
+        }
+        if (!authenticated) {
+            resyncCount.increment();
+            throw new DocumentVersionException(null);
+        }
+        return update(userKey, sessionId, completionRequest.getFilePath(), completionRequest.getBaseVersion(),
+                completionRequest.getDocumentVersion(), completionRequest.getEdits());
+    }
+
+    /**
+     * 保存完整文档, 替换之前的版本
+     *
+     * @param userKey   用户标识
+     * @param sessionId 编辑器会话标识, 为空时不保存
+     * @param path      文档路径
+     * @param version   文档版本
+     * @param document  文档内容
+     */
+    public void open(String userKey, String sessionId, String path, long version, String document) {
+        if (documents == null || StringUtils.isBlank(sessionId)) {
+            return;
+        }
+        String key = key(userKey, sessionId, path);
+        if (document.length() > config.getMaxDocumentChars()) {
+            documents.invalidate(key);
+            return;
+        }
+        documents.put(key, new SyncedDocument(version, new PieceTable(document)));
+    }
+
+    /**
+     * 依次应用增量修改, 每个修改的位置基于应用了前面的修改之后的文档
+     * <p>
+     * 在 compute 中只应用修改并取快照, 拼接完整文档在锁之外进行, 拼接结果再合并回保存的文档.
+     *
+     * @param userKey     用户标识
+     * @param sessionId   编辑器会话标识
+     * @param path        文档路径
+     * @param baseVersion 修改所基于的版本
+     * @param version     修改后的版本, 需要大于基础版本
+     * @param edits       增量修改
+     * @return 修改后的完整文档
+     * @throws DocumentVersionException 需要客户端重新发送完整文档
+     */
+    public String update(String userKey, String sessionId, String path, Long baseVersion, Long version, List<DocumentEdit> edits) {
+        if (documents == null || StringUtils.isBlank(sessionId) || baseVersion == null || version == null || version <= baseVersion) {
+            resyncCount.increment();
+            throw new DocumentVersionException(null);
+        }
+        String key = key(userKey, sessionId, path);
+        SyncedDocument[] updated = new SyncedDocument[1];
+        PieceTable.Snapshot[] snapshot = new PieceTable.Snapshot[1];
+        Long[] currentVersion = new Long[1];
+        // 在 compute 中修改, 同一文档的并发请求依次执行, 并按修改后的大小重新计算权重
+        documents.asMap().compute(key, (k, document) -> {
+            if (document == null) {
+                return null;
+            }
+            currentVersion[0] = document.version;
+            if (document.version != baseVersion) {
+                return document;
+            }
+            try {
+                for (DocumentEdit edit : edits) {
+                    document.text.edit(edit.getOffset(), edit.getDeleteLength(), edit.getInsertText());
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // 已经应用了一部分修改, 文档不再可信
+                log.warn("DocumentEditRejected: session: {}, path: {}, {}", sessionId, path, e.getMessage());
+                currentVersion[0] = null;
+                return null;
+            }
+            if (document.text.length() > config.getMaxDocumentChars()) {
+                currentVersion[0] = null;
+                return null;
+            }
+            document.version = version;
+            updated[0] = document;
+            snapshot[0] = document.text.snapshot();
+            return document;
+        });
+        if (snapshot[0] == null) {
+            resyncCount.increment();
+            throw new DocumentVersionException(currentVersion[0]);
+        }
+        String text = snapshot[0].toString();
+        // 文档没有被替换并且之后没有新的修改时合并, 下次只需要复制这之后的修改; 返回自身以按合并后的大小重新计算权重
+        documents.asMap().computeIfPresent(key, (k, document) -> {
+            if (document == updated[0]) {
+                document.text.compact(snapshot[0], text);
+            }
+            return document;
+        });
+        return text;
+    }
+
+    private static String key(String userKey, String sessionId, String path) {
+        return userKey + '\u0000' + sessionId + '\u0000' + path;
+    }
+
+    /**
+     * @return 保存的文档数量
+     */
+    public long size() {
+        return documents == null ? 0 : documents.estimatedSize();
+    }
+
+    /**
+     * @return 保存的文档占用的字符数量
+     */
+    public long memoryChars() {
+        if (documents == null) {
+            return 0;
+        }
+        return documents.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    /**
+     * @return 要求客户端重新发送完整文档的次数
+     */
+    public long getResyncCount() {
+        return resyncCount.sum();
+    }
+
+    /**
+     * 保存的文档和版本, 只在 compute 中修改
+     */
+    private static final class SyncedDocument {
+        private long version;
+
+        private final PieceTable text;
+
+        private SyncedDocument(long version, PieceTable text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.zhongan.devpilot.gateway.completions.document;
+
+/**
+ * 增量修改与服务端保存的文档版本不一致, 或者文档已经被淘汰, 客户端需要重新发送完整文档. 这是正常的同步流程, 不记录异常堆栈
+ */
+public class DocumentVersionException extends RuntimeException {
+    private final Long currentVersion;
+
+    public DocumentVersionException(Long currentVersion) {
+        super("document version mismatch, current: " + currentVersion, null, false, false);
+        this.currentVersion = currentVersion;
+    }
+
+    /**
+     * @return 服务端保存的版本, 没有保存文档时为 null
+     */
+    public Long getCurrentVersion() {
+        return currentVersion;
+    }
+}
@@ -0,0 +1,250 @@
+package com.zhongan.devpilot.gateway.completions.document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文档内容的 piece table
+ * <p>
+ * 文档由原始文本和追加缓冲区中的若干片段依次拼接而成, 修改只拆分片段并把插入的文本追加到缓冲区, 不拷贝文档.
+ * 连续输入的字符会扩展同一个片段. 需要完整文本时拼接一次, 并以拼接结果作为新的原始文本, 片段合并为一个,
+ * 因此两次补全之间的片段数量和缓冲区大小只与这段时间的修改有关.
+ * <p>
+ * 拼接与文档长度成正比, 可以先取 {@link #snapshot() 快照}, 在持有文档的锁之外拼接, 再 {@link #compact 合并}回来.
+ * <p>
+ * 位置和长度都按 UTF-16 字符计算, 与请求中的光标位置一致. 不是线程安全的.
+ */
+public final class PieceTable {
+    /**
+     * 片段超过这个数量时合并, 限制定位片段的线性扫描
+     */
+    static final int MAX_PIECES = 1024;
+
+    /**
+     * 合并后追加缓冲区超过这个容量时重新分配, 不长期持有一次大段粘贴的内存
+     */
+    private static final int MAX_RETAINED_BUFFER = 4096;
+
+    private String original;
+
+    private StringBuilder added = new StringBuilder();
+
+    private final List<Piece> pieces = new ArrayList<>();
+
+    private int length;
+
+    /**
+     * 拼接后的完整文本, 修改后失效
+     */
+    private String text;
+
+    /**
+     * 修改次数, 用于判断快照是否仍然是当前的内容
+     */
+    private long modCount;
+
+    public PieceTable(String text) {
+        reset(text);
+    }
+
+    /**
+     * 删除一段文本并在同一位置插入新的文本
+     *
+     * @param offset       开始位置
+     * @param deleteLength 删除的字符数量
+     * @param insertText   插入的文本, 可以为 null
+     * @throws IndexOutOfBoundsException 位置或者长度超出文档范围
+     */
+    public void edit(int offset, int deleteLength, String insertText) {
+        if (offset < 0 || deleteLength < 0 || offset > length || deleteLength > length - offset) {
+            throw new IndexOutOfBoundsException("edit [" + offset + ", +" + deleteLength + ") out of document length " + length);
+        }
+        int insertLength = insertText == null ? 0 : insertText.length();
+        if (deleteLength == 0 && insertLength == 0) {
+            return;
+        }
+        text = null;
+        modCount++;
+        int first = split(offset);
+        int last = split(offset + deleteLength);
+        pieces.subList(first, last).clear();
+        if (insertLength > 0) {
+            Piece previous = first > 0 ? pieces.get(first - 1) : null;
+            if (previous != null && previous.added() && previous.start() + previous.length() == added.length()) {
+                // 紧接着上一次插入继续输入
+                pieces.set(first - 1, new Piece(true, previous.start(), previous.length() + insertLength));
+            } else {
+                pieces.add(first, new Piece(true, added.length(), insertLength));
+            }
+            added.append(insertText);
+        }
+        length += insertLength - deleteLength;
+        if (pieces.size() > MAX_PIECES) {
+            reset(toString());
+        }
+    }
+
+    /**
+     * 在指定位置拆分片段
+     *
+     * @return 从该位置开始的片段下标
+     */
+    private int split(int offset) {
+        int position = 0;
+        for (int i = 0; i < pieces.size(); i++) {
+            if (position == offset) {
+                return i;
+            }
+            Piece piece = pieces.get(i);
+            if (offset < position + piece.length()) {
+                int head = offset - position;
+                pieces.set(i, new Piece(piece.added(), piece.start(), head));
+                pieces.add(i + 1, new Piece(piece.added(), piece.start() + head, piece.length() - head));
+                return i + 1;
+            }
+            position += piece.length();
+        }
+        return pieces.size();
+    }
+
+    private void reset(String text) {
+        this.original = text;
+        this.text = text;
+        this.length = text.length();
+        if (added.capacity() > MAX_RETAINED_BUFFER) {
+            added = new StringBuilder();
+        } else {
+            added.setLength(0);
+        }
+        pieces.clear();
+        if (length > 0) {
+            pieces.add(new Piece(false, 0, length));
+        }
+    }
+
+    /**
+     * @return 文档长度
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return 片段数量
+     */
+    int pieceCount() {
+        return pieces.size();
+    }
+
+    /**
+     * @return 占用的字符数量, 包括原始文本和追加缓冲区
+     */
+    public int memoryChars() {
+        return original.length() + added.length();
+    }
+
+    /**
+     * 拼接完整文本, 并合并所有片段
+     *
+     * @return 完整文本
+     */
+    @Override
+    public String toString() {
+        if (text == null) {
+            StringBuilder sb = new StringBuilder(length);
+            for (Piece piece : pieces) {
+                if (piece.added()) {
+                    sb.append(added, piece.start(), piece.start() + piece.length());
+                } else {
+                    sb.append(original, piece.start(), piece.start() + piece.length());
+                }
+            }
+            reset(sb.toString());
+        }
+        return text;
+    }
+
+    /**
+     * 当前内容的只读快照, 只复制片段列表和追加缓冲区, 不复制原始文本, 耗时与上次合并之后的修改有关, 与文档长度无关
+     *
+     * @return 快照, 之后的修改不影响快照
+     */
+    public Snapshot snapshot() {
+        if (text != null) {
+            return new Snapshot(modCount, text, null, null, length);
+        }
+        return new Snapshot(modCount, original, added.toString(), pieces.toArray(new Piece[0]), length);
+    }
+
+    /**
+     * 快照之后没有修改时, 以快照拼接的文本作为新的原始文本, 合并所有片段
+     *
+     * @param snapshot 快照
+     * @param text     快照拼接的文本
+     * @return 是否合并
+     */
+    public boolean compact(Snapshot snapshot, String text) {
+        if (snapshot.modCount != modCount || this.text != null) {
+            return false;
+        }
+        reset(text);
+        return true;
+    }
+
+    /**
+     * 文档内容的只读快照, 可以在其它线程拼接
+     */
+    public static final class Snapshot {
+        private final long modCount;
+
+        private final String original;
+
+        private final String added;
+
+        private final Piece[] pieces;
+
+        private final int length;
+
+        private Snapshot(long modCount, String original, String added, Piece[] pieces, int length) {
+            this.modCount = modCount;
+            this.original = original;
+            this.added = added;
+            this.pieces = pieces;
+            this.length = length;
+        }
+
+        /**
+         * @return 文档长度
+         */
+        public int length() {
+            return length;
+        }
+
+        /**
+         * 拼接完整文本, 已经拼接过时直接返回
+         *
+         * @return 完整文本
+         */
+        @Override
+        public String toString() {
+            if (pieces == null) {
+                return original;
+            }
+            StringBuilder sb = new StringBuilder(length);
+            for (Piece piece : pieces) {
+                sb.append(piece.added() ? added : original, piece.start(), piece.start() + piece.length());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 文档中的一段文本
+     *
+     * @param added  是否在追加缓冲区中, 否则在原始文本中
+     * @param start  在所在缓冲区中的开始位置
+     * @param length 长度, 大于 0
+     */
+    private record Piece(boolean added, int start, int length) {
+    }
+}
@@ -1,8 +1,13 @@
 package com.zhongan.devpilot.gateway.completions.providers;
 
 import com.zhongan.devpilot.gateway.completions.context.DocumentContext;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import org.springframework.http.codec.ServerSentEvent;
+
+import static com.zhongan.devpilot.gateway.constant.Constants.STREAM_DONE_EVENT;
+
 /**
  * 代码补全提供者
  *
@@ -16,4 +21,19 @@ public interface Provider {
      * @return 补全文本
      */
     Mono<String> generateCompletions(DocumentContext documentContext);
+
+    /**
+     * 流式生成补全文本, 用于支持 SSE 的客户端
+     * <p>
+     * 增量事件({@code delta})只包含新增的代码, 最后一个事件({@code done})为与 {@link #generateCompletions} 相同的完整结果.
+     * 默认只返回结束事件.
+     *
+     * @param documentContext 文档上下文
+     * @return 补全事件
+     */
+    default Flux<ServerSentEvent<String>> streamCompletions(DocumentContext documentContext) {
+        return generateCompletions(documentContext)
+                .map(completion -> ServerSentEvent.builder(completion).event(STREAM_DONE_EVENT).build())
+                .flux();
+    }
 }
@@ -0,0 +1,61 @@
+package com.zhongan.devpilot.gateway.completions.providers.dto;
+
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * 代码补全请求体
+ */
+@Data
+public class CodeCompletionRequest {
+    /**
+     * 文档内容, 使用增量同步时只在第一次请求或者需要重新同步时发送
+     */
+    private String document;
+
+    /**
+     * 文档版本, 与完整文档一起发送时保存文档, 与增量修改一起发送时为修改后的版本
+     */
+    private Long documentVersion;
+
+    /**
+     * 增量修改所基于的文档版本
+     */
+    private Long baseVersion;
+
+    /**
+     * 相对于基础版本的增量修改, 没有 document 时使用. 版本不一致时返回 409, 客户端需要重新发送完整文档
+     */
+    private List<DocumentEdit> edits;
+
+    /**
+     * 光标位置, 兼容数字和字符串格式
+     */
+    private Integer position;
+
+    /**
+     * 文档路径
+     */
+    private String filePath;
+
+    /**
+     * 代码补全类型
+     */
+    private String completionType;
+
+    /**
+     * 编辑器会话标识
+     */
+    private String sessionId;
+
+    /**
+     * 仓库名称, 与 RAG 接口写入片段时使用的名称一致, 用于检索相关的代码片段
+     */
+    private String repoName;
+
+    /**
+     * 最近查看的其它文件中的代码片段, 从中选择与光标附近相似的代码作为上下文
+     */
+    private List<CodeExcerpt> recentExcerpts;
+}
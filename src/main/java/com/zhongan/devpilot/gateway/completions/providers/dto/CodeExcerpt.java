@@ -0,0 +1,19 @@
+package com.zhongan.devpilot.gateway.completions.providers.dto;
+
+import lombok.Data;
+
+/**
+ * 编辑器最近查看的其它文件中的代码片段
+ */
+@Data
+public class CodeExcerpt {
+    /**
+     * 文件路径
+     */
+    private String filePath;
+
+    /**
+     * 片段内容, 可以是整个文件或者编辑器中可见的部分
+     */
+    private String content;
+}
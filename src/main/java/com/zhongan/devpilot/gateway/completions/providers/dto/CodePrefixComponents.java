@@ -1,7 +1,6 @@
 package com.zhongan.devpilot.gateway.completions.providers.dto;
 
-import java.util.Arrays;
-
+import com.zhongan.devpilot.gateway.utils.TextSlice;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -24,44 +23,75 @@ public class CodePrefixComponents {
     /**
      * 重叠部分
      */
-    private String overlap;
+    private CharSequence overlap;
 
     public CodePrefixComponents(CodeTrimmed head, CodeTrimmed tail) {
         this.head = head;
         this.tail = tail;
     }
 
+    /**
+     * 各部分都是原始文档的视图, 不拷贝文档内容
+     */
     @Data
     @AllArgsConstructor
     public static class CodeTrimmed {
-        private String raw;
-        private String trimmed;
-        private String leadSpace;
-        private String rearSpace;
+        private CharSequence raw;
+        private CharSequence trimmed;
+        private CharSequence leadSpace;
+        private CharSequence rearSpace;
     }
 
-    public static CodePrefixComponents getHeadAndTail(String source) {
-        String[] lines = source.split("\n");
+    /**
+     * 将光标前的代码拆分为头部和尾部, 尾部为最后两个非空行.
+     * <p>
+     * 从光标处向前扫描, 只访问尾部的字符, 耗时与文档大小无关. 结果与按 {@code "\n"} 拆分后重新拼接的结果一致,
+     * 包括 {@link String#split(String)} 会丢弃末尾空行的行为.
+     *
+     * @param source 光标前的代码
+     * @return 头部和尾部
+     */
+    public static CodePrefixComponents getHeadAndTail(CharSequence source) {
+        TextSlice slice = source instanceof TextSlice textSlice ? textSlice : TextSlice.of(source.toString());
+        String text = slice.getSource();
+        int from = slice.getStart();
+        int to = slice.getEnd();
         int tailThreshold = 2;
 
+        // String.split 会丢弃末尾的空字符串, 即忽略末尾连续的换行符
+        int end = to;
+        while (end > from && text.charAt(end - 1) == '\n') {
+            end--;
+        }
+
         int nonEmptyCount = 0;
         int tailStart = -1;
-        for (int i = lines.length - 1; i >= 0; i--) {
-            if (!lines[i].trim().isEmpty()) {
+        int lineEnd = end;
+        while (end > from) {
+            int lineStart = lineEnd;
+            while (lineStart > from && text.charAt(lineStart - 1) != '\n') {
+                lineStart--;
+            }
+            if (!isBlank(text, lineStart, lineEnd)) {
                 nonEmptyCount++;
             }
             if (nonEmptyCount >= tailThreshold) {
-                tailStart = i;
+                tailStart = lineStart;
+                break;
+            }
+            if (lineStart == from) {
                 break;
             }
+            lineEnd = lineStart - 1;
         }
 
         CodePrefixComponents headAndTail;
         if (tailStart == -1) {
-            headAndTail = new CodePrefixComponents(trimSpace(source), trimSpace(source), source);
+            headAndTail = new CodePrefixComponents(trimSpace(slice), trimSpace(slice), slice);
         } else {
-            String head = String.join("\n", Arrays.copyOfRange(lines, 0, tailStart)) + "\n";
-            String tail = String.join("\n", Arrays.copyOfRange(lines, tailStart, lines.length));
+            // 尾部从第一行开始时, 头部为拼接时补上的换行符
+            CharSequence head = tailStart == from ? "\n" : TextSlice.of(text, from, tailStart);
+            TextSlice tail = TextSlice.of(text, tailStart, end);
             headAndTail = new CodePrefixComponents(trimSpace(head), trimSpace(tail));
         }
 
@@ -79,18 +109,52 @@ public class CodePrefixComponents {
         //     // Write some code
         //     █
         //
-        if (headAndTail.getTail().getRearSpace().contains("\n")) {
+        if (containsLineBreak(headAndTail.getTail().getRearSpace())) {
             headAndTail.getTail().setTrimmed(headAndTail.getTail().getTrimmed() + "\n");
         }
 
         return headAndTail;
     }
 
-    private static CodeTrimmed trimSpace(String text) {
-        String trimmed = text.trim();
-        int headEnd = text.indexOf(trimmed);
-        String leadSpace = text.substring(0, headEnd);
-        String rearSpace = text.substring(headEnd + trimmed.length());
-        return new CodeTrimmed(text, trimmed, leadSpace, rearSpace);
+    private static boolean containsLineBreak(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 与 {@link String#trim()} 相同, 空白字符为小于等于空格的字符
+     */
+    private static boolean isBlank(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static CodeTrimmed trimSpace(CharSequence sequence) {
+        TextSlice slice = sequence instanceof TextSlice textSlice ? textSlice : TextSlice.of(sequence.toString());
+        String text = slice.getSource();
+        int start = slice.getStart();
+        int end = slice.getEnd();
+        int trimStart = start;
+        while (trimStart < end && text.charAt(trimStart) <= ' ') {
+            trimStart++;
+        }
+        if (trimStart == end) {
+            // 全部为空白字符
+            return new CodeTrimmed(slice, TextSlice.of(text, start, start), TextSlice.of(text, start, start), slice);
+        }
+        int trimEnd = end;
+        while (text.charAt(trimEnd - 1) <= ' ') {
+            trimEnd--;
+        }
+        return new CodeTrimmed(slice, TextSlice.of(text, trimStart, trimEnd), TextSlice.of(text, start, trimStart),
+                TextSlice.of(text, trimEnd, end));
     }
 }
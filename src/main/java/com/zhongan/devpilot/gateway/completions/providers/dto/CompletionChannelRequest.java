@@ -0,0 +1,39 @@
+package com.zhongan.devpilot.gateway.completions.providers.dto;
+
+import lombok.Data;
+
+/**
+ * 补全通道中客户端发送的消息
+ */
+@Data
+public class CompletionChannelRequest {
+    /**
+     * 开始补全, 需要 request
+     */
+    public static final String COMPLETE = "complete";
+
+    /**
+     * 取消进行中的补全
+     */
+    public static final String CANCEL = "cancel";
+
+    /**
+     * 客户端生成的请求标识, 同一连接中唯一, 响应消息带有相同的标识
+     */
+    private String id;
+
+    /**
+     * 消息类型: complete 或者 cancel
+     */
+    private String type;
+
+    /**
+     * 是否接收增量事件, 否则只返回最终结果
+     */
+    private boolean stream;
+
+    /**
+     * 补全请求, 与 HTTP 接口的请求体相同
+     */
+    private CodeCompletionRequest request;
+}
@@ -0,0 +1,83 @@
+package com.zhongan.devpilot.gateway.completions.providers.dto;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import lombok.Data;
+
+/**
+ * 补全通道中服务端返回的消息. 每个请求以 done、cancelled、resync、busy、rate_limited 或者 error 中的一个消息结束
+ */
+@Data
+public class CompletionChannelResponse {
+    /**
+     * 增量事件, data 为只包含增量内容的 CodeMessage
+     */
+    public static final String DELTA = "delta";
+
+    /**
+     * 补全结束, data 为与 HTTP 接口相同的完整 CodeMessage
+     */
+    public static final String DONE = "done";
+
+    /**
+     * 请求被客户端取消, 或者被同一文件上的新请求取代
+     */
+    public static final String CANCELLED = "cancelled";
+
+    /**
+     * 增量修改与服务端的文档版本不一致, 需要重新发送完整文档
+     */
+    public static final String RESYNC = "resync";
+
+    /**
+     * 连接上进行中的请求达到上限
+     */
+    public static final String BUSY = "busy";
+
+    /**
+     * 超过用户的请求速率
+     */
+    public static final String RATE_LIMITED = "rate_limited";
+
+    /**
+     * 消息无法解析或者处理失败
+     */
+    public static final String ERROR = "error";
+
+    /**
+     * 请求标识
+     */
+    private String id;
+
+    /**
+     * 消息类型
+     */
+    private String type;
+
+    /**
+     * CodeMessage JSON, 原样输出
+     */
+    @JsonRawValue
+    private String data;
+
+    /**
+     * resync 时为服务端保存的文档版本, 没有保存文档时不输出
+     */
+    private Long version;
+
+    /**
+     * rate_limited 时需要等待的毫秒数
+     */
+    private Long retryAfterMillis;
+
+    /**
+     * error 时的错误信息
+     */
+    private String message;
+
+    public static CompletionChannelResponse of(String id, String type) {
+        CompletionChannelResponse response = new CompletionChannelResponse();
+        response.setId(id);
+        response.setType(type);
+        return response;
+    }
+}
@@ -1,10 +1,21 @@
 package com.zhongan.devpilot.gateway.completions.providers.dto;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.Data;
 
+/**
+ * 对话请求. 请求体会重新序列化后转发给模型, 只省略 null, 保留 temperature 为 0 等取值; 没有声明的参数按 JSON 原样透传
+ */
 @Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class DevPilotChatCompletionRequest {
     /**
      * 模型名称
@@ -20,4 +31,39 @@ public class DevPilotChatCompletionRequest {
      * 是否是流式的
      */
     private Boolean stream = Boolean.FALSE;
+
+    /**
+     * 最大生成 token 数
+     */
+    @JsonProperty("max_tokens")
+    private Integer maxTokens;
+
+    /**
+     * 采样温度
+     */
+    private Double temperature;
+
+    /**
+     * 核采样概率
+     */
+    @JsonProperty("top_p")
+    private Double topP;
+
+    /**
+     * 其它透传给模型的参数, 按需创建
+     */
+    private Map<String, JsonNode> extraOptions;
+
+    @JsonAnySetter
+    public void setExtraOption(String name, JsonNode value) {
+        if (extraOptions == null) {
+            extraOptions = new LinkedHashMap<>(4);
+        }
+        extraOptions.put(name, value);
+    }
+
+    @JsonAnyGetter
+    public Map<String, JsonNode> getExtraOptions() {
+        return extraOptions;
+    }
 }
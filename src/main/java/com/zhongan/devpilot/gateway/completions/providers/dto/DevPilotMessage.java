@@ -1,8 +1,22 @@
 package com.zhongan.devpilot.gateway.completions.providers.dto;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonSetter;
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.Data;
 
+/**
+ * 对话消息. 透传给模型时保留 0 和 false 等取值, 以及 name、tool_calls、tool_call_id 等没有声明的字段
+ */
 @Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class DevPilotMessage {
     /**
      * 角色
@@ -10,7 +24,55 @@ public class DevPilotMessage {
     private String role;
 
     /**
-     * 内容
+     * 文本内容, 内容为多段(数组)时为 null
      */
     private String content;
+
+    /**
+     * 多段内容, 例如文本和图片, 原样透传
+     */
+    @JsonIgnore
+    private JsonNode contentParts;
+
+    /**
+     * 其它透传给模型的字段, 按需创建
+     */
+    private Map<String, JsonNode> extraFields;
+
+    /**
+     * 内容可以是字符串或者多段内容的数组
+     *
+     * @param value 内容
+     */
+    @JsonSetter("content")
+    public void setContentValue(JsonNode value) {
+        if (value == null || value.isNull()) {
+            content = null;
+            contentParts = null;
+        } else if (value.isTextual()) {
+            content = value.textValue();
+            contentParts = null;
+        } else {
+            content = null;
+            contentParts = value;
+        }
+    }
+
+    @JsonGetter("content")
+    public Object getContentValue() {
+        return contentParts != null ? contentParts : content;
+    }
+
+    @JsonAnySetter
+    public void setExtraField(String name, JsonNode value) {
+        if (extraFields == null) {
+            extraFields = new LinkedHashMap<>(4);
+        }
+        extraFields.put(name, value);
+    }
+
+    @JsonAnyGetter
+    public Map<String, JsonNode> getExtraFields() {
+        return extraFields;
+    }
 }
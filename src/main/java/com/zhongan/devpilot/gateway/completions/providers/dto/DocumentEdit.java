@@ -0,0 +1,24 @@
+package com.zhongan.devpilot.gateway.completions.providers.dto;
+
+import lombok.Data;
+
+/**
+ * 文档的一次增量修改: 从 offset 开始删除 deleteLength 个字符, 再在同一位置插入 insertText
+ */
+@Data
+public class DocumentEdit {
+    /**
+     * 开始位置, 按 UTF-16 字符计算, 基于应用了前面的修改之后的文档
+     */
+    private int offset;
+
+    /**
+     * 删除的字符数量
+     */
+    private int deleteLength;
+
+    /**
+     * 插入的文本, 为空时只删除
+     */
+    private String insertText;
+}
@@ -0,0 +1,50 @@
+package com.zhongan.devpilot.gateway.completions.providers.dto;
+
+import java.util.List;
+import java.util.Map;
+
+import lombok.Data;
+
+/**
+ * Explain command 请求体
+ */
+@Data
+public class ExplainCommandRequest {
+    /**
+     * 是否是流式的, 缺省为 false
+     */
+    private boolean stream;
+
+    /**
+     * 提示词版本
+     */
+    private String version;
+
+    /**
+     * 消息列表
+     */
+    private List<Message> messages;
+
+    @Data
+    public static class Message {
+        /**
+         * 命令类型
+         */
+        private String commandType;
+
+        /**
+         * 角色
+         */
+        private String role;
+
+        /**
+         * 内容
+         */
+        private String content;
+
+        /**
+         * 提示词模板变量
+         */
+        private Map<String, Object> promptData;
+    }
+}
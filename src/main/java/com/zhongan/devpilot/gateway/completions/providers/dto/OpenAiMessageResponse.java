@@ -26,6 +26,11 @@ public class OpenAiMessageResponse {
     public static class Choice {
         private MessageContent message;
 
+        /**
+         * 流式返回时的增量内容
+         */
+        private MessageContent delta;
+
         @JsonProperty("finish_reason")
         private String finishReason;
     }
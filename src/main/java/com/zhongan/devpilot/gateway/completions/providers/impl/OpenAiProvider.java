@@ -1,27 +1,58 @@
 package com.zhongan.devpilot.gateway.completions.providers.impl;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
+import com.zhongan.devpilot.gateway.completions.cache.CompletionCache;
+import com.zhongan.devpilot.gateway.completions.cache.CompletionKey;
+import com.zhongan.devpilot.gateway.completions.cache.InFlightCompletions;
 import com.zhongan.devpilot.gateway.completions.context.DocumentContext;
+import com.zhongan.devpilot.gateway.completions.context.SimilarWindowSelector;
 import com.zhongan.devpilot.gateway.completions.providers.Provider;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeExcerpt;
 import com.zhongan.devpilot.gateway.completions.providers.dto.CodeMessage;
 import com.zhongan.devpilot.gateway.completions.providers.dto.CodePrefixComponents;
 import com.zhongan.devpilot.gateway.completions.providers.dto.OpenAiMessageResponse;
+import com.zhongan.devpilot.gateway.completions.stream.CompletionStream;
+import com.zhongan.devpilot.gateway.completions.template.CompletionRequestTemplate;
+import com.zhongan.devpilot.gateway.completions.tokenizer.TokenCounter;
 import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.metrics.GatewayMetrics;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import com.zhongan.devpilot.gateway.rag.lexical.LexicalIndexService;
+import com.zhongan.devpilot.gateway.upstream.HedgePolicy;
+import com.zhongan.devpilot.gateway.upstream.TrafficClass;
+import com.zhongan.devpilot.gateway.upstream.UpstreamPool;
+import com.zhongan.devpilot.gateway.upstream.UpstreamRejectedException;
 import com.zhongan.devpilot.gateway.utils.JacksonMapper;
 import com.zhongan.devpilot.gateway.utils.StringUtil;
+import com.zhongan.devpilot.gateway.utils.TextSlice;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import org.springframework.ai.autoconfigure.openai.OpenAiChatProperties;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import static com.zhongan.devpilot.gateway.constant.Constants.EMPTY_CODE_MESSAGE;
+import static com.zhongan.devpilot.gateway.constant.Constants.STREAM_DELTA_EVENT;
+import static com.zhongan.devpilot.gateway.constant.Constants.STREAM_DONE_EVENT;
+import static com.zhongan.devpilot.gateway.metrics.GatewayMetrics.COMPLETION;
 
 /**
  * A provider implementation that uses the OpenAI API to generate code completions.
@@ -31,101 +62,411 @@ import org.springframework.web.reactive.function.client.WebClient;
 @Slf4j
 @Service
 public class OpenAiProvider implements Provider {
-    private static final String EMPTY_RESPONSE = "{\"id\":\"-1\",\"role\":\"\",\"content\":\"\"}";
-    private final WebClient webClient;
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> SSE_TYPE = new ParameterizedTypeReference<>() {
+    };
+
+    /**
+     * 上游流式返回的结束标记
+     */
+    private static final String STREAM_DONE_DATA = "[DONE]";
+
+    private final UpstreamPool upstreamPool;
     private final JacksonMapper jacksonMapper;
     private final OpenAiChatProperties openAiChatProperties;
     private final AppCommonProperties appCommonProperties;
+    private final CompletionCache completionCache;
+    private final CompletionRequestTemplate requestTemplate;
+    private final InFlightCompletions inFlightCompletions;
+    private final GatewayMetrics gatewayMetrics;
+    private final LexicalIndexService lexicalIndexService;
+    private final TokenCounter tokenCounter;
+    /**
+     * 是否在提示词中加入相关的代码片段: 模板中有 {contextSnippets} 占位符, 并且启用了倒排索引或者最近文件的相似窗口
+     */
+    private final boolean contextSnippets;
+    /**
+     * 最近文件的相似窗口, 未启用时为 null
+     */
+    private final SimilarWindowSelector similarWindowSelector;
+    /**
+     * 是否流式请求上游
+     */
+    private final boolean stream;
+    /**
+     * 对冲请求策略, 未启用时为 null
+     */
+    private final HedgePolicy hedgePolicy;
+    /**
+     * 补全模板的版本, 模板变化后旧的缓存不再命中
+     */
+    private final String templateVersion;
 
-    public OpenAiProvider(WebClient openAiWebClient, OpenAiChatProperties openAiChatProperties, AppCommonProperties appCommonProperties) {
-        this.webClient = openAiWebClient;
-        this.jacksonMapper = JacksonMapper.nonDefaultMapper();
+    public OpenAiProvider(UpstreamPool upstreamPool, OpenAiChatProperties openAiChatProperties,
+                          AppCommonProperties appCommonProperties, CompletionCache completionCache,
+                          InFlightCompletions inFlightCompletions, GatewayMetrics gatewayMetrics,
+                          LexicalIndexService lexicalIndexService, TokenCounter tokenCounter) {
+        this.upstreamPool = upstreamPool;
+        this.jacksonMapper = JacksonMapper.sharedMapper();
         this.openAiChatProperties = openAiChatProperties;
         this.appCommonProperties = appCommonProperties;
+        this.completionCache = completionCache;
+        this.inFlightCompletions = inFlightCompletions;
+        this.gatewayMetrics = gatewayMetrics;
+        this.lexicalIndexService = lexicalIndexService;
+        this.tokenCounter = tokenCounter;
+        AppCommonProperties.CodeCompletionConfig openAiCodeCompletion = appCommonProperties.getOpenAiCodeCompletion();
+        this.stream = openAiCodeCompletion.isStream();
+        this.requestTemplate = CompletionRequestTemplate.compile(openAiCodeCompletion.getTemplate(), stream);
+        this.similarWindowSelector = openAiCodeCompletion.getCrossFile().isEnabled()
+                ? new SimilarWindowSelector(openAiCodeCompletion.getCrossFile()) : null;
+        this.contextSnippets = requestTemplate.hasContextSnippets() && (lexicalIndexService.isEnabled() || similarWindowSelector != null);
+        this.hedgePolicy = openAiCodeCompletion.getHedge().isEnabled() ? new HedgePolicy(openAiCodeCompletion.getHedge()) : null;
+        this.templateVersion = CompletionKey.of(openAiCodeCompletion.getTemplate(), openAiCodeCompletion.getRequestUrl(),
+                String.valueOf(openAiCodeCompletion.getResultMaxLines()), String.valueOf(stream),
+                String.valueOf(openAiCodeCompletion.isStopAtBlockEnd())).toString();
     }
 
     @Override
     public Mono<String> generateCompletions(DocumentContext documentContext) {
-        String prefix = documentContext.getPrefix();
-        CodePrefixComponents headAndTail = CodePrefixComponents.getHeadAndTail(prefix);
-        CodePrefixComponents.CodeTrimmed head = headAndTail.getHead();
-        CodePrefixComponents.CodeTrimmed tail = headAndTail.getTail();
+        CompletionKey cacheKey = cacheKey(documentContext);
+        String cached = completionCache.get(cacheKey);
+        if (cached != null) {
+            log.info("OpenAiProviderCacheHit: {}", cacheKey);
+            return Mono.just(cached);
+        }
+        // 相同的请求正在进行中时, 共享同一个上游调用; 只有未命中时才检索相关代码片段
+        return gatewayMetrics.trackInFlight(COMPLETION, inFlightCompletions.execute(cacheKey,
+                () -> withContextSnippets(documentContext).flatMap(context -> stream
+                        ? streamUpstream(context, newCompletionStream(context), cacheKey, false).last().map(ServerSentEvent::data)
+                        : requestCompletions(context, cacheKey))));
+    }
 
-        // 填充块: 我们希望模型完成的代码
-        String infillBlock = tail.getTrimmed().endsWith("\n") ? StringUtils.stripToEmpty(tail.getTrimmed()) : tail.getTrimmed();
-        // code before the cursor, without the code extracted for the infillBlock
-        String infillPrefix = head.getRaw();
-        // code after the cursor
-        String infillSuffix = documentContext.getSuffix();
+    @Override
+    public Flux<ServerSentEvent<String>> streamCompletions(DocumentContext documentContext) {
+        if (!stream) {
+            return Provider.super.streamCompletions(documentContext);
+        }
+        CompletionKey cacheKey = cacheKey(documentContext);
+        String cached = completionCache.get(cacheKey);
+        if (cached != null) {
+            log.info("OpenAiProviderCacheHit: {}", cacheKey);
+            return Flux.just(ServerSentEvent.builder(cached).event(STREAM_DONE_EVENT).build());
+        }
+        return gatewayMetrics.trackInFlight(COMPLETION, withContextSnippets(documentContext)
+                .flatMapMany(context -> streamUpstream(context, newCompletionStream(context), cacheKey, true)));
+    }
 
-        String infillPrefixEncode = StringUtil.removeQuote(jacksonMapper.toJson(infillPrefix));
-        String infillSuffixEncode = StringUtil.removeQuote(jacksonMapper.toJson(infillSuffix));
-        String infillBlockEncode = StringUtil.removeQuote(jacksonMapper.toJson(infillBlock));
+    /**
+     * 缓存键只包含请求的输入, 不包含检索到的代码片段: 片段受时间预算影响, 相同的请求可能得到不同的片段.
+     * 仓库检索的查询词由光标前后的代码决定, 相似窗口由最近文件决定, 都已经包含在键中
+     */
+    private CompletionKey cacheKey(DocumentContext documentContext) {
+        List<CharSequence> parts = new ArrayList<>();
+        parts.add(documentContext.getHeader());
+        parts.add(documentContext.getPrefix());
+        parts.add(documentContext.getSuffix());
+        parts.add(documentContext.getPath());
+        parts.add(documentContext.getCompletionType());
+        parts.add(templateVersion);
+        if (contextSnippets) {
+            parts.add(documentContext.getRepoName());
+            List<CodeExcerpt> excerpts = similarWindowSelector == null ? null : documentContext.getRecentExcerpts();
+            if (excerpts != null) {
+                AppCommonProperties.CrossFileConfig crossFile = appCommonProperties.getOpenAiCodeCompletion().getCrossFile();
+                // 与 SimilarWindowSelector 一样只看前面的片段和片段的开头
+                for (int i = 0; i < Math.min(excerpts.size(), crossFile.getMaxExcerpts()); i++) {
+                    CodeExcerpt excerpt = excerpts.get(i);
+                    if (excerpt != null && excerpt.getContent() != null) {
+                        String content = excerpt.getContent();
+                        parts.add(excerpt.getFilePath());
+                        parts.add(TextSlice.of(content, 0, Math.min(content.length(), crossFile.getMaxExcerptChars())));
+                    }
+                }
+            }
+        }
+        return CompletionKey.of(parts.toArray(new CharSequence[0]));
+    }
+
+    /**
+     * 从编辑器最近打开的文件中选择相似的代码窗口, 并检索仓库中与光标附近的标识符相关的代码片段, 两者并行,
+     * 在时间预算内没有结果时不带片段请求上游
+     *
+     * @param documentContext 文档上下文
+     * @return 填充了相关代码片段的文档上下文
+     */
+    private Mono<DocumentContext> withContextSnippets(DocumentContext documentContext) {
+        if (!contextSnippets) {
+            return Mono.just(documentContext);
+        }
+        Mono<List<RagSearchResult>> related = documentContext.getRepoName() == null
+                ? Mono.just(List.of()) : lexicalIndexService.related(documentContext);
+        return Mono.zip(similarWindows(documentContext), related, (windows, snippets) -> {
+            documentContext.setContextSnippets(formatSnippets(windows, snippets));
+            return documentContext;
+        });
+    }
 
+    /**
+     * 在时间预算内计算最近文件中与光标前的代码最相似的窗口, 失败或者超时返回空的结果
+     */
+    private Mono<List<SimilarWindowSelector.Snippet>> similarWindows(DocumentContext documentContext) {
+        if (similarWindowSelector == null || CollectionUtils.isEmpty(documentContext.getRecentExcerpts())) {
+            return Mono.just(List.of());
+        }
+        AppCommonProperties.CrossFileConfig crossFile = appCommonProperties.getOpenAiCodeCompletion().getCrossFile();
+        long budget = crossFile.getTimeBudget().toNanos();
+        // 纯计算, 在 parallel 线程上执行, 不占用事件循环线程
+        return Mono.fromCallable(() -> similarWindowSelector.select(documentContext, System.nanoTime() + budget))
+                .subscribeOn(Schedulers.parallel())
+                .timeout(crossFile.getTimeBudget().multipliedBy(2))
+                .onErrorResume(e -> {
+                    log.debug("SimilarWindowsSkipped: {}", e.toString());
+                    return Mono.just(List.of());
+                });
+    }
+
+    /**
+     * 拼接片段: 先放最近文件的相似窗口, 再放仓库检索的片段, 各自不超过 token 预算, 同一个文件只放一次
+     *
+     * @return 拼接后的片段, 没有片段时为 null
+     */
+    private String formatSnippets(List<SimilarWindowSelector.Snippet> windows, List<RagSearchResult> snippets) {
+        StringBuilder sb = new StringBuilder();
+        List<String> paths = new ArrayList<>(windows.size());
+        int maxTokens = appCommonProperties.getOpenAiCodeCompletion().getCrossFile().getMaxTokens();
+        int tokens = 0;
+        for (SimilarWindowSelector.Snippet window : windows) {
+            tokens += appendSnippet(sb, window.path(), window.content(), maxTokens - tokens);
+            paths.add(window.path());
+        }
+        maxTokens = appCommonProperties.getRag().getLexical().getCompletionMaxTokens();
+        tokens = 0;
+        for (RagSearchResult snippet : snippets) {
+            if (!containsPath(paths, snippet.getPath())) {
+                tokens += appendSnippet(sb, snippet.getPath(), snippet.getContent(), maxTokens - tokens);
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * 编辑器发送的路径可能是绝对路径, 仓库索引中是相对路径, 按后缀匹配
+     */
+    private static boolean containsPath(List<String> paths, String path) {
+        for (String candidate : paths) {
+            if (SimilarWindowSelector.samePath(candidate, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 预算足够时追加一个片段, 放不下时跳过, 后面分数更低但更短的片段仍可能放下
+     *
+     * @return 片段使用的 token 数量, 跳过时为 0
+     */
+    private int appendSnippet(StringBuilder sb, String path, String content, int remainingTokens) {
+        String block = "Related code from file path " + path + ":\n```\n" + StringUtils.stripEnd(content, null) + "\n```\n";
+        int count = tokenCounter.count(block);
+        if (count > remainingTokens) {
+            return 0;
+        }
+        sb.append(block);
+        return count;
+    }
+
+    private CompletionStream newCompletionStream(DocumentContext documentContext) {
         AppCommonProperties.CodeCompletionConfig openAiCodeCompletion = appCommonProperties.getOpenAiCodeCompletion();
-        String template = openAiCodeCompletion.getTemplate();
-        String replaced = template.replace("{OPENING_CODE_TAG}", "<FILL_CODE_777>");
-        replaced = replaced.replace("{CLOSING_CODE_TAG}", "</FILL_CODE_777>");
-        replaced = replaced.replace("{infillPrefix}", infillPrefixEncode);
-        replaced = replaced.replace("{infillSuffix}", infillSuffixEncode);
-        replaced = replaced.replace("{infillBlock}", infillBlockEncode);
-        replaced = replaced.replace("{relativeFilePath}", documentContext.getPath());
-        log.info("OpenAiProviderRequest: {}", replaced);
-        Integer resultMaxLines = openAiCodeCompletion.getResultMaxLines();
+        int maxLines = CompletionStream.maxLines(documentContext.getCompletionType(), openAiCodeCompletion.getResultMaxLines());
+        return new CompletionStream(maxLines, openAiCodeCompletion.isStopAtBlockEnd());
+    }
+
+    /**
+     * 请求上游模型生成补全文本
+     *
+     * @param documentContext 文档上下文
+     * @param cacheKey        缓存键
+     * @return 补全文本
+     */
+    private Mono<String> requestCompletions(DocumentContext documentContext, CompletionKey cacheKey) {
+        Integer resultMaxLines = appCommonProperties.getOpenAiCodeCompletion().getResultMaxLines();
         String completionType = documentContext.getCompletionType();
-        Mono<String> result = webClient.post()
-                .uri(openAiCodeCompletion.getRequestUrl())
-                .headers(httpHeaders -> {
-                    Map<String, String> claude3CodeCompletionsRequestHeaders = openAiCodeCompletion.getRequestHeaders();
-                    if (claude3CodeCompletionsRequestHeaders != null) {
-                        claude3CodeCompletionsRequestHeaders.forEach(httpHeaders::add);
-                    }
-                })
-                .contentType(MediaType.APPLICATION_JSON)
-                .bodyValue(replaced)
+        Function<WebClient, Mono<String>> call = webClient -> prepareRequest(webClient, documentContext)
                 .exchangeToMono(response -> {
                     HttpStatusCode httpStatusCode = response.statusCode();
                     if (httpStatusCode.equals(HttpStatus.OK)) {
                         return response.bodyToMono(String.class).map(callResult -> {
                             log.info("OpenAiProviderResult: {}", callResult);
                             OpenAiMessageResponse messageResponse = jacksonMapper.fromJson(callResult, OpenAiMessageResponse.class);
+                            if (messageResponse.getUsage() != null) {
+                                gatewayMetrics.recordTokens(COMPLETION, messageResponse.getUsage().getPromptTokens(),
+                                        messageResponse.getUsage().getCompletionTokens());
+                            }
                             List<OpenAiMessageResponse.Choice> choices = messageResponse.getChoices();
                             if (CollectionUtils.isEmpty(choices)) {
-                                return EMPTY_RESPONSE;
+                                return EMPTY_CODE_MESSAGE;
                             }
-                            return convertResponse(choices, messageResponse, resultMaxLines, completionType);
-                        });
-                    } else {
-                        return response.bodyToMono(String.class).map(s -> {
-                            log.error("OpenAiProviderError: {}, {}", httpStatusCode, s);
-                            return EMPTY_RESPONSE;
+                            OpenAiMessageResponse.MessageContent messageContent = choices.get(0).getMessage();
+                            String completion = convertResponse(messageResponse.getId(), messageContent.getRole(),
+                                    messageContent.getContent(), resultMaxLines, completionType);
+                            completionCache.put(cacheKey, completion);
+                            return completion;
                         });
                     }
+                    // 交给节点池记录节点故障
+                    return response.createException().flatMap(Mono::error);
+                });
+        // 对冲请求: 上游长尾延迟时在另一个节点上再请求一次, 先返回的结果胜出
+        Mono<String> result = hedgePolicy != null ? upstreamPool.executeHedged(TrafficClass.COMPLETION, call, hedgePolicy)
+                : upstreamPool.execute(TrafficClass.COMPLETION, call);
+        return result
+                .onErrorResume(WebClientResponseException.class, e -> {
+                    log.error("OpenAiProviderError: {}, {}", e.getStatusCode(), e.getResponseBodyAsString());
+                    return Mono.just(EMPTY_CODE_MESSAGE);
+                })
+                // 上游过载时快速返回空的补全结果
+                .onErrorResume(UpstreamRejectedException.class, e -> {
+                    log.warn("OpenAiProviderRejected: {}", e.getEndpoint());
+                    return Mono.just(EMPTY_CODE_MESSAGE);
+                });
+    }
+
+    /**
+     * 流式请求上游模型, 达到行数上限或者代码块结束时取消上游请求
+     *
+     * @param documentContext  文档上下文
+     * @param completionStream 增量解析状态
+     * @param cacheKey         缓存键
+     * @param emitDeltas       是否输出代码增量事件
+     * @return 代码增量事件, 最后一个事件为完整的补全结果
+     */
+    private Flux<ServerSentEvent<String>> streamUpstream(DocumentContext documentContext, CompletionStream completionStream,
+                                                         CompletionKey cacheKey, boolean emitDeltas) {
+        Integer resultMaxLines = appCommonProperties.getOpenAiCodeCompletion().getResultMaxLines();
+        String completionType = documentContext.getCompletionType();
+        // 上游出错时已经收到的增量只返回给客户端, 不缓存被截断的结果
+        AtomicBoolean failed = new AtomicBoolean();
+        // 节点池按收到第一个增量的时间记录节点延迟
+        Flux<ServerSentEvent<String>> deltas = upstreamPool.executeMany(TrafficClass.COMPLETION, webClient -> {
+            long start = System.nanoTime();
+            return prepareRequest(webClient, documentContext)
+                    .accept(MediaType.TEXT_EVENT_STREAM)
+                    .exchangeToFlux(response -> {
+                        if (!response.statusCode().equals(HttpStatus.OK)) {
+                            return response.createException().flatMapMany(Flux::error);
+                        }
+                        return response.bodyToFlux(SSE_TYPE)
+                                .map(event -> event.data() == null ? "" : event.data())
+                                .takeWhile(data -> !STREAM_DONE_DATA.equals(data))
+                                .filter(data -> !data.isEmpty())
+                                .map(data -> {
+                                    boolean first = completionStream.isEmpty();
+                                    String delta = completionStream.accept(jacksonMapper.fromJson(data, OpenAiMessageResponse.class));
+                                    if (first) {
+                                        gatewayMetrics.recordFirstToken(COMPLETION, System.nanoTime() - start);
+                                    }
+                                    return delta;
+                                })
+                                // 结束后完成并取消上游请求, 不再接收会被丢弃的 token
+                                .takeUntil(delta -> completionStream.isFinished());
+                    });
+        })
+                .onErrorResume(WebClientResponseException.class, e -> {
+                    log.error("OpenAiProviderError: {}, {}", e.getStatusCode(), e.getResponseBodyAsString());
+                    failed.set(true);
+                    return Flux.empty();
+                })
+                .onErrorResume(UpstreamRejectedException.class, e -> {
+                    log.warn("OpenAiProviderRejected: {}", e.getEndpoint());
+                    failed.set(true);
+                    return Flux.empty();
+                })
+                .filter(delta -> emitDeltas && !delta.isEmpty())
+                .map(delta -> {
+                    CodeMessage codeMessage = new CodeMessage();
+                    codeMessage.setId(completionStream.getId());
+                    codeMessage.setRole(completionStream.getRole());
+                    codeMessage.setContent(delta);
+                    return ServerSentEvent.builder(jacksonMapper.toJson(codeMessage)).event(STREAM_DELTA_EVENT).build();
                 });
-        return result;
+        Mono<ServerSentEvent<String>> done = Mono.fromSupplier(() -> {
+            if (completionStream.isEmpty()) {
+                return ServerSentEvent.builder(EMPTY_CODE_MESSAGE).event(STREAM_DONE_EVENT).build();
+            }
+            log.info("OpenAiProviderStreamResult: finished: {}, failed: {}, {}", completionStream.isFinished(), failed.get(),
+                    completionStream.getText());
+            String completion = convertResponse(completionStream.getId(), completionStream.getRole(), completionStream.getText(),
+                    resultMaxLines, completionType);
+            if (!failed.get()) {
+                completionCache.put(cacheKey, completion);
+            }
+            return ServerSentEvent.builder(completion).event(STREAM_DONE_EVENT).build();
+        });
+        return deltas.concatWith(done);
+    }
+
+    /**
+     * 生成上游请求, 请求体在订阅时一次写出到池化的 buffer, 写出后由 WebClient 释放
+     *
+     * @param webClient       节点池选择的上游节点
+     * @param documentContext 文档上下文
+     * @return 上游请求
+     */
+    private WebClient.RequestHeadersSpec<?> prepareRequest(WebClient webClient, DocumentContext documentContext) {
+        CodePrefixComponents headAndTail = CodePrefixComponents.getHeadAndTail(documentContext.getPrefix());
+        CodePrefixComponents.CodeTrimmed head = headAndTail.getHead();
+        CodePrefixComponents.CodeTrimmed tail = headAndTail.getTail();
+
+        // 填充块: 我们希望模型完成的代码, 只包含最后两个非空行
+        String tailTrimmed = tail.getTrimmed().toString();
+        String infillBlock = tailTrimmed.endsWith("\n") ? StringUtils.stripToEmpty(tailTrimmed) : tailTrimmed;
+        // code before the cursor, without the code extracted for the infillBlock
+        // 窗口之外保留的文件头部放在最前面
+        TextSlice header = documentContext.getHeader();
+        CharSequence infillPrefix = header == null ? head.getRaw()
+                : new StringBuilder(header.length() + head.getRaw().length()).append(header).append(head.getRaw());
+        // code after the cursor
+        CharSequence infillSuffix = documentContext.getSuffix();
+
+        AppCommonProperties.CodeCompletionConfig openAiCodeCompletion = appCommonProperties.getOpenAiCodeCompletion();
+        return webClient.post()
+                .uri(openAiCodeCompletion.getRequestUrl())
+                .headers(httpHeaders -> {
+                    Map<String, String> claude3CodeCompletionsRequestHeaders = openAiCodeCompletion.getRequestHeaders();
+                    if (claude3CodeCompletionsRequestHeaders != null) {
+                        claude3CodeCompletionsRequestHeaders.forEach(httpHeaders::add);
+                    }
+                })
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Mono.fromCallable(() -> {
+                    DataBuffer body = requestTemplate.write(infillPrefix, infillSuffix, infillBlock, documentContext.getPath(),
+                            documentContext.getContextSnippets());
+                    if (log.isDebugEnabled()) {
+                        log.debug("OpenAiProviderRequest: {}", body.toString(body.readPosition(), body.readableByteCount(), StandardCharsets.UTF_8));
+                    }
+                    return body;
+                }), DataBuffer.class);
     }
 
     /**
      * 将模型返回的结果转换为前端需要的格式
      *
-     * @param choices         模型生成的结果
-     * @param messageResponse 模型返回的结果
-     * @param resultMaxLines  代码补全结果最大行数
-     * @param completionType  代码补全类型
+     * @param id             模型返回的唯一标识
+     * @param role           模型返回的角色
+     * @param completionText 模型生成的文本
+     * @param resultMaxLines 代码补全结果最大行数
+     * @param completionType 代码补全类型
      * @return 前端需要的格式
      */
-    private String convertResponse(List<OpenAiMessageResponse.Choice> choices,
-                                   OpenAiMessageResponse messageResponse,
+    private String convertResponse(String id, String role, String completionText,
                                    Integer resultMaxLines, String completionType) {
-        OpenAiMessageResponse.Choice choice = choices.get(0);
-        OpenAiMessageResponse.MessageContent messageContent = choice.getMessage();
-        String completionText = messageContent.getContent();
         completionText = StringUtil.processMarkdownCodeBlock(completionText);
-        completionText = StringUtil.removePrefix(completionText, "<FILL_CODE_777>");
+        completionText = StringUtil.removePrefix(completionText, CompletionRequestTemplate.OPENING_CODE_TAG);
 
         CodeMessage codeMessage = new CodeMessage();
-        codeMessage.setId(messageResponse.getId());
-        codeMessage.setRole(messageContent.getRole());
+        codeMessage.setId(id);
+        codeMessage.setRole(role);
         if ("comment".equals(completionType)) {
             // 注释补全场景
             codeMessage.setContent(completionText);
@@ -148,4 +489,11 @@ public class OpenAiProvider implements Provider {
         }
         return jacksonMapper.toJson(codeMessage);
     }
+
+    /**
+     * @return 对冲请求策略, 未启用时为 null
+     */
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
 }
@@ -0,0 +1,97 @@
+package com.zhongan.devpilot.gateway.completions.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 编辑器会话的代码补全请求登记表
+ * <p>
+ * 代码补全请求是按键触发的, 用户继续输入后旧的请求结果已经没有意义. 同一会话同一文件上的新请求会取代进行中的旧请求:
+ * 旧请求的上游调用被取消, 旧请求的客户端立即收到空的补全结果. 会话标识由客户端提供, 登记时同时按用户区分,
+ * 其它用户使用相同的会话标识不会取消这个用户的请求.
+ */
+@Slf4j
+@Component
+public class CompletionSessionRegistry {
+    private final ConcurrentHashMap<String, Sinks.One<Boolean>> latestRequests = new ConcurrentHashMap<>();
+
+    /**
+     * 登记新的补全请求, 并取消同一会话同一文件上进行中的旧请求
+     *
+     * @param userKey    用户标识
+     * @param sessionId  编辑器会话标识, 为空时不做处理
+     * @param path       文档路径
+     * @param completion 补全请求
+     * @param superseded 被新请求取代或者上游没有返回结果时返回的结果
+     * @param <T>        泛型
+     * @return 可以被新请求取代的补全请求
+     */
+    public <T> Mono<T> supersedable(String userKey, String sessionId, String path, Mono<T> completion, T superseded) {
+        if (StringUtils.isBlank(sessionId)) {
+            return completion;
+        }
+        String key = key(userKey, sessionId, path);
+        return Mono.defer(() -> {
+            Sinks.One<Boolean> signal = register(key);
+            return completion
+                    .takeUntilOther(signal.asMono().doOnNext(cancelled ->
+                            log.info("CompletionSuperseded: session: {}, path: {}", sessionId, path)))
+                    // 被取代和上游没有返回结果时都返回空的补全结果, 只有被取代时记录日志
+                    .defaultIfEmpty(superseded)
+                    .doOnCancel(() -> log.info("CompletionCancelled: session: {}, path: {}", sessionId, path))
+                    .doFinally(signalType -> latestRequests.remove(key, signal));
+        });
+    }
+
+    /**
+     * 登记新的流式补全请求, 并取消同一会话同一文件上进行中的旧请求. 被取代的流式请求直接结束
+     *
+     * @param userKey    用户标识
+     * @param sessionId  编辑器会话标识, 为空时不做处理
+     * @param path       文档路径
+     * @param completion 流式补全请求
+     * @param <T>        泛型
+     * @return 可以被新请求取代的流式补全请求
+     */
+    public <T> Flux<T> supersedable(String userKey, String sessionId, String path, Flux<T> completion) {
+        if (StringUtils.isBlank(sessionId)) {
+            return completion;
+        }
+        String key = key(userKey, sessionId, path);
+        return Flux.defer(() -> {
+            Sinks.One<Boolean> signal = register(key);
+            return completion
+                    .takeUntilOther(signal.asMono().doOnNext(superseded ->
+                            log.info("CompletionSuperseded: session: {}, path: {}", sessionId, path)))
+                    .doOnCancel(() -> log.info("CompletionCancelled: session: {}, path: {}", sessionId, path))
+                    .doFinally(signalType -> latestRequests.remove(key, signal));
+        });
+    }
+
+    private static String key(String userKey, String sessionId, String path) {
+        return userKey + '\u0000' + sessionId + '\u0000' + path;
+    }
+
+    private Sinks.One<Boolean> register(String key) {
+        Sinks.One<Boolean> signal = Sinks.one();
+        Sinks.One<Boolean> previous = latestRequests.put(key, signal);
+        if (previous != null) {
+            previous.tryEmitValue(Boolean.TRUE);
+        }
+        return signal;
+    }
+
+    /**
+     * @return 当前登记的进行中请求数量
+     */
+    public int size() {
+        return latestRequests.size();
+    }
+}
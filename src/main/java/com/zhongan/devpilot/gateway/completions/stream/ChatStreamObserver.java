@@ -0,0 +1,204 @@
+package com.zhongan.devpilot.gateway.completions.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.core.io.buffer.DataBuffer;
+
+/**
+ * 旁路观察上游返回的对话响应
+ * <p>
+ * 只读取转发给客户端的字节, 不修改也不重新编码. 流式响应使用 {@link SseFrameScanner} 按帧扫描, 先在字节上查找
+ * {@code "content"}、{@code "finish_reason"}、{@code "usage"} 字段, 只有带非空 finish_reason 或 usage 的帧才用 Jackson 解析,
+ * 一次响应通常只解析最后一两帧. 非流式响应在结束时解析一次完整的响应体.
+ * <p>
+ * 非线程安全, 每个响应使用一个实例.
+ */
+@Slf4j
+public final class ChatStreamObserver implements SseFrameScanner.FrameListener {
+    private static final byte[] CONTENT_FIELD = "\"content\"".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] FINISH_REASON_FIELD = "\"finish_reason\"".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] USAGE_FIELD = "\"usage\"".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 非流式响应体的最大字节数, 超过时不再解析
+     */
+    private static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+
+    private final ObjectMapper mapper;
+
+    private final long startNanos;
+
+    private final SseFrameScanner scanner;
+
+    private byte[] body;
+
+    private int bodyLength;
+
+    private long firstTokenNanos = -1;
+
+    private Integer promptTokens;
+
+    private Integer completionTokens;
+
+    private String finishReason;
+
+    /**
+     * @param mapper     JSON 解析
+     * @param startNanos 开始请求上游的时间
+     * @param stream     是否为 SSE 流式响应
+     */
+    public ChatStreamObserver(ObjectMapper mapper, long startNanos, boolean stream) {
+        this.mapper = mapper;
+        this.startNanos = startNanos;
+        this.scanner = stream ? new SseFrameScanner(this) : null;
+        this.body = stream ? null : new byte[4096];
+    }
+
+    /**
+     * 观察一个 buffer, 不改变 buffer 的读指针
+     *
+     * @param buffer 上游返回的数据
+     */
+    public void observe(DataBuffer buffer) {
+        if (scanner != null) {
+            scanner.scan(buffer);
+            return;
+        }
+        int length = buffer.readableByteCount();
+        if (body == null || bodyLength + length > MAX_BODY_BYTES) {
+            body = null;
+            return;
+        }
+        if (bodyLength + length > body.length) {
+            body = Arrays.copyOf(body, Math.min(Math.max(body.length * 2, bodyLength + length), MAX_BODY_BYTES));
+        }
+        // 使用只读视图和绝对位置读取, 不移动读指针
+        try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+            while (iterator.hasNext()) {
+                ByteBuffer byteBuffer = iterator.next();
+                int remaining = byteBuffer.remaining();
+                byteBuffer.get(byteBuffer.position(), body, bodyLength, remaining);
+                bodyLength += remaining;
+            }
+        }
+    }
+
+    /**
+     * 响应正常结束
+     */
+    public void complete() {
+        if (scanner != null) {
+            scanner.finish();
+        } else if (body != null) {
+            onFrame(body, bodyLength);
+            body = null;
+        }
+    }
+
+    @Override
+    public void onFrame(byte[] data, int length) {
+        if (firstTokenNanos < 0 && hasValue(data, length, CONTENT_FIELD, '"')) {
+            firstTokenNanos = System.nanoTime() - startNanos;
+        }
+        if (!hasValue(data, length, FINISH_REASON_FIELD, '"') && !hasValue(data, length, USAGE_FIELD, '{')) {
+            return;
+        }
+        JsonNode root;
+        try {
+            root = mapper.readTree(data, 0, length);
+        } catch (IOException e) {
+            log.debug("ChatStreamObserver: invalid frame", e);
+            return;
+        }
+        JsonNode reason = root.path("choices").path(0).path("finish_reason");
+        if (reason.isTextual()) {
+            finishReason = reason.asText();
+        }
+        JsonNode usage = root.path("usage");
+        if (usage.isObject()) {
+            promptTokens = usage.path("prompt_tokens").isInt() ? usage.path("prompt_tokens").asInt() : promptTokens;
+            completionTokens = usage.path("completion_tokens").isInt() ? usage.path("completion_tokens").asInt() : completionTokens;
+        }
+    }
+
+    /**
+     * 字段的值是否以指定字符开头. 值为字符串时还要求不是空字符串, 用于区分 {@code "content":""} 和真正的内容
+     */
+    private static boolean hasValue(byte[] data, int length, byte[] field, char expected) {
+        int from = 0;
+        int index;
+        while ((index = indexOf(data, length, field, from)) >= 0) {
+            int i = skipWhitespace(data, length, index + field.length);
+            if (i < length && data[i] == ':') {
+                i = skipWhitespace(data, length, i + 1);
+                if (i < length && data[i] == expected && (expected != '"' || i + 1 < length && data[i + 1] != '"')) {
+                    return true;
+                }
+            }
+            from = index + field.length;
+        }
+        return false;
+    }
+
+    private static int skipWhitespace(byte[] data, int length, int from) {
+        int i = from;
+        while (i < length && (data[i] == ' ' || data[i] == '\t' || data[i] == '\n' || data[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern, int from) {
+        byte first = pattern[0];
+        for (int i = from, max = length - pattern.length; i <= max; i++) {
+            if (data[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 从开始请求上游到收到第一个内容 token 的时间, 纳秒, 没有内容时为 -1
+     */
+    public long getFirstTokenNanos() {
+        return firstTokenNanos;
+    }
+
+    /**
+     * @return 上游返回的提示词 token 数量, 没有 usage 时为 null
+     */
+    public Integer getPromptTokens() {
+        return promptTokens;
+    }
+
+    /**
+     * @return 上游返回的生成 token 数量, 没有 usage 时为 null
+     */
+    public Integer getCompletionTokens() {
+        return completionTokens;
+    }
+
+    /**
+     * @return 结束原因, 例如 stop、length, 流被中断时为 null
+     */
+    public String getFinishReason() {
+        return finishReason;
+    }
+}
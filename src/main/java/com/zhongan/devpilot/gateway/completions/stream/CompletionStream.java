@@ -0,0 +1,290 @@
+package com.zhongan.devpilot.gateway.completions.stream;
+
+import java.util.List;
+
+import com.zhongan.devpilot.gateway.completions.providers.dto.OpenAiMessageResponse;
+import com.zhongan.devpilot.gateway.completions.template.CompletionRequestTemplate;
+
+/**
+ * 流式代码补全的增量解析
+ * <p>
+ * 逐个接收上游的 SSE 增量, 跳过开头的 Markdown 代码块标记和填充标签后统计代码的行数和括号深度. 达到行数上限,
+ * 或者代码关闭了光标所在的代码块时标记为结束, 调用方据此取消上游请求, 不再为会被丢弃的 token 付费. 关闭代码块的括号已经在光标后的代码中,
+ * 不包含在结果中.
+ * <p>
+ * 非线程安全, 每个上游请求使用一个实例.
+ */
+public final class CompletionStream {
+    private static final String MARKDOWN_FENCE = "```";
+
+    private static final String OPENING_CODE_TAG = CompletionRequestTemplate.OPENING_CODE_TAG;
+
+    /**
+     * 行数上限, 不大于 0 时不限制
+     */
+    private final int maxLines;
+
+    private final boolean stopAtBlockEnd;
+
+    private final StringBuilder text = new StringBuilder();
+
+    private String id;
+
+    private String role;
+
+    /**
+     * 代码在 text 中的开始位置, 小于 0 表示还不能确定
+     */
+    private int contentStart = -1;
+
+    private int scanned;
+
+    private int emitted;
+
+    private int lineStart;
+
+    private int lines;
+
+    private int depth;
+
+    private char quote;
+
+    private boolean escaped;
+
+    private boolean finished;
+
+    /**
+     * @param maxLines       行数上限, 不大于 0 时不限制
+     * @param stopAtBlockEnd 代码关闭光标所在的代码块时是否结束
+     */
+    public CompletionStream(int maxLines, boolean stopAtBlockEnd) {
+        this.maxLines = maxLines;
+        this.stopAtBlockEnd = stopAtBlockEnd;
+    }
+
+    /**
+     * 根据补全类型计算行数上限, 与非流式结果的截断规则一致
+     *
+     * @param completionType 代码补全类型
+     * @param resultMaxLines 代码补全结果最大行数
+     * @return 行数上限, 0 表示不限制
+     */
+    public static int maxLines(String completionType, Integer resultMaxLines) {
+        if ("comment".equals(completionType)) {
+            return 0;
+        }
+        if ("inline".equals(completionType) || resultMaxLines == null || (resultMaxLines >= 0 && resultMaxLines <= 1)) {
+            return 1;
+        }
+        if (resultMaxLines == -1) {
+            return 0;
+        }
+        // 小于 -1 时非流式结果为空, 只需要第一行
+        return Math.max(resultMaxLines, 1);
+    }
+
+    /**
+     * 接收一个上游增量
+     *
+     * @param chunk 上游的 SSE 数据
+     * @return 可以发送给客户端的代码增量, 没有时为空字符串
+     */
+    public String accept(OpenAiMessageResponse chunk) {
+        if (finished) {
+            return "";
+        }
+        if (id == null) {
+            id = chunk.getId();
+        }
+        List<OpenAiMessageResponse.Choice> choices = chunk.getChoices();
+        if (choices == null || choices.isEmpty()) {
+            return "";
+        }
+        OpenAiMessageResponse.Choice choice = choices.get(0);
+        OpenAiMessageResponse.MessageContent delta = choice.getDelta();
+        if (delta != null) {
+            if (role == null) {
+                role = delta.getRole();
+            }
+            if (delta.getContent() != null) {
+                text.append(delta.getContent());
+            }
+        }
+        if (choice.getFinishReason() != null) {
+            finished = true;
+        }
+        scan();
+        return drain();
+    }
+
+    private void scan() {
+        if (contentStart < 0) {
+            contentStart = contentStart();
+            if (contentStart < 0) {
+                return;
+            }
+            scanned = contentStart;
+            emitted = contentStart;
+            lineStart = contentStart;
+        }
+        for (int i = scanned; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                quote = 0;
+                lineStart = i + 1;
+                lines++;
+                if (maxLines > 0 && lines >= maxLines) {
+                    finish(i + 1);
+                    return;
+                }
+                continue;
+            }
+            if (quote != 0) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            switch (c) {
+                case '"', '\'' -> quote = c;
+                case '{', '(', '[' -> depth++;
+                case '}', ')', ']' -> {
+                    depth--;
+                    if (depth < 0 && stopAtBlockEnd) {
+                        // 关闭了光标所在的代码块, 括号以及后面的内容属于光标后已有的代码, 与非流式结果一样不包含;
+                        // 括号独占一行时同时去掉它的缩进, 已经发送的部分不能再去掉
+                        finish(Math.max(emitted, isBlank(text, lineStart, i) ? lineStart : i));
+                        return;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        scanned = text.length();
+    }
+
+    /**
+     * 跳过开头的 Markdown 代码块标记和填充标签, 内容还不足以判断时返回 -1
+     */
+    private int contentStart() {
+        int start = 0;
+        if (startsWith(text, 0, MARKDOWN_FENCE)) {
+            int lineEnd = text.indexOf("\n");
+            if (lineEnd < 0) {
+                return finished ? 0 : -1;
+            }
+            start = lineEnd + 1;
+        } else if (!finished && isPrefixOf(text, 0, MARKDOWN_FENCE)) {
+            return -1;
+        }
+        if (startsWith(text, start, OPENING_CODE_TAG)) {
+            return start + OPENING_CODE_TAG.length();
+        }
+        if (!finished && isPrefixOf(text, start, OPENING_CODE_TAG)) {
+            return -1;
+        }
+        return start;
+    }
+
+    private void finish(int end) {
+        text.setLength(end);
+        scanned = end;
+        finished = true;
+    }
+
+    /**
+     * 取出还没有发送的代码增量. 当前行可能是结尾的 Markdown 代码块标记时先不发送
+     */
+    private String drain() {
+        if (contentStart < 0) {
+            return "";
+        }
+        int end = scanned;
+        if (!finished && lineStart < end && text.charAt(lineStart) == '`') {
+            end = lineStart;
+        }
+        if (end <= emitted) {
+            return "";
+        }
+        String delta = text.substring(emitted, end);
+        emitted = end;
+        return delta;
+    }
+
+    private static boolean isBlank(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(CharSequence text, int offset, String prefix) {
+        if (text.length() - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * text 从 offset 开始的剩余内容是否为 prefix 的前缀
+     */
+    private static boolean isPrefixOf(CharSequence text, int offset, String prefix) {
+        int length = text.length() - offset;
+        if (length >= prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 是否已经结束, 结束后应该取消上游请求
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return 是否收到过上游的数据
+     */
+    public boolean isEmpty() {
+        return id == null;
+    }
+
+    /**
+     * @return 上游返回的唯一标识
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return 上游返回的角色
+     */
+    public String getRole() {
+        return role;
+    }
+
+    /**
+     * @return 截断后的完整文本, 包含开头的 Markdown 代码块标记和填充标签
+     */
+    public String getText() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package com.zhongan.devpilot.gateway.completions.stream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.springframework.core.io.buffer.DataBuffer;
+
+/**
+ * SSE 帧扫描器
+ * <p>
+ * 逐字节扫描上游返回的 {@link DataBuffer}, 在跨 buffer 的情况下找出每一帧 {@code data:} 字段的内容, 帧结束时交给
+ * {@link FrameListener}. 通过只读视图读取 buffer, 不移动读指针, 也不解码为字符串, 转发给客户端的字节不受影响.
+ * 只复制 data 字段的字节到复用的缓冲区, 其它字段(event、id、注释)直接跳过.
+ * <p>
+ * 非线程安全, 每个响应使用一个实例.
+ */
+public final class SseFrameScanner {
+    private static final byte[] DATA_FIELD = {'d', 'a', 't', 'a', ':'};
+
+    /**
+     * 单帧 data 的最大字节数, 超过的部分不再复制
+     */
+    private static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    /**
+     * 行开头, 正在匹配字段名
+     */
+    private static final int FIELD = 0;
+
+    /**
+     * data 字段冒号之后, 可能有一个空格
+     */
+    private static final int DATA_START = 1;
+
+    /**
+     * data 字段的内容
+     */
+    private static final int DATA = 2;
+
+    /**
+     * 跳过到行尾
+     */
+    private static final int SKIP = 3;
+
+    private final FrameListener listener;
+
+    private byte[] frame = new byte[1024];
+
+    private int frameLength;
+
+    private boolean hasData;
+
+    private int state = FIELD;
+
+    private int fieldIndex;
+
+    private boolean lastWasCr;
+
+    public SseFrameScanner(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 扫描一个 buffer, 不改变 buffer 的读指针
+     *
+     * @param buffer 上游返回的数据
+     */
+    public void scan(DataBuffer buffer) {
+        try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+            while (iterator.hasNext()) {
+                ByteBuffer byteBuffer = iterator.next();
+                for (int i = byteBuffer.position(), limit = byteBuffer.limit(); i < limit; i++) {
+                    accept(byteBuffer.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * 响应结束, 最后一帧没有以空行结束时也交给监听器
+     */
+    public void finish() {
+        dispatch();
+    }
+
+    private void accept(byte b) {
+        if (b == '\n' && lastWasCr) {
+            // \r\n 中的 \n 已经作为行结束处理
+            lastWasCr = false;
+            return;
+        }
+        lastWasCr = b == '\r';
+        if (b == '\n' || b == '\r') {
+            endOfLine();
+            return;
+        }
+        switch (state) {
+            case FIELD -> {
+                if (b == DATA_FIELD[fieldIndex]) {
+                    if (++fieldIndex == DATA_FIELD.length) {
+                        state = DATA_START;
+                        if (hasData) {
+                            // 多个 data 行之间用换行连接
+                            append((byte) '\n');
+                        }
+                        hasData = true;
+                    }
+                } else {
+                    state = SKIP;
+                }
+            }
+            case DATA_START -> {
+                state = DATA;
+                if (b != ' ') {
+                    append(b);
+                }
+            }
+            case DATA -> append(b);
+            default -> {
+            }
+        }
+    }
+
+    private void endOfLine() {
+        if (state == FIELD && fieldIndex == 0) {
+            // 空行, 一帧结束
+            dispatch();
+        }
+        state = FIELD;
+        fieldIndex = 0;
+    }
+
+    private void dispatch() {
+        if (hasData) {
+            listener.onFrame(frame, frameLength);
+        }
+        hasData = false;
+        frameLength = 0;
+    }
+
+    private void append(byte b) {
+        if (frameLength == frame.length) {
+            if (frameLength >= MAX_FRAME_BYTES) {
+                return;
+            }
+            frame = Arrays.copyOf(frame, Math.min(frame.length * 2, MAX_FRAME_BYTES));
+        }
+        frame[frameLength++] = b;
+    }
+
+    /**
+     * SSE 帧监听器
+     */
+    @FunctionalInterface
+    public interface FrameListener {
+        /**
+         * 收到一帧的 data 内容
+         *
+         * @param data   data 字段的字节, 只在回调期间有效
+         * @param length 字节数
+         */
+        void onFrame(byte[] data, int length);
+    }
+}
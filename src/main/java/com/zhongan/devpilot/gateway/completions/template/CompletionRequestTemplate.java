@@ -0,0 +1,329 @@
+package com.zhongan.devpilot.gateway.completions.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zhongan.devpilot.gateway.utils.TextSlice;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+
+/**
+ * 代码补全上游请求模板
+ * <p>
+ * {@code app-common.open-ai-code-completion.template} 在启动时解析为文本片段和占位符片段. 每次请求使用 Jackson
+ * {@link JsonGenerator} 一次性写出: 文本片段原样输出, 占位符的内容直接转义写入池化的 {@link DataBuffer},
+ * 不再生成多份与文档大小相同的中间字符串. 转义规则与 Jackson 序列化字符串一致, 输出与之前逐个 {@code String.replace} 的结果相同.
+ */
+public final class CompletionRequestTemplate {
+    public static final String OPENING_CODE_TAG = "<FILL_CODE_777>";
+
+    public static final String CLOSING_CODE_TAG = "</FILL_CODE_777>";
+
+    private static final NettyDataBufferFactory BUFFER_FACTORY = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * 控制字符的短转义, 没有短转义的控制字符使用 {@code \\u00XX}
+     */
+    private static final String[] ESCAPES = new String[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = "\\u00" + HEX_CHARS[c >> 4] + HEX_CHARS[c & 0xF];
+        }
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+    }
+
+    /**
+     * 文本片段({@link String}) 或者占位符({@link Slot})
+     */
+    private final Object[] parts;
+
+    private final int literalLength;
+
+    private CompletionRequestTemplate(Object[] parts, int literalLength) {
+        this.parts = parts;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * 解析代码补全请求模板, 模板替换占位符后必须是合法的 JSON
+     *
+     * @param template 模板内容
+     * @return 解析后的模板
+     */
+    public static CompletionRequestTemplate compile(String template) {
+        return compile(template, false);
+    }
+
+    /**
+     * 解析代码补全请求模板, 模板替换占位符后必须是合法的 JSON
+     *
+     * @param template 模板内容
+     * @param stream   是否请求上游流式返回, 为 true 时在请求体中设置 {@code "stream": true}
+     * @return 解析后的模板
+     */
+    public static CompletionRequestTemplate compile(String template, boolean stream) {
+        if (template == null) {
+            throw new IllegalArgumentException("code completion template must not be null");
+        }
+        String source = template.replace("{OPENING_CODE_TAG}", OPENING_CODE_TAG).replace("{CLOSING_CODE_TAG}", CLOSING_CODE_TAG);
+        if (stream) {
+            source = withStream(source);
+        }
+        List<Object> parts = new ArrayList<>();
+        int literalLength = 0;
+        int start = 0;
+        int i = 0;
+        while (i < source.length()) {
+            Slot slot = source.charAt(i) == '{' ? Slot.match(source, i) : null;
+            if (slot == null) {
+                i++;
+                continue;
+            }
+            if (i > start) {
+                parts.add(source.substring(start, i));
+                literalLength += i - start;
+            }
+            parts.add(slot);
+            i += slot.placeholder.length();
+            start = i;
+        }
+        if (start < source.length()) {
+            parts.add(source.substring(start));
+            literalLength += source.length() - start;
+        }
+        CompletionRequestTemplate requestTemplate = new CompletionRequestTemplate(parts.toArray(), literalLength);
+        requestTemplate.validate();
+        return requestTemplate;
+    }
+
+    /**
+     * 在请求体顶层设置 {@code "stream": true}: 模板中已经有 stream 字段时替换它的值, 否则在对象开头加入, 不产生重复的字段
+     *
+     * @param source 替换了代码标签的模板
+     * @return 设置了 stream 字段的模板
+     */
+    private static String withStream(String source) {
+        // 占位符替换为等长的字母, JSON 结构和字符偏移都不变
+        StringBuilder masked = new StringBuilder(source);
+        for (int i = 0; i < masked.length(); i++) {
+            Slot slot = masked.charAt(i) == '{' ? Slot.match(source, i) : null;
+            if (slot != null) {
+                int end = i + slot.placeholder.length();
+                for (int j = i; j < end; j++) {
+                    masked.setCharAt(j, 'x');
+                }
+                i = end - 1;
+            }
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(masked.toString())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalStateException("code completion template is not a json object");
+            }
+            int objectStart = (int) parser.getTokenLocation().getCharOffset();
+            boolean empty = true;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                empty = false;
+                String name = parser.currentName();
+                parser.nextToken();
+                if ("stream".equals(name)) {
+                    int valueStart = (int) parser.getTokenLocation().getCharOffset();
+                    parser.skipChildren();
+                    parser.finishToken();
+                    int valueEnd = (int) parser.currentLocation().getCharOffset();
+                    return source.substring(0, valueStart) + "true" + source.substring(valueEnd);
+                }
+                parser.skipChildren();
+            }
+            return source.substring(0, objectStart + 1) + (empty ? "\"stream\":true" : "\"stream\":true,") + source.substring(objectStart + 1);
+        } catch (IOException e) {
+            throw new IllegalStateException("code completion template is not a valid json", e);
+        }
+    }
+
+    /**
+     * 占位符替换为空字符串后校验模板是否为合法的 JSON, 在启动时发现配置错误
+     */
+    private void validate() {
+        StringBuilder sb = new StringBuilder(literalLength);
+        for (Object part : parts) {
+            if (part instanceof String literal) {
+                sb.append(literal);
+            }
+        }
+        try {
+            new ObjectMapper().readTree(sb.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException("code completion template is not a valid json", e);
+        }
+    }
+
+    /**
+     * @return 模板中是否有 {@code {contextSnippets}} 占位符, 没有时不需要检索相关的代码片段
+     */
+    public boolean hasContextSnippets() {
+        for (Object part : parts) {
+            if (part == Slot.CONTEXT_SNIPPETS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 生成上游请求体
+     *
+     * @param infillPrefix     光标前的代码, 不包含填充块
+     * @param infillSuffix     光标后的代码
+     * @param infillBlock      填充块
+     * @param relativeFilePath 文件路径
+     * @return 池化的请求体, 由调用方负责释放(交给 WebClient 写出后会自动释放)
+     */
+    public DataBuffer write(CharSequence infillPrefix, CharSequence infillSuffix, CharSequence infillBlock, CharSequence relativeFilePath) {
+        return write(infillPrefix, infillSuffix, infillBlock, relativeFilePath, null);
+    }
+
+    /**
+     * 生成上游请求体
+     *
+     * @param infillPrefix     光标前的代码, 不包含填充块
+     * @param infillSuffix     光标后的代码
+     * @param infillBlock      填充块
+     * @param relativeFilePath 文件路径
+     * @param contextSnippets  仓库中相关的代码片段, 没有时为 null
+     * @return 池化的请求体, 由调用方负责释放(交给 WebClient 写出后会自动释放)
+     */
+    public DataBuffer write(CharSequence infillPrefix, CharSequence infillSuffix, CharSequence infillBlock, CharSequence relativeFilePath,
+                            CharSequence contextSnippets) {
+        int estimate = literalLength + length(infillPrefix) + length(infillSuffix) + length(infillBlock) + length(relativeFilePath)
+                + length(contextSnippets);
+        DataBuffer dataBuffer = BUFFER_FACTORY.allocateBuffer(estimate + (estimate >> 4));
+        boolean release = true;
+        try (OutputStream outputStream = dataBuffer.asOutputStream();
+             JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8)) {
+            for (Object part : parts) {
+                if (part instanceof String literal) {
+                    generator.writeRaw(literal);
+                    continue;
+                }
+                switch ((Slot) part) {
+                    case INFILL_PREFIX -> writeEscaped(generator, infillPrefix);
+                    case INFILL_SUFFIX -> writeEscaped(generator, infillSuffix);
+                    case INFILL_BLOCK -> writeEscaped(generator, infillBlock);
+                    case RELATIVE_FILE_PATH -> writeEscaped(generator, relativeFilePath);
+                    case CONTEXT_SNIPPETS -> writeEscaped(generator, contextSnippets);
+                    default -> throw new IllegalStateException("unknown slot: " + part);
+                }
+            }
+            generator.flush();
+            release = false;
+            return dataBuffer;
+        } catch (IOException e) {
+            throw new IllegalStateException("write code completion request error", e);
+        } finally {
+            if (release) {
+                DataBufferUtils.release(dataBuffer);
+            }
+        }
+    }
+
+    /**
+     * 按照 Jackson 的默认规则转义 JSON 字符串内容(不包含两侧的引号), 不需要转义的连续字符一次写出.
+     * 不成对的代理字符无法编码为 UTF-8, 与之前先生成字符串再按 UTF-8 编码一样写为 {@code ?}
+     */
+    private static void writeEscaped(JsonGenerator generator, CharSequence text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        // 文档视图直接在底层字符串上转义, 不生成子串
+        String source;
+        int start;
+        int end;
+        if (text instanceof TextSlice slice) {
+            source = slice.getSource();
+            start = slice.getStart();
+            end = slice.getEnd();
+        } else {
+            source = text.toString();
+            start = 0;
+            end = source.length();
+        }
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c >= 128) {
+                if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(source.charAt(i + 1))) {
+                        i++;
+                        continue;
+                    }
+                    if (i > runStart) {
+                        generator.writeRaw(source, runStart, i - runStart);
+                    }
+                    generator.writeRaw('?');
+                    runStart = i + 1;
+                }
+                continue;
+            }
+            if (ESCAPES[c] == null) {
+                continue;
+            }
+            if (i > runStart) {
+                generator.writeRaw(source, runStart, i - runStart);
+            }
+            generator.writeRaw(ESCAPES[c]);
+            runStart = i + 1;
+        }
+        if (end > runStart) {
+            generator.writeRaw(source, runStart, end - runStart);
+        }
+    }
+
+    private static int length(CharSequence text) {
+        return text == null ? 0 : text.length();
+    }
+
+    enum Slot {
+        INFILL_PREFIX("{infillPrefix}"),
+        INFILL_SUFFIX("{infillSuffix}"),
+        INFILL_BLOCK("{infillBlock}"),
+        RELATIVE_FILE_PATH("{relativeFilePath}"),
+        CONTEXT_SNIPPETS("{contextSnippets}");
+
+        private final String placeholder;
+
+        Slot(String placeholder) {
+            this.placeholder = placeholder;
+        }
+
+        static Slot match(String source, int offset) {
+            for (Slot slot : values()) {
+                if (source.startsWith(slot.placeholder, offset)) {
+                    return slot;
+                }
+            }
+            return null;
+        }
+    }
+}
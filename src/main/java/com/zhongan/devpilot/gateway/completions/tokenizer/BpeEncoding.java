@@ -0,0 +1,60 @@
+package com.zhongan.devpilot.gateway.completions.tokenizer;
+
+import java.util.regex.Pattern;
+
+/**
+ * BPE 编码, 与 tiktoken 同名编码的预分词规则一致
+ */
+public enum BpeEncoding {
+    /**
+     * gpt-3.5-turbo、gpt-4
+     */
+    CL100K_BASE("cl100k_base",
+            "'(?i:[sdmt]|ll|ve|re)|[^\\r\\n\\p{L}\\p{N}]?+\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]++[\\r\\n]*|\\s*[\\r\\n]|\\s+(?!\\S)|\\s+"),
+
+    /**
+     * gpt-4o
+     */
+    O200K_BASE("o200k_base",
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                    + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                    + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+");
+
+    private final String encodingName;
+
+    private final Pattern pattern;
+
+    BpeEncoding(String encodingName, String pattern) {
+        this.encodingName = encodingName;
+        this.pattern = Pattern.compile(pattern);
+    }
+
+    /**
+     * @return 编码名称, 与词表文件名一致
+     */
+    public String getEncodingName() {
+        return encodingName;
+    }
+
+    /**
+     * @return 预分词正则
+     */
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * 根据编码名称查找编码
+     *
+     * @param encodingName 编码名称, 例如 cl100k_base
+     * @return 编码
+     */
+    public static BpeEncoding of(String encodingName) {
+        for (BpeEncoding encoding : values()) {
+            if (encoding.encodingName.equalsIgnoreCase(encodingName)) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("unsupported bpe encoding: " + encodingName);
+    }
+}
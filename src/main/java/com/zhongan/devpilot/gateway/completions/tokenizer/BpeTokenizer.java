@@ -0,0 +1,237 @@
+package com.zhongan.devpilot.gateway.completions.tokenizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * 离线 BPE 分词器, 兼容 tiktoken 的 cl100k_base、o200k_base 词表
+ * <p>
+ * 文本先按编码的正则预分词, 每个片段编码为 UTF-8 后, 整体命中词表的片段直接作为一个 token, 否则执行 BPE 合并.
+ * 需要合并的片段结果放入 LRU 缓存, 代码中重复出现的标识符不需要重复合并.
+ */
+public final class BpeTokenizer implements TokenCounter {
+    private static final int[] EMPTY = new int[0];
+
+    private static final ThreadLocal<byte[]> BYTES = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private final BpeEncoding encoding;
+
+    private final BpeVocabulary vocabulary;
+
+    private final Cache<String, int[]> chunkCache;
+
+    private BpeTokenizer(BpeEncoding encoding, BpeVocabulary vocabulary, long chunkCacheSize) {
+        this.encoding = encoding;
+        this.vocabulary = vocabulary;
+        this.chunkCache = chunkCacheSize > 0 ? Caffeine.newBuilder().maximumSize(chunkCacheSize).build() : null;
+    }
+
+    /**
+     * 加载分词器
+     *
+     * @param encoding       编码
+     * @param vocabulary     tiktoken 格式的词表
+     * @param chunkCacheSize 片段缓存的最大条目数, 不大于 0 时不缓存
+     * @return 分词器
+     * @throws IOException 读取词表失败
+     */
+    public static BpeTokenizer load(BpeEncoding encoding, InputStream vocabulary, long chunkCacheSize) throws IOException {
+        return new BpeTokenizer(encoding, BpeVocabulary.load(vocabulary), chunkCacheSize);
+    }
+
+    @Override
+    public int count(CharSequence text) {
+        int count = 0;
+        Matcher matcher = encoding.getPattern().matcher(text);
+        while (matcher.find()) {
+            count += countChunk(text, matcher.start(), matcher.end());
+        }
+        return count;
+    }
+
+    /**
+     * 编码文本
+     *
+     * @param text 文本
+     * @return token 序列
+     */
+    public int[] encode(CharSequence text) {
+        int[] tokens = new int[Math.max(16, text.length() / 3)];
+        int size = 0;
+        Matcher matcher = encoding.getPattern().matcher(text);
+        while (matcher.find()) {
+            int[] chunk = encodeChunk(text, matcher.start(), matcher.end());
+            if (size + chunk.length > tokens.length) {
+                tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2, size + chunk.length));
+            }
+            System.arraycopy(chunk, 0, tokens, size, chunk.length);
+            size += chunk.length;
+        }
+        return Arrays.copyOf(tokens, size);
+    }
+
+    /**
+     * 解码 token 序列
+     *
+     * @param tokens token 序列
+     * @return 文本
+     */
+    public String decode(int[] tokens) {
+        int length = 0;
+        for (int token : tokens) {
+            length += vocabulary.length(token);
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int token : tokens) {
+            position = vocabulary.append(token, bytes, position);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 编码
+     */
+    public BpeEncoding getEncoding() {
+        return encoding;
+    }
+
+    private int countChunk(CharSequence text, int start, int end) {
+        byte[] bytes = BYTES.get();
+        int length = utf8(text, start, end, bytes);
+        if (length < 0) {
+            // 缓冲区不够, 按需扩容后重新编码
+            bytes = new byte[(end - start) * 3];
+            BYTES.set(bytes);
+            length = utf8(text, start, end, bytes);
+        }
+        if (vocabulary.rank(bytes, 0, length) != Integer.MAX_VALUE) {
+            return 1;
+        }
+        return merge(text, start, end, bytes, length).length;
+    }
+
+    private int[] encodeChunk(CharSequence text, int start, int end) {
+        byte[] bytes = BYTES.get();
+        int length = utf8(text, start, end, bytes);
+        if (length < 0) {
+            bytes = new byte[(end - start) * 3];
+            BYTES.set(bytes);
+            length = utf8(text, start, end, bytes);
+        }
+        int rank = vocabulary.rank(bytes, 0, length);
+        if (rank != Integer.MAX_VALUE) {
+            return new int[]{rank};
+        }
+        return merge(text, start, end, bytes, length);
+    }
+
+    private int[] merge(CharSequence text, int start, int end, byte[] bytes, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        if (chunkCache == null) {
+            return bytePairMerge(bytes, length);
+        }
+        String key = text.subSequence(start, end).toString();
+        int[] tokens = chunkCache.getIfPresent(key);
+        if (tokens == null) {
+            tokens = bytePairMerge(bytes, length);
+            chunkCache.put(key, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * BPE 合并: 每次合并 rank 最小的相邻片段, 直到没有可以合并的片段
+     */
+    private int[] bytePairMerge(byte[] bytes, int length) {
+        // starts[i] 为第 i 个片段的开始位置, ranks[i] 为第 i 个和第 i + 1 个片段合并后的 rank
+        int[] starts = new int[length + 1];
+        int[] ranks = new int[length + 1];
+        int parts = length + 1;
+        for (int i = 0; i < parts; i++) {
+            starts[i] = i;
+        }
+        for (int i = 0; i < parts; i++) {
+            ranks[i] = i + 2 < parts ? vocabulary.rank(bytes, i, 2) : Integer.MAX_VALUE;
+        }
+        while (parts > 1) {
+            int minRank = Integer.MAX_VALUE;
+            int minIndex = -1;
+            for (int i = 0; i < parts - 1; i++) {
+                if (ranks[i] < minRank) {
+                    minRank = ranks[i];
+                    minIndex = i;
+                }
+            }
+            if (minIndex < 0) {
+                break;
+            }
+            // 删除第 minIndex + 1 个边界, 并更新受影响的两个 rank
+            System.arraycopy(starts, minIndex + 2, starts, minIndex + 1, parts - minIndex - 2);
+            System.arraycopy(ranks, minIndex + 2, ranks, minIndex + 1, parts - minIndex - 2);
+            parts--;
+            ranks[minIndex] = pairRank(bytes, starts, parts, minIndex);
+            if (minIndex > 0) {
+                ranks[minIndex - 1] = pairRank(bytes, starts, parts, minIndex - 1);
+            }
+        }
+        int[] tokens = new int[parts - 1];
+        for (int i = 0; i < parts - 1; i++) {
+            int rank = vocabulary.rank(bytes, starts[i], starts[i + 1] - starts[i]);
+            if (rank == Integer.MAX_VALUE) {
+                throw new IllegalStateException("bpe vocabulary does not cover all single bytes");
+            }
+            tokens[i] = rank;
+        }
+        return tokens;
+    }
+
+    private int pairRank(byte[] bytes, int[] starts, int parts, int index) {
+        if (index + 2 >= parts) {
+            return Integer.MAX_VALUE;
+        }
+        return vocabulary.rank(bytes, starts[index], starts[index + 2] - starts[index]);
+    }
+
+    /**
+     * 将字符区间编码为 UTF-8, 单独的代理字符编码为 '?', 与 {@link String#getBytes} 一致
+     *
+     * @return 字节数, 缓冲区不够时返回 -1
+     */
+    private static int utf8(CharSequence text, int start, int end, byte[] out) {
+        if ((end - start) * 3 > out.length) {
+            return -1;
+        }
+        int position = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xc0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out[position++] = (byte) (0xf0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[position++] = '?';
+            } else {
+                out[position++] = (byte) (0xe0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return position;
+    }
+}
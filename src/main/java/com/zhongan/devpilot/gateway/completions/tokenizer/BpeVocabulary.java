@@ -0,0 +1,162 @@
+package com.zhongan.devpilot.gateway.completions.tokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * BPE 词表
+ * <p>
+ * 所有 token 的字节连续存放在一个数组中, 通过开放寻址哈希表按字节区间查找 rank, 查找时不需要创建 key 对象.
+ */
+final class BpeVocabulary {
+    private static final int NOT_FOUND = -1;
+
+    private final byte[] pool;
+
+    private final int[] offsets;
+
+    private final int[] lengths;
+
+    private final int[] ranks;
+
+    /**
+     * 哈希表, 存放 entry 下标加一, 0 表示空槽
+     */
+    private final int[] table;
+
+    private final int mask;
+
+    /**
+     * 按 rank 索引的 entry 下标, 用于解码
+     */
+    private final int[] entryByRank;
+
+    private BpeVocabulary(byte[] pool, int[] offsets, int[] lengths, int[] ranks, int size) {
+        this.pool = pool;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.ranks = ranks;
+        int capacity = Integer.highestOneBit(Math.max(size, 1) * 2) << 1;
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        int maxRank = 0;
+        for (int i = 0; i < size; i++) {
+            maxRank = Math.max(maxRank, ranks[i]);
+            int slot = hash(pool, offsets[i], lengths[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        this.entryByRank = new int[maxRank + 1];
+        Arrays.fill(entryByRank, NOT_FOUND);
+        for (int i = 0; i < size; i++) {
+            entryByRank[ranks[i]] = i;
+        }
+    }
+
+    /**
+     * 读取 tiktoken 格式的词表, 每行为 base64 编码的 token 字节和 rank, 以空格分隔
+     *
+     * @param inputStream 词表输入流
+     * @return 词表
+     * @throws IOException 读取失败
+     */
+    static BpeVocabulary load(InputStream inputStream) throws IOException {
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] pool = new byte[1 << 20];
+        int[] offsets = new int[1 << 16];
+        int[] lengths = new int[1 << 16];
+        int[] ranks = new int[1 << 16];
+        int size = 0;
+        int poolSize = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                byte[] token = decoder.decode(line.substring(0, space));
+                int rank = Integer.parseInt(line.substring(space + 1).trim());
+                if (size == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    lengths = Arrays.copyOf(lengths, size * 2);
+                    ranks = Arrays.copyOf(ranks, size * 2);
+                }
+                if (poolSize + token.length > pool.length) {
+                    pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + token.length));
+                }
+                System.arraycopy(token, 0, pool, poolSize, token.length);
+                offsets[size] = poolSize;
+                lengths[size] = token.length;
+                ranks[size] = rank;
+                poolSize += token.length;
+                size++;
+            }
+        }
+        if (size == 0) {
+            throw new IOException("bpe vocabulary is empty");
+        }
+        return new BpeVocabulary(pool, offsets, lengths, ranks, size);
+    }
+
+    /**
+     * 查找字节区间对应的 rank
+     *
+     * @return rank, 不存在时返回 {@link Integer#MAX_VALUE}
+     */
+    int rank(byte[] bytes, int offset, int length) {
+        int slot = hash(bytes, offset, length) & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return Integer.MAX_VALUE;
+            }
+            entry--;
+            if (lengths[entry] == length
+                    && Arrays.equals(pool, offsets[entry], offsets[entry] + length, bytes, offset, offset + length)) {
+                return ranks[entry];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 将 rank 对应的字节追加到数组
+     *
+     * @return 追加后的长度
+     */
+    int append(int rank, byte[] out, int position) {
+        int entry = rank >= 0 && rank < entryByRank.length ? entryByRank[rank] : NOT_FOUND;
+        if (entry == NOT_FOUND) {
+            throw new IllegalArgumentException("unknown token: " + rank);
+        }
+        System.arraycopy(pool, offsets[entry], out, position, lengths[entry]);
+        return position + lengths[entry];
+    }
+
+    /**
+     * @return rank 对应的字节数
+     */
+    int length(int rank) {
+        int entry = rank >= 0 && rank < entryByRank.length ? entryByRank[rank] : NOT_FOUND;
+        if (entry == NOT_FOUND) {
+            throw new IllegalArgumentException("unknown token: " + rank);
+        }
+        return lengths[entry];
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,49 @@
+package com.zhongan.devpilot.gateway.completions.tokenizer;
+
+/**
+ * 按字符类别估算 token 数量
+ * <p>
+ * 连续的字母数字按每 {@value #CHARS_PER_WORD_TOKEN} 个字符一个 token 计算, 连续的空格按每
+ * {@value #CHARS_PER_SPACE_TOKEN} 个字符一个 token 计算, 换行、标点和非 ASCII 字符每个字符一个 token.
+ * 对代码来说结果通常略大于 BPE 分词器的结果, 用于预算控制是偏安全的. 没有配置 BPE 词表时使用.
+ */
+public class CharRatioTokenCounter implements TokenCounter {
+    private static final int CHARS_PER_WORD_TOKEN = 4;
+
+    private static final int CHARS_PER_SPACE_TOKEN = 4;
+
+    @Override
+    public int count(CharSequence text) {
+        int length = text.length();
+        int tokens = 0;
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isWordChar(c)) {
+                int start = i;
+                while (i < length && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+                tokens += ceilDiv(i - start, CHARS_PER_WORD_TOKEN);
+            } else if (c == ' ' || c == '\t') {
+                int start = i;
+                while (i < length && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) {
+                    i++;
+                }
+                tokens += ceilDiv(i - start, CHARS_PER_SPACE_TOKEN);
+            } else {
+                tokens++;
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return (x + y - 1) / y;
+    }
+}
@@ -0,0 +1,16 @@
+package com.zhongan.devpilot.gateway.completions.tokenizer;
+
+/**
+ * 本地 token 计数器
+ * <p>
+ * 用于在请求上游模型之前估算文本的 token 数量, 不需要与模型的分词结果完全一致, 但需要足够快, 可以在事件循环线程上调用.
+ */
+public interface TokenCounter {
+    /**
+     * 计算文本的 token 数量
+     *
+     * @param text 文本
+     * @return token 数量
+     */
+    int count(CharSequence text);
+}
@@ -1,10 +1,15 @@
 package com.zhongan.devpilot.gateway.config;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import lombok.Data;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.unit.DataSize;
 
 /**
  * app common properties
@@ -20,6 +25,41 @@ public class AppCommonProperties {
      */
     private CodeCompletionConfig openAiCodeCompletion;
 
+    /**
+     * 请求体缓存配置信息
+     */
+    private RequestBodyConfig requestBody = new RequestBodyConfig();
+
+    /**
+     * 分词器配置信息
+     */
+    private TokenizerConfig tokenizer = new TokenizerConfig();
+
+    /**
+     * 上游模型服务配置信息
+     */
+    private UpstreamConfig upstream = new UpstreamConfig();
+
+    /**
+     * 用户限流配置信息, 各路由的速率在 TokenRateLimit 过滤器的参数中配置
+     */
+    private RateLimitConfig rateLimit = new RateLimitConfig();
+
+    /**
+     * IDE 上报消息的写入配置信息
+     */
+    private MessageConfig message = new MessageConfig();
+
+    /**
+     * 解释命令的响应缓存配置信息
+     */
+    private ResponseCacheConfig responseCache = new ResponseCacheConfig();
+
+    /**
+     * 仓库向量索引配置信息
+     */
+    private RagConfig rag = new RagConfig();
+
     @Data
     public static class CodeCompletionConfig {
         /**
@@ -41,5 +81,751 @@ public class AppCommonProperties {
          * 代码补全结果最大行数
          */
         private Integer resultMaxLines;
+
+        /**
+         * 是否流式请求上游, 达到行数上限时提前取消上游请求
+         */
+        private boolean stream;
+
+        /**
+         * 流式请求时, 补全代码关闭了光标所在的代码块后是否提前结束, 结果不包含关闭代码块的括号
+         */
+        private boolean stopAtBlockEnd = true;
+
+        /**
+         * 代码补全结果缓存配置
+         */
+        private CompletionCacheConfig cache = new CompletionCacheConfig();
+
+        /**
+         * 非流式代码补全的对冲请求配置
+         */
+        private HedgeConfig hedge = new HedgeConfig();
+
+        /**
+         * 最近查看的其它文件中相似代码的选择配置
+         */
+        private CrossFileConfig crossFile = new CrossFileConfig();
+
+        /**
+         * 文档增量同步配置
+         */
+        private DocumentSyncConfig documentSync = new DocumentSyncConfig();
+
+        /**
+         * WebSocket 补全通道配置
+         */
+        private CompletionChannelConfig channel = new CompletionChannelConfig();
+    }
+
+    @Data
+    public static class CompletionChannelConfig {
+        /**
+         * 是否启用 WebSocket 补全通道
+         */
+        private boolean enabled = true;
+
+        /**
+         * 通道路径
+         */
+        private String path = "/devpilot/v1/code-completion-channel";
+
+        /**
+         * 代码补全路由的标识. 补全提供者、上下文窗口取自路由的 CodeCompletion 过滤器, 限流与路由的 TokenRateLimit 过滤器
+         * 共用同一个限流器, 同一个用户通过 HTTP 和通道发送的请求计入同一份配额
+         */
+        private String routeId = "code-completion-default";
+
+        /**
+         * 每个连接同时处理的补全请求上限, 超过时直接返回 busy
+         */
+        private int maxInFlight = 8;
+
+        /**
+         * 每个连接等待发送的响应上限. 客户端持续发送请求但不读取响应, 超过时关闭连接
+         */
+        private int maxPendingResponses = 256;
+
+        /**
+         * 单个消息的最大大小, 需要容纳完整文档
+         */
+        private DataSize maxFrameSize = DataSize.ofMegabytes(4);
+    }
+
+    @Data
+    public static class DocumentSyncConfig {
+        /**
+         * 是否保存编辑器会话的文档, 接收增量修改; 未启用时增量请求都要求客户端重新发送完整文档.
+         * 只保存带认证信息的用户的文档, 按客户端地址识别的用户同样要求重新发送
+         */
+        private boolean enabled = true;
+
+        /**
+         * 所有文档占用的最大字符数量, 超过后淘汰最久未使用的文档
+         */
+        private long maxChars = 64L * 1024 * 1024;
+
+        /**
+         * 单个文档的最大字符数量, 更大的文档不保存, 每次请求都需要发送完整文档
+         */
+        private int maxDocumentChars = 4 * 1024 * 1024;
+
+        /**
+         * 文档多久没有访问后淘汰
+         */
+        private Duration expireAfterAccess = Duration.ofMinutes(30);
+    }
+
+    @Data
+    public static class CrossFileConfig {
+        /**
+         * 是否从请求中的最近查看文件片段中选择相似的代码加入提示词
+         */
+        private boolean enabled = true;
+
+        /**
+         * 最多处理的文件片段数量, 超出的部分忽略
+         */
+        private int maxExcerpts = 10;
+
+        /**
+         * 每个文件片段最多处理的字符数量
+         */
+        private int maxExcerptChars = 16 * 1024;
+
+        /**
+         * 滑动窗口的行数, 光标前同样行数的代码作为查询
+         */
+        private int windowLines = 20;
+
+        /**
+         * 滑动窗口每移动这么多行计算一次相似度, 片段的最后一个窗口总是计算
+         */
+        private int windowStride = 5;
+
+        /**
+         * Jaccard 相似度低于这个值的窗口不使用
+         */
+        private double minSimilarity = 0.15;
+
+        /**
+         * 最多加入的窗口数量, 每个文件最多一个
+         */
+        private int maxSnippets = 3;
+
+        /**
+         * 加入的窗口的最大 token 数量
+         */
+        private int maxTokens = 512;
+
+        /**
+         * 选择窗口的 CPU 时间预算, 超过后使用已经计算的窗口
+         */
+        private Duration timeBudget = Duration.ofMillis(2);
+    }
+
+    @Data
+    public static class CompletionCacheConfig {
+        /**
+         * 是否启用代码补全结果缓存
+         */
+        private boolean enabled = true;
+
+        /**
+         * 缓存的最大条目数
+         */
+        private long maximumSize = 10000;
+
+        /**
+         * 缓存写入后的过期时间
+         */
+        private Duration expireAfterWrite = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class HedgeConfig {
+        /**
+         * 是否启用对冲请求
+         */
+        private boolean enabled;
+
+        /**
+         * 第一次请求超过最近延迟的哪个分位数后发送对冲请求
+         */
+        private double percentile = 0.9;
+
+        /**
+         * 对冲延迟的下限
+         */
+        private Duration minDelay = Duration.ofMillis(200);
+
+        /**
+         * 对冲请求占全部请求的最大比例
+         */
+        private double budgetRatio = 0.05;
+
+        /**
+         * 最多累积多少次对冲机会, 限制突发的对冲请求
+         */
+        private int maxBurst = 10;
+
+        /**
+         * 保留的延迟样本数量
+         */
+        private int sampleSize = 1000;
+
+        /**
+         * 延迟样本达到多少后才开始对冲
+         */
+        private int minSamples = 50;
+    }
+
+    @Data
+    public static class RequestBodyConfig {
+        /**
+         * 请求体默认最大字节数, 可以通过路由 metadata 的 max-body-size 覆盖
+         */
+        private DataSize maxSize = DataSize.ofMegabytes(2);
+    }
+
+    @Data
+    public static class TokenizerConfig {
+        /**
+         * BPE 编码名称, 支持 cl100k_base、o200k_base
+         */
+        private String encoding = "cl100k_base";
+
+        /**
+         * tiktoken 格式的词表位置. 词表没有随代码发布, 构建前下载到 {@code src/main/resources/tokenizer/} 目录,
+         * 或者指向 {@code file:} 路径, 见 BUILD_GATEWAY.md
+         */
+        private String vocabulary = "classpath:tokenizer/cl100k_base.tiktoken";
+
+        /**
+         * 词表是否必须存在. 必须存在时缺少词表启动失败, 否则记录错误日志, 按字符类别估算 token 数量,
+         * 并将 devpilot.tokenizer.estimated 指标置为 1
+         */
+        private boolean required = true;
+
+        /**
+         * 需要 BPE 合并的片段缓存的最大条目数
+         */
+        private long chunkCacheSize = 100000;
+    }
+
+    @Data
+    public static class MessageConfig {
+        /**
+         * 是否写入上报的消息, 不写入时直接丢弃
+         */
+        private boolean enabled = true;
+
+        /**
+         * 分段文件目录
+         */
+        private String directory = "data/messages";
+
+        /**
+         * 队列中消息请求体的最大总大小, 队列满时丢弃新的消息
+         */
+        private DataSize maxQueueSize = DataSize.ofMegabytes(64);
+
+        /**
+         * 队列积压超过最大总大小的这个比例后开始采样
+         */
+        private double sampleThreshold = 0.5;
+
+        /**
+         * 采样时保留的比例
+         */
+        private double sampleRate = 0.1;
+
+        /**
+         * 每批最多写入的消息数量
+         */
+        private int batchSize = 512;
+
+        /**
+         * 队列为空时等待的时间, 这段时间内到达的消息一起提交
+         */
+        private Duration flushInterval = Duration.ofMillis(50);
+
+        /**
+         * 是否在每批提交时 fsync
+         */
+        private boolean fsync = true;
+
+        /**
+         * 分段压缩前的最大大小
+         */
+        private DataSize maxSegmentSize = DataSize.ofMegabytes(64);
+
+        /**
+         * 分段的最长写入时间
+         */
+        private Duration maxSegmentAge = Duration.ofHours(1);
+
+        /**
+         * 最多保留的分段数量
+         */
+        private int maxSegments = 168;
+
+        /**
+         * 统计的模型和消息类型组合数量上限, 每个组合导出两个时间序列
+         */
+        private int maxAggregateKeys = 1000;
+    }
+
+    @Data
+    public static class ResponseCacheConfig {
+        /**
+         * 是否缓存解释命令的响应
+         */
+        private boolean enabled;
+
+        /**
+         * 只缓存采样温度不大于这个值的请求, 没有设置温度的请求不缓存
+         */
+        private double maxTemperature = 0.0;
+
+        /**
+         * 缓存的命令类型, 为空时缓存所有解释命令, 不包括 PURE_CHAT
+         */
+        private List<String> commands = new ArrayList<>();
+
+        /**
+         * 缓存占用的堆外内存上限
+         */
+        private DataSize maxMemory = DataSize.ofMegabytes(256);
+
+        /**
+         * 单个响应的最大大小, 超过时不缓存
+         */
+        private DataSize maxEntrySize = DataSize.ofMegabytes(1);
+
+        /**
+         * 缓存写入后的过期时间
+         */
+        private Duration expireAfterWrite = Duration.ofHours(1);
+    }
+
+    @Data
+    public static class RagConfig {
+        /**
+         * 仓库索引的根目录, 每个仓库一个子目录
+         */
+        private String directory = "data/rag";
+
+        /**
+         * 向量模型
+         */
+        private String embeddingModel = "text-embedding-3-small";
+
+        /**
+         * 向量服务地址, 为空时使用上游节点池
+         */
+        private String embeddingBaseUrl;
+
+        /**
+         * 单独配置向量服务地址时使用的 API key
+         */
+        private String embeddingApiKey;
+
+        /**
+         * 向量接口路径
+         */
+        private String embeddingPath = "/v1/embeddings";
+
+        /**
+         * 每次请求向量接口的最大片段数量
+         */
+        private int embeddingBatchSize = 64;
+
+        /**
+         * 向量接口的超时时间
+         */
+        private Duration embeddingTimeout = Duration.ofSeconds(30);
+
+        /**
+         * HNSW 每个节点的邻居数量, 第 0 层为两倍
+         */
+        private int m = 16;
+
+        /**
+         * HNSW 建图时的候选数量
+         */
+        private int efConstruction = 100;
+
+        /**
+         * HNSW 查询时的候选数量, 越大召回率越高、延迟越大
+         */
+        private int efSearch = 64;
+
+        /**
+         * 每个向量分段文件的向量数量
+         */
+        private int segmentCapacity = 16384;
+
+        /**
+         * 单次检索返回的最大片段数量
+         */
+        private int maxTopK = 50;
+
+        /**
+         * 后台检查是否需要压缩的间隔
+         */
+        private Duration compactionInterval = Duration.ofMinutes(10);
+
+        /**
+         * 已删除的片段比例超过这个值时压缩
+         */
+        private double compactionDeletedRatio = 0.3;
+
+        /**
+         * 允许写入和删除片段的令牌, 请求需要带 {@code Authorization: Bearer <令牌>}. 为空时不允许写入, 只能查询
+         */
+        private List<String> ingestTokens = new ArrayList<>();
+
+        /**
+         * BM25 倒排索引配置信息
+         */
+        private LexicalConfig lexical = new LexicalConfig();
+    }
+
+    @Data
+    public static class LexicalConfig {
+        /**
+         * 是否建立倒排索引并在代码补全时检索相关片段
+         */
+        private boolean enabled = true;
+
+        /**
+         * BM25 词频饱和参数
+         */
+        private double k1 = 1.2;
+
+        /**
+         * BM25 文档长度归一化参数
+         */
+        private double b = 0.75;
+
+        /**
+         * 分段数量超过这个值时合并
+         */
+        private int maxSegments = 16;
+
+        /**
+         * 已删除的文档比例超过这个值时合并
+         */
+        private double mergeDeletedRatio = 0.3;
+
+        /**
+         * 代码补全时检索的时间预算, 超过后不再等待, 不带检索结果请求上游
+         */
+        private Duration completionBudget = Duration.ofMillis(3);
+
+        /**
+         * 代码补全时最多加入的片段数量
+         */
+        private int completionTopK = 3;
+
+        /**
+         * 代码补全时加入的片段的最大 token 数量
+         */
+        private int completionMaxTokens = 512;
+
+        /**
+         * 从光标前多少个字符内提取查询的标识符
+         */
+        private int queryWindowBefore = 1500;
+
+        /**
+         * 从光标后多少个字符内提取查询的标识符
+         */
+        private int queryWindowAfter = 300;
+
+        /**
+         * 查询的最大词数, 优先保留离光标近的标识符
+         */
+        private int maxQueryTerms = 12;
+    }
+
+    @Data
+    public static class RateLimitConfig {
+        /**
+         * 识别用户的认证请求头, 按顺序取第一个不为空的值, 都为空时使用客户端地址
+         */
+        private List<String> keyHeaders = new ArrayList<>(List.of(HttpHeaders.AUTHORIZATION));
+
+        /**
+         * 认证请求头的值需要完整匹配的格式, 不匹配时按客户端地址限流
+         */
+        private String keyPattern = "(?:Bearer |Basic )?[\\w.~+/=:-]{16,512}";
+
+        /**
+         * 同一个客户端地址最多使用多少个不同的凭证, 超过后按地址限流. 受信任的代理转发的请求不限制
+         */
+        private int maxKeysPerAddress = 16;
+
+        /**
+         * 由受信任的代理设置的用户请求头, 只在请求来自 trustedProxies 时使用, 优先于 keyHeaders
+         */
+        private List<String> trustedKeyHeaders = new ArrayList<>(List.of("X-DevPilot-User"));
+
+        /**
+         * 受信任的代理地址或网段, 例如 10.0.0.0/8. 为空时不信任客户端设置的用户请求头.
+         * 部署在负载均衡之后时必须配置, 否则所有用户的客户端地址相同, 共享按地址限流的配额和凭证数量上限
+         */
+        private List<String> trustedProxies = new ArrayList<>();
+
+        /**
+         * 每个路由最多保存的用户数量
+         */
+        private long maxKeys = 50000;
+
+        /**
+         * 用户多久没有请求后淘汰, 应大于令牌桶恢复满所需的时间
+         */
+        private Duration expireAfterAccess = Duration.ofMinutes(10);
+    }
+
+    @Data
+    public static class UpstreamConfig {
+        /**
+         * 上游节点, 为空时使用 spring.ai.openai 的 base-url 和 api-key
+         */
+        private List<EndpointConfig> endpoints = new ArrayList<>();
+
+        /**
+         * 延迟 EWMA 的衰减时间
+         */
+        private Duration decayTime = Duration.ofSeconds(10);
+
+        /**
+         * 连续失败多少次后摘除节点
+         */
+        private int failureThreshold = 5;
+
+        /**
+         * 节点第一次被摘除的时间, 连续被摘除时翻倍
+         */
+        private Duration ejectionTime = Duration.ofSeconds(30);
+
+        /**
+         * 节点被摘除的最长时间
+         */
+        private Duration maxEjectionTime = Duration.ofMinutes(5);
+
+        /**
+         * 节点一个窗口内非流式请求的平均延迟超过其它节点中位数的多少倍时记为慢窗口, 不大于 0 时不按延迟摘除
+         */
+        private double slowRatio = 3.0;
+
+        /**
+         * 统计平均延迟的时间窗口
+         */
+        private Duration slowWindow = Duration.ofSeconds(10);
+
+        /**
+         * 窗口内至少有多少个非流式请求才参与比较
+         */
+        private int slowMinSamples = 10;
+
+        /**
+         * 连续多少个慢窗口后摘除节点
+         */
+        private int slowWindows = 3;
+
+        /**
+         * 最多同时摘除节点的百分比
+         */
+        private int maxEjectionPercent = 50;
+
+        /**
+         * 上游连接池和 HTTP 客户端配置
+         */
+        private HttpClientConfig http = new HttpClientConfig();
+
+        /**
+         * 每个节点上补全和其它短请求的自适应并发上限
+         */
+        private LimiterConfig limiter = new LimiterConfig();
+
+        /**
+         * 每个节点上对话流的自适应并发上限, 与补全请求分开计算, 对话流一直持有许可直到结束
+         */
+        private LimiterConfig chatLimiter = new LimiterConfig();
+
+        /**
+         * 每个节点的熔断器
+         */
+        private CircuitBreakerConfig circuitBreaker = new CircuitBreakerConfig();
+    }
+
+    @Data
+    public static class HttpClientConfig {
+        /**
+         * 每个上游地址的最大连接数
+         */
+        private int maxConnections = 200;
+
+        /**
+         * 等待获取连接的最大请求数
+         */
+        private int pendingAcquireMaxCount = 1000;
+
+        /**
+         * 等待获取连接的超时时间
+         */
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(2);
+
+        /**
+         * 连接的最大空闲时间, 应小于上游或者负载均衡的空闲超时
+         */
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+
+        /**
+         * 连接的最大存活时间, 定期重建连接以便感知上游的 DNS 变化
+         */
+        private Duration maxLifeTime = Duration.ofMinutes(10);
+
+        /**
+         * 后台清理过期连接的间隔, 为 0 时只在获取连接时清理
+         */
+        private Duration evictionInterval = Duration.ofSeconds(30);
+
+        /**
+         * 是否开启 TCP keep-alive
+         */
+        private boolean keepAlive = true;
+
+        /**
+         * 是否启用 HTTP/2, 上游不支持时通过 ALPN 协商回退到 HTTP/1.1
+         */
+        private boolean http2;
+
+        /**
+         * 建立连接的超时时间
+         */
+        private Duration connectTimeout = Duration.ofSeconds(1);
+
+        /**
+         * 等待响应数据的超时时间, 流式响应中两次读取之间也不能超过这个时间
+         */
+        private Duration responseTimeout = Duration.ofSeconds(60);
+
+        /**
+         * 启动时每个节点预先建立的连接数, 为 0 时不预热
+         */
+        private int prewarmConnections;
+
+        /**
+         * 预热请求的路径, 任意状态码都说明连接和 TLS 握手已经完成
+         */
+        private String prewarmPath = "/v1/models";
+
+        /**
+         * 预热的最长等待时间, 超时后不再等待, 不影响启动
+         */
+        private Duration prewarmTimeout = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class LimiterConfig {
+        /**
+         * 是否启用并发上限
+         */
+        private boolean enabled = true;
+
+        /**
+         * 初始并发上限
+         */
+        private int initialLimit = 50;
+
+        /**
+         * 并发上限的下限
+         */
+        private int minLimit = 8;
+
+        /**
+         * 并发上限的上限
+         */
+        private int maxLimit = 500;
+
+        /**
+         * 延迟容忍度, 短期延迟超过长期延迟的这个倍数时降低上限
+         */
+        private double tolerance = 1.5;
+
+        /**
+         * 每次调整上限的平滑系数
+         */
+        private double smoothing = 0.2;
+
+        /**
+         * 请求失败或超时时上限乘以的比例
+         */
+        private double backoffRatio = 0.9;
+    }
+
+    @Data
+    public static class CircuitBreakerConfig {
+        /**
+         * 是否启用熔断
+         */
+        private boolean enabled = true;
+
+        /**
+         * 统计失败率的最近请求数量
+         */
+        private int slidingWindowSize = 20;
+
+        /**
+         * 请求数量达到多少后才计算失败率
+         */
+        private int minimumCalls = 10;
+
+        /**
+         * 失败率达到多少百分比时熔断
+         */
+        private int failureRateThreshold = 50;
+
+        /**
+         * 熔断后拒绝请求的时间, 到期后放行探测请求
+         */
+        private Duration openTime = Duration.ofSeconds(10);
+
+        /**
+         * 半开状态放行的探测请求数量, 全部成功后恢复
+         */
+        private int halfOpenCalls = 3;
+    }
+
+    @Data
+    public static class EndpointConfig {
+        /**
+         * 节点名称
+         */
+        private String name;
+
+        /**
+         * 节点地址, 例如 https://api.openai.com
+         */
+        private String baseUrl;
+
+        /**
+         * 节点的 api key
+         */
+        private String apiKey;
+
+        /**
+         * 节点权重
+         */
+        private int weight = 1;
+
+        /**
+         * 节点的额外请求头
+         */
+        private Map<String, String> headers;
     }
 }
@@ -1,10 +1,37 @@
 package com.zhongan.devpilot.gateway.config;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zhongan.devpilot.gateway.completions.tokenizer.BpeEncoding;
+import com.zhongan.devpilot.gateway.completions.tokenizer.BpeTokenizer;
+import com.zhongan.devpilot.gateway.completions.tokenizer.CharRatioTokenCounter;
+import com.zhongan.devpilot.gateway.completions.tokenizer.TokenCounter;
+import com.zhongan.devpilot.gateway.upstream.CircuitBreaker;
+import com.zhongan.devpilot.gateway.upstream.ConcurrencyLimiter;
+import com.zhongan.devpilot.gateway.upstream.TrafficClass;
+import com.zhongan.devpilot.gateway.upstream.UpstreamEndpoint;
+import com.zhongan.devpilot.gateway.upstream.UpstreamPool;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import lombok.extern.slf4j.Slf4j;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
 import org.springframework.ai.autoconfigure.openai.OpenAiConnectionProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.client.RestClient;
 import org.springframework.web.reactive.function.client.WebClient;
 
@@ -13,6 +40,7 @@ import org.springframework.web.reactive.function.client.WebClient;
  *
  * @author Jerry.Chen
  */
+@Slf4j
 @EnableConfigurationProperties({AppCommonProperties.class, LlmPromptProperties.class})
 @Configuration
 public class CommonConfiguration {
@@ -22,23 +50,131 @@ public class CommonConfiguration {
     }
 
     /**
-     * Creates and configures a WebClient for interacting with the OpenAI API.
-     * This function sets the base URL and authentication headers using the provided properties.
+     * Creates the connection pool shared by all upstream endpoints.
+     * Connections are evicted before the upstream's idle timeout closes them, and recycled periodically to follow DNS changes.
      *
-     * @param webClientBuilder           The WebClient.Builder used to create the WebClient instance.
-     * @param openAiConnectionProperties The properties containing the base URL and API key for OpenAI.
-     * @return A configured instance of WebClient for OpenAI API calls.
+     * @param appCommonProperties The properties containing the upstream HTTP client settings.
+     * @return A connection provider.
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider upstreamConnectionProvider(AppCommonProperties appCommonProperties) {
+        AppCommonProperties.HttpClientConfig config = appCommonProperties.getUpstream().getHttp();
+        ConnectionProvider.Builder builder = ConnectionProvider.builder("devpilot-upstream")
+                .maxConnections(config.getMaxConnections())
+                .pendingAcquireMaxCount(config.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(config.getPendingAcquireTimeout())
+                .maxIdleTime(config.getMaxIdleTime())
+                .maxLifeTime(config.getMaxLifeTime());
+        if (!config.getEvictionInterval().isZero()) {
+            builder.evictInBackground(config.getEvictionInterval());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates the pool of OpenAI-compatible upstream endpoints used by code completion and chat.
+     * Each endpoint gets its own WebClient with the endpoint's base URL and credentials, all sharing one Reactor Netty client.
+     * When no endpoints are configured, a single endpoint is created from the OpenAI connection properties.
+     *
+     * @param webClientBuilder           The WebClient.Builder used to create the WebClient instances.
+     * @param connectionProvider         The connection pool shared by the endpoints.
+     * @param openAiConnectionProperties The properties containing the default base URL and API key for OpenAI.
+     * @param appCommonProperties        The properties containing the upstream endpoints, ejection, concurrency limit and circuit breaker settings.
+     * @param meterRegistry              The registry recording upstream latency and status codes.
+     * @return A pool of upstream endpoints.
      */
     @Bean
-    public WebClient openAiWebClient(WebClient.Builder webClientBuilder, OpenAiConnectionProperties openAiConnectionProperties) {
-        String baseUrl = openAiConnectionProperties.getBaseUrl();
-        String apiKey = openAiConnectionProperties.getApiKey();
-        return webClientBuilder
-                .baseUrl(baseUrl)
-                .defaultHeaders(headers -> {
-                    headers.setBearerAuth(apiKey);
-                    headers.setContentType(MediaType.APPLICATION_JSON);
-                })
-                .build();
+    public UpstreamPool upstreamPool(WebClient.Builder webClientBuilder, ConnectionProvider connectionProvider,
+                                     OpenAiConnectionProperties openAiConnectionProperties, AppCommonProperties appCommonProperties,
+                                     MeterRegistry meterRegistry) {
+        AppCommonProperties.UpstreamConfig config = appCommonProperties.getUpstream();
+        ReactorClientHttpConnector connector = new ReactorClientHttpConnector(upstreamHttpClient(connectionProvider, config.getHttp()));
+        List<AppCommonProperties.EndpointConfig> endpointConfigs = config.getEndpoints();
+        if (endpointConfigs.isEmpty()) {
+            AppCommonProperties.EndpointConfig defaultEndpoint = new AppCommonProperties.EndpointConfig();
+            defaultEndpoint.setName("default");
+            defaultEndpoint.setBaseUrl(openAiConnectionProperties.getBaseUrl());
+            defaultEndpoint.setApiKey(openAiConnectionProperties.getApiKey());
+            endpointConfigs = List.of(defaultEndpoint);
+        }
+        long decayNanos = config.getDecayTime().toNanos();
+        List<UpstreamEndpoint> endpoints = new ArrayList<>(endpointConfigs.size());
+        for (AppCommonProperties.EndpointConfig endpointConfig : endpointConfigs) {
+            WebClient webClient = webClientBuilder.clone()
+                    .clientConnector(connector)
+                    .baseUrl(endpointConfig.getBaseUrl())
+                    .defaultHeaders(headers -> {
+                        headers.setBearerAuth(endpointConfig.getApiKey());
+                        headers.setContentType(MediaType.APPLICATION_JSON);
+                        if (endpointConfig.getHeaders() != null) {
+                            endpointConfig.getHeaders().forEach(headers::add);
+                        }
+                    })
+                    .build();
+            String name = endpointConfig.getName() != null ? endpointConfig.getName() : endpointConfig.getBaseUrl();
+            // 每个流量类别使用独立的并发上限
+            Map<TrafficClass, ConcurrencyLimiter> limiters = new EnumMap<>(TrafficClass.class);
+            if (config.getLimiter().isEnabled()) {
+                limiters.put(TrafficClass.COMPLETION, new ConcurrencyLimiter(config.getLimiter()));
+            }
+            if (config.getChatLimiter().isEnabled()) {
+                limiters.put(TrafficClass.CHAT, new ConcurrencyLimiter(config.getChatLimiter()));
+            }
+            CircuitBreaker circuitBreaker = config.getCircuitBreaker().isEnabled() ? new CircuitBreaker(config.getCircuitBreaker()) : null;
+            endpoints.add(new UpstreamEndpoint(name, endpointConfig.getWeight(), webClient, decayNanos, limiters, circuitBreaker));
+        }
+        return new UpstreamPool(endpoints, config, meterRegistry);
+    }
+
+    private static HttpClient upstreamHttpClient(ConnectionProvider connectionProvider, AppCommonProperties.HttpClientConfig config) {
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) config.getConnectTimeout().toMillis())
+                .option(ChannelOption.SO_KEEPALIVE, config.isKeepAlive())
+                .responseTimeout(config.getResponseTimeout());
+        if (config.isHttp2()) {
+            // HTTPS upstreams negotiate the protocol via ALPN and fall back to HTTP/1.1
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+        }
+        return httpClient;
+    }
+
+    /**
+     * Creates the token counter shared by the gateway filters.
+     * The BPE vocabulary is loaded once at startup. A missing vocabulary fails startup unless it is configured as optional,
+     * in which case token counts are estimated by character class and the {@code devpilot.tokenizer.estimated} gauge is 1.
+     *
+     * @param appCommonProperties The properties containing the tokenizer encoding and vocabulary location.
+     * @param resourceLoader      The loader used to resolve the vocabulary location.
+     * @param meterRegistry       The registry for the tokenizer gauge.
+     * @return A token counter.
+     */
+    @Bean
+    public TokenCounter tokenCounter(AppCommonProperties appCommonProperties, ResourceLoader resourceLoader,
+                                     MeterRegistry meterRegistry) throws IOException {
+        AppCommonProperties.TokenizerConfig config = appCommonProperties.getTokenizer();
+        BpeEncoding encoding = BpeEncoding.of(config.getEncoding());
+        Resource vocabulary = resourceLoader.getResource(config.getVocabulary());
+        if (!vocabulary.exists()) {
+            if (config.isRequired()) {
+                throw new IllegalStateException("Tokenizer vocabulary not found: " + config.getVocabulary()
+                        + ", download it as described in BUILD_GATEWAY.md or set app-common.tokenizer.required to false");
+            }
+            log.error("Tokenizer vocabulary not found: {}, token counts are estimated", config.getVocabulary());
+            registerTokenizerGauge(meterRegistry, encoding, 1);
+            return new CharRatioTokenCounter();
+        }
+        try (InputStream inputStream = vocabulary.getInputStream()) {
+            BpeTokenizer tokenizer = BpeTokenizer.load(encoding, inputStream, config.getChunkCacheSize());
+            log.info("Tokenizer loaded: {}", encoding.getEncodingName());
+            registerTokenizerGauge(meterRegistry, encoding, 0);
+            return tokenizer;
+        }
+    }
+
+    private static void registerTokenizerGauge(MeterRegistry meterRegistry, BpeEncoding encoding, int estimated) {
+        Gauge.builder("devpilot.tokenizer.estimated", () -> estimated)
+                .description("Whether token counts are estimated because the BPE vocabulary is missing")
+                .tag("encoding", encoding.getEncodingName())
+                .register(meterRegistry);
     }
 }
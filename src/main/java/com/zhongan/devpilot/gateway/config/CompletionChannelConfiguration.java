@@ -0,0 +1,57 @@
+package com.zhongan.devpilot.gateway.config;
+
+import java.util.Map;
+
+import com.zhongan.devpilot.gateway.completions.channel.CompletionChannelHandler;
+import reactor.netty.http.server.WebsocketServerSpec;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+import org.springframework.web.reactive.socket.server.upgrade.ReactorNettyRequestUpgradeStrategy;
+
+/**
+ * WebSocket completion channel configuration
+ *
+ * <p>The channel is served by the same Netty server as the gateway routes, but is mapped before them so that
+ * completion messages skip route lookup and the request body filters.
+ */
+@Configuration
+public class CompletionChannelConfiguration implements WebFluxConfigurer {
+    private final AppCommonProperties.CompletionChannelConfig config;
+
+    public CompletionChannelConfiguration(AppCommonProperties appCommonProperties) {
+        this.config = appCommonProperties.getOpenAiCodeCompletion().getChannel();
+    }
+
+    /**
+     * Maps the completion channel path ahead of the gateway's route handler mapping.
+     *
+     * @param completionChannelHandler The WebSocket handler of the completion channel.
+     * @return A handler mapping, empty when the channel is disabled.
+     */
+    @Bean
+    public HandlerMapping completionChannelHandlerMapping(CompletionChannelHandler completionChannelHandler) {
+        Map<String, WebSocketHandler> urlMap = config.isEnabled() ? Map.of(config.getPath(), completionChannelHandler) : Map.of();
+        // RoutePredicateHandlerMapping uses order 1
+        return new SimpleUrlHandlerMapping(urlMap, -1);
+    }
+
+    /**
+     * Raises the frame size limit so that a message can carry a whole document.
+     * Fragmented messages are aggregated up to the same limit.
+     *
+     * @return The WebSocket service used by the WebFlux handler adapter.
+     */
+    @Override
+    public WebSocketService getWebSocketService() {
+        int maxFramePayloadLength = (int) Math.min(config.getMaxFrameSize().toBytes(), Integer.MAX_VALUE);
+        return new HandshakeWebSocketService(new ReactorNettyRequestUpgradeStrategy(
+                () -> WebsocketServerSpec.builder().maxFramePayloadLength(maxFramePayloadLength)));
+    }
+}
@@ -0,0 +1,71 @@
+package com.zhongan.devpilot.gateway.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zhongan.devpilot.gateway.utils.PromptTemplate;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 启动时编译的 explain command 提示词模板
+ * <p>
+ * 所有 {@code llm-prompt.explain-command} 下的模板在启动时编译, 缺少模型或者模板的配置会导致启动失败,
+ * 而不是在请求时才发现.
+ */
+@Slf4j
+@Component
+public class ExplainCommandPrompts {
+    private final Map<String, ExplainCommandPrompt> prompts;
+
+    public ExplainCommandPrompts(LlmPromptProperties llmPromptProperties) {
+        Map<String, LlmPromptProperties.PromptConfig> explainCommand = llmPromptProperties.getExplainCommand();
+        if (explainCommand == null || explainCommand.isEmpty()) {
+            throw new IllegalStateException("llm-prompt.explain-command is not configured");
+        }
+        Map<String, ExplainCommandPrompt> compiled = new HashMap<>(explainCommand.size() * 2);
+        explainCommand.forEach((name, promptConfig) -> {
+            if (promptConfig == null || StringUtils.isBlank(promptConfig.getPromptTemplate())) {
+                throw new IllegalStateException("llm-prompt.explain-command." + name + ".prompt-template is not configured");
+            }
+            if (StringUtils.isBlank(promptConfig.getModel())) {
+                throw new IllegalStateException("llm-prompt.explain-command." + name + ".model is not configured");
+            }
+            compiled.put(name, new ExplainCommandPrompt(promptConfig.getModel(), PromptTemplate.compile(promptConfig.getPromptTemplate())));
+        });
+        this.prompts = Map.copyOf(compiled);
+        log.info("compiled explain command prompts: {}", prompts.keySet());
+    }
+
+    /**
+     * 获取 explain command 的提示词模板
+     *
+     * @param commandType 命令类型
+     * @param version     提示词版本
+     * @return 提示词模板, 不存在时返回 null
+     */
+    public ExplainCommandPrompt get(String commandType, String version) {
+        if (commandType == null || version == null) {
+            return null;
+        }
+        return prompts.get(commandType.concat("_").concat(version));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class ExplainCommandPrompt {
+        /**
+         * 模型名称
+         */
+        private final String model;
+
+        /**
+         * 编译后的提示词模板
+         */
+        private final PromptTemplate template;
+    }
+}
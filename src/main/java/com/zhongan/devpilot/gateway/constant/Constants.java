@@ -7,4 +7,49 @@ public final class Constants {
 
     public static final String REQUEST_BODY = "requestBody";
 
+    /**
+     * 空的代码补全结果
+     */
+    public static final String EMPTY_CODE_MESSAGE = "{\"id\":\"-1\",\"role\":\"\",\"content\":\"\"}";
+
+    /**
+     * 编辑器会话标识请求头, 也可以通过请求体的 sessionId 字段传递
+     */
+    public static final String SESSION_ID_HEADER = "X-DevPilot-Session-Id";
+
+    /**
+     * 路由 metadata: 是否缓存请求体, 默认缓存
+     */
+    public static final String CAPTURE_BODY_METADATA = "capture-body";
+
+    /**
+     * 路由 metadata: 请求体最大字节数, 支持数字或者 DataSize 格式(例如 512KB)
+     */
+    public static final String MAX_BODY_SIZE_METADATA = "max-body-size";
+
+    /**
+     * exchange 属性: 请求发送给模型的提示词 token 数量
+     */
+    public static final String PROMPT_TOKENS = "promptTokens";
+
+    /**
+     * exchange 属性: 上游返回的生成 token 数量
+     */
+    public static final String COMPLETION_TOKENS = "completionTokens";
+
+    /**
+     * exchange 属性: 解释命令的命令类型, 对话(PURE_CHAT)请求没有这个属性
+     */
+    public static final String EXPLAIN_COMMAND = "explainCommand";
+
+    /**
+     * 流式代码补全的增量事件, 数据为只包含增量内容的 CodeMessage
+     */
+    public static final String STREAM_DELTA_EVENT = "delta";
+
+    /**
+     * 流式代码补全的结束事件, 数据为与非流式接口相同的完整 CodeMessage
+     */
+    public static final String STREAM_DONE_EVENT = "done";
+
 }
@@ -1,10 +1,24 @@
 package com.zhongan.devpilot.gateway.controller;
 
-import reactor.core.publisher.Flux;
+import java.util.List;
 
+import com.zhongan.devpilot.gateway.rag.RagService;
+import com.zhongan.devpilot.gateway.rag.dto.RagIndexStatus;
+import com.zhongan.devpilot.gateway.rag.dto.RagIngestRequest;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchRequest;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import reactor.core.publisher.Mono;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 /**
  * Retrieves embedding information for a specified Git repository.
@@ -14,6 +28,12 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/devpilot/v1/rag")
 @RestController
 public class RagV1Controller {
+    private final RagService ragService;
+
+    public RagV1Controller(RagService ragService) {
+        this.ragService = ragService;
+    }
+
     /**
      * Retrieves embedding information for a specified Git repository.
      *
@@ -21,8 +41,68 @@ public class RagV1Controller {
      * @return repository embedding status.
      */
     @RequestMapping("/git_repo/embedding_info/{repoName}")
-    public Flux<String> getEmbeddingInfo(@PathVariable String repoName) {
-        String result = "{\"repoName\": \"%s\", \"embedded\": false}".formatted(repoName);
-        return Flux.just(result);
+    public Mono<RagIndexStatus> getEmbeddingInfo(@PathVariable String repoName) {
+        return ragService.status(validate(repoName));
+    }
+
+    /**
+     * Adds, replaces or deletes code chunks of a Git repository.
+     * Only callers holding one of the configured ingest tokens may change an index.
+     *
+     * @param repoName      The name of the Git repository.
+     * @param authorization The bearer ingest token.
+     * @param request       The chunks of changed files and the deleted file paths.
+     * @return repository embedding status after the chunks are indexed.
+     */
+    @PostMapping("/git_repo/{repoName}/chunks")
+    public Mono<RagIndexStatus> ingest(@PathVariable String repoName,
+                                       @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                       @RequestBody RagIngestRequest request) {
+        if (!ragService.isIngestAuthorized(authorization)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "ingest is not allowed");
+        }
+        return ragService.ingest(validate(repoName), request);
+    }
+
+    /**
+     * Retrieves the ingest status of a Git repository.
+     *
+     * @param repoName The name of the Git repository.
+     * @return repository embedding status, including pending ingests and compaction.
+     */
+    @GetMapping("/git_repo/{repoName}/ingest_status")
+    public Mono<RagIndexStatus> getIngestStatus(@PathVariable String repoName) {
+        return ragService.status(validate(repoName));
+    }
+
+    /**
+     * Searches the code chunks most similar to the query.
+     *
+     * @param repoName The name of the Git repository.
+     * @param request  The query and the number of chunks to return.
+     * @return the most similar chunks, best first.
+     */
+    @PostMapping("/git_repo/{repoName}/search")
+    public Mono<List<RagSearchResult>> search(@PathVariable String repoName, @RequestBody RagSearchRequest request) {
+        return ragService.search(validate(repoName), request);
+    }
+
+    /**
+     * Searches the code chunks sharing the most identifiers with the query, ranked by BM25.
+     *
+     * @param repoName The name of the Git repository.
+     * @param request  The query and the number of chunks to return.
+     * @return the best matching chunks, best first.
+     */
+    @PostMapping("/git_repo/{repoName}/lexical_search")
+    public Mono<List<RagSearchResult>> lexicalSearch(@PathVariable String repoName, @RequestBody RagSearchRequest request) {
+        return ragService.lexicalSearch(validate(repoName), request);
+    }
+
+    private static String validate(String repoName) {
+        if (!RagService.isValidRepoName(repoName)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid repo name");
+        }
+        return repoName;
     }
 }
@@ -0,0 +1,135 @@
+package com.zhongan.devpilot.gateway.filter;
+
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import reactor.core.publisher.Mono;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+
+/**
+ * 缓存的请求体
+ * <p>
+ * 持有 {@link RequestEventRecordGlobalFilter} 合并后的 {@link DataBuffer}, 并在第一次读取时直接从 buffer 反序列化为目标类型,
+ * 之后的读取复用解析结果, 避免 {@code byte[] -> String -> Map} 的多次拷贝.
+ */
+public class CachedRequestBody {
+    private final DataBuffer dataBuffer;
+
+    private JavaType valueType;
+
+    private Object value;
+
+    public CachedRequestBody(DataBuffer dataBuffer) {
+        this.dataBuffer = dataBuffer;
+    }
+
+    /**
+     * 使用已经构造好的请求对象创建请求体, 下游按相同类型读取时直接返回该对象, 不需要序列化再反序列化
+     *
+     * @param value 请求体对象
+     * @return 请求体
+     */
+    public static CachedRequestBody of(Object value) {
+        CachedRequestBody body = new CachedRequestBody(DefaultDataBufferFactory.sharedInstance.wrap(new byte[0]));
+        body.value = value;
+        body.valueType = TypeFactory.defaultInstance().constructType(value.getClass());
+        return body;
+    }
+
+    /**
+     * 将请求体反序列化为指定类型, 相同类型只解析一次
+     *
+     * @param jacksonMapper Jackson Mapper
+     * @param clazz         目标类型
+     * @param <T>           泛型
+     * @return 请求体对象, 请求体为空时返回 null
+     */
+    public <T> T as(JacksonMapper jacksonMapper, Class<T> clazz) {
+        return as(jacksonMapper, jacksonMapper.getMapper().constructType(clazz));
+    }
+
+    /**
+     * 将请求体反序列化为指定类型, 相同类型只解析一次
+     *
+     * @param jacksonMapper Jackson Mapper
+     * @param typeReference 目标类型
+     * @param <T>           泛型
+     * @return 请求体对象, 请求体为空时返回 null
+     */
+    public <T> T as(JacksonMapper jacksonMapper, TypeReference<T> typeReference) {
+        return as(jacksonMapper, jacksonMapper.getMapper().constructType(typeReference));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T as(JacksonMapper jacksonMapper, JavaType javaType) {
+        if (value != null && javaType.equals(valueType)) {
+            return (T) value;
+        }
+        if (dataBuffer.readableByteCount() == 0) {
+            return null;
+        }
+        // 解析会移动读指针, 解析完成后还原, 以便日志等场景仍能读取原始内容
+        int readPosition = dataBuffer.readPosition();
+        try {
+            value = jacksonMapper.fromJson(dataBuffer.asInputStream(), javaType);
+            valueType = javaType;
+        } finally {
+            dataBuffer.readPosition(readPosition);
+        }
+        return (T) value;
+    }
+
+    /**
+     * @return 请求体字节数
+     */
+    public int size() {
+        return dataBuffer.readableByteCount();
+    }
+
+    /**
+     * 复制请求体的原始字节, 不移动读指针. 用于在请求结束、buffer 释放后继续使用请求体
+     *
+     * @return 请求体字节
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[dataBuffer.readableByteCount()];
+        int readPosition = dataBuffer.readPosition();
+        dataBuffer.read(bytes);
+        dataBuffer.readPosition(readPosition);
+        return bytes;
+    }
+
+    /**
+     * 请求体为空或者没有缓存请求体时返回 400, 过滤器不再继续处理
+     *
+     * @param response 响应
+     * @return 写入响应
+     */
+    public static Mono<Void> emptyBody(ServerHttpResponse response) {
+        response.setStatusCode(HttpStatus.BAD_REQUEST);
+        return response.writeWith(Mono.just(response.bufferFactory().wrap("request body is empty".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * 释放持有的 buffer
+     */
+    public void release() {
+        DataBufferUtils.release(dataBuffer);
+    }
+
+    @Override
+    public String toString() {
+        if (dataBuffer.readableByteCount() == 0 && value != null) {
+            return value.toString();
+        }
+        return dataBuffer.toString(dataBuffer.readPosition(), dataBuffer.readableByteCount(), StandardCharsets.UTF_8);
+    }
+}
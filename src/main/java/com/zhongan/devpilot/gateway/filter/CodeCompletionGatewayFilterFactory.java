@@ -1,11 +1,18 @@
 package com.zhongan.devpilot.gateway.filter;
 
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.zhongan.devpilot.gateway.completions.context.ContextWindow;
 import com.zhongan.devpilot.gateway.completions.context.DocumentContext;
+import com.zhongan.devpilot.gateway.completions.document.DocumentStore;
+import com.zhongan.devpilot.gateway.completions.document.DocumentVersionException;
 import com.zhongan.devpilot.gateway.completions.providers.Provider;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeCompletionRequest;
+import com.zhongan.devpilot.gateway.completions.session.CompletionSessionRegistry;
+import com.zhongan.devpilot.gateway.completions.tokenizer.TokenCounter;
+import com.zhongan.devpilot.gateway.ratelimit.UserKeyResolver;
 import com.zhongan.devpilot.gateway.utils.JacksonMapper;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -14,16 +21,22 @@ import reactor.core.publisher.Mono;
 
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
 import org.springframework.core.Ordered;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
 
+import static com.zhongan.devpilot.gateway.constant.Constants.EMPTY_CODE_MESSAGE;
+import static com.zhongan.devpilot.gateway.constant.Constants.PROMPT_TOKENS;
 import static com.zhongan.devpilot.gateway.constant.Constants.REQUEST_BODY;
+import static com.zhongan.devpilot.gateway.constant.Constants.SESSION_ID_HEADER;
 
 /**
  * 代码补全过滤器
@@ -35,15 +48,33 @@ import static com.zhongan.devpilot.gateway.constant.Constants.REQUEST_BODY;
 public class CodeCompletionGatewayFilterFactory extends AbstractGatewayFilterFactory<CodeCompletionGatewayFilterFactory.Config> implements Ordered {
     private final JacksonMapper jacksonMapper;
     private final Map<String, Provider> providerMap;
+    private final CompletionSessionRegistry completionSessionRegistry;
+    private final TokenCounter tokenCounter;
+    private final DocumentStore documentStore;
+    private final UserKeyResolver userKeyResolver;
+    /**
+     * 每个路由的补全提供者和上下文窗口, WebSocket 补全通道按路由标识共用, 路由刷新时替换
+     */
+    private final Map<String, CompletionRoute> routes = new ConcurrentHashMap<>();
 
-    public CodeCompletionGatewayFilterFactory(Map<String, Provider> providerMap) {
+    public CodeCompletionGatewayFilterFactory(Map<String, Provider> providerMap, CompletionSessionRegistry completionSessionRegistry,
+                                              TokenCounter tokenCounter, DocumentStore documentStore, UserKeyResolver userKeyResolver) {
         super(CodeCompletionGatewayFilterFactory.Config.class);
-        this.jacksonMapper = JacksonMapper.nonDefaultMapper();
+        this.jacksonMapper = JacksonMapper.sharedMapper();
         this.providerMap = providerMap;
+        this.completionSessionRegistry = completionSessionRegistry;
+        this.tokenCounter = tokenCounter;
+        this.documentStore = documentStore;
+        this.userKeyResolver = userKeyResolver;
     }
 
     @Override
     public GatewayFilter apply(Config config) {
+        ContextWindow contextWindow = new ContextWindow(tokenCounter, config.getMaxContextTokens(), config.getPrefixRatio(),
+                config.isPreserveHeader(), config.getMaxHeaderTokens());
+        if (config.getRouteId() != null) {
+            routes.put(config.getRouteId(), new CompletionRoute(providerMap.get(config.getDefaultProviderName()), contextWindow));
+        }
         return (exchange, chain) -> {
             ServerHttpRequest request = exchange.getRequest();
             HttpHeaders headers = request.getHeaders();
@@ -52,18 +83,41 @@ public class CodeCompletionGatewayFilterFactory extends AbstractGatewayFilterFac
             // 检查请求的Content-Type是否为JSON类型
             if (contentType != null && MediaType.APPLICATION_JSON.isCompatibleWith(contentType)) {
                 // 获取请求的body
-                String requestBody = exchange.getAttribute(REQUEST_BODY);
-                log.info("requestBody: {}", requestBody);
-                LinkedHashMap<String, Object> jsonObject = jacksonMapper.fromJson(requestBody, JacksonMapper.LINKED_HASH_MAP_S2O_TYPE_REFERENCE);
-                String document = (String) jsonObject.get("document");
-                Object positionValue = jsonObject.get("position");
-                Integer position = positionValue instanceof Number ? ((Number) positionValue).intValue() : Integer.parseInt((String) positionValue);
-                String filePath = (String) jsonObject.get("filePath");
-                String completionType = (String) jsonObject.get("completionType");
+                CachedRequestBody requestBody = exchange.getAttribute(REQUEST_BODY);
+                log.debug("requestBody: {}", requestBody);
+                CodeCompletionRequest completionRequest = requestBody == null ? null : requestBody.as(jacksonMapper, CodeCompletionRequest.class);
+                if (completionRequest == null) {
+                    return CachedRequestBody.emptyBody(exchange.getResponse());
+                }
+                String filePath = completionRequest.getFilePath();
+                String sessionId = headers.getFirst(SESSION_ID_HEADER);
+                if (sessionId == null) {
+                    sessionId = completionRequest.getSessionId();
+                }
+                // 保存的文档按用户隔离, 会话标识由客户端提供, 不能单独作为访问凭证
+                String userKey = userKeyResolver.resolve(headers, request.getRemoteAddress());
+                String document;
+                try {
+                    document = documentStore.resolve(completionRequest, userKey, sessionId);
+                } catch (DocumentVersionException e) {
+                    return resync(exchange.getResponse(), e);
+                }
                 Provider provider = providerMap.get(config.getDefaultProviderName());
-                DocumentContext documentContext = DocumentContext.build(document, filePath, position, completionType);
-                Mono<String> completions = provider.generateCompletions(documentContext);
+                // 按 token 预算只保留光标附近的代码, 上游耗时与文件大小无关
+                DocumentContext documentContext = DocumentContext.build(completionRequest, document, contextWindow);
+                exchange.getAttributes().put(PROMPT_TOKENS, tokenCounter.count(documentContext.getPrefix()) + tokenCounter.count(documentContext.getSuffix()));
+                // 同一会话同一文件上的新请求会取消进行中的旧请求; 客户端断开连接时取消信号同样会传递到上游调用
                 ServerHttpResponse response = exchange.getResponse();
+                if (acceptsEventStream(headers)) {
+                    // 支持 SSE 的客户端: 逐步返回补全的代码, 最后返回完整结果
+                    Flux<ServerSentEvent<String>> events = completionSessionRegistry.supersedable(userKey, sessionId, filePath,
+                            provider.streamCompletions(documentContext));
+                    response.getHeaders().setContentType(MediaType.TEXT_EVENT_STREAM);
+                    DataBufferFactory bufferFactory = response.bufferFactory();
+                    return response.writeAndFlushWith(events.map(event -> Mono.just(encodeEvent(bufferFactory, event))));
+                }
+                Mono<String> completions = completionSessionRegistry.supersedable(userKey, sessionId, filePath,
+                        provider.generateCompletions(documentContext), EMPTY_CODE_MESSAGE);
                 // 将 completions 写入到 response 中
                 return completions.flatMap(completion -> {
                     log.info("filterCompletion: {}", completion);
@@ -79,16 +133,90 @@ public class CodeCompletionGatewayFilterFactory extends AbstractGatewayFilterFac
         };
     }
 
+    /**
+     * 返回 409, 客户端重新发送完整文档
+     */
+    private Mono<Void> resync(ServerHttpResponse response, DocumentVersionException e) {
+        log.info("DocumentResync: current version: {}", e.getCurrentVersion());
+        response.setStatusCode(HttpStatus.CONFLICT);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        String body = "{\"resync\":true,\"version\":" + e.getCurrentVersion() + "}";
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(body.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static boolean acceptsEventStream(HttpHeaders headers) {
+        for (MediaType mediaType : headers.getAccept()) {
+            if (MediaType.TEXT_EVENT_STREAM.equalsTypeAndSubtype(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 补全结果是单行 JSON, 不需要按行拆分 data 字段
+     */
+    private static DataBuffer encodeEvent(DataBufferFactory bufferFactory, ServerSentEvent<String> event) {
+        StringBuilder sb = new StringBuilder(event.data().length() + 32);
+        if (event.event() != null) {
+            sb.append("event:").append(event.event()).append('\n');
+        }
+        sb.append("data:").append(event.data()).append("\n\n");
+        return bufferFactory.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param routeId 路由标识
+     * @return 路由的补全提供者和上下文窗口, 路由没有配置代码补全或者还没有加载时为 null
+     */
+    public CompletionRoute getRoute(String routeId) {
+        return routes.get(routeId);
+    }
+
     @Override
     public int getOrder() {
         return 10;
     }
 
+    /**
+     * 路由的补全配置
+     *
+     * @param provider      代码补全提供者
+     * @param contextWindow 上下文窗口
+     */
+    public record CompletionRoute(Provider provider, ContextWindow contextWindow) {
+    }
+
     @Data
-    public static class Config {
+    public static class Config implements HasRouteId {
+        /**
+         * 路由标识, 由网关在加载路由时设置
+         */
+        private String routeId;
+
         /**
          * 默认的代码补全提供者名称
          */
         private String defaultProviderName;
+
+        /**
+         * 光标前后代码的 token 预算, 不大于 0 时发送整个文档
+         */
+        private int maxContextTokens = 4096;
+
+        /**
+         * 分配给光标前代码的预算比例
+         */
+        private double prefixRatio = 0.75;
+
+        /**
+         * 是否保留文件头部的 package、import 等声明
+         */
+        private boolean preserveHeader = true;
+
+        /**
+         * 文件头部的 token 上限, 超过时不保留文件头部
+         */
+        private int maxHeaderTokens = 512;
     }
 }
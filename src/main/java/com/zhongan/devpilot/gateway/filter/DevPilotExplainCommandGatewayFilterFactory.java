@@ -3,20 +3,20 @@ package com.zhongan.devpilot.gateway.filter;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.zhongan.devpilot.gateway.completions.providers.dto.DevPilotChatCompletionRequest;
 import com.zhongan.devpilot.gateway.completions.providers.dto.DevPilotMessage;
-import com.zhongan.devpilot.gateway.config.LlmPromptProperties;
+import com.zhongan.devpilot.gateway.completions.providers.dto.ExplainCommandRequest;
+import com.zhongan.devpilot.gateway.config.ExplainCommandPrompts;
 import com.zhongan.devpilot.gateway.enums.AnswerLanguage;
 import com.zhongan.devpilot.gateway.utils.JacksonMapper;
-import com.zhongan.devpilot.gateway.utils.PromptTemplate;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.OrderedGatewayFilter;
@@ -31,7 +31,9 @@ import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
 import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
 
+import static com.zhongan.devpilot.gateway.constant.Constants.EXPLAIN_COMMAND;
 import static com.zhongan.devpilot.gateway.constant.Constants.REQUEST_BODY;
 
 /**
@@ -43,14 +45,14 @@ import static com.zhongan.devpilot.gateway.constant.Constants.REQUEST_BODY;
 @Component
 public class DevPilotExplainCommandGatewayFilterFactory extends AbstractGatewayFilterFactory<DevPilotExplainCommandGatewayFilterFactory.Config> implements Ordered {
 
-    private final LlmPromptProperties llmPromptProperties;
+    private final ExplainCommandPrompts explainCommandPrompts;
 
     private final JacksonMapper jacksonMapper;
 
-    public DevPilotExplainCommandGatewayFilterFactory(LlmPromptProperties llmPromptProperties) {
+    public DevPilotExplainCommandGatewayFilterFactory(ExplainCommandPrompts explainCommandPrompts) {
         super(Config.class);
-        this.llmPromptProperties = llmPromptProperties;
-        this.jacksonMapper = JacksonMapper.nonDefaultMapper();
+        this.explainCommandPrompts = explainCommandPrompts;
+        this.jacksonMapper = JacksonMapper.sharedMapper();
     }
 
     @Override
@@ -60,48 +62,39 @@ public class DevPilotExplainCommandGatewayFilterFactory extends AbstractGatewayF
             HttpHeaders headers = request.getHeaders();
             MediaType contentType = headers.getContentType();
             if (contentType != null && MediaType.APPLICATION_JSON.isCompatibleWith(contentType)) {
-                String bodyString = exchange.getAttribute(REQUEST_BODY);
-                log.debug("request body: {}", bodyString);
-                LinkedHashMap<String, Object> jsonObject = jacksonMapper.fromJson(bodyString, JacksonMapper.LINKED_HASH_MAP_S2O_TYPE_REFERENCE);
-                boolean stream = (boolean) jsonObject.get("stream");
-                String version = (String) jsonObject.get("version");
-                List messages = (List) jsonObject.get("messages");
-                if (StringUtils.isBlank(version)) {
+                CachedRequestBody requestBody = exchange.getAttribute(REQUEST_BODY);
+                log.debug("request body: {}", requestBody);
+                ExplainCommandRequest explainCommandRequest = requestBody == null ? null : requestBody.as(jacksonMapper, ExplainCommandRequest.class);
+                if (explainCommandRequest == null) {
+                    return CachedRequestBody.emptyBody(exchange.getResponse());
+                }
+                String version = explainCommandRequest.getVersion();
+                List<ExplainCommandRequest.Message> messages = explainCommandRequest.getMessages();
+                if (StringUtils.isBlank(version) || messages == null) {
                     return chain.filter(exchange);
                 }
-                Map<String, LlmPromptProperties.PromptConfig> explainCommandPrompt = llmPromptProperties.getExplainCommand();
-                List<DevPilotMessage> devPilotMessages = new ArrayList<>();
+                List<DevPilotMessage> devPilotMessages = new ArrayList<>(messages.size() + 1);
                 String model = "gpt-3.5-turbo";
-                for (Object msgObj : messages) {
-                    Map msg = (Map) msgObj;
-                    String commandType = (String) msg.get("commandType");
-                    String role = (String) msg.get("role");
-                    String chatMsg = (String) msg.get("content");
-                    Map<String, Object> replace = (Map) msg.get("promptData");
+                for (ExplainCommandRequest.Message msg : messages) {
+                    String commandType = msg.getCommandType();
+                    String role = msg.getRole();
+                    String chatMsg = msg.getContent();
+                    Map<String, Object> replace = msg.getPromptData();
                     if (replace != null && !replace.isEmpty()) {
-                        if (StringUtils.isBlank(commandType) || explainCommandPrompt.get(commandType.concat("_").concat(version)) == null) {
-                            log.error("CommandPrompt is null, commandType: {}", commandType);
-                            ServerHttpResponse response = exchange.getResponse();
-                            response.setStatusCode(HttpStatus.BAD_REQUEST);
-                            return response.writeWith(Flux.just(response.bufferFactory().wrap("undefined prompt".getBytes(StandardCharsets.UTF_8))));
-                        }
-                        LlmPromptProperties.PromptConfig promptConfig = explainCommandPrompt.get(commandType.concat("_").concat(version));
-                        String promptTemplate = promptConfig.getPromptTemplate();
-                        String commandPrompt;
-                        model = promptConfig.getModel();
-                        PromptTemplate pTemplate = PromptTemplate.of(promptTemplate);
-                        for (Map.Entry entry : replace.entrySet()) {
-                            pTemplate.setVariable(entry.getKey().toString(), entry.getValue().toString());
+                        ExplainCommandPrompts.ExplainCommandPrompt commandPromptConfig = explainCommandPrompts.get(commandType, version);
+                        if (commandPromptConfig == null) {
+                            return undefinedPrompt(exchange, commandType);
                         }
-
+                        model = commandPromptConfig.getModel();
+                        String answerLangPrompt = null;
                         if (replace.containsKey("answerLanguage")) {
-                            String languageCode = replace.get("answerLanguage").toString();
-                            String answerLangPrompt = AnswerLanguage.getAnswerLangPromptByCode(languageCode);
-                            if (StringUtils.isNotBlank(answerLangPrompt)) {
-                                pTemplate.appendLast(answerLangPrompt);
+                            String languageCode = String.valueOf(replace.get("answerLanguage"));
+                            String langPrompt = AnswerLanguage.getAnswerLangPromptByCode(languageCode);
+                            if (StringUtils.isNotBlank(langPrompt)) {
+                                answerLangPrompt = langPrompt;
                             }
                         }
-                        commandPrompt = pTemplate.getPrompt();
+                        String commandPrompt = commandPromptConfig.getTemplate().render(replace, answerLangPrompt);
                         log.debug("CommandPrompt: {}", commandPrompt);
                         DevPilotMessage devPilotMessage = new DevPilotMessage();
                         devPilotMessage.setContent(commandPrompt);
@@ -109,9 +102,12 @@ public class DevPilotExplainCommandGatewayFilterFactory extends AbstractGatewayF
                         devPilotMessages.add(devPilotMessage);
                     } else if ("user".equals(role)) {
                         if (!"PURE_CHAT".equals(commandType)) {
+                            ExplainCommandPrompts.ExplainCommandPrompt commandPromptConfig = explainCommandPrompts.get(commandType, version);
+                            if (commandPromptConfig == null) {
+                                return undefinedPrompt(exchange, commandType);
+                            }
                             DevPilotMessage promptMsg = new DevPilotMessage();
-                            LlmPromptProperties.PromptConfig promptConfig = explainCommandPrompt.get(commandType.concat("_").concat(version));
-                            promptMsg.setContent(promptConfig.getPromptTemplate());
+                            promptMsg.setContent(commandPromptConfig.getTemplate().getSource());
                             promptMsg.setRole("user");
                             devPilotMessages.add(promptMsg);
                         }
@@ -128,14 +124,15 @@ public class DevPilotExplainCommandGatewayFilterFactory extends AbstractGatewayF
                 }
                 DevPilotChatCompletionRequest devPilotChatCompletionRequest = new DevPilotChatCompletionRequest();
                 devPilotChatCompletionRequest.setModel(model);
-                devPilotChatCompletionRequest.setStream(stream);
+                devPilotChatCompletionRequest.setStream(explainCommandRequest.isStream());
                 devPilotChatCompletionRequest.setMessages(devPilotMessages);
-                byte[] bytes = jacksonMapper.toJson(devPilotChatCompletionRequest).getBytes(StandardCharsets.UTF_8);
-                DataBuffer newDataBuffer = new DefaultDataBufferFactory().wrap(bytes);
-                Flux<DataBuffer> flux = Flux.just(newDataBuffer);
+                // 下游直接使用构造好的请求对象, 只有在需要转发原始请求时才序列化
+                Flux<DataBuffer> flux = Flux.defer(() -> Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(
+                        jacksonMapper.toJson(devPilotChatCompletionRequest).getBytes(StandardCharsets.UTF_8))));
                 HttpHeaders newHeaders = new HttpHeaders();
                 newHeaders.putAll(exchange.getRequest().getHeaders());
-                newHeaders.setContentLength(bytes.length);
+                newHeaders.remove(HttpHeaders.CONTENT_LENGTH);
+                newHeaders.set(HttpHeaders.TRANSFER_ENCODING, "chunked");
                 ServerHttpRequestDecorator newRequest = new ServerHttpRequestDecorator(request) {
                     @Override
                     public Flux<DataBuffer> getBody() {
@@ -147,7 +144,12 @@ public class DevPilotExplainCommandGatewayFilterFactory extends AbstractGatewayF
                         return newHeaders;
                     }
                 };
-                exchange.getAttributes().put(REQUEST_BODY, new String(bytes, StandardCharsets.UTF_8));
+                exchange.getAttributes().put(REQUEST_BODY, CachedRequestBody.of(devPilotChatCompletionRequest));
+                // 最后一条消息的命令类型决定这次请求是否为解释命令, 用于响应缓存
+                String lastCommand = messages.isEmpty() ? null : messages.get(messages.size() - 1).getCommandType();
+                if (StringUtils.isNotBlank(lastCommand) && !"PURE_CHAT".equals(lastCommand)) {
+                    exchange.getAttributes().put(EXPLAIN_COMMAND, lastCommand);
+                }
                 return chain.filter(exchange.mutate().request(newRequest).build());
 
             } else {
@@ -156,6 +158,13 @@ public class DevPilotExplainCommandGatewayFilterFactory extends AbstractGatewayF
         }, getOrder());
     }
 
+    private Mono<Void> undefinedPrompt(ServerWebExchange exchange, String commandType) {
+        log.error("CommandPrompt is null, commandType: {}", commandType);
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.BAD_REQUEST);
+        return response.writeWith(Flux.just(response.bufferFactory().wrap("undefined prompt".getBytes(StandardCharsets.UTF_8))));
+    }
+
     @Override
     public int getOrder() {
         return 2;
@@ -2,13 +2,15 @@ package com.zhongan.devpilot.gateway.filter;
 
 import java.nio.charset.StandardCharsets;
 
+import com.zhongan.devpilot.gateway.message.MessagePipeline;
+import lombok.Data;
+import org.apache.commons.lang3.StringUtils;
 import reactor.core.publisher.Flux;
 
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
 import org.springframework.core.io.buffer.DataBuffer;
-import org.springframework.core.io.buffer.DefaultDataBuffer;
-import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
 import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
 
@@ -16,35 +18,46 @@ import static com.zhongan.devpilot.gateway.constant.Constants.REQUEST_BODY;
 
 /**
  * Message metrics Gateway Filter Factory
+ * <p>
+ * 将 IDE 上报的会话消息和补全消息交给 {@link MessagePipeline} 异步写入, 不等待写入结果, 立即返回成功.
  *
  * @author Jerry.Chen
  */
 @Component
 public class MessageMetricsGatewayFilterFactory extends AbstractGatewayFilterFactory<MessageMetricsGatewayFilterFactory.Config> {
+    private static final byte[] SUCCESS = "{\"success\":true,\"code\":\"200\",\"message\":\"成功\"}".getBytes(StandardCharsets.UTF_8);
 
-    public MessageMetricsGatewayFilterFactory() {
+    private final MessagePipeline messagePipeline;
+
+    public MessageMetricsGatewayFilterFactory(MessagePipeline messagePipeline) {
         super(Config.class);
+        this.messagePipeline = messagePipeline;
     }
 
     @Override
     public GatewayFilter apply(Config config) {
         return (exchange, chain) -> {
-            ServerHttpResponse response = exchange.getResponse();
-            String requestBody = exchange.getAttribute(REQUEST_BODY);
+            CachedRequestBody requestBody = exchange.getAttribute(REQUEST_BODY);
+            if (requestBody != null && requestBody.size() > 0) {
+                String path = exchange.getRequest().getPath().value();
+                String type = path.contains("conversation-messages") ? "conversation" : "completion";
+                String user = exchange.getRequest().getHeaders().getFirst(config.getUserHeader());
+                // 请求体 buffer 在请求结束后释放, 写入线程使用复制的字节
+                messagePipeline.submit(type, StringUtils.isBlank(user) ? "anonymous" : user, requestBody.toByteArray());
+            }
 
-            // 转发请求到OpenAI并处理响应
-            Flux<DataBuffer> dataBufferFlux = Flux.just("{\"success\":true,\"code\":\"200\",\"message\":\"成功\"}").flatMap(s -> {
-                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
-                DefaultDataBuffer dataBuffer = new DefaultDataBufferFactory().wrap(bytes);
-                return Flux.just(dataBuffer);
-            });
-
-            // 直接使用writeWith方法将Flux<DataBuffer>写入响应
-            return response.writeWith(dataBufferFlux);
+            ServerHttpResponse response = exchange.getResponse();
+            response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+            DataBuffer dataBuffer = response.bufferFactory().wrap(SUCCESS);
+            return response.writeWith(Flux.just(dataBuffer));
         };
     }
 
+    @Data
     public static class Config {
-        // 这里可以添加你的自定义配置参数
+        /**
+         * 识别上报用户的请求头
+         */
+        private String userHeader = "X-DevPilot-User";
     }
 }
@@ -1,9 +1,28 @@
 package com.zhongan.devpilot.gateway.filter;
 
-import java.util.LinkedHashMap;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.zhongan.devpilot.gateway.completions.cache.CompletionKey;
+import com.zhongan.devpilot.gateway.completions.cache.ResponseCache;
+import com.zhongan.devpilot.gateway.completions.providers.dto.DevPilotChatCompletionRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.DevPilotMessage;
+import com.zhongan.devpilot.gateway.completions.stream.ChatStreamObserver;
+import com.zhongan.devpilot.gateway.completions.tokenizer.TokenCounter;
+import com.zhongan.devpilot.gateway.metrics.GatewayMetrics;
+import com.zhongan.devpilot.gateway.upstream.TrafficClass;
+import com.zhongan.devpilot.gateway.upstream.UpstreamPool;
+import com.zhongan.devpilot.gateway.upstream.UpstreamRejectedException;
 import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import org.springframework.ai.autoconfigure.openai.OpenAiChatProperties;
 import org.springframework.ai.openai.OpenAiChatOptions;
@@ -11,68 +30,263 @@ import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
-import org.springframework.web.reactive.function.client.WebClient;
 
+import static com.zhongan.devpilot.gateway.constant.Constants.COMPLETION_TOKENS;
+import static com.zhongan.devpilot.gateway.constant.Constants.EXPLAIN_COMMAND;
+import static com.zhongan.devpilot.gateway.constant.Constants.PROMPT_TOKENS;
 import static com.zhongan.devpilot.gateway.constant.Constants.REQUEST_BODY;
+import static com.zhongan.devpilot.gateway.metrics.GatewayMetrics.CHAT;
 
 /**
  * OpenAi Chat Gateway Filter Factory
  *
  * @author Jerry.Chen
  */
+@Slf4j
 @Component
 public class OpenAiChatGatewayFilterFactory extends AbstractGatewayFilterFactory<OpenAiChatGatewayFilterFactory.Config> {
-    private final WebClient webClient;
+    /**
+     * 每条消息的格式开销, 与 OpenAI 的计算方式一致
+     */
+    private static final int TOKENS_PER_MESSAGE = 4;
+
+    /**
+     * 回复的起始开销
+     */
+    private static final int TOKENS_PER_REPLY = 3;
+
+    private final UpstreamPool upstreamPool;
     private final JacksonMapper jacksonMapper;
     private final OpenAiChatProperties openAiChatProperties;
+    private final TokenCounter tokenCounter;
+    private final GatewayMetrics gatewayMetrics;
+    private final ResponseCache responseCache;
 
-    public OpenAiChatGatewayFilterFactory(WebClient openAiWebClient, OpenAiChatProperties openAiChatProperties) {
+    public OpenAiChatGatewayFilterFactory(UpstreamPool upstreamPool, OpenAiChatProperties openAiChatProperties, TokenCounter tokenCounter,
+                                          GatewayMetrics gatewayMetrics, ResponseCache responseCache) {
         super(Config.class);
-        this.webClient = openAiWebClient;
-        this.jacksonMapper = JacksonMapper.nonDefaultMapper();
+        this.upstreamPool = upstreamPool;
+        this.jacksonMapper = JacksonMapper.sharedMapper();
         this.openAiChatProperties = openAiChatProperties;
+        this.tokenCounter = tokenCounter;
+        this.gatewayMetrics = gatewayMetrics;
+        this.responseCache = responseCache;
     }
 
     @Override
     public GatewayFilter apply(Config config) {
         return (exchange, chain) -> {
             ServerHttpResponse response = exchange.getResponse();
-            String requestBody = exchange.getAttribute(REQUEST_BODY);
-            LinkedHashMap<String, Object> chatCompletionRequest = jacksonMapper.fromJson(requestBody, JacksonMapper.LINKED_HASH_MAP_S2O_TYPE_REFERENCE);
+            CachedRequestBody requestBody = exchange.getAttribute(REQUEST_BODY);
+            DevPilotChatCompletionRequest chatCompletionRequest = requestBody == null ? null : requestBody.as(jacksonMapper, DevPilotChatCompletionRequest.class);
+            if (chatCompletionRequest == null) {
+                return CachedRequestBody.emptyBody(response);
+            }
             OpenAiChatOptions aiChatOptions = openAiChatProperties.getOptions();
-            chatCompletionRequest.put("model", aiChatOptions.getModel());
+            chatCompletionRequest.setModel(aiChatOptions.getModel());
             if (aiChatOptions.getMaxTokens() != null) {
-                chatCompletionRequest.put("max_tokens", aiChatOptions.getMaxTokens());
+                chatCompletionRequest.setMaxTokens(aiChatOptions.getMaxTokens());
             }
             if (aiChatOptions.getTemperature() != null) {
-                chatCompletionRequest.put("temperature", aiChatOptions.getTemperature());
+                chatCompletionRequest.setTemperature(toDouble(aiChatOptions.getTemperature()));
             }
             if (aiChatOptions.getTopP() != null) {
-                chatCompletionRequest.put("top_p", aiChatOptions.getTopP());
+                chatCompletionRequest.setTopP(toDouble(aiChatOptions.getTopP()));
             }
-            String requestJson = jacksonMapper.toJson(chatCompletionRequest);
-
-            // 转发请求到OpenAI并处理响应
-            Flux<DataBuffer> dataBufferFlux = webClient.post()
-                    .uri("/v1/chat/completions")
-                    .bodyValue(requestJson)
-                    .retrieve()
-                    .bodyToFlux(DataBuffer.class);
+            boolean stream = Boolean.TRUE.equals(chatCompletionRequest.getStream());
+            if (stream && config.isIncludeUsage()) {
+                includeUsage(chatCompletionRequest);
+            }
+            int promptTokens = fitPromptTokens(chatCompletionRequest, config.getMaxPromptTokens());
+            exchange.getAttributes().put(PROMPT_TOKENS, promptTokens);
+            log.debug("OpenAiChatPromptTokens: {}", promptTokens);
+            byte[] requestJson = jacksonMapper.toJsonBytes(chatCompletionRequest);
 
-            Boolean stream = (Boolean) chatCompletionRequest.get("stream");
-            if (stream != null && stream) {
+            if (stream) {
                 // 设置响应的Content-Type
                 response.getHeaders().set(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_EVENT_STREAM_VALUE);
             }
+
+            // 低温度的解释命令按完整请求缓存响应, 命中时直接回放, 不请求上游也不扣除 token
+            CompletionKey cacheKey = responseCache.isEligible(exchange.getAttribute(EXPLAIN_COMMAND), requestJson)
+                    ? CompletionKey.of(new String(requestJson, StandardCharsets.UTF_8)) : null;
+            Flux<DataBuffer> cached = cacheKey == null ? null : responseCache.replay(cacheKey);
+            if (cached != null) {
+                log.debug("OpenAiChatCacheHit: {}", cacheKey);
+                exchange.getAttributes().remove(PROMPT_TOKENS);
+                return response.writeWith(cached);
+            }
+
+            // 转发请求到节点池选择的上游节点并处理响应, 旁路扫描响应内容, 转发的字节不变
+            Flux<DataBuffer> dataBufferFlux = upstreamPool.executeMany(TrafficClass.CHAT, webClient -> {
+                ChatStreamObserver observer = new ChatStreamObserver(jacksonMapper.getMapper(), System.nanoTime(), stream);
+                ResponseCache.Recorder recorder = cacheKey == null ? null : responseCache.recorder();
+                Flux<DataBuffer> body = webClient.post()
+                        .uri("/v1/chat/completions")
+                        .bodyValue(requestJson)
+                        .retrieve()
+                        .bodyToFlux(DataBuffer.class);
+                if (stream) {
+                    // 上游在首个数据块之前或者两个数据块之间停止输出时中断, 释放连接和并发许可.
+                    // 非流式请求在生成结束后才返回, 只受连接的响应超时限制
+                    body = body.timeout(Mono.delay(config.getFirstTokenTimeout()), dataBuffer -> Mono.delay(config.getIdleTimeout()));
+                }
+                return body
+                        .doOnNext(dataBuffer -> {
+                            observer.observe(dataBuffer);
+                            if (recorder != null) {
+                                recorder.append(dataBuffer);
+                            }
+                        })
+                        .doOnComplete(() -> {
+                            observer.complete();
+                            if (recorder != null && "stop".equals(observer.getFinishReason())) {
+                                responseCache.put(cacheKey, recorder);
+                            }
+                            if (observer.getCompletionTokens() != null) {
+                                exchange.getAttributes().put(COMPLETION_TOKENS, observer.getCompletionTokens());
+                            }
+                        })
+                        .doOnError(TimeoutException.class, e -> {
+                            log.warn("OpenAiChatStalled, firstToken: {}", observer.getFirstTokenNanos() >= 0);
+                            if (observer.getFirstTokenNanos() >= 0) {
+                                gatewayMetrics.recordStall();
+                            }
+                        })
+                        .doFinally(signalType -> record(observer));
+            });
+            dataBufferFlux = gatewayMetrics.trackInFlight(CHAT, dataBufferFlux);
+
             // 直接使用writeWith方法将Flux<DataBuffer>写入响应
-            return response.writeWith(dataBufferFlux);
+            return response.writeWith(dataBufferFlux)
+                    // 上游过载时在写出响应前被拒绝, 快速返回错误状态码
+                    .onErrorResume(UpstreamRejectedException.class, e -> {
+                        log.warn("OpenAiChatRejected: {}", e.getEndpoint());
+                        response.setStatusCode(config.getRejectedStatus());
+                        response.getHeaders().remove(HttpHeaders.CONTENT_TYPE);
+                        return response.setComplete();
+                    });
         };
     }
 
+    private void record(ChatStreamObserver observer) {
+        if (observer.getFirstTokenNanos() >= 0) {
+            gatewayMetrics.recordFirstToken(CHAT, observer.getFirstTokenNanos());
+        }
+        gatewayMetrics.recordTokens(CHAT, observer.getPromptTokens(), observer.getCompletionTokens());
+        if (observer.getFinishReason() != null) {
+            gatewayMetrics.recordFinish(observer.getFinishReason());
+        }
+    }
+
+    /**
+     * 流式请求要求上游在最后一个数据块中返回 usage, 保留客户端设置的其它 stream_options
+     */
+    private void includeUsage(DevPilotChatCompletionRequest request) {
+        JsonNode streamOptions = request.getExtraOptions() == null ? null : request.getExtraOptions().get("stream_options");
+        ObjectNode options = streamOptions instanceof ObjectNode objectNode ? objectNode : jacksonMapper.getMapper().createObjectNode();
+        options.put("include_usage", true);
+        request.setExtraOption("stream_options", options);
+    }
+
+    /**
+     * 使用十进制字符串转换, 避免 float 转 double 产生精度误差(例如 0.2f 转换为 0.20000000298023224)
+     */
+    private static Double toDouble(Number number) {
+        return number instanceof Double value ? value : Double.valueOf(number.toString());
+    }
+
+    /**
+     * 计算提示词的 token 数量, 超过上限时从最早的非 system 消息开始丢弃, 保留最后一条 user 消息和最后一条消息
+     *
+     * @param request   请求
+     * @param maxTokens 提示词 token 上限, 不大于 0 时不限制
+     * @return 提示词 token 数量
+     */
+    private int fitPromptTokens(DevPilotChatCompletionRequest request, int maxTokens) {
+        List<DevPilotMessage> messages = request.getMessages();
+        if (messages == null || messages.isEmpty()) {
+            return 0;
+        }
+        int[] counts = new int[messages.size()];
+        int total = TOKENS_PER_REPLY;
+        for (int i = 0; i < counts.length; i++) {
+            DevPilotMessage message = messages.get(i);
+            counts[i] = TOKENS_PER_MESSAGE + countContentTokens(message);
+            total += counts[i];
+        }
+        if (maxTokens <= 0 || total <= maxTokens) {
+            return total;
+        }
+        List<DevPilotMessage> kept = new ArrayList<>(messages.size());
+        int last = messages.size() - 1;
+        // 解释命令的提示词在最后一条 user 消息中, 不能丢弃
+        int lastUser = last;
+        while (lastUser >= 0 && !"user".equals(messages.get(lastUser).getRole())) {
+            lastUser--;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            DevPilotMessage message = messages.get(i);
+            if (total > maxTokens && i < last && i != lastUser && !"system".equals(message.getRole())) {
+                total -= counts[i];
+                continue;
+            }
+            kept.add(message);
+        }
+        log.info("OpenAiChatPromptTruncated: {} -> {} messages, {} tokens", messages.size(), kept.size(), total);
+        request.setMessages(kept);
+        return total;
+    }
+
+    /**
+     * 计算消息内容的 token 数量, 多段内容只计算其中的文本
+     */
+    private int countContentTokens(DevPilotMessage message) {
+        if (message.getContent() != null) {
+            return tokenCounter.count(message.getContent());
+        }
+        int count = 0;
+        if (message.getContentParts() != null) {
+            for (JsonNode part : message.getContentParts()) {
+                JsonNode text = part.get("text");
+                if (text != null && text.isTextual()) {
+                    count += tokenCounter.count(text.textValue());
+                }
+            }
+        }
+        return count;
+    }
+
+    @Data
     public static class Config {
-        // 这里可以添加你的自定义配置参数
+        /**
+         * 提示词 token 上限, 不大于 0 时不限制
+         */
+        private int maxPromptTokens;
+
+        /**
+         * 上游达到并发上限或者熔断时返回的状态码
+         */
+        private HttpStatus rejectedStatus = HttpStatus.SERVICE_UNAVAILABLE;
+
+        /**
+         * 流式请求等待上游返回第一个数据块的最长时间
+         */
+        private Duration firstTokenTimeout = Duration.ofSeconds(60);
+
+        /**
+         * 流式请求两个数据块之间的最长等待时间, 超过时认为上游卡住并中断
+         */
+        private Duration idleTimeout = Duration.ofSeconds(30);
+
+        /**
+         * 流式请求是否设置 stream_options.include_usage, 用上游返回的生成 token 数限流和统计.
+         * 上游会在结束前多返回一个 choices 为空的数据块, 只在客户端能够处理这个数据块的路由上开启
+         */
+        private boolean includeUsage;
     }
 }
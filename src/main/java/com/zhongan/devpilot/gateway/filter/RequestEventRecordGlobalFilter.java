@@ -1,30 +1,49 @@
 package com.zhongan.devpilot.gateway.filter;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
 import lombok.extern.slf4j.Slf4j;
 import reactor.core.publisher.Mono;
 
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.route.Route;
 import org.springframework.core.Ordered;
+import org.springframework.core.io.buffer.DataBufferLimitException;
 import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.server.ServerWebExchange;
-import org.springframework.web.server.ServerWebExchangeDecorator;
 
+import static com.zhongan.devpilot.gateway.constant.Constants.CAPTURE_BODY_METADATA;
+import static com.zhongan.devpilot.gateway.constant.Constants.MAX_BODY_SIZE_METADATA;
 import static com.zhongan.devpilot.gateway.constant.Constants.REQUEST_BODY;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR;
 
 /**
- * Records the request event details and extracts the request body for non-GET, DELETE, OPTIONS, and HEAD requests.
+ * Records the request event details and captures the request body for non-GET, DELETE, OPTIONS, and HEAD requests.
+ * <p>
+ * The body is joined into a single {@link org.springframework.core.io.buffer.DataBuffer} and stored as a
+ * {@link CachedRequestBody}, which downstream filters parse straight from the buffer. Routes may disable capture
+ * with the {@code capture-body: false} metadata, and override the maximum body size with {@code max-body-size}.
  *
  * @author Jerry.Chen
  */
 @Component
 @Slf4j
 public class RequestEventRecordGlobalFilter implements GlobalFilter, Ordered {
+    private final AppCommonProperties appCommonProperties;
+
+    public RequestEventRecordGlobalFilter(AppCommonProperties appCommonProperties) {
+        this.appCommonProperties = appCommonProperties;
+    }
 
     @Override
     public int getOrder() {
@@ -40,22 +59,55 @@ public class RequestEventRecordGlobalFilter implements GlobalFilter, Ordered {
             return chain.filter(exchange);
         }
 
-        ServerWebExchangeDecorator exchangeDecorator = new ServerWebExchangeDecorator(exchange) {
-            private final ServerHttpRequest request = exchange.getRequest();
-
-            @Override
-            public ServerHttpRequest getRequest() {
-                return request;
-            }
-        };
-
-        return DataBufferUtils.join(exchangeDecorator.getRequest().getBody()).flatMap(dataBuffer -> {
-            byte[] bytes = new byte[dataBuffer.readableByteCount()];
-            dataBuffer.read(bytes);
-            DataBufferUtils.release(dataBuffer);
-            String body = new String(bytes, StandardCharsets.UTF_8);
-            exchangeDecorator.getAttributes().put(REQUEST_BODY, body);
-            return chain.filter(exchangeDecorator.mutate().request(exchangeDecorator.getRequest()).build());
-        });
+        Route route = exchange.getAttribute(GATEWAY_ROUTE_ATTR);
+        Map<String, Object> metadata = route != null ? route.getMetadata() : Map.of();
+        if ("false".equalsIgnoreCase(String.valueOf(metadata.get(CAPTURE_BODY_METADATA)))) {
+            return chain.filter(exchange);
+        }
+
+        int maxBodySize = getMaxBodySize(metadata);
+        long contentLength = httpRequest.getHeaders().getContentLength();
+        if (contentLength > maxBodySize) {
+            log.warn("request body too large, contentLength: {}, maxBodySize: {}", contentLength, maxBodySize);
+            return payloadTooLarge(exchange.getResponse());
+        }
+
+        return DataBufferUtils.join(httpRequest.getBody(), maxBodySize)
+                // 只有请求体为空时才创建空 buffer
+                .switchIfEmpty(Mono.fromSupplier(() -> DefaultDataBufferFactory.sharedInstance.allocateBuffer(0)))
+                .map(CachedRequestBody::new)
+                // 只处理读取请求体时超出限制, 后面的过滤器和代理响应中的同类异常不应变成 413
+                .onErrorResume(DataBufferLimitException.class, e -> {
+                    log.warn("request body too large, maxBodySize: {}", maxBodySize);
+                    return payloadTooLarge(exchange.getResponse()).then(Mono.<CachedRequestBody>empty());
+                })
+                .flatMap(body -> {
+                    exchange.getAttributes().put(REQUEST_BODY, body);
+                    return chain.filter(exchange).doFinally(signalType -> body.release());
+                });
+    }
+
+    /**
+     * 获取路由允许的请求体最大字节数, 路由 metadata 未配置时使用全局配置
+     *
+     * @param metadata 路由 metadata
+     * @return 请求体最大字节数
+     */
+    private int getMaxBodySize(Map<String, Object> metadata) {
+        Object value = metadata.get(MAX_BODY_SIZE_METADATA);
+        DataSize maxSize;
+        if (value instanceof Number number) {
+            maxSize = DataSize.ofBytes(number.longValue());
+        } else if (value != null) {
+            maxSize = DataSize.parse(value.toString());
+        } else {
+            maxSize = appCommonProperties.getRequestBody().getMaxSize();
+        }
+        return (int) Math.min(maxSize.toBytes(), Integer.MAX_VALUE);
+    }
+
+    private Mono<Void> payloadTooLarge(ServerHttpResponse response) {
+        response.setStatusCode(HttpStatus.PAYLOAD_TOO_LARGE);
+        return response.writeWith(Mono.just(response.bufferFactory().wrap("request body too large".getBytes(StandardCharsets.UTF_8))));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+package com.zhongan.devpilot.gateway.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.ratelimit.RateLimiter;
+import com.zhongan.devpilot.gateway.ratelimit.TokenBucket;
+import com.zhongan.devpilot.gateway.ratelimit.UserKeyResolver;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+
+import static com.zhongan.devpilot.gateway.constant.Constants.COMPLETION_TOKENS;
+import static com.zhongan.devpilot.gateway.constant.Constants.PROMPT_TOKENS;
+
+/**
+ * 按用户限流过滤器
+ * <p>
+ * 分别限制每个用户每分钟的请求数和提示词 token 数, 超过时返回 429 和 {@code Retry-After}. token 数由后面的
+ * CodeCompletion、OpenAiChat 过滤器计算后写入 {@code promptTokens} 属性, 请求结束后扣除; OpenAiChat 从上游返回的
+ * usage 中得到生成 token 数时写入 {@code completionTokens} 属性, 一起扣除.
+ * 需要配置在路由的第一个过滤器, 每个路由有独立的用户表和速率. WebSocket 补全通道按路由标识取得同一个限流器,
+ * 与对应的 HTTP 路由共用配额.
+ */
+@Slf4j
+@Component
+public class TokenRateLimitGatewayFilterFactory extends AbstractGatewayFilterFactory<TokenRateLimitGatewayFilterFactory.Config> {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final AppCommonProperties.RateLimitConfig rateLimitConfig;
+
+    private final UserKeyResolver userKeyResolver;
+
+    /**
+     * 每个路由的限流器, 路由刷新时替换
+     */
+    private final Map<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+    public TokenRateLimitGatewayFilterFactory(AppCommonProperties appCommonProperties, UserKeyResolver userKeyResolver) {
+        super(Config.class);
+        this.rateLimitConfig = appCommonProperties.getRateLimit();
+        this.userKeyResolver = userKeyResolver;
+    }
+
+    @Override
+    public GatewayFilter apply(Config config) {
+        RateLimiter rateLimiter = new RateLimiter(TokenBucket.perMinute(config.getRequestsPerMinute(), config.getRequestBurst()),
+                TokenBucket.perMinute(config.getTokensPerMinute(), config.getTokenBurst()),
+                rateLimitConfig.getMaxKeys(), rateLimitConfig.getExpireAfterAccess());
+        if (config.getRouteId() != null) {
+            rateLimiters.put(config.getRouteId(), rateLimiter);
+        }
+        return (exchange, chain) -> {
+            ServerHttpRequest request = exchange.getRequest();
+            String key = userKeyResolver.resolve(request.getHeaders(), request.getRemoteAddress());
+            long waitNanos = rateLimiter.tryAcquire(key);
+            if (waitNanos > 0) {
+                log.warn("RateLimited: {}, retryAfter: {}ms", abbreviate(key), waitNanos / 1_000_000);
+                return tooManyRequests(exchange.getResponse(), waitNanos);
+            }
+            return chain.filter(exchange).doFinally(signalType -> {
+                Integer promptTokens = exchange.getAttribute(PROMPT_TOKENS);
+                Integer completionTokens = exchange.getAttribute(COMPLETION_TOKENS);
+                int tokens = (promptTokens != null ? promptTokens : 0) + (completionTokens != null ? completionTokens : 0);
+                if (tokens > 0) {
+                    rateLimiter.charge(key, tokens);
+                }
+            });
+        };
+    }
+
+    /**
+     * @param routeId 路由标识
+     * @return 路由使用的限流器, 路由没有配置限流或者还没有加载时为 null
+     */
+    public RateLimiter getRateLimiter(String routeId) {
+        return rateLimiters.get(routeId);
+    }
+
+    /**
+     * 用户标识可能是 API key, 日志中只保留开头
+     */
+    private static String abbreviate(String key) {
+        return key.length() <= 12 ? key : key.substring(0, 12) + "...";
+    }
+
+    private static Mono<Void> tooManyRequests(ServerHttpResponse response, long waitNanos) {
+        response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+        long retryAfterSeconds = (waitNanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND;
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        return response.writeWith(Mono.just(response.bufferFactory().wrap("rate limit exceeded".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Data
+    public static class Config implements HasRouteId {
+        /**
+         * 路由标识, 由网关在加载路由时设置
+         */
+        private String routeId;
+
+        /**
+         * 每个用户每分钟的请求数, 不大于 0 时不限制
+         */
+        private long requestsPerMinute;
+
+        /**
+         * 请求数的突发容量, 不大于 0 时等于每分钟请求数
+         */
+        private long requestBurst;
+
+        /**
+         * 每个用户每分钟的提示词 token 数, 不大于 0 时不限制
+         */
+        private long tokensPerMinute;
+
+        /**
+         * token 数的突发容量, 不大于 0 时等于每分钟 token 数
+         */
+        private long tokenBurst;
+    }
+}
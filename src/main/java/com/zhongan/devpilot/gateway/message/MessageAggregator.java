@@ -0,0 +1,101 @@
+package com.zhongan.devpilot.gateway.message;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * 按模型和消息类型统计消息数量和字节数, 通过 {@code devpilot.message.aggregate.*} 指标导出
+ * <p>
+ * 只由写入线程更新. 每个维度组合是一组时间序列, 组合数量有上限, 超过后新的组合计入 {@code other} 模型.
+ * 模型名称来自客户端, 不符合格式或者过长时记为 {@code unknown}. 上报的用户来自客户端设置的请求头, 没有经过认证,
+ * 不作为指标的维度, 只写入消息记录.
+ */
+public class MessageAggregator {
+    private static final String OTHER = "other";
+
+    private static final String UNKNOWN = "unknown";
+
+    private static final int MAX_MODEL_LENGTH = 64;
+
+    private static final Pattern MODEL_PATTERN = Pattern.compile("[A-Za-z0-9._:/-]+");
+
+    private final Map<String, Counter> counters = new HashMap<>();
+
+    private final int maxKeys;
+
+    /**
+     * 注册统计指标, 允许为 null
+     */
+    private final MeterRegistry meterRegistry;
+
+    public MessageAggregator(int maxKeys, MeterRegistry meterRegistry) {
+        this.maxKeys = maxKeys;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 统计一个事件
+     *
+     * @param event 事件
+     * @param model {@link #normalizeModel(String)} 处理后的模型
+     */
+    void add(MessageEvent event, String model) {
+        String type = event.getType();
+        String key = type + '\u0000' + model;
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() >= maxKeys) {
+                model = OTHER;
+                key = type + '\u0000' + OTHER;
+                counter = counters.get(key);
+            }
+            if (counter == null) {
+                counter = new Counter();
+                counters.put(key, counter);
+                register(counter, type, model);
+            }
+        }
+        counter.messages += event.getWeight();
+        counter.bytes += (long) event.getBody().length * event.getWeight();
+    }
+
+    private void register(Counter counter, String type, String model) {
+        if (meterRegistry == null) {
+            return;
+        }
+        FunctionCounter.builder("devpilot.message.aggregate.messages", counter, c -> c.messages)
+                .description("按模型和消息类型统计的消息数量, 采样时为估计值")
+                .tag("type", type)
+                .tag("model", model)
+                .register(meterRegistry);
+        FunctionCounter.builder("devpilot.message.aggregate.bytes", counter, c -> c.bytes)
+                .description("按模型和消息类型统计的消息字节数, 采样时为估计值")
+                .baseUnit("bytes")
+                .tag("type", type)
+                .tag("model", model)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 限制模型名称的取值, 避免客户端任意的模型名称产生大量统计组合
+     *
+     * @param model 请求体中的模型, 没有时为 null
+     * @return 模型名称, 不符合格式或者过长时为 unknown
+     */
+    static String normalizeModel(String model) {
+        if (model == null || model.isEmpty() || model.length() > MAX_MODEL_LENGTH || !MODEL_PATTERN.matcher(model).matches()) {
+            return UNKNOWN;
+        }
+        return model;
+    }
+
+    private static final class Counter {
+        private volatile long messages;
+
+        private volatile long bytes;
+    }
+}
@@ -0,0 +1,36 @@
+package com.zhongan.devpilot.gateway.message;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * IDE 上报的消息事件
+ */
+@Getter
+@AllArgsConstructor
+public class MessageEvent {
+    /**
+     * 消息类型: conversation 或者 completion
+     */
+    private final String type;
+
+    /**
+     * 上报的用户
+     */
+    private final String user;
+
+    /**
+     * 接收时间, 毫秒
+     */
+    private final long timestamp;
+
+    /**
+     * 原始请求体
+     */
+    private final byte[] body;
+
+    /**
+     * 采样权重, 采样时一个事件代表多个事件
+     */
+    private final int weight;
+}
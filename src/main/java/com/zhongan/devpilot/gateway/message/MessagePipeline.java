@@ -0,0 +1,241 @@
+package com.zhongan.devpilot.gateway.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+/**
+ * IDE 消息事件的写入流水线
+ * <p>
+ * 过滤器只把事件放入有界的无锁队列, 不等待写入. 单独的写入线程批量取出事件, 编码为 NDJSON 后写入 gzip 分段文件,
+ * 每批只提交一次(group commit), 同时更新内存中的统计.
+ * <p>
+ * 队列按请求体的总字节数限制容量, 积压超过采样阈值时按比例采样, 保留的事件带上权重, 统计仍然是无偏的估计; 队列满时丢弃事件. 两种情况都只计数,
+ * 不会让堆内存随负载增长.
+ */
+@Slf4j
+@Component
+public class MessagePipeline implements SmartLifecycle {
+    private final AppCommonProperties.MessageConfig config;
+
+    private final MessageQueue queue;
+
+    private final MessageAggregator aggregator;
+
+    private final ObjectMapper mapper;
+
+    private final long sampleThreshold;
+
+    private final int sampleWeight;
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong sampledOut = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private volatile boolean running;
+
+    private Thread writerThread;
+
+    public MessagePipeline(AppCommonProperties appCommonProperties, MeterRegistry meterRegistry) {
+        this.config = appCommonProperties.getMessage();
+        long maxQueueBytes = config.getMaxQueueSize().toBytes();
+        this.queue = new MessageQueue(maxQueueBytes);
+        this.aggregator = new MessageAggregator(config.getMaxAggregateKeys(), meterRegistry);
+        this.mapper = JacksonMapper.sharedMapper().getMapper();
+        this.sampleThreshold = (long) (maxQueueBytes * config.getSampleThreshold());
+        this.sampleWeight = config.getSampleRate() > 0 ? (int) Math.round(1 / config.getSampleRate()) : 0;
+    }
+
+    /**
+     * 提交事件, 不阻塞
+     *
+     * @param type 消息类型
+     * @param user 用户
+     * @param body 原始请求体
+     * @return 是否进入队列
+     */
+    public boolean submit(String type, String user, byte[] body) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int weight = 1;
+        if (queue.bytes() >= sampleThreshold) {
+            // 积压时按比例采样, 保留的事件代表被跳过的事件
+            if (sampleWeight == 0 || ThreadLocalRandom.current().nextInt(sampleWeight) != 0) {
+                sampledOut.incrementAndGet();
+                return false;
+            }
+            weight = sampleWeight;
+        }
+        if (!queue.offer(new MessageEvent(type, user, System.currentTimeMillis(), body, weight))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        SegmentWriter segmentWriter;
+        try {
+            segmentWriter = new SegmentWriter(Path.of(config.getDirectory()), config.getMaxSegmentSize().toBytes(),
+                    config.getMaxSegmentAge().toNanos(), config.getMaxSegments(), config.isFsync());
+        } catch (IOException e) {
+            log.error("MessagePipeline disabled, directory: {}", config.getDirectory(), e);
+            return;
+        }
+        running = true;
+        writerThread = new Thread(() -> writeLoop(segmentWriter), "message-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void writeLoop(SegmentWriter segmentWriter) {
+        long idleNanos = config.getFlushInterval().toNanos();
+        int batchSize = config.getBatchSize();
+        List<MessageEvent> batch = new ArrayList<>(batchSize);
+        RecordBuffer buffer = new RecordBuffer(64 * 1024);
+        while (true) {
+            MessageEvent event;
+            while (batch.size() < batchSize && (event = queue.poll()) != null) {
+                batch.add(event);
+            }
+            try {
+                if (batch.isEmpty()) {
+                    if (!running) {
+                        break;
+                    }
+                    segmentWriter.rollIfExpired();
+                    // 空闲时等待一个刷新间隔, 之后到达的事件一起提交
+                    LockSupport.parkNanos(idleNanos);
+                    continue;
+                }
+                buffer.reset();
+                for (MessageEvent e : batch) {
+                    encode(e, buffer);
+                }
+                segmentWriter.write(buffer.array(), buffer.size());
+                segmentWriter.commit();
+                written.addAndGet(batch.size());
+            } catch (IOException | RuntimeException e) {
+                log.error("MessagePipeline write failed, {} events lost", batch.size(), e);
+            }
+            batch.clear();
+        }
+        try {
+            segmentWriter.close();
+        } catch (IOException e) {
+            log.error("MessagePipeline close failed", e);
+        }
+    }
+
+    /**
+     * 编码为一行 JSON, 同时更新统计. 请求体不是合法 JSON 时按字符串保存
+     */
+    private void encode(MessageEvent event, RecordBuffer buffer) throws IOException {
+        JsonNode body;
+        try {
+            body = mapper.readTree(event.getBody());
+        } catch (IOException e) {
+            body = mapper.getNodeFactory().textNode(new String(event.getBody(), StandardCharsets.UTF_8));
+        }
+        JsonNode modelNode = body.path("model");
+        String model = MessageAggregator.normalizeModel(modelNode.isTextual() ? modelNode.asText() : null);
+        aggregator.add(event, model);
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", event.getTimestamp());
+            generator.writeStringField("type", event.getType());
+            generator.writeStringField("user", event.getUser());
+            generator.writeStringField("model", model);
+            generator.writeNumberField("weight", event.getWeight());
+            generator.writeFieldName("body");
+            generator.writeTree(body);
+            generator.writeEndObject();
+        }
+        buffer.write('\n');
+    }
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    public long getSampledOutCount() {
+        return sampledOut.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getQueueBytes() {
+        return queue.bytes();
+    }
+
+    /**
+     * 可以复用的字节缓冲区, 避免每批重新分配
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        private RecordBuffer(int size) {
+            super(size);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.zhongan.devpilot.gateway.message;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按字节数限制容量的无锁队列, 多个生产者, 一个消费者
+ * <p>
+ * 在 {@link ConcurrentLinkedQueue} 外用计数器限制队列中请求体的总字节数, 入队和出队都不加锁, 队列满时直接拒绝,
+ * 不会阻塞 Netty 线程. 按事件数量限制时, 少量很大的请求体就能占满堆内存.
+ */
+public class MessageQueue {
+    private final ConcurrentLinkedQueue<MessageEvent> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final long maxBytes;
+
+    /**
+     * @param maxBytes 队列中请求体的最大总字节数
+     */
+    public MessageQueue(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 入队
+     *
+     * @param event 事件
+     * @return 队列满时返回 false
+     */
+    public boolean offer(MessageEvent event) {
+        int length = event.getBody().length;
+        if (bytes.addAndGet(length) > maxBytes) {
+            bytes.addAndGet(-length);
+            return false;
+        }
+        size.incrementAndGet();
+        queue.offer(event);
+        return true;
+    }
+
+    /**
+     * 出队
+     *
+     * @return 事件, 队列为空时返回 null
+     */
+    public MessageEvent poll() {
+        MessageEvent event = queue.poll();
+        if (event != null) {
+            size.decrementAndGet();
+            bytes.addAndGet(-event.getBody().length);
+        }
+        return event;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return 队列中请求体的总字节数
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,182 @@
+package com.zhongan.devpilot.gateway.message;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 按大小和时间滚动的 gzip 分段文件
+ * <p>
+ * 正在写入的分段以 {@code .part} 结尾, 滚动时写完 gzip 尾部后重命名. 每次提交使用 gzip 的 sync flush 输出完整的压缩块,
+ * 再执行一次 fsync, 一批记录只需要一次 fsync. 进程异常退出时 {@code .part} 文件中已经提交的记录仍然可以解压.
+ * <p>
+ * 非线程安全, 只由写入线程使用.
+ */
+@Slf4j
+public class SegmentWriter {
+    private static final String PREFIX = "messages-";
+
+    private static final String SUFFIX = ".ndjson.gz";
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path directory;
+
+    private final long maxSegmentBytes;
+
+    private final long maxSegmentAgeNanos;
+
+    private final int maxSegments;
+
+    private final boolean fsync;
+
+    private FileChannel channel;
+
+    private GZIPOutputStream output;
+
+    private Path partPath;
+
+    private long segmentBytes;
+
+    private long openedAtNanos;
+
+    private long segmentCount;
+
+    /**
+     * @param directory       分段文件目录
+     * @param maxSegmentBytes 分段压缩前的最大字节数
+     * @param maxSegmentAge   分段的最长写入时间, 纳秒
+     * @param maxSegments     最多保留的分段数量
+     * @param fsync           提交时是否 fsync
+     */
+    public SegmentWriter(Path directory, long maxSegmentBytes, long maxSegmentAge, int maxSegments, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentAgeNanos = maxSegmentAge;
+        this.maxSegments = maxSegments;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+        recoverParts();
+    }
+
+    /**
+     * 写入一批编码后的记录, 必要时先滚动分段
+     *
+     * @param bytes  记录
+     * @param length 字节数
+     */
+    public void write(byte[] bytes, int length) throws IOException {
+        if (output == null) {
+            open();
+        }
+        output.write(bytes, 0, length);
+        segmentBytes += length;
+    }
+
+    /**
+     * 提交已经写入的记录
+     */
+    public void commit() throws IOException {
+        if (output == null) {
+            return;
+        }
+        output.flush();
+        if (fsync) {
+            channel.force(false);
+        }
+        if (segmentBytes >= maxSegmentBytes || System.nanoTime() - openedAtNanos >= maxSegmentAgeNanos) {
+            roll();
+        }
+    }
+
+    /**
+     * 分段写入时间到期时滚动, 没有新记录时也会按时生成完整的分段
+     */
+    public void rollIfExpired() throws IOException {
+        if (output != null && System.nanoTime() - openedAtNanos >= maxSegmentAgeNanos) {
+            roll();
+        }
+    }
+
+    /**
+     * 关闭当前分段
+     */
+    public void close() throws IOException {
+        if (output != null) {
+            roll();
+        }
+    }
+
+    private void open() throws IOException {
+        String name = PREFIX + LocalDateTime.now().format(NAME_FORMAT) + "-" + segmentCount++ + SUFFIX;
+        partPath = directory.resolve(name + PART_SUFFIX);
+        channel = FileChannel.open(partPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        output = new GZIPOutputStream(Channels.newOutputStream(channel), 64 * 1024, true);
+        segmentBytes = 0;
+        openedAtNanos = System.nanoTime();
+    }
+
+    private void roll() throws IOException {
+        try {
+            output.finish();
+            if (fsync) {
+                channel.force(true);
+            }
+        } finally {
+            output.close();
+            output = null;
+            channel = null;
+        }
+        Path target = complete(partPath);
+        log.info("MessageSegmentRolled: {}, {} bytes", target.getFileName(), segmentBytes);
+        deleteExpired();
+    }
+
+    private static Path complete(Path part) throws IOException {
+        String name = part.getFileName().toString();
+        Path target = part.resolveSibling(name.substring(0, name.length() - PART_SUFFIX.length()));
+        return Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 上次异常退出时遗留的 {@code .part} 文件缺少 gzip 尾部, 已经提交的记录仍然可读, 直接作为完整分段保留
+     */
+    private void recoverParts() throws IOException {
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX + PART_SUFFIX)) {
+            for (Path part : parts) {
+                log.warn("MessageSegmentRecovered: {}", part.getFileName());
+                complete(part);
+            }
+        }
+    }
+
+    private void deleteExpired() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        if (segments.size() <= maxSegments) {
+            return;
+        }
+        // 文件名以时间开头, 按名称排序即按时间排序
+        Collections.sort(segments);
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+}
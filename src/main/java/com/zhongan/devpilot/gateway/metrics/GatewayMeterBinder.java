@@ -0,0 +1,134 @@
+package com.zhongan.devpilot.gateway.metrics;
+
+import java.util.function.ToDoubleFunction;
+
+import com.zhongan.devpilot.gateway.completions.cache.CompletionCache;
+import com.zhongan.devpilot.gateway.completions.cache.InFlightCompletions;
+import com.zhongan.devpilot.gateway.completions.cache.ResponseCache;
+import com.zhongan.devpilot.gateway.completions.channel.CompletionChannelHandler;
+import com.zhongan.devpilot.gateway.completions.document.DocumentStore;
+import com.zhongan.devpilot.gateway.completions.providers.impl.OpenAiProvider;
+import com.zhongan.devpilot.gateway.completions.session.CompletionSessionRegistry;
+import com.zhongan.devpilot.gateway.message.MessagePipeline;
+import com.zhongan.devpilot.gateway.upstream.HedgePolicy;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 从各组件已有的统计读取指标: 补全缓存、请求合并、对冲请求、文档同步、补全通道、解释命令响应缓存和消息写入
+ */
+@Component
+public class GatewayMeterBinder implements MeterBinder {
+    private final CompletionCache completionCache;
+
+    private final InFlightCompletions inFlightCompletions;
+
+    private final CompletionSessionRegistry completionSessionRegistry;
+
+    private final OpenAiProvider openAiProvider;
+
+    private final MessagePipeline messagePipeline;
+
+    private final ResponseCache responseCache;
+
+    private final DocumentStore documentStore;
+
+    private final CompletionChannelHandler completionChannelHandler;
+
+    public GatewayMeterBinder(CompletionCache completionCache, InFlightCompletions inFlightCompletions,
+                              CompletionSessionRegistry completionSessionRegistry, OpenAiProvider openAiProvider,
+                              MessagePipeline messagePipeline, ResponseCache responseCache, DocumentStore documentStore,
+                              CompletionChannelHandler completionChannelHandler) {
+        this.completionCache = completionCache;
+        this.inFlightCompletions = inFlightCompletions;
+        this.completionSessionRegistry = completionSessionRegistry;
+        this.openAiProvider = openAiProvider;
+        this.messagePipeline = messagePipeline;
+        this.responseCache = responseCache;
+        this.documentStore = documentStore;
+        this.completionChannelHandler = completionChannelHandler;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("devpilot.completion.cache", completionCache, cache -> cache.stats().hitCount())
+                .description("代码补全缓存的查询次数")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("devpilot.completion.cache", completionCache, cache -> cache.stats().missCount())
+                .description("代码补全缓存的查询次数")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("devpilot.completion.cache.evictions", completionCache, cache -> cache.stats().evictionCount())
+                .description("代码补全缓存的淘汰次数")
+                .register(registry);
+        FunctionCounter.builder("devpilot.completion.coalesced", inFlightCompletions, InFlightCompletions::getCoalescedCount)
+                .description("与进行中的相同请求合并的补全请求数量")
+                .register(registry);
+        Gauge.builder("devpilot.completion.sessions", completionSessionRegistry, CompletionSessionRegistry::size)
+                .description("登记的进行中补全请求数量")
+                .register(registry);
+
+        Gauge.builder("devpilot.completion.documents", documentStore, DocumentStore::size)
+                .description("保存的编辑器文档数量")
+                .register(registry);
+        Gauge.builder("devpilot.completion.documents.chars", documentStore, DocumentStore::memoryChars)
+                .description("保存的编辑器文档占用的字符数量")
+                .register(registry);
+        FunctionCounter.builder("devpilot.completion.documents.resyncs", documentStore, DocumentStore::getResyncCount)
+                .description("要求客户端重新发送完整文档的次数")
+                .register(registry);
+        Gauge.builder("devpilot.completion.channel.connections", completionChannelHandler, CompletionChannelHandler::getConnectionCount)
+                .description("打开的补全通道连接数量")
+                .register(registry);
+
+        HedgePolicy hedgePolicy = openAiProvider.getHedgePolicy();
+        if (hedgePolicy != null) {
+            FunctionCounter.builder("devpilot.completion.hedged", hedgePolicy, HedgePolicy::getHedgedCount)
+                    .description("发送的对冲请求数量")
+                    .register(registry);
+            FunctionCounter.builder("devpilot.completion.hedge.wins", hedgePolicy, HedgePolicy::getHedgeWinCount)
+                    .description("对冲请求先返回的次数")
+                    .register(registry);
+        }
+
+        FunctionCounter.builder("devpilot.chat.cache", responseCache, cache -> cache.stats().hitCount())
+                .description("解释命令响应缓存的查询次数")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("devpilot.chat.cache", responseCache, cache -> cache.stats().missCount())
+                .description("解释命令响应缓存的查询次数")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("devpilot.chat.cache.evictions", responseCache, cache -> cache.stats().evictionCount())
+                .description("解释命令响应缓存的淘汰次数")
+                .register(registry);
+        Gauge.builder("devpilot.chat.cache.memory", responseCache, ResponseCache::memoryUsed)
+                .description("解释命令响应缓存占用的堆外内存")
+                .baseUnit("bytes")
+                .register(registry);
+
+        messageCounter(registry, "accepted", MessagePipeline::getAcceptedCount);
+        messageCounter(registry, "sampled_out", MessagePipeline::getSampledOutCount);
+        messageCounter(registry, "dropped", MessagePipeline::getDroppedCount);
+        messageCounter(registry, "written", MessagePipeline::getWrittenCount);
+        Gauge.builder("devpilot.message.queue.size", messagePipeline, MessagePipeline::getQueueSize)
+                .description("等待写入的消息数量")
+                .register(registry);
+        Gauge.builder("devpilot.message.queue.bytes", messagePipeline, MessagePipeline::getQueueBytes)
+                .description("等待写入的消息请求体总大小")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    private void messageCounter(MeterRegistry registry, String result, ToDoubleFunction<MessagePipeline> count) {
+        FunctionCounter.builder("devpilot.message.events", messagePipeline, count)
+                .description("上报的消息事件数量")
+                .tag("result", result)
+                .register(registry);
+    }
+}
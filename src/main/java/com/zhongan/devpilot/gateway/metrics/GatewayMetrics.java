@@ -0,0 +1,184 @@
+package com.zhongan.devpilot.gateway.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 网关热点路径的指标
+ * <p>
+ * 标签只使用固定的取值(组件、路由类型、token 类型), 不使用用户、路径等无界的取值.
+ * 端到端的路由耗时由 Spring Cloud Gateway 的 {@code spring.cloud.gateway.requests} 记录, 上游请求耗时由节点池记录.
+ */
+@Component
+public class GatewayMetrics {
+    /**
+     * 代码补全
+     */
+    public static final String COMPLETION = "completion";
+
+    /**
+     * 对话
+     */
+    public static final String CHAT = "chat";
+
+    /**
+     * 已知的结束原因, 其它取值统计为 other
+     */
+    private static final String[] FINISH_REASONS = {"stop", "length", "content_filter", "tool_calls", "function_call", "other"};
+
+    private final AtomicInteger completionInFlight = new AtomicInteger();
+
+    private final AtomicInteger chatInFlight = new AtomicInteger();
+
+    private final Timer completionFirstToken;
+
+    private final Timer chatFirstToken;
+
+    private final Counter completionPromptTokens;
+
+    private final Counter completionCompletionTokens;
+
+    private final Counter chatPromptTokens;
+
+    private final Counter chatCompletionTokens;
+
+    private final Map<String, Counter> chatFinishReasons;
+
+    private final Counter chatStalled;
+
+    public GatewayMetrics(MeterRegistry registry) {
+        Gauge.builder("devpilot.in.flight", completionInFlight, AtomicInteger::get)
+                .description("进行中的请求数量")
+                .tag("component", COMPLETION)
+                .register(registry);
+        Gauge.builder("devpilot.in.flight", chatInFlight, AtomicInteger::get)
+                .description("进行中的请求数量")
+                .tag("component", CHAT)
+                .register(registry);
+        this.completionFirstToken = firstTokenTimer(registry, COMPLETION);
+        this.chatFirstToken = firstTokenTimer(registry, CHAT);
+        this.completionPromptTokens = tokenCounter(registry, COMPLETION, "prompt");
+        this.completionCompletionTokens = tokenCounter(registry, COMPLETION, "completion");
+        this.chatPromptTokens = tokenCounter(registry, CHAT, "prompt");
+        this.chatCompletionTokens = tokenCounter(registry, CHAT, "completion");
+        Map<String, Counter> finishReasons = new HashMap<>(FINISH_REASONS.length * 2);
+        for (String reason : FINISH_REASONS) {
+            finishReasons.put(reason, Counter.builder("devpilot.llm.finish")
+                    .description("上游返回的结束原因")
+                    .tag("component", CHAT)
+                    .tag("reason", reason)
+                    .register(registry));
+        }
+        this.chatFinishReasons = finishReasons;
+        this.chatStalled = Counter.builder("devpilot.stream.stalled")
+                .description("两个数据块之间等待超时被中断的流")
+                .tag("component", CHAT)
+                .register(registry);
+    }
+
+    private static Timer firstTokenTimer(MeterRegistry registry, String component) {
+        return Timer.builder("devpilot.time.to.first.token")
+                .description("从开始请求上游到收到第一个 token 的时间")
+                .tag("component", component)
+                .register(registry);
+    }
+
+    private static Counter tokenCounter(MeterRegistry registry, String component, String type) {
+        return Counter.builder("devpilot.llm.tokens")
+                .description("上游返回的 token 用量")
+                .tag("component", component)
+                .tag("type", type)
+                .register(registry);
+    }
+
+    /**
+     * 统计进行中的请求
+     *
+     * @param component 组件
+     * @param mono      请求
+     * @param <T>       泛型
+     * @return 请求
+     */
+    public <T> Mono<T> trackInFlight(String component, Mono<T> mono) {
+        AtomicInteger inFlight = inFlight(component);
+        return Mono.defer(() -> {
+            inFlight.incrementAndGet();
+            return mono.doFinally(signalType -> inFlight.decrementAndGet());
+        });
+    }
+
+    /**
+     * 统计进行中的流式请求
+     *
+     * @param component 组件
+     * @param flux      请求
+     * @param <T>       泛型
+     * @return 请求
+     */
+    public <T> Flux<T> trackInFlight(String component, Flux<T> flux) {
+        AtomicInteger inFlight = inFlight(component);
+        return Flux.defer(() -> {
+            inFlight.incrementAndGet();
+            return flux.doFinally(signalType -> inFlight.decrementAndGet());
+        });
+    }
+
+    /**
+     * 记录收到第一个 token 的时间
+     *
+     * @param component    组件
+     * @param elapsedNanos 从开始请求上游经过的时间, 纳秒
+     */
+    public void recordFirstToken(String component, long elapsedNanos) {
+        (CHAT.equals(component) ? chatFirstToken : completionFirstToken).record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录上游返回的 token 用量
+     *
+     * @param component        组件
+     * @param promptTokens     提示词 token 数量, 允许为 null
+     * @param completionTokens 生成的 token 数量, 允许为 null
+     */
+    public void recordTokens(String component, Integer promptTokens, Integer completionTokens) {
+        boolean chat = CHAT.equals(component);
+        if (promptTokens != null) {
+            (chat ? chatPromptTokens : completionPromptTokens).increment(promptTokens);
+        }
+        if (completionTokens != null) {
+            (chat ? chatCompletionTokens : completionCompletionTokens).increment(completionTokens);
+        }
+    }
+
+    /**
+     * 记录对话的结束原因
+     *
+     * @param reason 上游返回的 finish_reason
+     */
+    public void recordFinish(String reason) {
+        Counter counter = chatFinishReasons.get(reason);
+        (counter != null ? counter : chatFinishReasons.get("other")).increment();
+    }
+
+    /**
+     * 记录一次因为上游停止输出被中断的对话流
+     */
+    public void recordStall() {
+        chatStalled.increment();
+    }
+
+    private AtomicInteger inFlight(String component) {
+        return CHAT.equals(component) ? chatInFlight : completionInFlight;
+    }
+}
@@ -0,0 +1,133 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.upstream.TrafficClass;
+import com.zhongan.devpilot.gateway.upstream.UpstreamPool;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import org.apache.commons.lang3.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+
+/**
+ * OpenAI 兼容的向量接口客户端
+ * <p>
+ * 默认通过上游节点池请求 {@code /v1/embeddings}; 配置了 {@code embedding-base-url} 时直接请求这个地址,
+ * 可以指向单独部署的向量服务或者测试用的本地桩服务. 输入按批次请求, 结果按输入的顺序返回.
+ */
+@Component
+public class EmbeddingClient {
+    private final AppCommonProperties.RagConfig config;
+
+    private final ObjectMapper mapper;
+
+    private final Function<Function<WebClient, Mono<String>>, Mono<String>> executor;
+
+    public EmbeddingClient(AppCommonProperties appCommonProperties, UpstreamPool upstreamPool, WebClient.Builder webClientBuilder) {
+        this.config = appCommonProperties.getRag();
+        this.mapper = JacksonMapper.sharedMapper().getMapper();
+        if (StringUtils.isNotBlank(config.getEmbeddingBaseUrl())) {
+            WebClient webClient = webClientBuilder.clone()
+                    .baseUrl(config.getEmbeddingBaseUrl())
+                    .defaultHeaders(headers -> {
+                        if (StringUtils.isNotBlank(config.getEmbeddingApiKey())) {
+                            headers.setBearerAuth(config.getEmbeddingApiKey());
+                        }
+                        headers.setContentType(MediaType.APPLICATION_JSON);
+                    })
+                    .build();
+            this.executor = call -> call.apply(webClient);
+        } else {
+            this.executor = call -> upstreamPool.execute(TrafficClass.COMPLETION, call);
+        }
+    }
+
+    /**
+     * 计算文本的向量
+     *
+     * @param inputs 文本
+     * @return 与输入顺序一致的向量
+     */
+    public Mono<List<float[]>> embed(List<String> inputs) {
+        if (inputs.isEmpty()) {
+            return Mono.just(List.of());
+        }
+        int batchSize = Math.max(config.getEmbeddingBatchSize(), 1);
+        List<List<String>> batches = new ArrayList<>((inputs.size() + batchSize - 1) / batchSize);
+        for (int i = 0; i < inputs.size(); i += batchSize) {
+            batches.add(inputs.subList(i, Math.min(i + batchSize, inputs.size())));
+        }
+        return Flux.fromIterable(batches)
+                .concatMap(this::embedBatch)
+                .collectList()
+                .map(results -> {
+                    List<float[]> vectors = new ArrayList<>(inputs.size());
+                    results.forEach(vectors::addAll);
+                    return vectors;
+                });
+    }
+
+    /**
+     * 计算单个文本的向量
+     *
+     * @param input 文本
+     * @return 向量
+     */
+    public Mono<float[]> embed(String input) {
+        return embedBatch(List.of(input)).map(vectors -> vectors.get(0));
+    }
+
+    private Mono<List<float[]>> embedBatch(List<String> inputs) {
+        ObjectNode request = mapper.createObjectNode();
+        request.put("model", config.getEmbeddingModel());
+        ArrayNode input = request.putArray("input");
+        inputs.forEach(input::add);
+        return executor.apply(webClient -> webClient.post()
+                        .uri(config.getEmbeddingPath())
+                        .bodyValue(request.toString())
+                        .retrieve()
+                        .bodyToMono(String.class)
+                        .timeout(config.getEmbeddingTimeout()))
+                .map(body -> parse(body, inputs.size()));
+    }
+
+    private List<float[]> parse(String body, int expected) {
+        JsonNode data;
+        try {
+            data = mapper.readTree(body).path("data");
+        } catch (IOException e) {
+            throw new IllegalStateException("invalid embeddings response", e);
+        }
+        if (!data.isArray() || data.size() != expected) {
+            throw new IllegalStateException("embeddings response size mismatch: " + data.size() + " != " + expected);
+        }
+        float[][] vectors = new float[expected][];
+        for (int i = 0; i < expected; i++) {
+            JsonNode item = data.get(i);
+            // 接口按 index 标识输入, 不保证按顺序返回
+            int index = item.path("index").asInt(i);
+            if (index < 0 || index >= expected || vectors[index] != null) {
+                throw new IllegalStateException("invalid embeddings index: " + index);
+            }
+            JsonNode embedding = item.path("embedding");
+            float[] vector = new float[embedding.size()];
+            for (int j = 0; j < vector.length; j++) {
+                vector[j] = (float) embedding.get(j).asDouble();
+            }
+            vectors[index] = vector;
+        }
+        return List.of(vectors);
+    }
+}
@@ -0,0 +1,540 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.IntPredicate;
+
+/**
+ * HNSW 近邻图
+ * <p>
+ * 节点就是 {@link VectorStore} 中的序号, 图只保存邻居关系, 相似度直接在内存映射的向量上计算. 每个节点的层数按
+ * {@code 1 / ln(M)} 的几何分布随机生成, 第 0 层最多 2M 个邻居, 其它层最多 M 个. 选择邻居使用启发式规则, 保留方向分散的邻居,
+ * 代码片段成簇时也能保持连通.
+ * <p>
+ * 邻居关系可以保存为快照文件, 打开索引时从快照恢复, 只需要插入快照之后写入的节点, 不必重新建图.
+ * <p>
+ * 非线程安全, 写入和查询由调用方使用读写锁隔离.
+ */
+final class HnswGraph {
+    private static final int MAGIC = 0x44504847;
+
+    private static final int VERSION = 1;
+
+    private final VectorStore vectors;
+
+    private final int m;
+
+    private final int maxM0;
+
+    private final int efConstruction;
+
+    private final double levelMultiplier;
+
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    private final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+
+    /**
+     * links[node][level] 为邻居列表, 下标 0 保存邻居数量
+     */
+    private int[][][] links = new int[1024][][];
+
+    private int entryPoint = -1;
+
+    private int maxLevel = -1;
+
+    private int count;
+
+    /**
+     * 插入过的最大序号加一
+     */
+    private int limit;
+
+    HnswGraph(VectorStore vectors, int m, int efConstruction) {
+        this.vectors = vectors;
+        this.m = Math.max(m, 2);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(efConstruction, this.m);
+        this.levelMultiplier = 1 / Math.log(this.m);
+    }
+
+    /**
+     * 插入节点
+     *
+     * @param node 向量序号
+     */
+    void add(int node) {
+        if (node >= links.length) {
+            links = Arrays.copyOf(links, Math.max(links.length * 2, node + 1));
+        }
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        int[][] nodeLinks = new int[level + 1][];
+        for (int i = 0; i <= level; i++) {
+            nodeLinks[i] = new int[(i == 0 ? maxM0 : m) + 1];
+        }
+        links[node] = nodeLinks;
+        count++;
+        limit = Math.max(limit, node + 1);
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+        float[] vector = vectors.get(node);
+        int current = entryPoint;
+        float currentScore = vectors.dot(current, vector);
+        for (int l = maxLevel; l > level; l--) {
+            int[] best = greedy(vector, current, currentScore, l);
+            current = best[0];
+            currentScore = Float.intBitsToFloat(best[1]);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            Heap candidates = searchLayer(vector, current, currentScore, efConstruction, l);
+            int maxLinks = l == 0 ? maxM0 : m;
+            int[] selected = selectNeighbors(candidates, m);
+            int[] own = nodeLinks[l];
+            for (int neighbor : selected) {
+                own[++own[0]] = neighbor;
+                connect(neighbor, node, l, maxLinks);
+            }
+            // 下一层从本层最相似的节点开始
+            current = candidates.bestNode();
+            currentScore = candidates.bestScore();
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * 查询最相似的节点
+     *
+     * @param query  归一化的查询向量
+     * @param k      结果数量
+     * @param ef     查询时的候选数量
+     * @param accept 过滤条件, 例如排除已删除的节点
+     * @param nodes  输出的节点, 按相似度从高到低
+     * @param scores 输出的相似度
+     * @return 结果数量
+     */
+    int search(float[] query, int k, int ef, IntPredicate accept, int[] nodes, float[] scores) {
+        if (entryPoint < 0) {
+            return 0;
+        }
+        int current = entryPoint;
+        float currentScore = vectors.dot(current, query);
+        for (int l = maxLevel; l > 0; l--) {
+            int[] best = greedy(query, current, currentScore, l);
+            current = best[0];
+            currentScore = Float.intBitsToFloat(best[1]);
+        }
+        Heap results = searchLayer(query, current, currentScore, Math.max(ef, k), 0);
+        int size = results.size;
+        int[] sortedNodes = new int[size];
+        float[] sortedScores = new float[size];
+        // 最小堆依次弹出最不相似的节点, 倒序填充
+        for (int i = size - 1; i >= 0; i--) {
+            sortedScores[i] = results.topScore();
+            sortedNodes[i] = results.pop();
+        }
+        int n = 0;
+        for (int i = 0; i < size && n < k; i++) {
+            if (accept.test(sortedNodes[i])) {
+                nodes[n] = sortedNodes[i];
+                scores[n] = sortedScores[i];
+                n++;
+            }
+        }
+        return n;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return 插入过的最大序号加一, 之后的序号需要插入
+     */
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * 保存邻居关系的快照, 先写入临时文件再原子替换
+     *
+     * @param path 快照文件
+     */
+    void save(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(m);
+            out.writeInt(limit);
+            out.writeInt(count);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int node = 0; node < limit; node++) {
+                int[][] nodeLinks = links[node];
+                if (nodeLinks == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(nodeLinks.length);
+                for (int[] neighbors : nodeLinks) {
+                    out.writeInt(neighbors[0]);
+                    for (int i = 1; i <= neighbors[0]; i++) {
+                        out.writeInt(neighbors[i]);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 从快照恢复空的图. 快照不存在、格式或参数不一致、或者引用了不存在的向量时不恢复
+     *
+     * @param path     快照文件
+     * @param maxNodes 向量存储中的向量数量
+     * @return 是否恢复
+     */
+    boolean load(Path path, int maxNodes) throws IOException {
+        if (count != 0) {
+            throw new IllegalStateException("graph is not empty");
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != m) {
+                return false;
+            }
+            int savedLimit = in.readInt();
+            int savedCount = in.readInt();
+            int savedEntryPoint = in.readInt();
+            int savedMaxLevel = in.readInt();
+            if (savedLimit < 0 || savedLimit > maxNodes || savedEntryPoint >= savedLimit) {
+                return false;
+            }
+            int[][][] savedLinks = new int[Math.max(savedLimit, 1024)][][];
+            for (int node = 0; node < savedLimit; node++) {
+                int levels = in.readInt();
+                if (levels < 0) {
+                    continue;
+                }
+                int[][] nodeLinks = new int[levels][];
+                for (int level = 0; level < levels; level++) {
+                    int maxLinks = level == 0 ? maxM0 : m;
+                    int size = in.readInt();
+                    if (size < 0 || size > maxLinks) {
+                        return false;
+                    }
+                    int[] neighbors = new int[maxLinks + 1];
+                    neighbors[0] = size;
+                    for (int i = 1; i <= size; i++) {
+                        neighbors[i] = in.readInt();
+                        if (neighbors[i] < 0 || neighbors[i] >= savedLimit) {
+                            return false;
+                        }
+                    }
+                    nodeLinks[level] = neighbors;
+                }
+                savedLinks[node] = nodeLinks;
+            }
+            links = savedLinks;
+            limit = savedLimit;
+            count = savedCount;
+            entryPoint = savedEntryPoint;
+            maxLevel = savedMaxLevel;
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (EOFException e) {
+            // 快照不完整
+            return false;
+        }
+    }
+
+    /**
+     * 在上层贪心地移动到更相似的节点
+     *
+     * @return 节点和相似度(float 的位)
+     */
+    private int[] greedy(float[] query, int start, float startScore, int level) {
+        int current = start;
+        float currentScore = startScore;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] neighbors = links[current][level];
+            for (int i = 1; i <= neighbors[0]; i++) {
+                float score = vectors.dot(neighbors[i], query);
+                if (score > currentScore) {
+                    currentScore = score;
+                    current = neighbors[i];
+                    changed = true;
+                }
+            }
+        }
+        return new int[]{current, Float.floatToRawIntBits(currentScore)};
+    }
+
+    /**
+     * 在一层中做最好优先搜索
+     *
+     * @return 最多 ef 个结果的最小堆
+     */
+    private Heap searchLayer(float[] query, int start, float startScore, int ef, int level) {
+        Visited seen = visited.get();
+        seen.reset(links.length);
+        seen.add(start);
+        // 候选按相似度从高到低取出, 使用相似度取反的最小堆
+        Heap candidates = new Heap(ef * 2);
+        Heap results = new Heap(ef + 1);
+        candidates.push(start, -startScore);
+        results.push(start, startScore);
+        while (candidates.size > 0) {
+            float score = -candidates.topScore();
+            int node = candidates.pop();
+            if (results.size >= ef && score < results.topScore()) {
+                break;
+            }
+            int[][] nodeLinks = links[node];
+            if (nodeLinks == null || level >= nodeLinks.length) {
+                continue;
+            }
+            int[] neighbors = nodeLinks[level];
+            for (int i = 1; i <= neighbors[0]; i++) {
+                int neighbor = neighbors[i];
+                if (!seen.add(neighbor)) {
+                    continue;
+                }
+                float neighborScore = vectors.dot(neighbor, query);
+                if (results.size < ef || neighborScore > results.topScore()) {
+                    candidates.push(neighbor, -neighborScore);
+                    results.push(neighbor, neighborScore);
+                    if (results.size > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 启发式选择邻居: 按相似度从高到低, 只保留与查询比与已选邻居更相似的候选, 不足时用剩下的候选补齐
+     */
+    private int[] selectNeighbors(Heap candidates, int max) {
+        int size = candidates.size;
+        int[] nodes = new int[size];
+        float[] scores = new float[size];
+        Heap copy = candidates.copy();
+        for (int i = size - 1; i >= 0; i--) {
+            scores[i] = copy.topScore();
+            nodes[i] = copy.pop();
+        }
+        return select(nodes, scores, size, max);
+    }
+
+    private int[] select(int[] nodes, float[] scores, int size, int max) {
+        int[] selected = new int[Math.min(size, max)];
+        float[][] selectedVectors = new float[selected.length][];
+        boolean[] used = new boolean[size];
+        int n = 0;
+        for (int i = 0; i < size && n < selected.length; i++) {
+            float[] vector = vectors.get(nodes[i]);
+            boolean diverse = true;
+            for (int j = 0; j < n; j++) {
+                if (dot(vector, selectedVectors[j]) > scores[i]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selectedVectors[n] = vector;
+                selected[n++] = nodes[i];
+                used[i] = true;
+            }
+        }
+        for (int i = 0; i < size && n < selected.length; i++) {
+            if (!used[i]) {
+                selected[n++] = nodes[i];
+            }
+        }
+        return n == selected.length ? selected : Arrays.copyOf(selected, n);
+    }
+
+    /**
+     * 给邻居加上反向连接, 超过上限时重新选择邻居
+     */
+    private void connect(int node, int neighbor, int level, int maxLinks) {
+        int[] own = links[node][level];
+        if (own[0] < maxLinks) {
+            own[++own[0]] = neighbor;
+            return;
+        }
+        float[] vector = vectors.get(node);
+        int size = own[0] + 1;
+        int[] nodes = new int[size];
+        float[] scores = new float[size];
+        for (int i = 0; i < size - 1; i++) {
+            nodes[i] = own[i + 1];
+            scores[i] = vectors.dot(nodes[i], vector);
+        }
+        nodes[size - 1] = neighbor;
+        scores[size - 1] = vectors.dot(neighbor, vector);
+        sortDescending(nodes, scores);
+        int[] selected = select(nodes, scores, size, maxLinks);
+        own[0] = selected.length;
+        System.arraycopy(selected, 0, own, 1, selected.length);
+    }
+
+    private static void sortDescending(int[] nodes, float[] scores) {
+        for (int i = 1; i < nodes.length; i++) {
+            int node = nodes[i];
+            float score = scores[i];
+            int j = i - 1;
+            while (j >= 0 && scores[j] < score) {
+                nodes[j + 1] = nodes[j];
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            nodes[j + 1] = node;
+            scores[j + 1] = score;
+        }
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 按分数排序的最小堆
+     */
+    private static final class Heap {
+        private int[] nodes;
+
+        private float[] scores;
+
+        private int size;
+
+        private Heap(int capacity) {
+            this.nodes = new int[Math.max(capacity, 4)];
+            this.scores = new float[nodes.length];
+        }
+
+        private void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (scores[parent] <= score) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        private float topScore() {
+            return scores[0];
+        }
+
+        private int pop() {
+            int top = nodes[0];
+            int node = nodes[--size];
+            float score = scores[size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && scores[child + 1] < scores[child]) {
+                    child++;
+                }
+                if (score <= scores[child]) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+            return top;
+        }
+
+        private int bestNode() {
+            return nodes[bestIndex()];
+        }
+
+        private float bestScore() {
+            return scores[bestIndex()];
+        }
+
+        private int bestIndex() {
+            int best = 0;
+            for (int i = 1; i < size; i++) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        private Heap copy() {
+            Heap heap = new Heap(size);
+            System.arraycopy(nodes, 0, heap.nodes, 0, size);
+            System.arraycopy(scores, 0, heap.scores, 0, size);
+            heap.size = size;
+            return heap;
+        }
+    }
+
+    /**
+     * 可复用的访问标记, 每次查询只递增轮次, 不需要清空数组
+     */
+    private static final class Visited {
+        private int[] marks = new int[0];
+
+        private int epoch;
+
+        private void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[capacity];
+                epoch = 0;
+            }
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        private boolean add(int node) {
+            if (marks[node] == epoch) {
+                return false;
+            }
+            marks[node] = epoch;
+            return true;
+        }
+    }
+}
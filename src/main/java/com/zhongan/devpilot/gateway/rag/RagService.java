@@ -0,0 +1,282 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.rag.dto.RagIndexStatus;
+import com.zhongan.devpilot.gateway.rag.dto.RagIngestRequest;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchRequest;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import com.zhongan.devpilot.gateway.rag.lexical.LexicalIndexService;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+/**
+ * 仓库代码片段的向量检索
+ * <p>
+ * 每个仓库一个 {@link RepoIndex}, 第一次访问时打开. 向量接口的请求是异步的, 打开索引、写入和查询会读写文件或者计算大量内积,
+ * 放在 boundedElastic 线程上执行, 不占用事件循环线程. 后台线程定期压缩已删除片段过多的索引.
+ * <p>
+ * 写入的片段同时写入 {@link LexicalIndexService} 的倒排索引, 倒排索引不依赖向量接口, 向量接口失败时倒排索引仍然是最新的.
+ * 写入和删除会修改所有用户共享的索引, 只允许持有配置令牌的调用方(例如 CI 中的索引任务)执行.
+ */
+@Slf4j
+@Component
+public class RagService implements SmartLifecycle {
+    /**
+     * 仓库名称同时作为索引目录名, 只允许安全的字符
+     */
+    private static final Pattern REPO_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]{0,127}");
+
+    private static final String BEARER = "Bearer ";
+
+    private final AppCommonProperties.RagConfig config;
+
+    private final EmbeddingClient embeddingClient;
+
+    private final LexicalIndexService lexicalIndexService;
+
+    private final ObjectMapper mapper;
+
+    private final Path root;
+
+    private final Map<String, RepoIndex> indexes = new ConcurrentHashMap<>();
+
+    private final List<byte[]> ingestTokens = new ArrayList<>();
+
+    private volatile ScheduledExecutorService compactor;
+
+    public RagService(AppCommonProperties appCommonProperties, EmbeddingClient embeddingClient, LexicalIndexService lexicalIndexService) {
+        this.config = appCommonProperties.getRag();
+        this.embeddingClient = embeddingClient;
+        this.lexicalIndexService = lexicalIndexService;
+        this.mapper = JacksonMapper.sharedMapper().getMapper();
+        this.root = Path.of(config.getDirectory());
+        for (String token : config.getIngestTokens()) {
+            if (StringUtils.isNotBlank(token)) {
+                ingestTokens.add(token.trim().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * 写入和删除片段需要配置的令牌, 没有配置令牌时不允许写入
+     *
+     * @param authorization Authorization 请求头, 允许为 null
+     * @return 是否允许写入
+     */
+    public boolean isIngestAuthorized(String authorization) {
+        if (authorization == null || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        byte[] token = authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8);
+        boolean authorized = false;
+        for (byte[] ingestToken : ingestTokens) {
+            // 比较时间与令牌内容无关
+            authorized |= MessageDigest.isEqual(ingestToken, token);
+        }
+        return authorized;
+    }
+
+    /**
+     * @param repoName 仓库名称
+     * @return 仓库名称是否可以作为索引目录名
+     */
+    public static boolean isValidRepoName(String repoName) {
+        return repoName != null && REPO_NAME.matcher(repoName).matches() && !repoName.contains("..");
+    }
+
+    /**
+     * 写入仓库的代码片段
+     *
+     * @param repoName 仓库名称, 调用方需要校验
+     * @param request  写入请求
+     * @return 写入后的索引状态
+     */
+    public Mono<RagIndexStatus> ingest(String repoName, RagIngestRequest request) {
+        List<String> deletedPaths = request.getDeletedPaths() != null ? request.getDeletedPaths() : List.of();
+        List<RepoIndex.EmbeddedChunk> chunks = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        if (request.getFiles() != null) {
+            for (RagIngestRequest.FileChunks file : request.getFiles()) {
+                if (StringUtils.isBlank(file.getPath()) || file.getChunks() == null) {
+                    continue;
+                }
+                for (RagIngestRequest.Chunk chunk : file.getChunks()) {
+                    if (StringUtils.isBlank(chunk.getContent())) {
+                        continue;
+                    }
+                    chunks.add(new RepoIndex.EmbeddedChunk(file.getPath(), chunk.getStartLine(), chunk.getEndLine(), chunk.getContent(),
+                            null));
+                    // 路径也参与向量计算, 查询中提到文件名或者模块名时更容易命中
+                    texts.add(file.getPath() + "\n" + chunk.getContent());
+                }
+            }
+        }
+        Mono<Void> lexical = lexicalIndexService.isEnabled()
+                ? Mono.fromCallable(() -> {
+                    lexicalIndexService.apply(repoName, request);
+                    return true;
+                }).subscribeOn(Schedulers.boundedElastic()).then()
+                : Mono.empty();
+        return openIndex(repoName).flatMap(index -> {
+            index.beginIngest();
+            return lexical.then(embeddingClient.embed(texts))
+                    .flatMap(vectors -> Mono.fromCallable(() -> {
+                        List<RepoIndex.EmbeddedChunk> embedded = new ArrayList<>(chunks.size());
+                        for (int i = 0; i < chunks.size(); i++) {
+                            RepoIndex.EmbeddedChunk chunk = chunks.get(i);
+                            embedded.add(new RepoIndex.EmbeddedChunk(chunk.path(), chunk.startLine(), chunk.endLine(), chunk.content(),
+                                    vectors.get(i)));
+                        }
+                        index.apply(deletedPaths, embedded);
+                        return index.status();
+                    }).subscribeOn(Schedulers.boundedElastic()))
+                    .doFinally(signalType -> index.endIngest());
+        });
+    }
+
+    /**
+     * 检索与查询最相似的代码片段
+     *
+     * @param repoName 仓库名称, 调用方需要校验
+     * @param request  检索请求
+     * @return 按相似度从高到低的片段, 仓库没有索引时为空
+     */
+    public Mono<List<RagSearchResult>> search(String repoName, RagSearchRequest request) {
+        if (StringUtils.isBlank(request.getQuery()) || !exists(repoName)) {
+            return Mono.just(List.of());
+        }
+        int k = Math.min(Math.max(request.getTopK(), 1), config.getMaxTopK());
+        return openIndex(repoName).flatMap(index -> embeddingClient.embed(request.getQuery())
+                .flatMap(vector -> Mono.fromCallable(() -> index.search(vector, k)).subscribeOn(Schedulers.boundedElastic())));
+    }
+
+    /**
+     * 按标识符检索代码片段, 不需要请求向量接口
+     *
+     * @param repoName 仓库名称, 调用方需要校验
+     * @param request  检索请求
+     * @return 按 BM25 分数从高到低的片段, 仓库没有索引时为空
+     */
+    public Mono<List<RagSearchResult>> lexicalSearch(String repoName, RagSearchRequest request) {
+        if (!lexicalIndexService.isEnabled() || StringUtils.isBlank(request.getQuery()) || !exists(repoName)) {
+            return Mono.just(List.of());
+        }
+        int k = Math.min(Math.max(request.getTopK(), 1), config.getMaxTopK());
+        return Mono.fromCallable(() -> lexicalIndexService.search(repoName, request.getQuery(), k)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 查询仓库索引的状态, 仓库没有索引时不会创建
+     *
+     * @param repoName 仓库名称, 调用方需要校验
+     * @return 索引状态
+     */
+    public Mono<RagIndexStatus> status(String repoName) {
+        if (!exists(repoName)) {
+            RagIndexStatus status = new RagIndexStatus();
+            status.setRepoName(repoName);
+            return Mono.just(status);
+        }
+        return openIndex(repoName).flatMap(index -> Mono.fromCallable(() -> {
+            RagIndexStatus status = index.status();
+            lexicalIndexService.fillStatus(repoName, status);
+            return status;
+        }).subscribeOn(Schedulers.boundedElastic()));
+    }
+
+    private boolean exists(String repoName) {
+        return indexes.containsKey(repoName) || Files.isDirectory(root.resolve(repoName));
+    }
+
+    private Mono<RepoIndex> openIndex(String repoName) {
+        RepoIndex index = indexes.get(repoName);
+        if (index != null) {
+            return Mono.just(index);
+        }
+        // 打开索引需要重建近邻图, 同一个仓库只打开一次
+        return Mono.fromCallable(() -> indexes.computeIfAbsent(repoName, name -> {
+            try {
+                return RepoIndex.open(name, root.resolve(name), config, mapper);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        })).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private void compactAll() {
+        for (RepoIndex index : indexes.values()) {
+            try {
+                if (index.needsCompaction()) {
+                    index.compact();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("RagIndexCompactFailed", e);
+            }
+        }
+        lexicalIndexService.mergeAll();
+    }
+
+    @Override
+    public void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rag-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = config.getCompactionInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::compactAll, interval, interval, TimeUnit.MILLISECONDS);
+        compactor = executor;
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService executor = compactor;
+        if (executor == null) {
+            return;
+        }
+        compactor = null;
+        // 不中断正在进行的压缩, 中断会关闭正在写入的文件通道
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (RepoIndex index : indexes.values()) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                log.error("RagIndexCloseFailed", e);
+            }
+        }
+        indexes.clear();
+        lexicalIndexService.close();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return compactor != null;
+    }
+}
@@ -0,0 +1,503 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.rag.dto.RagIndexStatus;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 一个仓库的向量索引
+ * <p>
+ * 数据保存在仓库目录下的一代(generation)目录中: 向量分段文件、片段内容 {@code content.dat} 和片段元数据日志
+ * {@code chunks.ndjson}, {@code CURRENT} 文件记录当前使用的一代. 写入只追加: 删除文件时在日志中记录删除, 图中的节点保留,
+ * 查询时过滤. 已删除的片段比例过高时由后台压缩生成新的一代, 完成后切换 {@code CURRENT} 并删除旧的一代,
+ * 压缩期间查询继续使用旧的一代.
+ * <p>
+ * 近邻图在关闭索引和压缩完成时保存快照 {@code graph.hnsw}, 打开索引时从快照恢复, 只插入快照之后写入的片段;
+ * 没有快照或者快照无效时根据向量重建.
+ */
+@Slf4j
+final class RepoIndex implements Closeable {
+    private static final String CURRENT = "CURRENT";
+
+    private static final String GENERATION_PREFIX = "gen-";
+
+    private static final String GRAPH_FILE = "graph.hnsw";
+
+    private final String name;
+
+    private final Path root;
+
+    private final AppCommonProperties.RagConfig config;
+
+    private final ObjectMapper mapper;
+
+    /**
+     * 写入和压缩互斥
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final AtomicInteger pendingIngests = new AtomicInteger();
+
+    private volatile Generation current;
+
+    private volatile boolean compacting;
+
+    private volatile long lastUpdated;
+
+    private RepoIndex(String name, Path root, AppCommonProperties.RagConfig config, ObjectMapper mapper) {
+        this.name = name;
+        this.root = root;
+        this.config = config;
+        this.mapper = mapper;
+    }
+
+    /**
+     * 打开仓库索引, 不存在时创建
+     *
+     * @param name   仓库名称
+     * @param root   仓库目录
+     * @param config 配置
+     * @param mapper JSON 解析
+     * @return 仓库索引
+     */
+    static RepoIndex open(String name, Path root, AppCommonProperties.RagConfig config, ObjectMapper mapper) throws IOException {
+        Files.createDirectories(root);
+        RepoIndex index = new RepoIndex(name, root, config, mapper);
+        Path currentFile = root.resolve(CURRENT);
+        String generation = Files.exists(currentFile)
+                ? Files.readString(currentFile, StandardCharsets.UTF_8).trim() : GENERATION_PREFIX + "00000";
+        long start = System.nanoTime();
+        index.current = index.openGeneration(root.resolve(generation));
+        index.lastUpdated = System.currentTimeMillis();
+        // 压缩中断时遗留的目录
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, GENERATION_PREFIX + "*")) {
+            for (Path dir : stream) {
+                if (!dir.getFileName().toString().equals(generation)) {
+                    deleteRecursively(dir);
+                }
+            }
+        }
+        log.info("RagIndexOpened: {}, {} chunks, {} ms", name, index.current.live, (System.nanoTime() - start) / 1_000_000);
+        return index;
+    }
+
+    /**
+     * 删除文件并写入新的片段, 同一个文件的旧片段先被删除
+     *
+     * @param deletedPaths 删除的文件
+     * @param chunks       新的片段和向量
+     */
+    void apply(List<String> deletedPaths, List<EmbeddedChunk> chunks) throws IOException {
+        writeLock.lock();
+        try {
+            Generation generation = current;
+            for (String path : deletedPaths) {
+                generation.delete(path);
+            }
+            for (EmbeddedChunk chunk : chunks) {
+                generation.delete(chunk.path());
+            }
+            for (EmbeddedChunk chunk : chunks) {
+                generation.add(chunk.path(), chunk.startLine(), chunk.endLine(), chunk.content().getBytes(StandardCharsets.UTF_8),
+                        chunk.vector());
+            }
+            generation.flush();
+            lastUpdated = System.currentTimeMillis();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 查询最相似的片段
+     *
+     * @param query 查询向量
+     * @param k     结果数量
+     * @return 按相似度从高到低的片段
+     */
+    List<RagSearchResult> search(float[] query, int k) throws IOException {
+        Generation generation = current;
+        generation.lock.readLock().lock();
+        while (generation.closed) {
+            // 压缩刚刚切换到新的一代
+            generation.lock.readLock().unlock();
+            if (generation == current) {
+                throw new IOException("index closed: " + name);
+            }
+            generation = current;
+            generation.lock.readLock().lock();
+        }
+        try {
+            if (generation.store.dimensions() != 0 && query.length != generation.store.dimensions()) {
+                throw new IllegalArgumentException("dimensions mismatch: " + query.length + " != " + generation.store.dimensions());
+            }
+            float[] normalized = normalize(query);
+            int[] nodes = new int[k];
+            float[] scores = new float[k];
+            List<ChunkMeta> chunks = generation.chunks;
+            int n = generation.graph.search(normalized, k, Math.max(config.getEfSearch(), k * 2), node -> chunks.get(node) != null,
+                    nodes, scores);
+            List<RagSearchResult> results = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                ChunkMeta meta = generation.chunks.get(nodes[i]);
+                results.add(new RagSearchResult(meta.path(), meta.startLine(), meta.endLine(),
+                        new String(generation.readContent(meta), StandardCharsets.UTF_8), scores[i]));
+            }
+            return results;
+        } finally {
+            generation.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 已删除的片段比例是否超过压缩阈值
+     */
+    boolean needsCompaction() {
+        Generation generation = current;
+        int total = generation.live + generation.deleted;
+        return generation.deleted > 0 && generation.deleted >= total * config.getCompactionDeletedRatio();
+    }
+
+    /**
+     * 只保留有效的片段生成新的一代, 完成后切换
+     */
+    void compact() throws IOException {
+        writeLock.lock();
+        compacting = true;
+        long start = System.nanoTime();
+        try {
+            Generation old = current;
+            int number = Integer.parseInt(old.dir.getFileName().toString().substring(GENERATION_PREFIX.length())) + 1;
+            String generationName = GENERATION_PREFIX + String.format("%05d", number);
+            Generation next = openGeneration(root.resolve(generationName));
+            try {
+                for (int ordinal = 0; ordinal < old.chunks.size(); ordinal++) {
+                    ChunkMeta meta = old.chunks.get(ordinal);
+                    if (meta != null) {
+                        next.add(meta.path(), meta.startLine(), meta.endLine(), old.readContent(meta), old.store.get(ordinal));
+                    }
+                }
+                next.flush();
+                next.saveGraph();
+                Path tmp = root.resolve(CURRENT + ".tmp");
+                Files.writeString(tmp, generationName, StandardCharsets.UTF_8);
+                Files.move(tmp, root.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                next.close();
+                deleteRecursively(next.dir);
+                throw e;
+            }
+            current = next;
+            // 等待使用旧一代的查询结束
+            old.lock.writeLock().lock();
+            try {
+                old.close();
+            } finally {
+                old.lock.writeLock().unlock();
+            }
+            deleteRecursively(old.dir);
+            log.info("RagIndexCompacted: {}, {} -> {} chunks, {} ms", name, old.live + old.deleted, next.live,
+                    (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            compacting = false;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 标记开始写入, 用于写入状态
+     */
+    void beginIngest() {
+        pendingIngests.incrementAndGet();
+    }
+
+    void endIngest() {
+        pendingIngests.decrementAndGet();
+    }
+
+    RagIndexStatus status() {
+        Generation generation = current;
+        RagIndexStatus status = new RagIndexStatus();
+        status.setRepoName(name);
+        status.setEmbedded(generation.live > 0);
+        status.setPendingIngests(pendingIngests.get());
+        status.setCompacting(compacting);
+        status.setFiles(generation.byPath.size());
+        status.setChunks(generation.live);
+        status.setDeletedChunks(generation.deleted);
+        status.setDimensions(generation.store.dimensions());
+        status.setVectorBytes(generation.store.bytes());
+        status.setLastUpdated(lastUpdated);
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            current.saveGraph();
+            current.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Generation openGeneration(Path dir) throws IOException {
+        Generation generation = new Generation(dir, VectorStore.open(dir, config.getSegmentCapacity()));
+        generation.load();
+        return generation;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = vector[i] * scale;
+        }
+        return normalized;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * 写入索引的片段和向量
+     */
+    record EmbeddedChunk(String path, int startLine, int endLine, String content, float[] vector) {
+    }
+
+    /**
+     * 片段元数据, 内容保存在 content.dat 中
+     */
+    private record ChunkMeta(String path, int startLine, int endLine, long offset, int length) {
+    }
+
+    /**
+     * 一代索引数据
+     */
+    private final class Generation implements Closeable {
+        private final Path dir;
+
+        private final VectorStore store;
+
+        private final HnswGraph graph;
+
+        private final FileChannel content;
+
+        private final FileChannel metaLog;
+
+        /**
+         * 序号对应的片段, 已删除的为 null
+         */
+        private final List<ChunkMeta> chunks = new ArrayList<>();
+
+        private final Map<String, int[]> byPath = new HashMap<>();
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private int live;
+
+        private int deleted;
+
+        private volatile boolean closed;
+
+        private Generation(Path dir, VectorStore store) throws IOException {
+            this.dir = dir;
+            this.store = store;
+            this.graph = new HnswGraph(store, config.getM(), config.getEfConstruction());
+            this.content = FileChannel.open(dir.resolve("content.dat"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.metaLog = FileChannel.open(dir.resolve("chunks.ndjson"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * 回放元数据日志并恢复近邻图. 向量已写入但元数据没有写入的序号视为已删除
+         */
+        private void load() throws IOException {
+            long valid = 0;
+            try (BufferedReader reader = Files.newBufferedReader(dir.resolve("chunks.ndjson"), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonNode node;
+                    try {
+                        node = mapper.readTree(line);
+                    } catch (IOException e) {
+                        break;
+                    }
+                    if (node.has("delete")) {
+                        remove(node.get("delete").asText());
+                    } else {
+                        int ordinal = node.path("ordinal").asInt();
+                        if (ordinal >= store.size()) {
+                            break;
+                        }
+                        put(ordinal, new ChunkMeta(node.path("path").asText(), node.path("startLine").asInt(),
+                                node.path("endLine").asInt(), node.path("offset").asLong(), node.path("length").asInt()));
+                    }
+                    valid += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                }
+            }
+            if (valid < metaLog.size()) {
+                // 异常退出时最后一行可能不完整, 截断后继续追加
+                log.warn("RagIndexLogTruncated: {}, {} -> {} bytes", dir, metaLog.size(), valid);
+                metaLog.truncate(valid);
+            }
+            long start = System.nanoTime();
+            boolean restored = graph.load(dir.resolve(GRAPH_FILE), store.size());
+            int from = restored ? graph.limit() : 0;
+            for (int ordinal = from; ordinal < chunks.size(); ordinal++) {
+                if (chunks.get(ordinal) != null) {
+                    graph.add(ordinal);
+                }
+            }
+            log.info("RagGraphLoaded: {}, restored: {}, {} nodes inserted, {} ms", dir, restored, Math.max(chunks.size() - from, 0),
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+
+        /**
+         * 保存近邻图的快照, 失败时下次打开重新插入快照之后的片段或者重建
+         */
+        private void saveGraph() {
+            try {
+                graph.save(dir.resolve(GRAPH_FILE));
+            } catch (IOException e) {
+                log.warn("RagGraphSaveFailed: {}, {}", dir, e.toString());
+            }
+        }
+
+        private void add(String path, int startLine, int endLine, byte[] bytes, float[] vector) throws IOException {
+            long offset = content.size();
+            content.write(ByteBuffer.wrap(bytes), offset);
+            int ordinal = store.append(vector);
+            ChunkMeta meta = new ChunkMeta(path, startLine, endLine, offset, bytes.length);
+            ObjectNode node = mapper.createObjectNode();
+            node.put("ordinal", ordinal);
+            node.put("path", path);
+            node.put("startLine", startLine);
+            node.put("endLine", endLine);
+            node.put("offset", offset);
+            node.put("length", bytes.length);
+            appendLog(node);
+            lock.writeLock().lock();
+            try {
+                put(ordinal, meta);
+                graph.add(ordinal);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void delete(String path) throws IOException {
+            if (!byPath.containsKey(path)) {
+                return;
+            }
+            ObjectNode node = mapper.createObjectNode();
+            node.put("delete", path);
+            appendLog(node);
+            lock.writeLock().lock();
+            try {
+                remove(path);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void put(int ordinal, ChunkMeta meta) {
+            while (chunks.size() <= ordinal) {
+                chunks.add(null);
+            }
+            chunks.set(ordinal, meta);
+            int[] ordinals = byPath.get(meta.path());
+            if (ordinals == null) {
+                ordinals = new int[]{ordinal};
+            } else {
+                ordinals = Arrays.copyOf(ordinals, ordinals.length + 1);
+                ordinals[ordinals.length - 1] = ordinal;
+            }
+            byPath.put(meta.path(), ordinals);
+            live++;
+        }
+
+        private void remove(String path) {
+            int[] ordinals = byPath.remove(path);
+            if (ordinals == null) {
+                return;
+            }
+            for (int ordinal : ordinals) {
+                chunks.set(ordinal, null);
+            }
+            live -= ordinals.length;
+            deleted += ordinals.length;
+        }
+
+        private void appendLog(ObjectNode node) throws IOException {
+            byte[] line = (mapper.writeValueAsString(node) + "\n").getBytes(StandardCharsets.UTF_8);
+            metaLog.write(ByteBuffer.wrap(line), metaLog.size());
+        }
+
+        private byte[] readContent(ChunkMeta meta) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(meta.length());
+            long position = meta.offset();
+            while (buffer.hasRemaining()) {
+                int read = content.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            return buffer.array();
+        }
+
+        private void flush() throws IOException {
+            store.force();
+            content.force(false);
+            metaLog.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            store.close();
+            content.close();
+            metaLog.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 内存映射的向量分段文件
+ * <p>
+ * 向量按写入顺序编号(序号), 每个分段文件固定容纳 {@code segmentCapacity} 个向量, 写满后创建新的分段. 分段头部依次为
+ * 魔数、维度、容量和已写入的数量, 写入时先写向量再更新数量, 进程异常退出时最多丢失最后一个向量.
+ * 向量写入前归一化, 余弦相似度即为内积. 数据在堆外, 由操作系统的页缓存管理.
+ * <p>
+ * 写入需要由调用方串行化, 读取可以与写入并发.
+ */
+final class VectorStore implements Closeable {
+    private static final int MAGIC = 0x44505653;
+
+    private static final int HEADER_FLOATS = 4;
+
+    private static final int HEADER_BYTES = HEADER_FLOATS * Float.BYTES;
+
+    private static final String PREFIX = "vectors-";
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+
+    private final int segmentCapacity;
+
+    private final List<FileChannel> channels = new ArrayList<>();
+
+    private final List<MappedByteBuffer> buffers = new ArrayList<>();
+
+    private volatile FloatBuffer[] segments = new FloatBuffer[0];
+
+    private volatile int dimensions;
+
+    private volatile int size;
+
+    private VectorStore(Path directory, int segmentCapacity) {
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+    }
+
+    /**
+     * 打开目录中的分段文件, 不存在时创建目录
+     *
+     * @param directory       目录
+     * @param segmentCapacity 每个分段的向量数量
+     * @return 向量存储
+     */
+    static VectorStore open(Path directory, int segmentCapacity) throws IOException {
+        Files.createDirectories(directory);
+        VectorStore store = new VectorStore(directory, segmentCapacity);
+        for (int i = 0; ; i++) {
+            Path path = store.segmentPath(i);
+            if (!Files.exists(path)) {
+                break;
+            }
+            int count = store.map(path, 0);
+            store.size = i * segmentCapacity + count;
+            if (count < segmentCapacity) {
+                break;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * 追加一个向量
+     *
+     * @param vector 向量, 不会被修改
+     * @return 序号
+     */
+    int append(float[] vector) throws IOException {
+        if (dimensions == 0) {
+            dimensions = vector.length;
+        } else if (vector.length != dimensions) {
+            throw new IllegalArgumentException("dimensions mismatch: " + vector.length + " != " + dimensions);
+        }
+        int ordinal = size;
+        int segment = ordinal / segmentCapacity;
+        if (segment == segments.length) {
+            map(segmentPath(segment), dimensions);
+        }
+        FloatBuffer floats = segments[segment];
+        int offset = HEADER_FLOATS + (ordinal % segmentCapacity) * dimensions;
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+        for (int i = 0; i < dimensions; i++) {
+            floats.put(offset + i, vector[i] * scale);
+        }
+        buffers.get(segment).putInt(12, ordinal % segmentCapacity + 1);
+        size = ordinal + 1;
+        return ordinal;
+    }
+
+    /**
+     * 计算向量与查询向量的内积
+     *
+     * @param ordinal 序号
+     * @param query   归一化的查询向量
+     * @return 余弦相似度
+     */
+    float dot(int ordinal, float[] query) {
+        FloatBuffer floats = segments[ordinal / segmentCapacity];
+        int offset = HEADER_FLOATS + (ordinal % segmentCapacity) * dimensions;
+        // 四路累加, 减少循环中浮点加法的依赖链
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (int bound = query.length - 3; i < bound; i += 4) {
+            s0 += floats.get(offset + i) * query[i];
+            s1 += floats.get(offset + i + 1) * query[i + 1];
+            s2 += floats.get(offset + i + 2) * query[i + 2];
+            s3 += floats.get(offset + i + 3) * query[i + 3];
+        }
+        for (; i < query.length; i++) {
+            s0 += floats.get(offset + i) * query[i];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * @param ordinal 序号
+     * @return 归一化的向量
+     */
+    float[] get(int ordinal) {
+        float[] vector = new float[dimensions];
+        FloatBuffer floats = segments[ordinal / segmentCapacity];
+        floats.get(HEADER_FLOATS + (ordinal % segmentCapacity) * dimensions, vector);
+        return vector;
+    }
+
+    /**
+     * 把已经写入的向量刷到磁盘
+     */
+    void force() {
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.force();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return 分段文件占用的字节数
+     */
+    long bytes() {
+        return (long) segments.length * (HEADER_BYTES + (long) segmentCapacity * dimensions * Float.BYTES);
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(PREFIX + String.format("%05d", segment) + SUFFIX);
+    }
+
+    /**
+     * 映射分段文件
+     *
+     * @param path       路径
+     * @param dimensions 新建分段时的维度, 打开已有分段时为 0
+     * @return 分段中已写入的向量数量
+     */
+    private int map(Path path, int dimensions) throws IOException {
+        boolean create = dimensions > 0;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int dim = dimensions;
+        int count = 0;
+        if (!create) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(8) != segmentCapacity) {
+                channel.close();
+                throw new IOException("invalid vector segment: " + path);
+            }
+            dim = header.getInt(4);
+            count = header.getInt(12);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) segmentCapacity * dim * Float.BYTES);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (create) {
+            buffer.putInt(0, MAGIC).putInt(4, dim).putInt(8, segmentCapacity).putInt(12, 0);
+        }
+        this.dimensions = dim;
+        channels.add(channel);
+        buffers.add(buffer);
+        FloatBuffer[] next = Arrays.copyOf(segments, segments.length + 1);
+        next[segments.length] = buffer.asFloatBuffer();
+        segments = next;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.zhongan.devpilot.gateway.rag.dto;
+
+import lombok.Data;
+
+/**
+ * 仓库向量索引的状态
+ */
+@Data
+public class RagIndexStatus {
+    /**
+     * 仓库名称
+     */
+    private String repoName;
+
+    /**
+     * 是否已经有可以检索的片段
+     */
+    private boolean embedded;
+
+    /**
+     * 正在写入的请求数量
+     */
+    private int pendingIngests;
+
+    /**
+     * 是否正在压缩
+     */
+    private boolean compacting;
+
+    /**
+     * 文件数量
+     */
+    private int files;
+
+    /**
+     * 可以检索的片段数量
+     */
+    private int chunks;
+
+    /**
+     * 已删除但还没有压缩的片段数量
+     */
+    private int deletedChunks;
+
+    /**
+     * 向量维度
+     */
+    private int dimensions;
+
+    /**
+     * 向量分段文件占用的字节数
+     */
+    private long vectorBytes;
+
+    /**
+     * 倒排索引中可以检索的片段数量
+     */
+    private int lexicalDocs;
+
+    /**
+     * 倒排索引的分段数量
+     */
+    private int lexicalSegments;
+
+    /**
+     * 倒排索引分段文件占用的字节数
+     */
+    private long lexicalBytes;
+
+    /**
+     * 最后一次写入的时间, 毫秒
+     */
+    private long lastUpdated;
+}
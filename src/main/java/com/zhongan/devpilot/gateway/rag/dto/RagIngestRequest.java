@@ -0,0 +1,54 @@
+package com.zhongan.devpilot.gateway.rag.dto;
+
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * 仓库代码片段的增量写入请求
+ * <p>
+ * 同一个文件的片段整体替换, 写入文件时先删除这个文件之前的片段.
+ */
+@Data
+public class RagIngestRequest {
+    /**
+     * 新增或者修改的文件
+     */
+    private List<FileChunks> files;
+
+    /**
+     * 删除的文件路径
+     */
+    private List<String> deletedPaths;
+
+    @Data
+    public static class FileChunks {
+        /**
+         * 文件在仓库中的相对路径
+         */
+        private String path;
+
+        /**
+         * 文件切分后的代码片段
+         */
+        private List<Chunk> chunks;
+    }
+
+    @Data
+    public static class Chunk {
+        /**
+         * 起始行, 从 1 开始
+         */
+        private int startLine;
+
+        /**
+         * 结束行, 包含
+         */
+        private int endLine;
+
+        /**
+         * 片段内容
+         */
+        private String content;
+    }
+}
@@ -0,0 +1,19 @@
+package com.zhongan.devpilot.gateway.rag.dto;
+
+import lombok.Data;
+
+/**
+ * 仓库代码片段的检索请求
+ */
+@Data
+public class RagSearchRequest {
+    /**
+     * 查询文本
+     */
+    private String query;
+
+    /**
+     * 返回的片段数量
+     */
+    private int topK = 10;
+}
@@ -0,0 +1,36 @@
+package com.zhongan.devpilot.gateway.rag.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 检索到的代码片段
+ */
+@Data
+@AllArgsConstructor
+public class RagSearchResult {
+    /**
+     * 文件在仓库中的相对路径
+     */
+    private String path;
+
+    /**
+     * 起始行
+     */
+    private int startLine;
+
+    /**
+     * 结束行
+     */
+    private int endLine;
+
+    /**
+     * 片段内容
+     */
+    private String content;
+
+    /**
+     * 与查询的余弦相似度
+     */
+    private float score;
+}
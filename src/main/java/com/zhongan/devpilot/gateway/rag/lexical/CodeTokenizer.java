@@ -0,0 +1,198 @@
+package com.zhongan.devpilot.gateway.rag.lexical;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 面向代码的分词
+ * <p>
+ * 只提取标识符, 字符串、数字和符号都忽略. 标识符按 camelCase、snake_case 拆分成子词, 例如 {@code parseHttpHeader} 输出
+ * 完整的 {@code parsehttpheader} 和 {@code parse}、{@code http}、{@code header}, {@code HTTPServer} 拆分为
+ * {@code http}、{@code server}. 所有词都转为小写, 不同命名风格的同一个符号得到相同的词.
+ * <p>
+ * 语言关键字单独处理: 加上 {@link #KEYWORD_PREFIX} 前缀, 不与标识符的子词混在一起, 避免 {@code isReturn} 的子词
+ * {@code return} 的文档频率被关键字放大.
+ */
+public final class CodeTokenizer {
+    /**
+     * 关键字词项的前缀, 不会出现在标识符中
+     */
+    public static final String KEYWORD_PREFIX = "#";
+
+    /**
+     * 常见语言的关键字和字面量, 大小写敏感
+     */
+    private static final Set<String> KEYWORDS = Set.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const", "continue", "default",
+            "do", "double", "else", "enum", "extends", "final", "finally", "float", "for", "goto", "if", "implements", "import",
+            "instanceof", "int", "interface", "long", "native", "new", "package", "private", "protected", "public", "return",
+            "short", "static", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void",
+            "volatile", "while", "true", "false", "null", "var", "let", "function", "async", "await", "yield", "export",
+            "typeof", "undefined", "def", "elif", "except", "lambda", "pass", "raise", "with", "None", "True", "False", "self",
+            "fun", "val", "when", "func", "defer", "chan", "struct", "nil", "fallthrough", "override", "internal", "sealed",
+            "data", "companion", "readonly", "declare", "namespace", "module", "require", "using", "virtual", "delete",
+            "unsigned", "signed", "sizeof", "typedef", "extern", "inline", "register", "union", "auto", "mut", "impl", "trait",
+            "pub", "crate", "where", "loop", "match", "elsif", "unless", "until", "end", "begin", "then", "fi", "done", "esac");
+
+    /**
+     * 长度小于这个值的子词不输出, 单个字母没有区分度
+     */
+    private static final int MIN_TERM_LENGTH = 2;
+
+    /**
+     * 超长的标识符通常是生成的代码或者编码后的数据
+     */
+    private static final int MAX_IDENTIFIER_LENGTH = 128;
+
+    private CodeTokenizer() {
+    }
+
+    /**
+     * 依次输出文本中的词
+     *
+     * @param text     文本
+     * @param start    开始位置(包含)
+     * @param end      结束位置(不包含)
+     * @param consumer 接收词
+     */
+    public static void tokenize(CharSequence text, int start, int end, TermConsumer consumer) {
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (!isIdentifierStart(c)) {
+                // 数字及其后面的字母(例如 0x1F、10L)整体跳过
+                if (Character.isDigit(c)) {
+                    while (i < end && isIdentifierPart(text.charAt(i))) {
+                        i++;
+                    }
+                } else {
+                    i++;
+                }
+                continue;
+            }
+            int identifierStart = i;
+            while (i < end && isIdentifierPart(text.charAt(i))) {
+                i++;
+            }
+            if (i - identifierStart <= MAX_IDENTIFIER_LENGTH) {
+                identifier(text, identifierStart, i, consumer);
+            }
+        }
+    }
+
+    /**
+     * @return 常见语言的关键字和字面量
+     */
+    public static Set<String> keywords() {
+        return KEYWORDS;
+    }
+
+    /**
+     * @param term 词
+     * @return 是否为关键字词项
+     */
+    public static boolean isKeyword(String term) {
+        return term.startsWith(KEYWORD_PREFIX);
+    }
+
+    private static void identifier(CharSequence text, int start, int end, TermConsumer consumer) {
+        String identifier = text.subSequence(start, end).toString();
+        if (KEYWORDS.contains(identifier)) {
+            consumer.accept(KEYWORD_PREFIX + identifier, start, Kind.KEYWORD);
+            return;
+        }
+        String whole = normalize(identifier.toLowerCase(Locale.ROOT));
+        List<String> subwords = new ArrayList<>(4);
+        int partStart = -1;
+        for (int i = start; i <= end; i++) {
+            if (i < end && partStart >= 0 && !isBoundary(text, i, end)) {
+                continue;
+            }
+            if (partStart >= 0 && i - partStart >= MIN_TERM_LENGTH) {
+                subwords.add(text.subSequence(partStart, i).toString().toLowerCase(Locale.ROOT));
+            }
+            partStart = i < end && !isSeparator(text.charAt(i)) ? i : -1;
+        }
+        if (whole.length() >= MIN_TERM_LENGTH) {
+            consumer.accept(whole, start, Kind.IDENTIFIER);
+        }
+        // 只有一个子词时就是完整的标识符
+        if (subwords.size() > 1 || subwords.size() == 1 && !subwords.get(0).equals(whole)) {
+            for (String subword : subwords) {
+                consumer.accept(subword, start, Kind.SUBWORD);
+            }
+        }
+    }
+
+    /**
+     * 在位置 i 之前是否需要拆分
+     */
+    private static boolean isBoundary(CharSequence text, int i, int end) {
+        char c = text.charAt(i);
+        if (isSeparator(c)) {
+            return true;
+        }
+        char previous = text.charAt(i - 1);
+        if (!Character.isUpperCase(c)) {
+            return false;
+        }
+        // parseJson: 小写或数字后面的大写字母
+        if (Character.isLowerCase(previous) || Character.isDigit(previous)) {
+            return true;
+        }
+        // HTTPServer: 连续大写后面跟小写时, 最后一个大写字母属于下一个子词
+        return Character.isUpperCase(previous) && i + 1 < end && Character.isLowerCase(text.charAt(i + 1));
+    }
+
+    private static String normalize(String lower) {
+        // snake_case 和 camelCase 写法的同一个符号使用相同的词
+        return lower.indexOf('_') < 0 && lower.indexOf('$') < 0 ? lower : lower.replace("_", "").replace("$", "");
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '_' || c == '$';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * 词的类型
+     */
+    public enum Kind {
+        /**
+         * 语言关键字
+         */
+        KEYWORD,
+
+        /**
+         * 完整的标识符
+         */
+        IDENTIFIER,
+
+        /**
+         * 标识符拆分后的子词
+         */
+        SUBWORD
+    }
+
+    /**
+     * 接收分词结果
+     */
+    @FunctionalInterface
+    public interface TermConsumer {
+        /**
+         * @param term   词, 小写
+         * @param offset 所在标识符在文本中的位置
+         * @param kind   类型
+         */
+        void accept(String term, int offset, Kind kind);
+    }
+}
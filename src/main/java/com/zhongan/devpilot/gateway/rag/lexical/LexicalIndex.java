@@ -0,0 +1,573 @@
+package com.zhongan.devpilot.gateway.rag.lexical;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 一个仓库的 BM25 倒排索引
+ * <p>
+ * 每次写入生成一个不可变的 {@link LexicalSegment}, 删除记录在 {@code deletes.ndjson} 中: 一条记录删除编号小于
+ * {@code segment} 的分段中对应路径的文档, 重新写入同一个文件时旧的片段随之删除. 分段过多或者已删除的文档比例过高时合并为一个分段,
+ * 合并后的分段记录被合并的最大编号, 合并中断时遗留的旧分段在打开时删除.
+ * <p>
+ * 查询使用 MaxScore: 按每个词的分数上界把词分为必要和非必要两组, 只从必要的词中产生候选文档, 非必要的词只在候选文档的分数
+ * 可能进入前 k 个时才跳表定位, 常见的词不需要完整遍历倒排表.
+ */
+@Slf4j
+final class LexicalIndex implements Closeable {
+    private static final String SEGMENT_PREFIX = "seg-";
+
+    private static final String SEGMENT_SUFFIX = ".lex";
+
+    private static final String DELETES = "deletes.ndjson";
+
+    /**
+     * 每处理这么多候选文档检查一次截止时间
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    private final String name;
+
+    private final Path dir;
+
+    private final AppCommonProperties.LexicalConfig config;
+
+    private final ObjectMapper mapper;
+
+    /**
+     * 写入和合并互斥
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * 查询与分段列表、删除位图的修改互斥
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final FileChannel deleteLog;
+
+    private volatile List<LexicalSegment> segments = new ArrayList<>();
+
+    private int nextNumber;
+
+    private volatile boolean closed;
+
+    private LexicalIndex(String name, Path dir, AppCommonProperties.LexicalConfig config, ObjectMapper mapper) throws IOException {
+        this.name = name;
+        this.dir = dir;
+        this.config = config;
+        this.mapper = mapper;
+        this.deleteLog = FileChannel.open(dir.resolve(DELETES), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * 打开仓库的倒排索引, 不存在时创建
+     *
+     * @param name   仓库名称
+     * @param dir    索引目录
+     * @param config 配置
+     * @param mapper JSON 解析
+     * @return 倒排索引
+     */
+    static LexicalIndex open(String name, Path dir, AppCommonProperties.LexicalConfig config, ObjectMapper mapper) throws IOException {
+        Files.createDirectories(dir);
+        LexicalIndex index = new LexicalIndex(name, dir, config, mapper);
+        try {
+            index.load();
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+        return index;
+    }
+
+    private void load() throws IOException {
+        List<LexicalSegment> opened = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                if (fileName.endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                } else if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)) {
+                    int number = Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                    opened.add(LexicalSegment.open(path, number));
+                }
+            }
+        }
+        opened.sort(Comparator.comparingInt(LexicalSegment::number));
+        int mergedUpTo = -1;
+        for (LexicalSegment segment : opened) {
+            mergedUpTo = Math.max(mergedUpTo, segment.mergedUpTo());
+        }
+        List<LexicalSegment> live = new ArrayList<>(opened.size());
+        for (LexicalSegment segment : opened) {
+            if (segment.number() <= mergedUpTo) {
+                // 合并完成但还没有删除的旧分段
+                Files.deleteIfExists(segment.path());
+            } else {
+                live.add(segment);
+            }
+        }
+        nextNumber = live.isEmpty() ? mergedUpTo + 1 : live.get(live.size() - 1).number() + 1;
+        long valid = 0;
+        try (BufferedReader reader = Files.newBufferedReader(dir.resolve(DELETES), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonNode node;
+                try {
+                    node = mapper.readTree(line);
+                } catch (IOException e) {
+                    break;
+                }
+                int number = node.path("segment").asInt();
+                for (JsonNode path : node.path("paths")) {
+                    delete(live, number, path.asText());
+                }
+                nextNumber = Math.max(nextNumber, number);
+                valid += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+        if (valid < deleteLog.size()) {
+            log.warn("LexicalIndexLogTruncated: {}, {} -> {} bytes", dir, deleteLog.size(), valid);
+            deleteLog.truncate(valid);
+        }
+        segments = live;
+    }
+
+    /**
+     * 删除文件并写入新的片段, 同一个文件的旧片段先被删除
+     *
+     * @param deletedPaths 删除的文件
+     * @param docs         新的片段
+     */
+    void apply(List<String> deletedPaths, List<LexicalSegment.Doc> docs) throws IOException {
+        writeLock.lock();
+        try {
+            int number = nextNumber++;
+            LexicalSegment segment = null;
+            if (!docs.isEmpty()) {
+                Path path = segmentPath(number);
+                LexicalSegment.write(path, docs, -1);
+                segment = LexicalSegment.open(path, number);
+            }
+            Set<String> paths = new LinkedHashSet<>(deletedPaths);
+            for (LexicalSegment.Doc doc : docs) {
+                paths.add(doc.path());
+            }
+            List<LexicalSegment> current = segments;
+            paths.removeIf(path -> current.stream().noneMatch(existing -> existing.contains(path)));
+            if (!paths.isEmpty()) {
+                ObjectNode node = mapper.createObjectNode();
+                node.put("segment", number);
+                ArrayNode array = node.putArray("paths");
+                paths.forEach(array::add);
+                byte[] line = (mapper.writeValueAsString(node) + "\n").getBytes(StandardCharsets.UTF_8);
+                deleteLog.write(ByteBuffer.wrap(line), deleteLog.size());
+                deleteLog.force(false);
+            }
+            lock.writeLock().lock();
+            try {
+                for (String path : paths) {
+                    delete(current, number, path);
+                }
+                if (segment != null) {
+                    List<LexicalSegment> next = new ArrayList<>(current);
+                    next.add(segment);
+                    segments = next;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void delete(List<LexicalSegment> segments, int number, String path) {
+        for (LexicalSegment segment : segments) {
+            if (segment.number() < number) {
+                segment.delete(path);
+            }
+        }
+    }
+
+    /**
+     * BM25 top-k 查询
+     *
+     * @param terms    查询的词, 调用方去重
+     * @param weights  每个词的权重
+     * @param k        结果数量
+     * @param exclude  排除的文件路径, 可以为 null
+     * @param deadline 截止时间({@link System#nanoTime()}), 到期后返回已经找到的结果, 为 0 时不限制
+     * @return 按分数从高到低的片段
+     */
+    List<RagSearchResult> search(List<String> terms, float[] weights, int k, Predicate<String> exclude, long deadline) {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return List.of();
+            }
+            List<LexicalSegment> current = segments;
+            long liveDocs = 0;
+            long liveLength = 0;
+            for (LexicalSegment segment : current) {
+                liveDocs += segment.liveDocs();
+                liveLength += segment.liveLength();
+            }
+            if (liveDocs == 0) {
+                return List.of();
+            }
+            float avgLength = (float) liveLength / liveDocs;
+            byte[][] termBytes = new byte[terms.size()][];
+            long[] docFreqs = new long[terms.size()];
+            int[][] ordinals = new int[current.size()][terms.size()];
+            for (int t = 0; t < terms.size(); t++) {
+                termBytes[t] = terms.get(t).getBytes(StandardCharsets.UTF_8);
+                for (int s = 0; s < current.size(); s++) {
+                    int ordinal = current.get(s).findTerm(termBytes[t]);
+                    ordinals[s][t] = ordinal;
+                    if (ordinal >= 0) {
+                        docFreqs[t] += current.get(s).docFreq(ordinal);
+                    }
+                }
+            }
+            float[] idf = new float[terms.size()];
+            for (int t = 0; t < terms.size(); t++) {
+                // 文档频率包含已删除的文档, 可能大于有效的文档数量
+                long n = Math.max(liveDocs, docFreqs[t]);
+                idf[t] = (float) Math.log(1 + (n - docFreqs[t] + 0.5) / (docFreqs[t] + 0.5)) * weights[t];
+            }
+            TopDocs top = new TopDocs(k);
+            // 新的分段更可能包含最近修改的文件, 先查询可以更早提高阈值
+            for (int s = current.size() - 1; s >= 0; s--) {
+                if (!searchSegment(current.get(s), s, ordinals[s], idf, avgLength, exclude, deadline, top)) {
+                    log.debug("LexicalSearchDeadline: {}, {} segments left", name, s);
+                    break;
+                }
+            }
+            RagSearchResult[] results = new RagSearchResult[top.size];
+            // 最小堆依次弹出最低分, 倒序填充
+            for (int i = top.size - 1; i >= 0; i--) {
+                float score = top.topScore();
+                long packed = top.pop();
+                LexicalSegment segment = current.get((int) (packed >>> 32));
+                int doc = (int) packed;
+                results[i] = new RagSearchResult(segment.docPath(doc), segment.startLine(doc), segment.endLine(doc),
+                        segment.content(doc), score);
+            }
+            return Arrays.asList(results);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * MaxScore 查询一个分段
+     *
+     * @return 是否在截止时间前完成
+     */
+    private boolean searchSegment(LexicalSegment segment, int segmentIndex, int[] ordinals, float[] idf, float avgLength,
+                                  Predicate<String> exclude, long deadline, TopDocs top) {
+        float k1 = (float) config.getK1();
+        float b = (float) config.getB();
+        int n = 0;
+        for (int ordinal : ordinals) {
+            if (ordinal >= 0) {
+                n++;
+            }
+        }
+        if (n == 0) {
+            return true;
+        }
+        LexicalSegment.PostingCursor[] cursors = new LexicalSegment.PostingCursor[n];
+        float[] termIdf = new float[n];
+        float[] bounds = new float[n];
+        n = 0;
+        for (int t = 0; t < ordinals.length; t++) {
+            if (ordinals[t] < 0) {
+                continue;
+            }
+            cursors[n] = segment.cursor(ordinals[t]);
+            termIdf[n] = idf[t];
+            // 词频越高、文档越短分数越高, 用最大词频和最短文档计算上界
+            int maxTf = segment.maxTf(ordinals[t]);
+            float norm = k1 * (1 - b + b * segment.minLength(ordinals[t]) / avgLength);
+            bounds[n] = idf[t] * maxTf * (k1 + 1) / (maxTf + norm);
+            n++;
+        }
+        // 按上界从小到大排序, 前缀和小于阈值的词为非必要的词
+        sortByBound(cursors, termIdf, bounds, n);
+        float[] prefix = new float[n];
+        float sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += bounds[i];
+            prefix[i] = sum;
+        }
+        float threshold = top.threshold();
+        int essential = 0;
+        while (essential < n && prefix[essential] <= threshold) {
+            essential++;
+        }
+        for (int i = essential; i < n; i++) {
+            cursors[i].nextDoc();
+        }
+        int candidates = 0;
+        while (essential < n) {
+            int doc = LexicalSegment.NO_MORE_DOCS;
+            for (int i = essential; i < n; i++) {
+                doc = Math.min(doc, cursors[i].doc());
+            }
+            if (doc == LexicalSegment.NO_MORE_DOCS) {
+                break;
+            }
+            if (++candidates % DEADLINE_CHECK_INTERVAL == 0 && deadline != 0 && System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            float norm = k1 * (1 - b + b * segment.docLength(doc) / avgLength);
+            float score = 0;
+            for (int i = essential; i < n; i++) {
+                LexicalSegment.PostingCursor cursor = cursors[i];
+                if (cursor.doc() == doc) {
+                    score += termIdf[i] * cursor.freq() * (k1 + 1) / (cursor.freq() + norm);
+                    cursor.nextDoc();
+                }
+            }
+            for (int i = essential - 1; i >= 0 && score + prefix[i] > threshold; i--) {
+                LexicalSegment.PostingCursor cursor = cursors[i];
+                if (cursor.advance(doc) == doc) {
+                    score += termIdf[i] * cursor.freq() * (k1 + 1) / (cursor.freq() + norm);
+                }
+            }
+            if (score <= threshold || segment.isDeleted(doc) || exclude != null && exclude.test(segment.docPath(doc))) {
+                continue;
+            }
+            top.add(((long) segmentIndex << 32) | doc, score);
+            float next = top.threshold();
+            if (next > threshold) {
+                threshold = next;
+                // 阈值提高后更多的词变为非必要的词, 不再从它们产生候选
+                while (essential < n && prefix[essential] <= threshold) {
+                    essential++;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void sortByBound(LexicalSegment.PostingCursor[] cursors, float[] idf, float[] bounds, int n) {
+        for (int i = 1; i < n; i++) {
+            LexicalSegment.PostingCursor cursor = cursors[i];
+            float termIdf = idf[i];
+            float bound = bounds[i];
+            int j = i - 1;
+            while (j >= 0 && bounds[j] > bound) {
+                cursors[j + 1] = cursors[j];
+                idf[j + 1] = idf[j];
+                bounds[j + 1] = bounds[j];
+                j--;
+            }
+            cursors[j + 1] = cursor;
+            idf[j + 1] = termIdf;
+            bounds[j + 1] = bound;
+        }
+    }
+
+    /**
+     * @return 是否需要合并分段
+     */
+    boolean needsMerge() {
+        List<LexicalSegment> current = segments;
+        int docs = 0;
+        int deleted = 0;
+        for (LexicalSegment segment : current) {
+            docs += segment.docCount();
+            deleted += segment.deletedDocs();
+        }
+        return current.size() > config.getMaxSegments() || deleted > 0 && deleted >= docs * config.getMergeDeletedRatio();
+    }
+
+    /**
+     * 把所有分段中有效的文档合并为一个分段
+     */
+    void merge() throws IOException {
+        writeLock.lock();
+        long start = System.nanoTime();
+        try {
+            List<LexicalSegment> old = segments;
+            if (old.isEmpty()) {
+                return;
+            }
+            List<LexicalSegment.Doc> docs = new ArrayList<>();
+            for (LexicalSegment segment : old) {
+                for (int doc = 0; doc < segment.docCount(); doc++) {
+                    if (!segment.isDeleted(doc)) {
+                        docs.add(new LexicalSegment.Doc(segment.docPath(doc), segment.startLine(doc), segment.endLine(doc),
+                                segment.content(doc)));
+                    }
+                }
+            }
+            int number = nextNumber++;
+            int mergedUpTo = old.get(old.size() - 1).number();
+            List<LexicalSegment> next = new ArrayList<>(1);
+            if (!docs.isEmpty()) {
+                Path path = segmentPath(number);
+                LexicalSegment.write(path, docs, mergedUpTo);
+                next.add(LexicalSegment.open(path, number));
+            }
+            lock.writeLock().lock();
+            try {
+                segments = next;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (LexicalSegment segment : old) {
+                Files.deleteIfExists(segment.path());
+            }
+            // 旧的删除记录只作用于已经删除的分段
+            deleteLog.truncate(0);
+            log.info("LexicalIndexMerged: {}, {} segments -> {} docs, {} ms", name, old.size(), docs.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    int liveDocs() {
+        int docs = 0;
+        for (LexicalSegment segment : segments) {
+            docs += segment.liveDocs();
+        }
+        return docs;
+    }
+
+    long bytes() {
+        long bytes = 0;
+        for (LexicalSegment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    private Path segmentPath(int number) {
+        return dir.resolve(SEGMENT_PREFIX + String.format("%05d", number) + SEGMENT_SUFFIX);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            segments = List.of();
+            deleteLog.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 前 k 个结果的最小堆, 文档为分段下标(高 32 位)和文档编号(低 32 位)
+     */
+    private static final class TopDocs {
+        private final long[] docs;
+
+        private final float[] scores;
+
+        private int size;
+
+        private TopDocs(int k) {
+            this.docs = new long[Math.max(k, 1)];
+            this.scores = new float[docs.length];
+        }
+
+        /**
+         * @return 进入前 k 个需要超过的分数
+         */
+        private float threshold() {
+            return size < docs.length ? 0 : scores[0];
+        }
+
+        private float topScore() {
+            return scores[0];
+        }
+
+        private void add(long doc, float score) {
+            if (size < docs.length) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (scores[parent] <= score) {
+                        break;
+                    }
+                    docs[i] = docs[parent];
+                    scores[i] = scores[parent];
+                    i = parent;
+                }
+                docs[i] = doc;
+                scores[i] = score;
+                return;
+            }
+            docs[0] = doc;
+            scores[0] = score;
+            siftDown(0);
+        }
+
+        private long pop() {
+            long top = docs[0];
+            size--;
+            docs[0] = docs[size];
+            scores[0] = scores[size];
+            siftDown(0);
+            return top;
+        }
+
+        private void siftDown(int i) {
+            long doc = docs[i];
+            float score = scores[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && scores[child + 1] < scores[child]) {
+                    child++;
+                }
+                if (score <= scores[child]) {
+                    break;
+                }
+                docs[i] = docs[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            docs[i] = doc;
+            scores[i] = score;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.zhongan.devpilot.gateway.rag.lexical;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zhongan.devpilot.gateway.completions.context.DocumentContext;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.rag.RagService;
+import com.zhongan.devpilot.gateway.rag.dto.RagIndexStatus;
+import com.zhongan.devpilot.gateway.rag.dto.RagIngestRequest;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import com.zhongan.devpilot.gateway.utils.TextSlice;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 仓库代码片段的 BM25 检索
+ * <p>
+ * 与向量索引使用相同的写入接口和仓库目录(仓库目录下的 {@code lexical} 子目录). 查找符号时倒排索引比向量检索便宜得多,
+ * 不需要请求向量接口, 代码补全时根据光标附近的标识符检索相关的片段加入提示词. 补全请求只使用已经打开的索引,
+ * 索引没有打开时在后台打开, 本次补全不等待.
+ */
+@Slf4j
+@Component
+public class LexicalIndexService {
+    private static final String DIRECTORY = "lexical";
+
+    private static final float IDENTIFIER_WEIGHT = 1.0f;
+
+    /**
+     * 子词只说明命名相近, 权重低于完整的标识符
+     */
+    private static final float SUBWORD_WEIGHT = 0.5f;
+
+    private static final float KEYWORD_WEIGHT = 0.2f;
+
+    /**
+     * 没有倒排索引的仓库在这段时间内不再检查目录
+     */
+    private static final Duration MISSING_RECHECK = Duration.ofSeconds(30);
+
+    private static final int MAX_MISSING_REPOS = 10_000;
+
+    private final AppCommonProperties.LexicalConfig config;
+
+    private final ObjectMapper mapper;
+
+    private final Path root;
+
+    private final Map<String, LexicalIndex> indexes = new ConcurrentHashMap<>();
+
+    private final Set<String> opening = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 后台检查过没有倒排索引目录的仓库, 补全请求不在事件循环线程上访问文件系统
+     */
+    private final Cache<String, Boolean> missing = Caffeine.newBuilder()
+            .maximumSize(MAX_MISSING_REPOS)
+            .expireAfterWrite(MISSING_RECHECK)
+            .build();
+
+    public LexicalIndexService(AppCommonProperties appCommonProperties) {
+        this.config = appCommonProperties.getRag().getLexical();
+        this.mapper = JacksonMapper.sharedMapper().getMapper();
+        this.root = Path.of(appCommonProperties.getRag().getDirectory());
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * 删除文件并写入新的片段, 会读写文件, 不能在事件循环线程上调用
+     *
+     * @param repoName 仓库名称, 调用方需要校验
+     * @param request  写入请求
+     */
+    public void apply(String repoName, RagIngestRequest request) throws IOException {
+        List<LexicalSegment.Doc> docs = new ArrayList<>();
+        if (request.getFiles() != null) {
+            for (RagIngestRequest.FileChunks file : request.getFiles()) {
+                if (StringUtils.isBlank(file.getPath()) || file.getChunks() == null) {
+                    continue;
+                }
+                for (RagIngestRequest.Chunk chunk : file.getChunks()) {
+                    if (StringUtils.isNotBlank(chunk.getContent())) {
+                        docs.add(new LexicalSegment.Doc(file.getPath(), chunk.getStartLine(), chunk.getEndLine(), chunk.getContent()));
+                    }
+                }
+            }
+        }
+        List<String> deletedPaths = request.getDeletedPaths() != null ? request.getDeletedPaths() : List.of();
+        if (docs.isEmpty() && deletedPaths.isEmpty()) {
+            return;
+        }
+        index(repoName).apply(deletedPaths, docs);
+        missing.invalidate(repoName);
+    }
+
+    /**
+     * 按查询文本中的标识符检索片段, 会读写文件, 不能在事件循环线程上调用
+     *
+     * @param repoName 仓库名称, 调用方需要校验
+     * @param query    查询文本
+     * @param k        结果数量
+     * @return 按 BM25 分数从高到低的片段
+     */
+    public List<RagSearchResult> search(String repoName, String query, int k) throws IOException {
+        Map<String, Float> weights = new HashMap<>();
+        CodeTokenizer.tokenize(query, 0, query.length(), (term, offset, kind) -> weights.merge(term, weight(kind), Math::max));
+        if (weights.isEmpty()) {
+            return List.of();
+        }
+        List<String> terms = new ArrayList<>(weights.keySet());
+        return index(repoName).search(terms, toArray(terms, weights), k, null, 0);
+    }
+
+    /**
+     * 检索与光标附近的标识符相关的片段, 用于代码补全
+     * <p>
+     * 在 boundedElastic 线程上检索, 超过时间预算时返回已经找到的结果; 索引没有打开、检索失败或者超时都返回空的结果,
+     * 不影响补全请求.
+     *
+     * @param documentContext 文档上下文, 需要包含仓库名称
+     * @return 按 BM25 分数从高到低的片段, 不包含当前文件
+     */
+    public Mono<List<RagSearchResult>> related(DocumentContext documentContext) {
+        String repoName = documentContext.getRepoName();
+        if (!config.isEnabled() || !RagService.isValidRepoName(repoName)) {
+            return Mono.just(List.of());
+        }
+        LexicalIndex index = indexes.get(repoName);
+        if (index == null) {
+            openInBackground(repoName);
+            return Mono.just(List.of());
+        }
+        long budget = config.getCompletionBudget().toNanos();
+        return Mono.fromCallable(() -> {
+                    long deadline = System.nanoTime() + budget;
+                    Map<String, Float> weights = queryTerms(documentContext.getPrefix(), documentContext.getSuffix());
+                    if (weights.isEmpty()) {
+                        return List.<RagSearchResult>of();
+                    }
+                    List<String> terms = new ArrayList<>(weights.keySet());
+                    return index.search(terms, toArray(terms, weights), config.getCompletionTopK(),
+                            excludePath(documentContext.getPath()), deadline);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                // 检索到期后自行返回, 超时只兜底线程切换和缺页等待
+                .timeout(config.getCompletionBudget().multipliedBy(2))
+                .onErrorResume(e -> {
+                    log.debug("LexicalRelatedSkipped: {}, {}", repoName, e.toString());
+                    return Mono.just(List.of());
+                });
+    }
+
+    /**
+     * 提取光标附近的标识符, 离光标越近越优先, 不包含关键字
+     *
+     * @return 词和权重
+     */
+    private Map<String, Float> queryTerms(TextSlice prefix, TextSlice suffix) {
+        Map<String, Integer> distances = new HashMap<>();
+        Map<String, Float> weights = new HashMap<>();
+        int before = Math.max(identifierBoundary(prefix, prefix.length() - config.getQueryWindowBefore()), 0);
+        CodeTokenizer.tokenize(prefix, before, prefix.length(), (term, offset, kind) -> {
+            if (kind != CodeTokenizer.Kind.KEYWORD) {
+                distances.merge(term, prefix.length() - offset, Math::min);
+                weights.merge(term, weight(kind), Math::max);
+            }
+        });
+        int after = Math.min(config.getQueryWindowAfter(), suffix.length());
+        CodeTokenizer.tokenize(suffix, 0, after, (term, offset, kind) -> {
+            if (kind != CodeTokenizer.Kind.KEYWORD) {
+                distances.merge(term, offset, Math::min);
+                weights.merge(term, weight(kind), Math::max);
+            }
+        });
+        if (distances.size() <= config.getMaxQueryTerms()) {
+            return weights;
+        }
+        List<Map.Entry<String, Integer>> nearest = new ArrayList<>(distances.entrySet());
+        nearest.sort(Map.Entry.comparingByValue());
+        Map<String, Float> selected = new HashMap<>();
+        for (int i = 0; i < config.getMaxQueryTerms(); i++) {
+            String term = nearest.get(i).getKey();
+            selected.put(term, weights.get(term));
+        }
+        return selected;
+    }
+
+    /**
+     * 窗口不从标识符中间开始
+     */
+    private static int identifierBoundary(CharSequence text, int start) {
+        if (start <= 0) {
+            return 0;
+        }
+        int i = start;
+        while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static Predicate<String> excludePath(String path) {
+        if (StringUtils.isBlank(path)) {
+            return null;
+        }
+        // 编辑器传入的可能是绝对路径, 索引中是仓库内的相对路径
+        String normalized = path.replace('\\', '/');
+        return docPath -> normalized.equals(docPath) || normalized.endsWith("/" + docPath);
+    }
+
+    private static float weight(CodeTokenizer.Kind kind) {
+        return switch (kind) {
+            case IDENTIFIER -> IDENTIFIER_WEIGHT;
+            case SUBWORD -> SUBWORD_WEIGHT;
+            case KEYWORD -> KEYWORD_WEIGHT;
+        };
+    }
+
+    private static float[] toArray(List<String> terms, Map<String, Float> weights) {
+        float[] array = new float[terms.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = weights.get(terms.get(i));
+        }
+        return array;
+    }
+
+    /**
+     * 填充索引状态中倒排索引的部分, 仓库没有倒排索引时不会创建. 会读写文件, 不能在事件循环线程上调用
+     *
+     * @param repoName 仓库名称, 调用方需要校验
+     * @param status   索引状态
+     */
+    public void fillStatus(String repoName, RagIndexStatus status) throws IOException {
+        if (!config.isEnabled() || !indexes.containsKey(repoName) && !Files.isDirectory(directory(repoName))) {
+            return;
+        }
+        LexicalIndex index = index(repoName);
+        status.setLexicalDocs(index.liveDocs());
+        status.setLexicalSegments(index.segmentCount());
+        status.setLexicalBytes(index.bytes());
+    }
+
+    /**
+     * 合并分段过多或者删除过多的索引, 由后台压缩线程调用
+     */
+    public void mergeAll() {
+        for (LexicalIndex index : indexes.values()) {
+            try {
+                if (index.needsMerge()) {
+                    index.merge();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("LexicalIndexMergeFailed", e);
+            }
+        }
+    }
+
+    /**
+     * 关闭所有索引
+     */
+    public void close() {
+        for (LexicalIndex index : indexes.values()) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                log.error("LexicalIndexCloseFailed", e);
+            }
+        }
+        indexes.clear();
+    }
+
+    /**
+     * 在 boundedElastic 线程上检查目录并打开索引, 目录不存在时记录下来, 一段时间内的补全请求不再调度检查
+     */
+    private void openInBackground(String repoName) {
+        if (missing.getIfPresent(repoName) != null || !opening.add(repoName)) {
+            return;
+        }
+        Schedulers.boundedElastic().schedule(() -> {
+            try {
+                if (Files.isDirectory(directory(repoName))) {
+                    index(repoName);
+                } else {
+                    missing.put(repoName, Boolean.TRUE);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("LexicalIndexOpenFailed: {}", repoName, e);
+            } finally {
+                opening.remove(repoName);
+            }
+        });
+    }
+
+    private LexicalIndex index(String repoName) throws IOException {
+        try {
+            return indexes.computeIfAbsent(repoName, name -> {
+                try {
+                    long start = System.nanoTime();
+                    LexicalIndex index = LexicalIndex.open(name, directory(name), config, mapper);
+                    log.info("LexicalIndexOpened: {}, {} docs, {} segments, {} ms", name, index.liveDocs(), index.segmentCount(),
+                            (System.nanoTime() - start) / 1_000_000);
+                    return index;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Path directory(String repoName) {
+        return root.resolve(repoName).resolve(DIRECTORY);
+    }
+}
@@ -0,0 +1,557 @@
+package com.zhongan.devpilot.gateway.rag.lexical;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 内存映射的倒排索引分段
+ * <p>
+ * 分段写入后不再修改, 删除只记录在内存的位图中. 文件依次为头部、文档表、词表索引、词表、倒排表和片段内容, 数值都是小端序:
+ * <ul>
+ *     <li>文档表: 每个文档固定 28 字节, 词数、开始行、结束行、路径长度、内容长度和内容偏移</li>
+ *     <li>词表索引: 每个词固定 32 字节, 按词的 UTF-8 字节排序, 查询时在映射的文件上二分查找</li>
+ *     <li>倒排表: 每 {@value #BLOCK_SIZE} 个文档一块, 先是每块的最后一个文档和结束偏移(跳表), 然后是变长编码的文档差值和词频</li>
+ * </ul>
+ * 词表索引同时记录每个词的最大词频和最短文档长度, 用于计算 BM25 分数的上界.
+ */
+final class LexicalSegment {
+    static final int BLOCK_SIZE = 128;
+
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private static final int MAGIC = 0x44504C58;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 80;
+
+    private static final int DOC_BYTES = 28;
+
+    private static final int TERM_BYTES = 32;
+
+    private final Path path;
+
+    private final int number;
+
+    private final MappedByteBuffer buffer;
+
+    private final int docCount;
+
+    private final int termCount;
+
+    private final int mergedUpTo;
+
+    private final long totalLength;
+
+    private final int docsOffset;
+
+    private final int termIndexOffset;
+
+    private final int termBytesOffset;
+
+    private final int postingsOffset;
+
+    private final int contentOffset;
+
+    /**
+     * 文档的词数, 计算分数时频繁使用, 复制到堆上
+     */
+    private final int[] docLengths;
+
+    private final String[] docPaths;
+
+    private final Map<String, int[]> docsByPath = new HashMap<>();
+
+    /**
+     * 已删除的文档, 由 {@link LexicalIndex} 加锁修改
+     */
+    private final BitSet deleted = new BitSet();
+
+    private int deletedCount;
+
+    private long deletedLength;
+
+    private LexicalSegment(Path path, int number, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.number = number;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("invalid lexical segment: " + path);
+        }
+        this.docCount = buffer.getInt(8);
+        this.termCount = buffer.getInt(12);
+        this.mergedUpTo = buffer.getInt(16);
+        this.totalLength = buffer.getLong(24);
+        this.docsOffset = (int) buffer.getLong(32);
+        this.termIndexOffset = (int) buffer.getLong(40);
+        this.termBytesOffset = (int) buffer.getLong(48);
+        this.postingsOffset = (int) buffer.getLong(56);
+        this.contentOffset = (int) buffer.getLong(64);
+        if (buffer.getLong(72) != buffer.capacity()) {
+            throw new IOException("truncated lexical segment: " + path);
+        }
+        this.docLengths = new int[docCount];
+        this.docPaths = new String[docCount];
+        Map<String, String> paths = new HashMap<>();
+        Map<String, List<Integer>> byPath = new HashMap<>();
+        for (int doc = 0; doc < docCount; doc++) {
+            int offset = docsOffset + doc * DOC_BYTES;
+            docLengths[doc] = buffer.getInt(offset);
+            String docPath = paths.computeIfAbsent(readString(contentOffset + (int) buffer.getLong(offset + 20), buffer.getInt(offset + 12)),
+                    key -> key);
+            docPaths[doc] = docPath;
+            byPath.computeIfAbsent(docPath, key -> new ArrayList<>()).add(doc);
+        }
+        byPath.forEach((key, docs) -> docsByPath.put(key, docs.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    /**
+     * 映射已有的分段文件
+     *
+     * @param path   文件
+     * @param number 分段编号
+     * @return 分段
+     */
+    static LexicalSegment open(Path path, int number) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("lexical segment too large: " + path);
+            }
+            // 映射在通道关闭后仍然有效
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new LexicalSegment(path, number, buffer);
+        }
+    }
+
+    /**
+     * 写入新的分段: 先写临时文件, 刷盘后重命名, 不会出现不完整的分段文件
+     *
+     * @param path       文件
+     * @param docs       文档
+     * @param mergedUpTo 合并生成的分段记录被合并的最大分段编号, 否则为 -1
+     */
+    static void write(Path path, List<Doc> docs, int mergedUpTo) throws IOException {
+        // 倒排: 词 -> 文档和词频, 文档按编号递增加入
+        Map<String, PostingsBuilder> postings = new HashMap<>();
+        int[] lengths = new int[docs.size()];
+        long totalLength = 0;
+        for (int doc = 0; doc < docs.size(); doc++) {
+            Doc source = docs.get(doc);
+            Map<String, int[]> termFreqs = new HashMap<>();
+            int[] length = new int[1];
+            CodeTokenizer.TermConsumer consumer = (term, offset, kind) -> {
+                termFreqs.computeIfAbsent(term, key -> new int[1])[0]++;
+                length[0]++;
+            };
+            // 文件名也作为文档的一部分, 查询类名时可以命中对应的文件
+            String docPath = source.path();
+            CodeTokenizer.tokenize(docPath, docPath.lastIndexOf('/') + 1, docPath.length(), consumer);
+            CodeTokenizer.tokenize(source.content(), 0, source.content().length(), consumer);
+            lengths[doc] = Math.max(length[0], 1);
+            totalLength += lengths[doc];
+            for (Map.Entry<String, int[]> entry : termFreqs.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), key -> new PostingsBuilder()).add(doc, entry.getValue()[0], lengths[doc]);
+            }
+        }
+        List<byte[]> terms = new ArrayList<>(postings.size());
+        Map<byte[], PostingsBuilder> byBytes = new HashMap<>();
+        for (Map.Entry<String, PostingsBuilder> entry : postings.entrySet()) {
+            byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            terms.add(term);
+            byBytes.put(term, entry.getValue());
+        }
+        terms.sort(Arrays::compareUnsigned);
+
+        ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+        ByteBuffer termIndex = ByteBuffer.allocate(terms.size() * TERM_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte[] term : terms) {
+            PostingsBuilder builder = byBytes.get(term);
+            termIndex.putInt(termBytes.size()).putInt(term.length).putInt(builder.size).putInt(builder.maxTf)
+                    .putInt(builder.minLength).putInt(0).putLong(postingBytes.size());
+            termBytes.write(term);
+            builder.writeTo(postingBytes);
+        }
+        ByteArrayOutputStream contentBytes = new ByteArrayOutputStream();
+        ByteBuffer docTable = ByteBuffer.allocate(docs.size() * DOC_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int doc = 0; doc < docs.size(); doc++) {
+            Doc source = docs.get(doc);
+            byte[] pathBytes = source.path().getBytes(StandardCharsets.UTF_8);
+            byte[] content = source.content().getBytes(StandardCharsets.UTF_8);
+            docTable.putInt(lengths[doc]).putInt(source.startLine()).putInt(source.endLine()).putInt(pathBytes.length)
+                    .putInt(content.length).putLong(contentBytes.size());
+            contentBytes.write(pathBytes);
+            contentBytes.write(content);
+        }
+
+        long docsOffset = HEADER_BYTES;
+        long termIndexOffset = docsOffset + docTable.capacity();
+        long termBytesOffset = termIndexOffset + termIndex.capacity();
+        long postingsOffset = termBytesOffset + termBytes.size();
+        long contentOffset = postingsOffset + postingBytes.size();
+        long fileLength = contentOffset + contentBytes.size();
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IOException("lexical segment too large: " + fileLength);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(docs.size()).putInt(terms.size()).putInt(mergedUpTo).putInt(0)
+                .putLong(totalLength).putLong(docsOffset).putLong(termIndexOffset).putLong(termBytesOffset).putLong(postingsOffset)
+                .putLong(contentOffset).putLong(fileLength);
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            writeFully(channel, header.flip());
+            writeFully(channel, docTable.flip());
+            writeFully(channel, termIndex.flip());
+            writeFully(channel, ByteBuffer.wrap(termBytes.toByteArray()));
+            writeFully(channel, ByteBuffer.wrap(postingBytes.toByteArray()));
+            writeFully(channel, ByteBuffer.wrap(contentBytes.toByteArray()));
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 二分查找词
+     *
+     * @param term 词的 UTF-8 字节
+     * @return 词的序号, 不存在时为 -1
+     */
+    int findTerm(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = termIndexOffset + mid * TERM_BYTES;
+            int cmp = compare(termBytesOffset + buffer.getInt(entry), buffer.getInt(entry + 4), term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int offset, int length, byte[] term) {
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Byte.compareUnsigned(buffer.get(offset + i), term[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - term.length;
+    }
+
+    int docFreq(int termOrdinal) {
+        return buffer.getInt(termIndexOffset + termOrdinal * TERM_BYTES + 8);
+    }
+
+    int maxTf(int termOrdinal) {
+        return buffer.getInt(termIndexOffset + termOrdinal * TERM_BYTES + 12);
+    }
+
+    int minLength(int termOrdinal) {
+        return buffer.getInt(termIndexOffset + termOrdinal * TERM_BYTES + 16);
+    }
+
+    /**
+     * @param termOrdinal 词的序号
+     * @return 倒排表的游标
+     */
+    PostingCursor cursor(int termOrdinal) {
+        int entry = termIndexOffset + termOrdinal * TERM_BYTES;
+        return new PostingCursor(buffer, postingsOffset + (int) buffer.getLong(entry + 24), buffer.getInt(entry + 8));
+    }
+
+    int docLength(int doc) {
+        return docLengths[doc];
+    }
+
+    String docPath(int doc) {
+        return docPaths[doc];
+    }
+
+    int startLine(int doc) {
+        return buffer.getInt(docsOffset + doc * DOC_BYTES + 4);
+    }
+
+    int endLine(int doc) {
+        return buffer.getInt(docsOffset + doc * DOC_BYTES + 8);
+    }
+
+    String content(int doc) {
+        int offset = docsOffset + doc * DOC_BYTES;
+        int pathLength = buffer.getInt(offset + 12);
+        return readString(contentOffset + (int) buffer.getLong(offset + 20) + pathLength, buffer.getInt(offset + 16));
+    }
+
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 删除路径对应的文档
+     *
+     * @param docPath 文件路径
+     */
+    void delete(String docPath) {
+        int[] docs = docsByPath.remove(docPath);
+        if (docs == null) {
+            return;
+        }
+        for (int doc : docs) {
+            deleted.set(doc);
+            deletedCount++;
+            deletedLength += docLengths[doc];
+        }
+    }
+
+    boolean isDeleted(int doc) {
+        return deleted.get(doc);
+    }
+
+    boolean contains(String docPath) {
+        return docsByPath.containsKey(docPath);
+    }
+
+    int liveDocs() {
+        return docCount - deletedCount;
+    }
+
+    long liveLength() {
+        return totalLength - deletedLength;
+    }
+
+    int deletedDocs() {
+        return deletedCount;
+    }
+
+    int docCount() {
+        return docCount;
+    }
+
+    int number() {
+        return number;
+    }
+
+    int mergedUpTo() {
+        return mergedUpTo;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long bytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 写入分段的文档
+     */
+    record Doc(String path, int startLine, int endLine, String content) {
+    }
+
+    /**
+     * 构建一个词的倒排表
+     */
+    private static final class PostingsBuilder {
+        private int[] docs = new int[4];
+
+        private int[] freqs = new int[4];
+
+        private int size;
+
+        private int maxTf;
+
+        private int minLength = Integer.MAX_VALUE;
+
+        private void add(int doc, int tf, int length) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = tf;
+            size++;
+            maxTf = Math.max(maxTf, tf);
+            minLength = Math.min(minLength, length);
+        }
+
+        private void writeTo(ByteArrayOutputStream out) {
+            int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            ByteArrayOutputStream data = new ByteArrayOutputStream(size * 2);
+            ByteBuffer skip = ByteBuffer.allocate(4 + blocks * 8).order(ByteOrder.LITTLE_ENDIAN);
+            skip.putInt(blocks);
+            int previous = -1;
+            for (int i = 0; i < size; i++) {
+                writeVarInt(data, docs[i] - previous);
+                writeVarInt(data, freqs[i]);
+                previous = docs[i];
+                if ((i + 1) % BLOCK_SIZE == 0 || i == size - 1) {
+                    skip.putInt(docs[i]).putInt(data.size());
+                }
+            }
+            out.write(skip.array(), 0, skip.capacity());
+            out.write(data.toByteArray(), 0, data.size());
+        }
+
+        private static void writeVarInt(ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    /**
+     * 倒排表游标, 按文档编号递增移动, 跳表用于快速跳到目标文档所在的块
+     */
+    static final class PostingCursor {
+        private final ByteBuffer buffer;
+
+        private final int skipOffset;
+
+        private final int dataOffset;
+
+        private final int blocks;
+
+        private final int docFreq;
+
+        private int block;
+
+        /**
+         * 已经读取的文档数量
+         */
+        private int index;
+
+        private int position;
+
+        private int doc = -1;
+
+        private int freq;
+
+        private PostingCursor(ByteBuffer buffer, int offset, int docFreq) {
+            this.buffer = buffer;
+            this.blocks = buffer.getInt(offset);
+            this.skipOffset = offset + 4;
+            this.dataOffset = skipOffset + blocks * 8;
+            this.docFreq = docFreq;
+            this.position = dataOffset;
+        }
+
+        /**
+         * @return 当前文档, 还没有移动时为 -1, 结束后为 {@link #NO_MORE_DOCS}
+         */
+        int doc() {
+            return doc;
+        }
+
+        int freq() {
+            return freq;
+        }
+
+        int docFreq() {
+            return docFreq;
+        }
+
+        /**
+         * 移动到下一个文档
+         *
+         * @return 文档编号, 结束后为 {@link #NO_MORE_DOCS}
+         */
+        int nextDoc() {
+            if (index == docFreq) {
+                doc = NO_MORE_DOCS;
+                return doc;
+            }
+            int delta = readVarInt();
+            freq = readVarInt();
+            doc += delta;
+            index++;
+            if (index % BLOCK_SIZE == 0) {
+                block++;
+            }
+            return doc;
+        }
+
+        /**
+         * 移动到第一个不小于目标的文档
+         *
+         * @param target 目标文档
+         * @return 文档编号, 结束后为 {@link #NO_MORE_DOCS}
+         */
+        int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            if (block < blocks && lastDoc(block) < target) {
+                // 跳过整块: 从前一块的最后一个文档开始解码
+                int next = block + 1;
+                while (next < blocks && lastDoc(next) < target) {
+                    next++;
+                }
+                if (next == blocks) {
+                    index = docFreq;
+                    doc = NO_MORE_DOCS;
+                    return doc;
+                }
+                block = next;
+                index = next * BLOCK_SIZE;
+                position = dataOffset + buffer.getInt(skipOffset + (next - 1) * 8 + 4);
+                doc = lastDoc(next - 1);
+            }
+            while (nextDoc() < target) {
+                // 块内顺序解码
+            }
+            return doc;
+        }
+
+        private int lastDoc(int block) {
+            return buffer.getInt(skipOffset + block * 8);
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = buffer.get(position++);
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+}
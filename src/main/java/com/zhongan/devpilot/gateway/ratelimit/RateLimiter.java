@@ -0,0 +1,92 @@
+package com.zhongan.devpilot.gateway.ratelimit;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * 按用户限流: 每个用户有一个请求数令牌桶和一个 token 数令牌桶
+ * <p>
+ * 请求数在请求开始时扣除, 超过速率时直接拒绝. token 数在请求处理后才知道, 因此事后扣除并允许透支,
+ * 透支的用户在令牌恢复之前的请求被拒绝. 用户表使用 Caffeine 保存, 有容量上限并在一段时间不访问后淘汰,
+ * 读取路径无锁, 大量不同用户同时访问时也不会无限增长.
+ */
+public class RateLimiter {
+    private final TokenBucket requestBucket;
+
+    private final TokenBucket tokenBucket;
+
+    private final Cache<String, Usage> usages;
+
+    /**
+     * @param requestBucket    请求数令牌桶, 为 null 时不限制
+     * @param tokenBucket      token 数令牌桶, 为 null 时不限制
+     * @param maxKeys          最多保存的用户数量
+     * @param expireAfterAccess 用户多久不访问后淘汰
+     */
+    public RateLimiter(TokenBucket requestBucket, TokenBucket tokenBucket, long maxKeys, Duration expireAfterAccess) {
+        this.requestBucket = requestBucket;
+        this.tokenBucket = tokenBucket;
+        this.usages = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterAccess(expireAfterAccess)
+                .build();
+    }
+
+    /**
+     * 开始一次请求
+     *
+     * @param key 用户标识
+     * @return 0 表示允许, 否则为需要等待的时间, 纳秒
+     */
+    public long tryAcquire(String key) {
+        long now = System.nanoTime();
+        Usage usage = usages.get(key, k -> new Usage(now));
+        if (tokenBucket != null) {
+            long wait = tokenBucket.overdraft(usage.tokens, now);
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        if (requestBucket != null) {
+            return requestBucket.tryAcquire(usage.requests, 1, now);
+        }
+        return 0;
+    }
+
+    /**
+     * 扣除请求消耗的 token 数量
+     *
+     * @param key    用户标识
+     * @param tokens token 数量
+     */
+    public void charge(String key, long tokens) {
+        if (tokenBucket == null || tokens <= 0) {
+            return;
+        }
+        Usage usage = usages.getIfPresent(key);
+        if (usage != null) {
+            tokenBucket.charge(usage.tokens, tokens, System.nanoTime());
+        }
+    }
+
+    /**
+     * @return 当前保存的用户数量
+     */
+    public long size() {
+        return usages.estimatedSize();
+    }
+
+    private static final class Usage {
+        private final AtomicLong requests;
+
+        private final AtomicLong tokens;
+
+        private Usage(long now) {
+            this.requests = new AtomicLong(now);
+            this.tokens = new AtomicLong(now);
+        }
+    }
+}
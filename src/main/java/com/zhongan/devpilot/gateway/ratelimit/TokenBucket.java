@@ -0,0 +1,90 @@
+package com.zhongan.devpilot.gateway.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶参数, 使用 GCRA(generic cell rate algorithm) 实现
+ * <p>
+ * 每个用户的桶状态只是一个 {@link AtomicLong}: 理论上下一个令牌可用的时间(TAT), 初始为当前时间, 即桶是满的. 消耗 n 个令牌时 TAT 向后推 n 个发放间隔,
+ * TAT 超过当前时间加突发容量时拒绝, 等待时间就是超出的部分. 不需要定时补充令牌, 通过 CAS 无锁更新.
+ */
+public final class TokenBucket {
+    private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+
+    /**
+     * 每个令牌的发放间隔
+     */
+    private final double emissionNanos;
+
+    /**
+     * 突发容量对应的时间
+     */
+    private final long toleranceNanos;
+
+    private TokenBucket(double emissionNanos, long toleranceNanos) {
+        this.emissionNanos = emissionNanos;
+        this.toleranceNanos = toleranceNanos;
+    }
+
+    /**
+     * 按每分钟速率创建令牌桶
+     *
+     * @param perMinute 每分钟发放的令牌数, 不大于 0 时不限制
+     * @param burst     桶的容量, 不大于 0 时等于每分钟速率
+     * @return 令牌桶, 不限制时返回 null
+     */
+    public static TokenBucket perMinute(long perMinute, long burst) {
+        if (perMinute <= 0) {
+            return null;
+        }
+        double emissionNanos = (double) NANOS_PER_MINUTE / perMinute;
+        long capacity = burst > 0 ? burst : perMinute;
+        return new TokenBucket(emissionNanos, (long) (emissionNanos * capacity));
+    }
+
+    /**
+     * 消耗令牌
+     *
+     * @param state 桶状态
+     * @param cost  令牌数量
+     * @param now   当前时间
+     * @return 0 表示消耗成功, 否则为需要等待的时间, 纳秒
+     */
+    long tryAcquire(AtomicLong state, long cost, long now) {
+        while (true) {
+            long current = state.get();
+            long tat = Math.max(current, now);
+            long next = tat + (long) (cost * emissionNanos);
+            long wait = next - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (state.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 桶中是否还有令牌, 没有时返回需要等待的时间
+     *
+     * @param state 桶状态
+     * @param now   当前时间
+     * @return 0 表示还有令牌, 否则为需要等待的时间, 纳秒
+     */
+    long overdraft(AtomicLong state, long now) {
+        return Math.max(state.get() + (long) emissionNanos - now - toleranceNanos, 0);
+    }
+
+    /**
+     * 事后扣除令牌, 允许透支. 用于请求处理后才知道数量的消耗, 透支的部分由后续请求等待
+     *
+     * @param state 桶状态
+     * @param cost  令牌数量
+     * @param now   当前时间
+     */
+    void charge(AtomicLong state, long cost, long now) {
+        long delta = (long) (cost * emissionNanos);
+        state.getAndUpdate(current -> Math.max(current, now) + delta);
+    }
+}
@@ -0,0 +1,165 @@
+package com.zhongan.devpilot.gateway.ratelimit;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import io.netty.handler.ipfilter.IpFilterRuleType;
+import io.netty.handler.ipfilter.IpSubnetFilterRule;
+import org.apache.commons.lang3.StringUtils;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+/**
+ * 识别请求的用户, 用于限流和隔离用户的数据
+ * <p>
+ * 客户端可以任意设置的用户请求头(例如 {@code X-DevPilot-User})只在请求来自受信任的代理时才使用, 否则任何客户端都可以冒充其它用户.
+ * 之后使用认证请求头(默认为 {@code Authorization}), 网关不校验凭证本身, 因此只接受符合格式的凭证, 按哈希值区分用户,
+ * 并且同一个客户端地址在淘汰时间内最多使用 {@code maxKeysPerAddress} 个不同的凭证, 超过后按地址限流, 每次换一个值不能绕过限流.
+ * 都没有时使用客户端地址. 网关部署在负载均衡之后时必须配置 {@code trustedProxies}, 否则所有请求的客户端地址都是负载均衡的地址.
+ * <p>
+ * 返回的用户标识带有来源前缀, 不同来源的值不会相同, 也不包含凭证原文.
+ */
+@Component
+public class UserKeyResolver {
+    private static final String USER_PREFIX = "user:";
+
+    private static final String CREDENTIAL_PREFIX = "key:";
+
+    private static final String ADDRESS_PREFIX = "ip:";
+
+    private static final String ANONYMOUS = "anonymous";
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final List<String> keyHeaders;
+
+    private final List<String> trustedKeyHeaders;
+
+    private final List<IpSubnetFilterRule> trustedProxies;
+
+    private final Pattern keyPattern;
+
+    private final int maxKeysPerAddress;
+
+    /**
+     * 每个客户端地址使用过的凭证哈希
+     */
+    private final Cache<String, Set<String>> keysByAddress;
+
+    public UserKeyResolver(AppCommonProperties appCommonProperties) {
+        AppCommonProperties.RateLimitConfig config = appCommonProperties.getRateLimit();
+        this.keyHeaders = List.copyOf(config.getKeyHeaders());
+        this.trustedKeyHeaders = List.copyOf(config.getTrustedKeyHeaders());
+        this.trustedProxies = new ArrayList<>(config.getTrustedProxies().size());
+        for (String proxy : config.getTrustedProxies()) {
+            trustedProxies.add(subnet(proxy));
+        }
+        this.keyPattern = Pattern.compile(config.getKeyPattern());
+        this.maxKeysPerAddress = config.getMaxKeysPerAddress();
+        this.keysByAddress = Caffeine.newBuilder()
+                .maximumSize(config.getMaxKeys())
+                .expireAfterAccess(config.getExpireAfterAccess())
+                .build();
+    }
+
+    /**
+     * 受信任的代理转发的请求按受信任请求头的顺序取用户标识, 之后按认证请求头的顺序取, 都没有时使用客户端地址
+     *
+     * @param headers       请求头
+     * @param remoteAddress 客户端地址, 即直接连接网关的一跳
+     * @return 用户标识
+     */
+    public String resolve(HttpHeaders headers, InetSocketAddress remoteAddress) {
+        boolean trusted = isTrusted(remoteAddress);
+        if (trusted) {
+            String value = firstNonBlank(headers, trustedKeyHeaders);
+            if (value != null) {
+                return USER_PREFIX + value;
+            }
+        }
+        String address = remoteAddress != null ? ADDRESS_PREFIX + remoteAddress.getHostString() : ANONYMOUS;
+        String credential = firstNonBlank(headers, keyHeaders);
+        if (credential != null && keyPattern.matcher(credential).matches()) {
+            String key = CREDENTIAL_PREFIX + hash(credential);
+            // 受信任的代理转发了很多客户端的请求, 不按代理的地址限制凭证数量
+            if (trusted || acceptKey(address, key)) {
+                return key;
+            }
+        }
+        return address;
+    }
+
+    /**
+     * @param userKey {@link #resolve} 返回的用户标识
+     * @return 是否来自认证信息(受信任的用户请求头或者凭证), 而不是客户端地址
+     */
+    public static boolean isAuthenticated(String userKey) {
+        return userKey != null && (userKey.startsWith(USER_PREFIX) || userKey.startsWith(CREDENTIAL_PREFIX));
+    }
+
+    /**
+     * 地址使用过这个凭证, 或者使用过的凭证数量还没有达到上限
+     */
+    private boolean acceptKey(String address, String key) {
+        Set<String> keys = keysByAddress.get(address, k -> new HashSet<>());
+        synchronized (keys) {
+            return keys.contains(key) || keys.size() < maxKeysPerAddress && keys.add(key);
+        }
+    }
+
+    private static String hash(String credential) {
+        MessageDigest digest = SHA_256.get();
+        byte[] bytes = digest.digest(credential.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(bytes, 0, 16);
+    }
+
+    private boolean isTrusted(InetSocketAddress remoteAddress) {
+        if (remoteAddress == null || remoteAddress.isUnresolved()) {
+            return false;
+        }
+        for (IpSubnetFilterRule proxy : trustedProxies) {
+            if (proxy.matches(remoteAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String firstNonBlank(HttpHeaders headers, List<String> names) {
+        for (String name : names) {
+            String value = headers.getFirst(name);
+            if (StringUtils.isNotBlank(value)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解析 {@code 10.0.0.0/8} 形式的网段, 没有前缀长度时只匹配这一个地址
+     */
+    private static IpSubnetFilterRule subnet(String proxy) {
+        int slash = proxy.indexOf('/');
+        String address = slash < 0 ? proxy.trim() : proxy.substring(0, slash).trim();
+        int prefix = slash < 0 ? (address.indexOf(':') < 0 ? 32 : 128) : Integer.parseInt(proxy.substring(slash + 1).trim());
+        return new IpSubnetFilterRule(address, prefix, IpFilterRuleType.ACCEPT);
+    }
+}
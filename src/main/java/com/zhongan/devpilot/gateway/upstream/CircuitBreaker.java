@@ -0,0 +1,175 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+
+/**
+ * 节点熔断器
+ * <p>
+ * 统计最近固定数量请求的失败率, 超过阈值后打开, 打开期间直接拒绝请求. 打开时间到期后进入半开状态, 放行少量探测请求:
+ * 探测请求全部成功时关闭, 任意一个失败时重新打开.
+ */
+public class CircuitBreaker {
+    public enum State {
+        /**
+         * 正常放行
+         */
+        CLOSED,
+        /**
+         * 拒绝请求
+         */
+        OPEN,
+        /**
+         * 放行探测请求
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * 最近请求的结果, true 表示失败
+     */
+    private final boolean[] outcomes;
+
+    private final int minimumCalls;
+
+    private final int failureRateThreshold;
+
+    private final long openNanos;
+
+    private final int halfOpenCalls;
+
+    private State state = State.CLOSED;
+
+    private int position;
+
+    private int calls;
+
+    private int failures;
+
+    private long openedAtNanos;
+
+    private int halfOpenPermits;
+
+    private int halfOpenSuccesses;
+
+    private long openCount;
+
+    public CircuitBreaker(AppCommonProperties.CircuitBreakerConfig config) {
+        this.outcomes = new boolean[Math.max(config.getSlidingWindowSize(), 1)];
+        this.minimumCalls = Math.min(Math.max(config.getMinimumCalls(), 1), outcomes.length);
+        this.failureRateThreshold = config.getFailureRateThreshold();
+        this.openNanos = config.getOpenTime().toNanos();
+        this.halfOpenCalls = Math.max(config.getHalfOpenCalls(), 1);
+    }
+
+    /**
+     * 获取调用许可, 打开时间到期时进入半开状态
+     *
+     * @param now 当前时间
+     * @return 是否放行
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (state == State.OPEN && now - openedAtNanos >= openNanos) {
+            state = State.HALF_OPEN;
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSuccesses = 0;
+        }
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> {
+                if (halfOpenPermits > 0) {
+                    halfOpenPermits--;
+                    yield true;
+                }
+                yield false;
+            }
+        };
+    }
+
+    /**
+     * 是否会放行请求, 不改变状态
+     */
+    synchronized boolean isCallPermitted(long now) {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> now - openedAtNanos >= openNanos;
+            case HALF_OPEN -> halfOpenPermits > 0;
+        };
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (++halfOpenSuccesses >= halfOpenCalls) {
+                state = State.CLOSED;
+                resetWindow();
+            }
+            return;
+        }
+        record(false);
+    }
+
+    synchronized void onFailure(long now) {
+        if (state == State.HALF_OPEN) {
+            open(now);
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        record(true);
+        if (calls >= minimumCalls && failures * 100 >= failureRateThreshold * calls) {
+            open(now);
+        }
+    }
+
+    /**
+     * 请求被取消, 没有结果. 半开状态下归还探测许可
+     */
+    synchronized void onCancel() {
+        if (state == State.HALF_OPEN && halfOpenPermits + halfOpenSuccesses < halfOpenCalls) {
+            halfOpenPermits++;
+        }
+    }
+
+    private void record(boolean failure) {
+        if (calls == outcomes.length) {
+            if (outcomes[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % outcomes.length;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAtNanos = now;
+        openCount++;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        position = 0;
+        calls = 0;
+        failures = 0;
+    }
+
+    /**
+     * @return 当前状态
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return 累计打开次数
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+}
@@ -0,0 +1,128 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+
+/**
+ * 自适应并发上限
+ * <p>
+ * 使用梯度算法根据延迟调整上限: 长期平均延迟与短期平均延迟之比小于容忍度时说明请求在上游排队, 按比例降低上限;
+ * 否则上限按 sqrt(limit) 的步长增长. 请求失败或超时时上限按退避比例降低.
+ * 进行中的请求数不到上限的一半时只降低不增长, 避免空闲时上限无限增大.
+ */
+public class ConcurrencyLimiter {
+    private static final int SHORT_WINDOW = 10;
+
+    private static final int LONG_WINDOW = 600;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final double smoothing;
+
+    private final double backoffRatio;
+
+    private volatile double limit;
+
+    private double shortRttNanos;
+
+    private double longRttNanos;
+
+    public ConcurrencyLimiter(AppCommonProperties.LimiterConfig config) {
+        this.minLimit = Math.max(config.getMinLimit(), 1);
+        this.maxLimit = Math.max(config.getMaxLimit(), minLimit);
+        this.tolerance = config.getTolerance();
+        this.smoothing = config.getSmoothing();
+        this.backoffRatio = config.getBackoffRatio();
+        this.limit = Math.min(Math.max(config.getInitialLimit(), minLimit), maxLimit);
+    }
+
+    /**
+     * 获取一个并发许可
+     *
+     * @return 是否获取成功, 成功后必须调用 {@link #release()}
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * 是否还有空闲的并发许可
+     */
+    boolean hasCapacity() {
+        return inFlight.get() < (int) limit;
+    }
+
+    /**
+     * 记录一次成功请求的延迟并调整上限
+     *
+     * @param rttNanos 延迟, 纳秒
+     */
+    synchronized void onSample(long rttNanos) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        if (longRttNanos == 0) {
+            shortRttNanos = rttNanos;
+            longRttNanos = rttNanos;
+        } else {
+            shortRttNanos += (rttNanos - shortRttNanos) / SHORT_WINDOW;
+            longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW;
+        }
+        // 上游恢复后长期延迟会明显高于短期延迟, 让长期延迟更快地回落
+        if (longRttNanos > shortRttNanos * 2) {
+            longRttNanos *= 0.95;
+        }
+        double current = limit;
+        boolean appLimited = inFlight.get() < current / 2;
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRttNanos));
+        double target = current * gradient + (appLimited ? 0 : Math.sqrt(current));
+        if (appLimited && target >= current) {
+            return;
+        }
+        limit = clamp(current * (1 - smoothing) + target * smoothing);
+    }
+
+    /**
+     * 请求失败或超时, 按退避比例降低上限
+     */
+    synchronized void onDropped() {
+        limit = clamp(limit * backoffRatio);
+    }
+
+    private double clamp(double value) {
+        return Math.min(Math.max(value, minLimit), maxLimit);
+    }
+
+    /**
+     * @return 当前并发上限
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return 持有许可的请求数
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,102 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+
+/**
+ * 对冲请求策略
+ * <p>
+ * 第一次请求在最近延迟的指定分位数内没有返回时, 再发送一次对冲请求. 对冲请求受预算限制: 每个请求存入
+ * {@code budgetRatio} 个令牌, 每次对冲消耗一个令牌, 令牌数量有上限, 因此额外请求的比例不会超过预算.
+ */
+public class HedgePolicy {
+    /**
+     * 令牌按千分之一计数
+     */
+    private static final long SCALE = 1000;
+
+    private final LatencyTracker latencyTracker;
+
+    private final double percentile;
+
+    private final long minDelayNanos;
+
+    private final long depositPerRequest;
+
+    private final long maxBalance;
+
+    private final AtomicLong balance = new AtomicLong();
+
+    private final AtomicLong hedged = new AtomicLong();
+
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    public HedgePolicy(AppCommonProperties.HedgeConfig config) {
+        this.latencyTracker = new LatencyTracker(config.getSampleSize(), config.getMinSamples());
+        this.percentile = config.getPercentile();
+        this.minDelayNanos = config.getMinDelay().toNanos();
+        this.depositPerRequest = Math.round(config.getBudgetRatio() * SCALE);
+        this.maxBalance = Math.max(config.getMaxBurst(), 1) * SCALE;
+    }
+
+    /**
+     * 开始一次请求, 存入对冲令牌并计算对冲延迟
+     *
+     * @return 对冲延迟, 样本不足时返回 null, 表示不对冲
+     */
+    Duration onRequest() {
+        balance.getAndUpdate(current -> Math.min(current + depositPerRequest, maxBalance));
+        long delay = latencyTracker.percentile(percentile);
+        if (delay < 0) {
+            return null;
+        }
+        return Duration.ofNanos(Math.max(delay, minDelayNanos));
+    }
+
+    /**
+     * 尝试消耗一个对冲令牌
+     *
+     * @return 是否允许对冲
+     */
+    boolean tryAcquire() {
+        while (true) {
+            long current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - SCALE)) {
+                hedged.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 记录一次请求或对冲请求的结束
+     *
+     * @param latencyNanos 从原始请求开始到结束的时间
+     * @param hedgeWin     是否是先返回结果的对冲请求
+     */
+    void record(long latencyNanos, boolean hedgeWin) {
+        latencyTracker.record(latencyNanos);
+        if (hedgeWin) {
+            hedgeWins.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return 累计发送的对冲请求数量
+     */
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /**
+     * @return 对冲请求先返回的次数
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+}
@@ -0,0 +1,77 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 最近请求的延迟分布
+ * <p>
+ * 保留最近固定数量的延迟样本, 分位数按刷新间隔重新计算并缓存, 查询分位数不需要每次排序.
+ */
+public class LatencyTracker {
+    private static final long REFRESH_INTERVAL_NANOS = 100_000_000L;
+
+    private final AtomicLongArray samples;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final int minSamples;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile long[] sorted = new long[0];
+
+    private volatile long lastRefreshNanos;
+
+    /**
+     * @param size       保留的样本数量
+     * @param minSamples 样本数量达到多少后才计算分位数
+     */
+    public LatencyTracker(int size, int minSamples) {
+        this.samples = new AtomicLongArray(size);
+        this.minSamples = minSamples;
+        this.lastRefreshNanos = System.nanoTime() - REFRESH_INTERVAL_NANOS - 1;
+    }
+
+    /**
+     * 记录一次请求的延迟
+     *
+     * @param latencyNanos 延迟, 纳秒
+     */
+    public void record(long latencyNanos) {
+        long index = count.getAndIncrement();
+        samples.set((int) (index % samples.length()), latencyNanos);
+    }
+
+    /**
+     * 查询延迟分位数
+     *
+     * @param quantile 分位, 例如 0.95
+     * @return 延迟, 纳秒. 样本不足时返回 -1
+     */
+    public long percentile(double quantile) {
+        long now = System.nanoTime();
+        if (now - lastRefreshNanos > REFRESH_INTERVAL_NANOS && refreshing.compareAndSet(false, true)) {
+            try {
+                int size = (int) Math.min(count.get(), samples.length());
+                long[] values = new long[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = samples.get(i);
+                }
+                Arrays.sort(values);
+                sorted = values;
+                lastRefreshNanos = now;
+            } finally {
+                refreshing.set(false);
+            }
+        }
+        long[] values = sorted;
+        if (values.length < minSamples || values.length == 0) {
+            return -1;
+        }
+        int index = (int) Math.min(values.length - 1, Math.max(0, Math.ceil(quantile * values.length) - 1));
+        return values[index];
+    }
+}
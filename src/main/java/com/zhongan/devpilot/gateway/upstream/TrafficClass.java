@@ -0,0 +1,31 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+/**
+ * 上游请求的流量类别, 每个类别在每个节点上有独立的并发上限
+ * <p>
+ * 对话是持续时间很长的流式请求, 补全是短请求. 共用一个并发上限时, 对话流一直持有许可, 补全请求会被拒绝.
+ */
+public enum TrafficClass {
+    /**
+     * 代码补全和其它短请求
+     */
+    COMPLETION("completion"),
+
+    /**
+     * 对话流
+     */
+    CHAT("chat");
+
+    private final String tag;
+
+    TrafficClass(String tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * @return 指标标签的取值
+     */
+    public String getTag() {
+        return tag;
+    }
+}
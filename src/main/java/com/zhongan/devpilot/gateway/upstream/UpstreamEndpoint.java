@@ -0,0 +1,335 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.reactive.function.client.WebClient;
+
+/**
+ * 上游模型服务节点
+ * <p>
+ * 记录节点的进行中请求数和按时间衰减的峰值 EWMA 延迟: 延迟变大时立即生效, 变小时按衰减时间逐渐恢复,
+ * 这样变慢的节点很快就不会再被选中. 是否摘除慢节点不看峰值延迟, 而是按固定时间窗口统计非流式请求的平均延迟,
+ * 避免一次长请求就摘除节点.
+ * <p>
+ * 每个节点可以有自己的熔断器和按 {@link TrafficClass} 区分的自适应并发上限, 超过上限或者熔断时请求被直接拒绝.
+ */
+public class UpstreamEndpoint {
+    private final String name;
+
+    private final int weight;
+
+    private final WebClient webClient;
+
+    private final long decayNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong ejected = new AtomicLong();
+
+    /**
+     * 按流量类别下标的并发上限, 未启用时为 null
+     */
+    private final ConcurrencyLimiter[] limiters = new ConcurrencyLimiter[TrafficClass.values().length];
+
+    /**
+     * 熔断器, 未启用时为 null
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    private double ewmaNanos;
+
+    private long lastUpdateNanos;
+
+    /**
+     * 摘除截止时间, 0 表示没有被摘除
+     */
+    private volatile long ejectedUntilNanos;
+
+    private int ejections;
+
+    /**
+     * 上次从摘除中恢复的时间, 之后一段时间没有再被摘除时, 摘除次数清零
+     */
+    private long recoveredNanos;
+
+    private long windowStartNanos;
+
+    private long windowSumNanos;
+
+    private int windowCount;
+
+    /**
+     * 上一个完整窗口的平均延迟, 样本不足时为 0
+     */
+    private volatile double windowMeanNanos;
+
+    /**
+     * 连续多少个窗口的平均延迟过高
+     */
+    private int slowWindows;
+
+    public UpstreamEndpoint(String name, int weight, WebClient webClient, long decayNanos) {
+        this(name, weight, webClient, decayNanos, null, null);
+    }
+
+    /**
+     * @param limiters       每个流量类别的并发上限, 没有的类别不限制并发, 允许为 null
+     * @param circuitBreaker 熔断器, 允许为 null
+     */
+    public UpstreamEndpoint(String name, int weight, WebClient webClient, long decayNanos,
+                            Map<TrafficClass, ConcurrencyLimiter> limiters, CircuitBreaker circuitBreaker) {
+        this.name = name;
+        this.weight = Math.max(weight, 1);
+        this.webClient = webClient;
+        this.decayNanos = decayNanos;
+        if (limiters != null) {
+            limiters.forEach((trafficClass, limiter) -> this.limiters[trafficClass.ordinal()] = limiter);
+        }
+        this.circuitBreaker = circuitBreaker;
+        this.lastUpdateNanos = System.nanoTime();
+        this.windowStartNanos = lastUpdateNanos;
+    }
+
+    /**
+     * 选择节点时的代价, 越小越优先: 延迟乘以排队的请求数, 再按权重折算
+     *
+     * @return 代价
+     */
+    public double cost() {
+        return (getEwmaNanos() + 1) * (inFlight.get() + 1) / weight;
+    }
+
+    /**
+     * 是否可以接收新请求: 没有被摘除, 没有熔断, 并且还有空闲的并发许可
+     */
+    boolean isAdmissible(long now, TrafficClass trafficClass) {
+        ConcurrencyLimiter limiter = limiters[trafficClass.ordinal()];
+        return isAvailable()
+                && (circuitBreaker == null || circuitBreaker.isCallPermitted(now))
+                && (limiter == null || limiter.hasCapacity());
+    }
+
+    /**
+     * 获取并发许可和熔断器许可, 成功后必须调用 {@link #release(TrafficClass)}
+     *
+     * @return 是否获取成功
+     */
+    boolean tryAcquire(long now, TrafficClass trafficClass) {
+        ConcurrencyLimiter limiter = limiters[trafficClass.ordinal()];
+        if (limiter != null && !limiter.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire(now)) {
+            if (limiter != null) {
+                limiter.release();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 归还并发许可, 流式请求在结束时才归还
+     */
+    void release(TrafficClass trafficClass) {
+        ConcurrencyLimiter limiter = limiters[trafficClass.ordinal()];
+        if (limiter != null) {
+            limiter.release();
+        }
+    }
+
+    void start() {
+        inFlight.incrementAndGet();
+    }
+
+    void cancel() {
+        inFlight.decrementAndGet();
+        if (circuitBreaker != null) {
+            circuitBreaker.onCancel();
+        }
+    }
+
+    void success(long latencyNanos, TrafficClass trafficClass) {
+        ConcurrencyLimiter limiter = limiters[trafficClass.ordinal()];
+        inFlight.decrementAndGet();
+        consecutiveFailures.set(0);
+        observe(latencyNanos, true);
+        if (limiter != null) {
+            limiter.onSample(latencyNanos);
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess();
+        }
+    }
+
+    /**
+     * @return 连续失败次数
+     */
+    int failure(long latencyNanos, TrafficClass trafficClass) {
+        ConcurrencyLimiter limiter = limiters[trafficClass.ordinal()];
+        inFlight.decrementAndGet();
+        observe(latencyNanos, false);
+        if (limiter != null) {
+            limiter.onDropped();
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.onFailure(System.nanoTime());
+        }
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    private synchronized void observe(long latencyNanos, boolean success) {
+        long now = System.nanoTime();
+        double weightOfHistory = Math.exp(-(double) Math.max(now - lastUpdateNanos, 0) / decayNanos);
+        lastUpdateNanos = now;
+        if (latencyNanos > ewmaNanos) {
+            ewmaNanos = latencyNanos;
+        } else {
+            ewmaNanos = ewmaNanos * weightOfHistory + latencyNanos * (1 - weightOfHistory);
+        }
+    }
+
+    /**
+     * 记录一次成功的非流式请求的延迟. 窗口结束时计算窗口的平均延迟, 样本数不足时平均延迟为 0
+     *
+     * @return 是否结束了一个窗口
+     */
+    synchronized boolean sampleWindow(long now, long latencyNanos, long windowNanos, int minSamples) {
+        windowSumNanos += latencyNanos;
+        windowCount++;
+        if (now - windowStartNanos < windowNanos) {
+            return false;
+        }
+        windowMeanNanos = windowCount >= minSamples ? (double) windowSumNanos / windowCount : 0;
+        windowStartNanos = now;
+        windowSumNanos = 0;
+        windowCount = 0;
+        return true;
+    }
+
+    /**
+     * 根据刚结束的窗口更新连续慢窗口的数量
+     *
+     * @param slow 窗口的平均延迟是否过高
+     * @return 连续慢窗口的数量
+     */
+    synchronized int onWindow(boolean slow) {
+        slowWindows = slow ? slowWindows + 1 : 0;
+        return slowWindows;
+    }
+
+    /**
+     * @return 上一个完整窗口的平均延迟, 样本不足时为 0
+     */
+    double getWindowMeanNanos() {
+        return windowMeanNanos;
+    }
+
+    /**
+     * 摘除节点, 连续被摘除时摘除时间翻倍. 恢复后超过最长摘除时间没有再被摘除时, 摘除时间重新从基础时间开始
+     */
+    synchronized void eject(long now, long ejectionNanos, long maxEjectionNanos) {
+        if (ejections > 0 && now - recoveredNanos >= maxEjectionNanos) {
+            ejections = 0;
+        }
+        ejections++;
+        ejected.incrementAndGet();
+        slowWindows = 0;
+        long duration = ejectionNanos << Math.min(ejections - 1, 16);
+        ejectedUntilNanos = now + Math.min(duration <= 0 ? maxEjectionNanos : duration, maxEjectionNanos);
+    }
+
+    /**
+     * 摘除时间到期后恢复节点, 延迟重置为其它节点的水平, 避免立即再次被摘除
+     */
+    synchronized void recover(double ewmaNanos) {
+        this.ejectedUntilNanos = 0;
+        this.ewmaNanos = ewmaNanos;
+        this.lastUpdateNanos = System.nanoTime();
+        this.recoveredNanos = lastUpdateNanos;
+        // 恢复后重新统计延迟窗口
+        this.windowStartNanos = lastUpdateNanos;
+        this.windowSumNanos = 0;
+        this.windowCount = 0;
+        this.windowMeanNanos = 0;
+        consecutiveFailures.set(0);
+    }
+
+    boolean isEjected() {
+        return ejectedUntilNanos != 0;
+    }
+
+    long getEjectedUntilNanos() {
+        return ejectedUntilNanos;
+    }
+
+    boolean isEjectionExpired(long now) {
+        long until = ejectedUntilNanos;
+        return until != 0 && now - until >= 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public WebClient getWebClient() {
+        return webClient;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public synchronized double getEwmaNanos() {
+        return ewmaNanos;
+    }
+
+    public boolean isAvailable() {
+        return ejectedUntilNanos == 0;
+    }
+
+    /**
+     * @return 流量类别的并发上限, 未启用时为 null
+     */
+    public ConcurrencyLimiter getLimiter(TrafficClass trafficClass) {
+        return limiters[trafficClass.ordinal()];
+    }
+
+    /**
+     * @return 熔断器, 未启用时为 null
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return 累计被拒绝的请求数量
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return 累计被摘除的次数
+     */
+    public long getEjectedCount() {
+        return ejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
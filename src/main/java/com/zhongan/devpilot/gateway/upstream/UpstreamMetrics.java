@@ -0,0 +1,75 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 上游节点的并发上限、熔断和摘除状态指标, 按节点名称打标签, 并发上限同时按流量类别打标签
+ */
+@Component
+public class UpstreamMetrics implements MeterBinder {
+    private final UpstreamPool upstreamPool;
+
+    public UpstreamMetrics(UpstreamPool upstreamPool) {
+        this.upstreamPool = upstreamPool;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (UpstreamEndpoint endpoint : upstreamPool.getEndpoints()) {
+            String name = endpoint.getName();
+            Gauge.builder("devpilot.upstream.in.flight", endpoint, UpstreamEndpoint::getInFlight)
+                    .description("进行中的上游请求数量")
+                    .tag("endpoint", name)
+                    .register(registry);
+            Gauge.builder("devpilot.upstream.latency.ewma", endpoint, e -> e.getEwmaNanos() / 1e9)
+                    .description("上游节点的峰值 EWMA 延迟")
+                    .baseUnit("seconds")
+                    .tag("endpoint", name)
+                    .register(registry);
+            Gauge.builder("devpilot.upstream.ejected", endpoint, e -> e.isAvailable() ? 0 : 1)
+                    .description("上游节点是否被摘除")
+                    .tag("endpoint", name)
+                    .register(registry);
+            FunctionCounter.builder("devpilot.upstream.rejected", endpoint, UpstreamEndpoint::getRejectedCount)
+                    .description("因并发上限或者熔断被拒绝的请求数量")
+                    .tag("endpoint", name)
+                    .register(registry);
+            FunctionCounter.builder("devpilot.upstream.ejections", endpoint, UpstreamEndpoint::getEjectedCount)
+                    .description("上游节点累计被摘除的次数")
+                    .tag("endpoint", name)
+                    .register(registry);
+            for (TrafficClass trafficClass : TrafficClass.values()) {
+                ConcurrencyLimiter limiter = endpoint.getLimiter(trafficClass);
+                if (limiter == null) {
+                    continue;
+                }
+                Gauge.builder("devpilot.upstream.limit", limiter, ConcurrencyLimiter::getLimit)
+                        .description("上游节点当前的自适应并发上限")
+                        .tag("endpoint", name)
+                        .tag("traffic", trafficClass.getTag())
+                        .register(registry);
+                Gauge.builder("devpilot.upstream.limit.in.flight", limiter, ConcurrencyLimiter::getInFlight)
+                        .description("持有并发许可的请求数量, 流式请求在结束前一直持有")
+                        .tag("endpoint", name)
+                        .tag("traffic", trafficClass.getTag())
+                        .register(registry);
+            }
+            CircuitBreaker circuitBreaker = endpoint.getCircuitBreaker();
+            if (circuitBreaker != null) {
+                Gauge.builder("devpilot.upstream.circuit.state", circuitBreaker, c -> c.getState().ordinal())
+                        .description("熔断器状态: 0 关闭, 1 打开, 2 半开")
+                        .tag("endpoint", name)
+                        .register(registry);
+                FunctionCounter.builder("devpilot.upstream.circuit.opened", circuitBreaker, CircuitBreaker::getOpenCount)
+                        .description("熔断器累计打开次数")
+                        .tag("endpoint", name)
+                        .register(registry);
+            }
+        }
+    }
+}
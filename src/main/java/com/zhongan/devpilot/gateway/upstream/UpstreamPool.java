@@ -0,0 +1,462 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+/**
+ * 上游模型服务节点池
+ * <p>
+ * 使用 power-of-two-choices 选择节点: 按权重随机选出两个可用节点, 取 {@link UpstreamEndpoint#cost()} 较小的一个.
+ * 连续失败, 或者连续几个时间窗口内非流式请求的平均延迟明显高于其它节点的节点会被摘除一段时间, 到期后自动恢复,
+ * 连续被摘除时摘除时间翻倍. 流式请求和单次的长请求不会导致摘除.
+ * 同时被摘除的节点数量有上限, 所有节点都被摘除时仍然选择最早到期的节点.
+ * <p>
+ * 节点达到自适应并发上限或者熔断时不参与选择, 没有可以接收请求的节点时请求以 {@link UpstreamRejectedException} 快速失败.
+ * 并发上限按 {@link TrafficClass} 区分, 对话流不会占用补全请求的许可.
+ */
+@Slf4j
+public class UpstreamPool {
+    private static final String UNARY = "unary";
+
+    private static final String STREAM = "stream";
+
+    private final UpstreamEndpoint[] endpoints;
+
+    private final int failureThreshold;
+
+    private final long ejectionNanos;
+
+    private final long maxEjectionNanos;
+
+    private final double slowRatio;
+
+    private final long slowWindowNanos;
+
+    private final int slowMinSamples;
+
+    private final int slowWindows;
+
+    private final int maxEjected;
+
+    /**
+     * 记录上游请求耗时和状态码, 允许为 null
+     */
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 按节点、请求方式和状态码缓存的耗时指标, 不在每次请求时重新查找注册
+     */
+    private final Map<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+
+    public UpstreamPool(List<UpstreamEndpoint> endpoints, AppCommonProperties.UpstreamConfig config) {
+        this(endpoints, config, null);
+    }
+
+    public UpstreamPool(List<UpstreamEndpoint> endpoints, AppCommonProperties.UpstreamConfig config, MeterRegistry meterRegistry) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("upstream endpoints must not be empty");
+        }
+        this.endpoints = endpoints.toArray(new UpstreamEndpoint[0]);
+        this.failureThreshold = config.getFailureThreshold();
+        this.ejectionNanos = config.getEjectionTime().toNanos();
+        this.maxEjectionNanos = config.getMaxEjectionTime().toNanos();
+        this.slowRatio = config.getSlowRatio();
+        this.slowWindowNanos = config.getSlowWindow().toNanos();
+        this.slowMinSamples = Math.max(config.getSlowMinSamples(), 1);
+        this.slowWindows = Math.max(config.getSlowWindows(), 1);
+        this.maxEjected = endpoints.size() * config.getMaxEjectionPercent() / 100;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 选择节点
+     *
+     * @param trafficClass 流量类别
+     * @return 节点
+     */
+    public UpstreamEndpoint select(TrafficClass trafficClass) {
+        return select(trafficClass, null);
+    }
+
+    /**
+     * 选择节点, 尽量不选择 exclude
+     *
+     * @param trafficClass 流量类别
+     * @param exclude      不希望选择的节点, 允许为 null
+     * @return 节点, 只有一个可用节点时可能返回 exclude
+     */
+    public UpstreamEndpoint select(TrafficClass trafficClass, UpstreamEndpoint exclude) {
+        long now = System.nanoTime();
+        recoverExpired(now);
+        if (endpoints.length == 1) {
+            return endpoints[0];
+        }
+        UpstreamEndpoint first = pick(now, trafficClass, exclude, null);
+        if (first == null) {
+            first = pick(now, trafficClass, null, null);
+        }
+        if (first == null) {
+            return earliestRecovery();
+        }
+        UpstreamEndpoint second = pick(now, trafficClass, exclude, first);
+        if (second == null) {
+            return first;
+        }
+        return first.cost() <= second.cost() ? first : second;
+    }
+
+    /**
+     * 所有节点都被摘除时, 选择最早到期的节点
+     */
+    private UpstreamEndpoint earliestRecovery() {
+        UpstreamEndpoint earliest = endpoints[0];
+        for (UpstreamEndpoint endpoint : endpoints) {
+            if (endpoint.getEjectedUntilNanos() - earliest.getEjectedUntilNanos() < 0) {
+                earliest = endpoint;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * 按权重随机选择一个可以接收请求的节点
+     */
+    private UpstreamEndpoint pick(long now, TrafficClass trafficClass, UpstreamEndpoint exclude, UpstreamEndpoint other) {
+        int totalWeight = 0;
+        for (UpstreamEndpoint endpoint : endpoints) {
+            if (endpoint.isAdmissible(now, trafficClass) && endpoint != exclude && endpoint != other) {
+                totalWeight += endpoint.getWeight();
+            }
+        }
+        if (totalWeight == 0) {
+            return null;
+        }
+        int target = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (UpstreamEndpoint endpoint : endpoints) {
+            if (endpoint.isAdmissible(now, trafficClass) && endpoint != exclude && endpoint != other) {
+                target -= endpoint.getWeight();
+                if (target < 0) {
+                    return endpoint;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在选择的节点上执行请求, 并记录节点的延迟和失败
+     *
+     * @param trafficClass 流量类别
+     * @param call         请求
+     * @param <T>          泛型
+     * @return 请求结果
+     */
+    public <T> Mono<T> execute(TrafficClass trafficClass, Function<WebClient, Mono<T>> call) {
+        return Mono.defer(() -> execute(select(trafficClass), trafficClass, call));
+    }
+
+    /**
+     * 在指定的节点上执行请求, 并记录节点的延迟和失败
+     *
+     * @param endpoint     节点
+     * @param trafficClass 流量类别
+     * @param call         请求
+     * @param <T>          泛型
+     * @return 请求结果, 节点达到并发上限或者熔断时为 {@link UpstreamRejectedException}
+     */
+    public <T> Mono<T> execute(UpstreamEndpoint endpoint, TrafficClass trafficClass, Function<WebClient, Mono<T>> call) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            if (!endpoint.tryAcquire(start, trafficClass)) {
+                return Mono.error(new UpstreamRejectedException(endpoint.getName()));
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            endpoint.start();
+            return call.apply(endpoint.getWebClient())
+                    .doOnSuccess(value -> {
+                        if (done.compareAndSet(false, true)) {
+                            onSuccess(endpoint, trafficClass, UNARY, System.nanoTime() - start);
+                        }
+                    })
+                    .doOnError(e -> {
+                        if (done.compareAndSet(false, true)) {
+                            onError(endpoint, trafficClass, UNARY, System.nanoTime() - start, e);
+                        }
+                    })
+                    .doOnCancel(() -> {
+                        if (done.compareAndSet(false, true)) {
+                            onCancel(endpoint, UNARY, System.nanoTime() - start);
+                        }
+                    })
+                    .doFinally(signalType -> endpoint.release(trafficClass));
+        });
+    }
+
+    /**
+     * 执行请求, 第一次请求在对冲延迟内没有返回时, 在另一个节点上(只有一个节点时为同一节点)再发送一次请求.
+     * 先返回结果的请求胜出, 另一个请求被取消. 一个请求失败时等待另一个请求, 两个请求都失败时返回后失败的错误;
+     * 对冲请求发送之前第一次请求失败时直接返回错误, 不再发送对冲请求
+     *
+     * @param trafficClass 流量类别
+     * @param call         请求
+     * @param hedgePolicy  对冲策略
+     * @param <T>          泛型
+     * @return 请求结果
+     */
+    public <T> Mono<T> executeHedged(TrafficClass trafficClass, Function<WebClient, Mono<T>> call, HedgePolicy hedgePolicy) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            UpstreamEndpoint primary = select(trafficClass);
+            Duration delay = hedgePolicy.onRequest();
+            Mono<T> first = timed(execute(primary, trafficClass, call), hedgePolicy, start, false);
+            if (delay == null) {
+                return first;
+            }
+            // 还没有结束的请求数量, 最后一个失败的请求才返回错误
+            AtomicInteger pending = new AtomicInteger(1);
+            Mono<T> hedge = Mono.delay(delay)
+                    .filter(tick -> hedgePolicy.tryAcquire())
+                    .flatMap(tick -> {
+                        pending.incrementAndGet();
+                        UpstreamEndpoint endpoint = select(trafficClass, primary);
+                        log.info("UpstreamHedged: {} -> {}, delay: {}ms", primary.getName(), endpoint.getName(), delay.toMillis());
+                        return timed(execute(endpoint, trafficClass, call), hedgePolicy, start, true)
+                                .onErrorResume(e -> lastFailure(pending, e));
+                    })
+                    // 对冲请求没有发送时, 等待第一次请求的结果
+                    .switchIfEmpty(Mono.never());
+            return Mono.firstWithSignal(first.onErrorResume(e -> lastFailure(pending, e)), hedge);
+        });
+    }
+
+    private static <T> Mono<T> lastFailure(AtomicInteger pending, Throwable e) {
+        return pending.decrementAndGet() == 0 ? Mono.error(e) : Mono.never();
+    }
+
+    /**
+     * 每次请求结束时都记录延迟, 包括失败和被取消的请求, 延迟从原始请求开始计算. 只记录胜出的请求时,
+     * 慢请求总是被对冲请求取消, 延迟分布会偏低, 对冲延迟也会越来越短
+     */
+    private static <T> Mono<T> timed(Mono<T> attempt, HedgePolicy hedgePolicy, long start, boolean hedge) {
+        return Mono.defer(() -> {
+            AtomicBoolean won = new AtomicBoolean();
+            return attempt.doOnNext(value -> won.set(true))
+                    .doFinally(signalType -> hedgePolicy.record(System.nanoTime() - start, hedge && won.get()));
+        });
+    }
+
+    /**
+     * 在选择的节点上执行流式请求, 延迟按收到第一个元素的时间计算, 并发许可在流结束时归还
+     *
+     * @param trafficClass 流量类别
+     * @param call         请求
+     * @param <T>          泛型
+     * @return 请求结果, 没有可以接收请求的节点时为 {@link UpstreamRejectedException}
+     */
+    public <T> Flux<T> executeMany(TrafficClass trafficClass, Function<WebClient, Flux<T>> call) {
+        return Flux.defer(() -> {
+            UpstreamEndpoint endpoint = select(trafficClass);
+            long start = System.nanoTime();
+            if (!endpoint.tryAcquire(start, trafficClass)) {
+                return Flux.error(new UpstreamRejectedException(endpoint.getName()));
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            endpoint.start();
+            return call.apply(endpoint.getWebClient())
+                    .doOnNext(value -> {
+                        if (done.compareAndSet(false, true)) {
+                            onSuccess(endpoint, trafficClass, STREAM, System.nanoTime() - start);
+                        }
+                    })
+                    .doOnComplete(() -> {
+                        if (done.compareAndSet(false, true)) {
+                            onSuccess(endpoint, trafficClass, STREAM, System.nanoTime() - start);
+                        }
+                    })
+                    .doOnError(e -> {
+                        if (done.compareAndSet(false, true)) {
+                            onError(endpoint, trafficClass, STREAM, System.nanoTime() - start, e);
+                        }
+                    })
+                    .doOnCancel(() -> {
+                        if (done.compareAndSet(false, true)) {
+                            onCancel(endpoint, STREAM, System.nanoTime() - start);
+                        }
+                    })
+                    .doFinally(signalType -> endpoint.release(trafficClass));
+        });
+    }
+
+    private void onSuccess(UpstreamEndpoint endpoint, TrafficClass trafficClass, String mode, long latencyNanos) {
+        record(endpoint, mode, "200", latencyNanos);
+        endpoint.success(latencyNanos, trafficClass);
+        // 流式请求的耗时取决于生成的长度, 不用于判断慢节点
+        if (slowRatio > 0 && UNARY.equals(mode)
+                && endpoint.sampleWindow(System.nanoTime(), latencyNanos, slowWindowNanos, slowMinSamples)) {
+            int windows = endpoint.onWindow(isSlow(endpoint));
+            if (windows >= slowWindows) {
+                eject(endpoint, "slow windows: " + windows);
+            }
+        }
+    }
+
+    private void onCancel(UpstreamEndpoint endpoint, String mode, long latencyNanos) {
+        record(endpoint, mode, "cancelled", latencyNanos);
+        endpoint.cancel();
+    }
+
+    private void onError(UpstreamEndpoint endpoint, TrafficClass trafficClass, String mode, long latencyNanos, Throwable e) {
+        record(endpoint, mode, status(e), latencyNanos);
+        if (!isEndpointFailure(e)) {
+            // 请求本身的问题(例如 4xx), 节点是正常的
+            endpoint.success(latencyNanos, trafficClass);
+            return;
+        }
+        int failures = endpoint.failure(latencyNanos, trafficClass);
+        if (failures >= failureThreshold) {
+            eject(endpoint, "failures: " + failures);
+        }
+    }
+
+    /**
+     * 节点上一个窗口的平均延迟是否明显高于其它可用节点的中位数, 样本不足的节点不参与比较
+     */
+    private boolean isSlow(UpstreamEndpoint endpoint) {
+        double mean = endpoint.getWindowMeanNanos();
+        if (mean <= 0) {
+            return false;
+        }
+        double[] values = new double[endpoints.length];
+        int size = 0;
+        for (UpstreamEndpoint other : endpoints) {
+            if (other != endpoint && other.isAvailable() && other.getWindowMeanNanos() > 0) {
+                values[size++] = other.getWindowMeanNanos();
+            }
+        }
+        if (size == 0) {
+            return false;
+        }
+        Arrays.sort(values, 0, size);
+        return mean > values[size / 2] * slowRatio;
+    }
+
+    private synchronized void eject(UpstreamEndpoint endpoint, String reason) {
+        if (endpoint.isEjected() || endpoints.length == 1) {
+            return;
+        }
+        int ejected = 0;
+        for (UpstreamEndpoint e : endpoints) {
+            if (e.isEjected()) {
+                ejected++;
+            }
+        }
+        if (ejected >= maxEjected) {
+            return;
+        }
+        endpoint.eject(System.nanoTime(), ejectionNanos, maxEjectionNanos);
+        log.warn("UpstreamEjected: {}, reason: {}", endpoint.getName(), reason);
+    }
+
+    private void recoverExpired(long now) {
+        for (UpstreamEndpoint endpoint : endpoints) {
+            if (endpoint.isEjectionExpired(now)) {
+                synchronized (this) {
+                    if (endpoint.isEjectionExpired(now)) {
+                        endpoint.recover(medianEwma(endpoint));
+                        log.info("UpstreamRecovered: {}", endpoint.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 除 self 以外可用节点的延迟中位数, 没有其它可用节点时返回 0
+     */
+    private double medianEwma(UpstreamEndpoint self) {
+        double[] values = new double[endpoints.length];
+        int size = 0;
+        for (UpstreamEndpoint endpoint : endpoints) {
+            if (endpoint != self && endpoint.isAvailable()) {
+                values[size++] = endpoint.getEwmaNanos();
+            }
+        }
+        if (size == 0) {
+            return 0;
+        }
+        Arrays.sort(values, 0, size);
+        return values[size / 2];
+    }
+
+    /**
+     * 记录上游请求的耗时, 流式请求为收到第一个元素的时间. 标签只有节点名称、请求方式和状态码, 取值都是有限的
+     */
+    private void record(UpstreamEndpoint endpoint, String mode, String status, long latencyNanos) {
+        if (meterRegistry == null) {
+            return;
+        }
+        timers.computeIfAbsent(new TimerKey(endpoint, mode, status), key -> Timer.builder("devpilot.upstream.requests")
+                        .description("上游请求的耗时, 流式请求为收到第一个元素的时间")
+                        .tag("endpoint", key.endpoint().getName())
+                        .tag("mode", key.mode())
+                        .tag("status", key.status())
+                        .register(meterRegistry))
+                .record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static String status(Throwable e) {
+        if (e instanceof WebClientResponseException responseException) {
+            return String.valueOf(responseException.getStatusCode().value());
+        }
+        if (e instanceof TimeoutException) {
+            return "timeout";
+        }
+        if (e instanceof WebClientRequestException) {
+            return "io_error";
+        }
+        return "error";
+    }
+
+    /**
+     * 是否为节点本身的故障: 连接失败、超时、5xx 和 429
+     *
+     * @param e 异常
+     * @return 是否为节点故障
+     */
+    public static boolean isEndpointFailure(Throwable e) {
+        if (e instanceof WebClientResponseException responseException) {
+            return responseException.getStatusCode().is5xxServerError() || responseException.getStatusCode().value() == 429;
+        }
+        return e instanceof WebClientRequestException || e instanceof TimeoutException;
+    }
+
+    /**
+     * @return 所有节点
+     */
+    public List<UpstreamEndpoint> getEndpoints() {
+        return List.of(endpoints);
+    }
+
+    private record TimerKey(UpstreamEndpoint endpoint, String mode, String status) {
+    }
+}
@@ -0,0 +1,62 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * 启动时预热上游连接
+ * <p>
+ * 对每个节点并发发送若干个预热请求, 建立连接并完成 TLS 握手后放回连接池. ApplicationRunner 执行完成后应用才进入
+ * ready 状态, 因此就绪探针通过之前连接已经建立, 发布后的第一批请求不需要再付出建连的代价.
+ * 预热失败或者超时只记录日志, 不影响启动.
+ */
+@Slf4j
+@Component
+public class UpstreamPrewarmer implements ApplicationRunner {
+    private final UpstreamPool upstreamPool;
+
+    private final AppCommonProperties.HttpClientConfig config;
+
+    public UpstreamPrewarmer(UpstreamPool upstreamPool, AppCommonProperties appCommonProperties) {
+        this.upstreamPool = upstreamPool;
+        this.config = appCommonProperties.getUpstream().getHttp();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        int connections = config.getPrewarmConnections();
+        if (connections <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        AtomicInteger opened = new AtomicInteger();
+        Flux.fromIterable(upstreamPool.getEndpoints())
+                .flatMap(endpoint -> Flux.range(0, connections)
+                        // 同时发出, 每个请求占用一个独立的连接
+                        .flatMap(i -> prewarm(endpoint), connections)
+                        .doOnNext(ok -> opened.incrementAndGet()))
+                .then()
+                .timeout(config.getPrewarmTimeout(), Mono.empty())
+                .onErrorResume(e -> Mono.empty())
+                .block();
+        log.info("UpstreamPrewarmed: {} connections, {}ms", opened.get(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private Mono<Boolean> prewarm(UpstreamEndpoint endpoint) {
+        return endpoint.getWebClient().get()
+                .uri(config.getPrewarmPath())
+                .exchangeToMono(response -> response.releaseBody().thenReturn(Boolean.TRUE))
+                .onErrorResume(e -> {
+                    log.warn("UpstreamPrewarmFailed: {}, {}", endpoint.getName(), e.toString());
+                    return Mono.empty();
+                });
+    }
+}
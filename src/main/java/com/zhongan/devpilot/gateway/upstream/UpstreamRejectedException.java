@@ -0,0 +1,20 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+/**
+ * 节点达到并发上限或者熔断时, 请求被直接拒绝. 拒绝是正常的过载保护, 不记录异常堆栈
+ */
+public class UpstreamRejectedException extends RuntimeException {
+    private final String endpoint;
+
+    public UpstreamRejectedException(String endpoint) {
+        super("upstream rejected: " + endpoint, null, false, false);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return 拒绝请求的节点
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -18,14 +18,17 @@
 package com.zhongan.devpilot.gateway.utils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.LinkedHashMap;
 import java.util.SortedMap;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
 import lombok.Getter;
 
 import org.springframework.util.StringUtils;
@@ -55,6 +58,11 @@ public class JacksonMapper {
         };
     }
 
+    /**
+     * 网关共享的 Mapper
+     */
+    private static final JacksonMapper SHARED_MAPPER = createSharedMapper();
+
     @Getter
     private ObjectMapper mapper;
 
@@ -71,7 +79,17 @@ public class JacksonMapper {
      * @param include 属性的风格
      */
     public JacksonMapper(Include include) {
-        mapper = new ObjectMapper();
+        this(new ObjectMapper(), include);
+    }
+
+    /**
+     * 创建 Jackson Mapper 对象
+     *
+     * @param objectMapper ObjectMapper
+     * @param include      属性的风格
+     */
+    public JacksonMapper(ObjectMapper objectMapper, Include include) {
+        mapper = objectMapper;
         // 设置输出时包含属性的风格
         if (include != null) {
             mapper.setSerializationInclusion(include);
@@ -89,6 +107,27 @@ public class JacksonMapper {
         return new JacksonMapper(Include.NON_NULL);
     }
 
+    /**
+     * 网关共享的Mapper, 输出风格同 {@link #nonDefaultMapper()}. 字段名规范化并驻留, 注册 Blackbird 模块使用 LambdaMetafactory
+     * 代替反射读写属性, 请求处理的热路径上建议使用. 转发给上游、需要保留 0 和 false 的请求体在类上声明
+     * {@code @JsonInclude(Include.NON_NULL)}.
+     *
+     * @return JacksonMapper
+     */
+    public static JacksonMapper sharedMapper() {
+        return SHARED_MAPPER;
+    }
+
+    private static JacksonMapper createSharedMapper() {
+        JsonFactory jsonFactory = JsonFactory.builder()
+                .enable(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES)
+                .enable(JsonFactory.Feature.INTERN_FIELD_NAMES)
+                .build();
+        JacksonMapper jacksonMapper = new JacksonMapper(new ObjectMapper(jsonFactory), Include.NON_DEFAULT);
+        jacksonMapper.mapper.registerModule(new BlackbirdModule());
+        return jacksonMapper;
+    }
+
     /**
      * 创建只输出非Null且非Empty(如List.isEmpty)的属性到Json字符串的Mapper,建议在外部接口中使用.
      *
@@ -121,6 +160,20 @@ public class JacksonMapper {
         }
     }
 
+    /**
+     * 序列化为UTF-8编码的字节, 避免先生成字符串再编码.
+     *
+     * @param object Java对象
+     * @return json字节
+     */
+    public byte[] toJsonBytes(Object object) {
+        try {
+            return mapper.writeValueAsBytes(object);
+        } catch (IOException e) {
+            throw new RuntimeException("write to json bytes error:" + object, e);
+        }
+    }
+
     /**
      * 反序列化POJO或简单Collection如 {@code List<String>}. 如果JSON字符串为Null或"null"字符串,
      * 返回Null. 如果JSON字符串为"[]", 返回空集合. 如需反序列化复杂Collection如 {@code List<MyBean>},
@@ -181,4 +234,20 @@ public class JacksonMapper {
             throw new RuntimeException("parse json string error:" + jsonString, e);
         }
     }
+
+    /**
+     * 直接从输入流反序列化, 避免先将字节转换为字符串.
+     *
+     * @param inputStream 输入流
+     * @param javaType    JavaType
+     * @param <T>         泛型
+     * @return POJO对象
+     */
+    public <T> T fromJson(InputStream inputStream, JavaType javaType) {
+        try {
+            return mapper.readValue(inputStream, javaType);
+        } catch (IOException e) {
+            throw new RuntimeException("parse json stream error", e);
+        }
+    }
 }
\ No newline at end of file
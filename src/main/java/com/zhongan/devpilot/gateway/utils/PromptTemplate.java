@@ -1,66 +1,200 @@
 package com.zhongan.devpilot.gateway.utils;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.text.StringSubstitutor;
-import org.apache.commons.text.matcher.StringMatcher;
-import org.apache.commons.text.matcher.StringMatcherFactory;
-
-public class PromptTemplate {
+/**
+ * 预编译的提示词模板
+ * <p>
+ * 模板在启动时解析为文本片段和变量片段, 渲染时只需要一次顺序拼接. 变量格式为 {@code {{name}}}, 支持默认值
+ * {@code {{name:default}}}, 变量前缀前的 {@code ~} 为转义字符. 没有值也没有默认值的变量保持原样输出.
+ * 变量的值不会再被当作模板解析.
+ */
+public final class PromptTemplate {
 
     private static final char ESCAPE_CHARACTER = '~';
 
-    private static final StringMatcher VAR_PREFIX = StringMatcherFactory.INSTANCE.stringMatcher("{{");
+    private static final String VAR_PREFIX = "{{";
 
-    private static final StringMatcher VAR_SUFFIX = StringMatcherFactory.INSTANCE.stringMatcher("}}");
+    private static final String VAR_SUFFIX = "}}";
 
-    private static final StringMatcher DEFAULT_VALUE_DELIMITER = StringMatcherFactory.INSTANCE.stringMatcher(":");
+    private static final char DEFAULT_VALUE_DELIMITER = ':';
 
-    private final StringBuilder template;
+    /**
+     * 每个变量的预估长度, 用于没有实际值时预估输出大小
+     */
+    private static final int ESTIMATED_VARIABLE_LENGTH = 256;
 
-    private final Map<String, Object> variables = new HashMap<>();
+    /**
+     * 线程复用的 builder 超过该容量后不再复用, 避免长期持有大对象
+     */
+    private static final int MAX_REUSED_CAPACITY = 64 * 1024;
 
-    PromptTemplate() {
-        this.template = new StringBuilder();
-    }
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(4096));
 
-    PromptTemplate(String template) {
-        this.template = new StringBuilder(template);
-    }
+    private final String source;
 
-    public static PromptTemplate empty() {
-        return new PromptTemplate();
+    private final Segment[] segments;
+
+    private final int estimatedLength;
+
+    private PromptTemplate(String source, Segment[] segments, int estimatedLength) {
+        this.source = source;
+        this.segments = segments;
+        this.estimatedLength = estimatedLength;
     }
 
-    public static PromptTemplate of(String promptTemplate) {
-        if (promptTemplate == null) {
-            return empty();
+    /**
+     * 编译提示词模板
+     *
+     * @param template 模板内容
+     * @return 编译后的模板
+     */
+    public static PromptTemplate compile(String template) {
+        if (template == null) {
+            throw new IllegalArgumentException("prompt template must not be null");
+        }
+        List<Segment> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int length = template.length();
+        int i = 0;
+        while (i < length) {
+            char c = template.charAt(i);
+            if (c == ESCAPE_CHARACTER && template.startsWith(VAR_PREFIX, i + 1)) {
+                literal.append(VAR_PREFIX);
+                i += 1 + VAR_PREFIX.length();
+                continue;
+            }
+            if (c == VAR_PREFIX.charAt(0) && template.startsWith(VAR_PREFIX, i)) {
+                int end = template.indexOf(VAR_SUFFIX, i + VAR_PREFIX.length());
+                if (end < 0) {
+                    literal.append(template, i, length);
+                    break;
+                }
+                if (!literal.isEmpty()) {
+                    segments.add(Segment.literal(literal.toString()));
+                    literal.setLength(0);
+                }
+                String expression = template.substring(i + VAR_PREFIX.length(), end);
+                String placeholder = template.substring(i, end + VAR_SUFFIX.length());
+                int delimiter = expression.indexOf(DEFAULT_VALUE_DELIMITER);
+                if (delimiter < 0) {
+                    segments.add(Segment.variable(expression, null, placeholder));
+                } else {
+                    segments.add(Segment.variable(expression.substring(0, delimiter), expression.substring(delimiter + 1), placeholder));
+                }
+                i = end + VAR_SUFFIX.length();
+                continue;
+            }
+            literal.append(c);
+            i++;
+        }
+        if (!literal.isEmpty()) {
+            segments.add(Segment.literal(literal.toString()));
+        }
+
+        int estimatedLength = 0;
+        for (Segment segment : segments) {
+            estimatedLength += segment.name == null ? segment.text.length() : ESTIMATED_VARIABLE_LENGTH;
         }
-        return new PromptTemplate(promptTemplate);
+        return new PromptTemplate(template, segments.toArray(new Segment[0]), estimatedLength);
     }
 
-    public PromptTemplate setVariable(String name, String value) {
-        if (name != null && value != null) {
-            variables.put(name, value);
+    /**
+     * 渲染提示词
+     *
+     * @param variables 变量值
+     * @param appendix  追加到末尾的文本, 不做变量替换, 允许为 null
+     * @return 提示词
+     */
+    public String render(Map<String, ?> variables, String appendix) {
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+        builder.ensureCapacity(outputLength(variables) + (appendix == null ? 0 : appendix.length()));
+        for (Segment segment : segments) {
+            if (segment.name == null) {
+                builder.append(segment.text);
+                continue;
+            }
+            Object value = variables == null ? null : variables.get(segment.name);
+            if (value != null) {
+                builder.append(value);
+            } else if (segment.defaultValue != null) {
+                builder.append(segment.defaultValue);
+            } else {
+                builder.append(segment.text);
+            }
         }
-        return this;
+        if (appendix != null) {
+            builder.append(appendix);
+        }
+        String prompt = builder.toString();
+        if (builder.capacity() > MAX_REUSED_CAPACITY) {
+            BUILDER.remove();
+        }
+        return prompt;
     }
 
-    public PromptTemplate appendLast(String text) {
-        if (text != null) {
-            template.append(text);
+    /**
+     * 计算渲染结果的长度, 非字符串的变量值按预估长度计算
+     */
+    private int outputLength(Map<String, ?> variables) {
+        if (variables == null || variables.isEmpty()) {
+            return estimatedLength;
+        }
+        int length = 0;
+        for (Segment segment : segments) {
+            if (segment.name == null) {
+                length += segment.text.length();
+            } else if (variables.get(segment.name) instanceof CharSequence value) {
+                length += value.length();
+            } else {
+                length += ESTIMATED_VARIABLE_LENGTH;
+            }
         }
-        return this;
+        return length;
     }
 
-    public String getPrompt() {
-        return new StringSubstitutor(variables)
-                .setVariablePrefixMatcher(VAR_PREFIX)
-                .setVariableSuffixMatcher(VAR_SUFFIX)
-                .setValueDelimiterMatcher(DEFAULT_VALUE_DELIMITER)
-                .setEscapeChar(ESCAPE_CHARACTER)
-                .replace(template.toString());
+    /**
+     * @return 预估的输出长度
+     */
+    public int getEstimatedLength() {
+        return estimatedLength;
     }
 
+    /**
+     * @return 模板原始内容
+     */
+    public String getSource() {
+        return source;
+    }
+
+    private static final class Segment {
+        /**
+         * 变量名, 为 null 时表示文本片段
+         */
+        private final String name;
+
+        /**
+         * 文本片段的内容, 或者变量片段的原始占位符
+         */
+        private final String text;
+
+        private final String defaultValue;
+
+        private Segment(String name, String text, String defaultValue) {
+            this.name = name;
+            this.text = text;
+            this.defaultValue = defaultValue;
+        }
+
+        static Segment literal(String text) {
+            return new Segment(null, text, null);
+        }
+
+        static Segment variable(String name, String defaultValue, String placeholder) {
+            return new Segment(name, placeholder, defaultValue);
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package com.zhongan.devpilot.gateway.utils;
+
+import java.util.Objects;
+
+/**
+ * 字符串的只读视图, 不拷贝底层字符串
+ * <p>
+ * 用于在文档中表示光标前后的代码等片段, 只有调用 {@link #toString()} 时才会生成新的字符串.
+ */
+public final class TextSlice implements CharSequence {
+    private final String source;
+
+    private final int start;
+
+    private final int end;
+
+    private TextSlice(String source, int start, int end) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * 创建字符串的视图
+     *
+     * @param source 底层字符串
+     * @param start  开始位置(包含)
+     * @param end    结束位置(不包含)
+     * @return 字符串视图
+     */
+    public static TextSlice of(String source, int start, int end) {
+        Objects.checkFromToIndex(start, end, source.length());
+        return new TextSlice(source, start, end);
+    }
+
+    /**
+     * 创建整个字符串的视图
+     *
+     * @param source 底层字符串
+     * @return 字符串视图
+     */
+    public static TextSlice of(String source) {
+        return new TextSlice(source, 0, source.length());
+    }
+
+    /**
+     * @return 底层字符串
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return 在底层字符串中的开始位置(包含)
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return 在底层字符串中的结束位置(不包含)
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        Objects.checkIndex(index, end - start);
+        return source.charAt(start + index);
+    }
+
+    @Override
+    public TextSlice subSequence(int from, int to) {
+        Objects.checkFromToIndex(from, to, end - start);
+        return new TextSlice(source, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        return source.substring(start, end);
+    }
+}
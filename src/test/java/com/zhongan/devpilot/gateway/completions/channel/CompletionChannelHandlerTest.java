@@ -0,0 +1,291 @@
+package com.zhongan.devpilot.gateway.completions.channel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.zhongan.devpilot.gateway.completions.context.DocumentContext;
+import com.zhongan.devpilot.gateway.completions.document.DocumentStore;
+import com.zhongan.devpilot.gateway.completions.providers.Provider;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeCompletionRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CompletionChannelRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.CompletionChannelResponse;
+import com.zhongan.devpilot.gateway.completions.session.CompletionSessionRegistry;
+import com.zhongan.devpilot.gateway.completions.tokenizer.CharRatioTokenCounter;
+import com.zhongan.devpilot.gateway.completions.tokenizer.TokenCounter;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.filter.CodeCompletionGatewayFilterFactory;
+import com.zhongan.devpilot.gateway.filter.TokenRateLimitGatewayFilterFactory;
+import com.zhongan.devpilot.gateway.ratelimit.UserKeyResolver;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+import org.springframework.web.reactive.socket.server.upgrade.ReactorNettyRequestUpgradeStrategy;
+import org.springframework.web.server.adapter.WebHttpHandlerBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 通过 WebSocket 客户端连接补全通道: 按 id 交替返回响应、取消、并发上限、与 HTTP 接口共用限流配额, 以及等待发送的响应过多时关闭连接
+ * <p>
+ * 补全提供者按文档内容决定行为: {@code fast} 立即返回, {@code slow} 延迟返回, {@code hang} 一直不返回. 补全结果是 JSON,
+ * 响应的 data 字段原样嵌入, 因此按 JSON 树读取响应.
+ */
+class CompletionChannelHandlerTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private static final String PROVIDER = "test";
+
+    private static final String TOKEN = "Bearer sk-0123456789abcdef";
+
+    private final JacksonMapper jacksonMapper = JacksonMapper.sharedMapper();
+
+    private final AtomicInteger cancelled = new AtomicInteger();
+
+    private final Provider provider = this::complete;
+
+    private final List<Disposable> resources = new ArrayList<>();
+
+    private DisposableServer server;
+
+    private GatewayFilter httpRateLimit;
+
+    @AfterEach
+    void stop() {
+        resources.forEach(Disposable::dispose);
+        if (server != null) {
+            server.disposeNow();
+        }
+    }
+
+    @Test
+    void multiplexesResponsesById() throws InterruptedException {
+        start(8, 256, 0);
+        Channel channel = connect();
+        channel.complete("1", "A.java", "slow");
+        channel.complete("2", "B.java", "fast");
+
+        JsonNode first = channel.next();
+        JsonNode second = channel.next();
+        // 后发送的请求先完成, 先返回
+        assertThat(first.path("id").asText()).isEqualTo("2");
+        assertThat(first.path("type").asText()).isEqualTo(CompletionChannelResponse.DONE);
+        assertThat(first.path("data").path("content").asText()).isEqualTo("fast");
+        assertThat(second.path("id").asText()).isEqualTo("1");
+        assertThat(second.path("type").asText()).isEqualTo(CompletionChannelResponse.DONE);
+        assertThat(second.path("data").path("content").asText()).isEqualTo("slow");
+    }
+
+    @Test
+    void cancelsInFlightRequest() throws InterruptedException {
+        start(8, 256, 0);
+        Channel channel = connect();
+        channel.complete("1", "A.java", "hang");
+        channel.cancel("1");
+
+        JsonNode response = channel.next();
+        assertThat(response.path("id").asText()).isEqualTo("1");
+        assertThat(response.path("type").asText()).isEqualTo(CompletionChannelResponse.CANCELLED);
+        // 取消传递到补全提供者
+        assertThat(cancelled).hasValue(1);
+
+        // 连接仍然可用
+        channel.complete("2", "A.java", "fast");
+        assertThat(channel.next().path("type").asText()).isEqualTo(CompletionChannelResponse.DONE);
+    }
+
+    @Test
+    void rejectsRequestsAboveMaxInFlight() throws InterruptedException {
+        start(2, 256, 0);
+        Channel channel = connect();
+        channel.complete("1", "A.java", "hang");
+        channel.complete("2", "B.java", "hang");
+        channel.complete("3", "C.java", "fast");
+
+        JsonNode response = channel.next();
+        assertThat(response.path("id").asText()).isEqualTo("3");
+        assertThat(response.path("type").asText()).isEqualTo(CompletionChannelResponse.BUSY);
+    }
+
+    @Test
+    void sharesRateLimitWithHttpRoute() throws InterruptedException {
+        start(8, 256, 2);
+        Channel channel = connect();
+        assertThat(httpRequest()).isNull();
+        channel.complete("1", "A.java", "fast");
+        assertThat(channel.next().path("type").asText()).isEqualTo(CompletionChannelResponse.DONE);
+
+        // 同一个凭证的 HTTP 请求和通道请求已经用完两个请求的突发容量
+        channel.complete("2", "A.java", "fast");
+        JsonNode response = channel.next();
+        assertThat(response.path("id").asText()).isEqualTo("2");
+        assertThat(response.path("type").asText()).isEqualTo(CompletionChannelResponse.RATE_LIMITED);
+        assertThat(response.path("retryAfterMillis").asLong()).isPositive();
+        assertThat(httpRequest()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    @Test
+    void closesConnectionWhenPendingResponsesOverflow() {
+        start(64, 4, 0);
+        Channel channel = connect();
+        // 进行中的请求占满合并发送的并发数量后, 之后的响应在队列中等待, 队列满时关闭连接
+        for (int i = 0; i < 20; i++) {
+            channel.complete(String.valueOf(i), "F" + i + ".java", "hang");
+        }
+        CloseStatus status = channel.closeStatus.asMono().block(TIMEOUT);
+        assertThat(status).isNotNull();
+        assertThat(status.getCode()).isEqualTo(CloseStatus.POLICY_VIOLATION.getCode());
+    }
+
+    private Mono<String> complete(DocumentContext documentContext) {
+        return switch (documentContext.getDocument()) {
+            case "fast" -> Mono.just("{\"content\":\"fast\"}");
+            case "slow" -> Mono.delay(Duration.ofMillis(300)).thenReturn("{\"content\":\"slow\"}");
+            default -> Mono.<String>never().doOnCancel(cancelled::incrementAndGet);
+        };
+    }
+
+    /**
+     * 按配置的代码补全路由创建过滤器, 再启动只处理补全通道的服务器
+     *
+     * @param requestsPerMinute 路由每个用户每分钟的请求数, 也是突发容量, 为 0 时不限制
+     */
+    private void start(int maxInFlight, int maxPendingResponses, long requestsPerMinute) {
+        AppCommonProperties properties = new AppCommonProperties();
+        AppCommonProperties.CompletionChannelConfig channelConfig = properties.getOpenAiCodeCompletion().getChannel();
+        channelConfig.setMaxInFlight(maxInFlight);
+        channelConfig.setMaxPendingResponses(maxPendingResponses);
+        TokenCounter tokenCounter = new CharRatioTokenCounter();
+        UserKeyResolver userKeyResolver = new UserKeyResolver(properties);
+        DocumentStore documentStore = new DocumentStore(properties);
+        CompletionSessionRegistry completionSessionRegistry = new CompletionSessionRegistry();
+
+        CodeCompletionGatewayFilterFactory codeCompletionFilterFactory = new CodeCompletionGatewayFilterFactory(Map.of(PROVIDER, provider),
+                completionSessionRegistry, tokenCounter, documentStore, userKeyResolver);
+        CodeCompletionGatewayFilterFactory.Config completionConfig = new CodeCompletionGatewayFilterFactory.Config();
+        completionConfig.setRouteId(channelConfig.getRouteId());
+        completionConfig.setDefaultProviderName(PROVIDER);
+        codeCompletionFilterFactory.apply(completionConfig);
+
+        TokenRateLimitGatewayFilterFactory tokenRateLimitFilterFactory = new TokenRateLimitGatewayFilterFactory(properties, userKeyResolver);
+        TokenRateLimitGatewayFilterFactory.Config rateLimitConfig = new TokenRateLimitGatewayFilterFactory.Config();
+        rateLimitConfig.setRouteId(channelConfig.getRouteId());
+        rateLimitConfig.setRequestsPerMinute(requestsPerMinute);
+        rateLimitConfig.setRequestBurst(requestsPerMinute);
+        httpRateLimit = tokenRateLimitFilterFactory.apply(rateLimitConfig);
+
+        CompletionChannelHandler handler = new CompletionChannelHandler(properties, completionSessionRegistry, documentStore, tokenCounter,
+                userKeyResolver, codeCompletionFilterFactory, tokenRateLimitFilterFactory);
+        WebSocketService webSocketService = new HandshakeWebSocketService(new ReactorNettyRequestUpgradeStrategy());
+        HttpHandler httpHandler = WebHttpHandlerBuilder.webHandler(exchange -> webSocketService.handleRequest(exchange, handler)).build();
+        server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .handle(new ReactorHttpHandlerAdapter(httpHandler))
+                .bindNow();
+    }
+
+    /**
+     * 经过路由的限流过滤器发送一个 HTTP 请求
+     *
+     * @return 被限流时的状态码, 否则为 null
+     */
+    private HttpStatusCode httpRequest() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/v1/completions")
+                .remoteAddress(new InetSocketAddress("127.0.0.1", 1))
+                .header(HttpHeaders.AUTHORIZATION, TOKEN));
+        httpRateLimit.filter(exchange, e -> Mono.empty()).block(TIMEOUT);
+        return exchange.getResponse().getStatusCode();
+    }
+
+    private Channel connect() {
+        Channel channel = new Channel();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.AUTHORIZATION, TOKEN);
+        URI uri = URI.create("ws://127.0.0.1:" + server.port() + "/devpilot/v1/code-completion-channel");
+        resources.add(new ReactorNettyWebSocketClient().execute(uri, headers, session -> {
+            session.closeStatus().subscribe(channel.closeStatus::tryEmitValue);
+            Mono<Void> receive = session.receive()
+                    .doOnNext(message -> channel.inbound.add(readTree(message.getPayloadAsText())))
+                    .then();
+            return Mono.when(session.send(channel.outbound.asFlux().map(session::textMessage)), receive);
+        }).subscribe(null, e -> channel.closeStatus.tryEmitValue(CloseStatus.SERVER_ERROR)));
+        return channel;
+    }
+
+    private JsonNode readTree(String text) {
+        try {
+            return jacksonMapper.getMapper().readTree(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 客户端连接, 发送的消息在连接建立后依次发送, 收到的响应放入队列
+     */
+    private final class Channel {
+        private final Sinks.Many<String> outbound = Sinks.many().unicast().onBackpressureBuffer();
+
+        private final BlockingQueue<JsonNode> inbound = new LinkedBlockingQueue<>();
+
+        private final Sinks.One<CloseStatus> closeStatus = Sinks.one();
+
+        private void complete(String id, String filePath, String document) {
+            CodeCompletionRequest request = new CodeCompletionRequest();
+            request.setFilePath(filePath);
+            request.setDocument(document);
+            request.setPosition(document.length());
+            CompletionChannelRequest channelRequest = new CompletionChannelRequest();
+            channelRequest.setId(id);
+            channelRequest.setType(CompletionChannelRequest.COMPLETE);
+            channelRequest.setRequest(request);
+            send(channelRequest);
+        }
+
+        private void cancel(String id) {
+            CompletionChannelRequest channelRequest = new CompletionChannelRequest();
+            channelRequest.setId(id);
+            channelRequest.setType(CompletionChannelRequest.CANCEL);
+            send(channelRequest);
+        }
+
+        private void send(CompletionChannelRequest channelRequest) {
+            outbound.tryEmitNext(jacksonMapper.toJson(channelRequest));
+        }
+
+        private JsonNode next() throws InterruptedException {
+            JsonNode response = inbound.poll(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            assertThat(response).as("response").isNotNull();
+            return response;
+        }
+    }
+}
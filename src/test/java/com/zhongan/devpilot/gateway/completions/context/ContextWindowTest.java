@@ -0,0 +1,36 @@
+package com.zhongan.devpilot.gateway.completions.context;
+
+import com.zhongan.devpilot.gateway.completions.tokenizer.CharRatioTokenCounter;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContextWindowTest {
+    private static final String EMOJI = "😀";
+
+    @Test
+    void doesNotSplitSurrogatePairsWhenCuttingInsideTheCursorLine() {
+        // 光标所在行本身超过预算, 按字符二分裁剪
+        String line = "// " + EMOJI.repeat(20);
+        String document = line + line + "\n";
+        int cursor = line.length();
+        for (int maxTokens = 1; maxTokens <= 30; maxTokens++) {
+            DocumentContext documentContext = DocumentContext.build(document, "a.java", cursor, "inline",
+                    new ContextWindow(new CharRatioTokenCounter(), maxTokens, 0.5, false, 0));
+            assertWellFormed(documentContext.getPrefix().toString());
+            assertWellFormed(documentContext.getSuffix().toString());
+        }
+    }
+
+    private static void assertWellFormed(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c)) {
+                assertThat(i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))).as("high surrogate at %s in %s", i, text).isTrue();
+                i++;
+            } else {
+                assertThat(Character.isLowSurrogate(c)).as("low surrogate at %s in %s", i, text).isFalse();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.zhongan.devpilot.gateway.completions.context;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 对比光标前后的文档视图与之前 {@code substring} 得到的字符串
+ */
+class DocumentContextTest {
+    @Test
+    void prefixAndSuffixMatchLegacySubstring() {
+        String document = "package a;\n\nclass B {\n    int c = 1;\n}\n";
+        Integer[] cursors = {null, -1, 0, 1, 2, 10, 24, document.length()};
+        for (Integer cursor : cursors) {
+            DocumentContext documentContext = DocumentContext.build(document, "B.java", cursor, "inline");
+            String[] expected = legacyPrefixAndSuffix(document, cursor);
+            assertThat(documentContext.getPrefix().toString()).as("prefix at %s", cursor).isEqualTo(expected[0]);
+            assertThat(documentContext.getSuffix().toString()).as("suffix at %s", cursor).isEqualTo(expected[1]);
+            assertThat(documentContext.getPrefix().getSource()).isSameAs(document);
+        }
+    }
+
+    @Test
+    void emptyDocument() {
+        DocumentContext documentContext = DocumentContext.build("", "a.java", 0, "inline");
+        assertThat(documentContext.getPrefix().toString()).isEmpty();
+        assertThat(documentContext.getSuffix().toString()).isEmpty();
+    }
+
+    /**
+     * 之前 DocumentContext.build 中的实现, 光标为 null 时按 0 处理
+     */
+    private static String[] legacyPrefixAndSuffix(String document, Integer cursor) {
+        if (cursor != null && cursor > 1) {
+            return new String[]{document.substring(0, cursor), document.substring(cursor)};
+        }
+        return new String[]{document, ""};
+    }
+}
@@ -0,0 +1,130 @@
+package com.zhongan.devpilot.gateway.completions.document;
+
+import java.util.List;
+import java.util.Random;
+
+import com.zhongan.devpilot.gateway.completions.providers.dto.CodeCompletionRequest;
+import com.zhongan.devpilot.gateway.completions.providers.dto.DocumentEdit;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 对比增量同步的文档与直接在字符串上应用修改的结果, 以及按用户隔离保存的文档
+ */
+class DocumentStoreTest {
+    @Test
+    void appliesEditsLikeStringReplace() {
+        DocumentStore store = new DocumentStore(new AppCommonProperties());
+        Random random = new Random(7);
+        String expected = "package a;\n\nclass B {\n}\n";
+        store.open("user", "session", "B.java", 1, expected);
+        for (long version = 1; version < 300; version++) {
+            int offset = random.nextInt(expected.length() + 1);
+            int deleteLength = random.nextInt(Math.min(3, expected.length() - offset) + 1);
+            String insertText = random.nextInt(4) == 0 ? "" : "x" + version + (random.nextBoolean() ? "\n" : "");
+            expected = expected.substring(0, offset) + insertText + expected.substring(offset + deleteLength);
+            String text = store.update("user", "session", "B.java", version, version + 1, List.of(edit(offset, deleteLength, insertText)));
+            assertThat(text).as("version %s", version + 1).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void isolatesDocumentsByUser() {
+        DocumentStore store = new DocumentStore(new AppCommonProperties());
+        store.open("alice", "session", "a.txt", 1, "secret");
+        assertThatThrownBy(() -> store.update("mallory", "session", "a.txt", 1L, 2L, List.of(edit(0, 0, "x"))))
+                .isInstanceOfSatisfying(DocumentVersionException.class, e -> assertThat(e.getCurrentVersion()).isNull());
+        assertThat(store.update("alice", "session", "a.txt", 1L, 2L, List.of(edit(0, 0, "x")))).isEqualTo("xsecret");
+    }
+
+    @Test
+    void rejectsStaleBaseVersion() {
+        DocumentStore store = new DocumentStore(new AppCommonProperties());
+        store.open("user", "session", "a.txt", 3, "abc");
+        assertThatThrownBy(() -> store.update("user", "session", "a.txt", 2L, 4L, List.of(edit(0, 0, "x"))))
+                .isInstanceOfSatisfying(DocumentVersionException.class, e -> assertThat(e.getCurrentVersion()).isEqualTo(3L));
+        assertThat(store.getResyncCount()).isEqualTo(1);
+    }
+
+    @Test
+    void dropsDocumentOnEditOutOfRange() {
+        DocumentStore store = new DocumentStore(new AppCommonProperties());
+        store.open("user", "session", "a.txt", 1, "abc");
+        assertThatThrownBy(() -> store.update("user", "session", "a.txt", 1L, 2L, List.of(edit(2, 5, ""))))
+                .isInstanceOf(DocumentVersionException.class);
+        assertThat(store.size()).isZero();
+    }
+
+    @Test
+    void resolveSavesFullDocumentThenAppliesEdits() {
+        DocumentStore store = new DocumentStore(new AppCommonProperties());
+        CodeCompletionRequest full = new CodeCompletionRequest();
+        full.setFilePath("a.txt");
+        full.setDocument("hello");
+        full.setDocumentVersion(1L);
+        assertThat(store.resolve(full, "key:user", "session")).isEqualTo("hello");
+
+        CodeCompletionRequest incremental = new CodeCompletionRequest();
+        incremental.setFilePath("a.txt");
+        incremental.setBaseVersion(1L);
+        incremental.setDocumentVersion(2L);
+        incremental.setEdits(List.of(edit(5, 0, " world")));
+        assertThat(store.resolve(incremental, "user", "session")).isEqualTo("hello world");
+    }
+
+    @Test
+    void resolveDoesNotSaveDocumentForAddressKey() {
+        DocumentStore store = new DocumentStore(new AppCommonProperties());
+        CodeCompletionRequest full = new CodeCompletionRequest();
+        full.setFilePath("a.txt");
+        full.setDocument("hello");
+        full.setDocumentVersion(1L);
+        // 同一出口地址后的其它用户使用相同的用户标识
+        assertThat(store.resolve(full, "ip:203.0.113.7", "session")).isEqualTo("hello");
+        assertThat(store.size()).isZero();
+
+        CodeCompletionRequest incremental = new CodeCompletionRequest();
+        incremental.setFilePath("a.txt");
+        incremental.setBaseVersion(1L);
+        incremental.setDocumentVersion(2L);
+        incremental.setEdits(List.of(edit(5, 0, " world")));
+        assertThatThrownBy(() -> store.resolve(incremental, "ip:203.0.113.7", "session"))
+                .isInstanceOfSatisfying(DocumentVersionException.class, e -> assertThat(e.getCurrentVersion()).isNull());
+        assertThatThrownBy(() -> store.resolve(incremental, "anonymous", "session")).isInstanceOf(DocumentVersionException.class);
+    }
+
+    @Test
+    void snapshotIsNotAffectedByLaterEdits() {
+        PieceTable table = new PieceTable("abc");
+        table.edit(1, 1, "X");
+        PieceTable.Snapshot snapshot = table.snapshot();
+        table.edit(0, 0, "Y");
+        assertThat(snapshot.toString()).isEqualTo("aXc");
+        assertThat(table.compact(snapshot, snapshot.toString())).isFalse();
+        assertThat(table.toString()).isEqualTo("YaXc");
+    }
+
+    @Test
+    void compactsWithSnapshotText() {
+        PieceTable table = new PieceTable("abc");
+        table.edit(3, 0, "d");
+        PieceTable.Snapshot snapshot = table.snapshot();
+        assertThat(table.compact(snapshot, snapshot.toString())).isTrue();
+        assertThat(table.memoryChars()).isEqualTo(4);
+        // 已经合并, 快照直接返回拼接的文本
+        assertThat(table.snapshot().toString()).isSameAs(table.toString());
+        table.edit(0, 1, null);
+        assertThat(table.toString()).isEqualTo("bcd");
+    }
+
+    private static DocumentEdit edit(int offset, int deleteLength, String insertText) {
+        DocumentEdit edit = new DocumentEdit();
+        edit.setOffset(offset);
+        edit.setDeleteLength(deleteLength);
+        edit.setInsertText(insertText);
+        return edit;
+    }
+}
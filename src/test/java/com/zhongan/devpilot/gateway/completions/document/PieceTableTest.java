@@ -0,0 +1,108 @@
+package com.zhongan.devpilot.gateway.completions.document;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 片段的拆分、连续输入时扩展同一个片段, 以及片段过多时的合并
+ */
+class PieceTableTest {
+    @Test
+    void splitsPiecesAtEditPositions() {
+        PieceTable table = new PieceTable("hello world");
+        assertThat(table.pieceCount()).isEqualTo(1);
+
+        // hello | , | world
+        table.edit(5, 0, ",");
+        assertThat(table.pieceCount()).isEqualTo(3);
+        // H | ello | , | world
+        table.edit(0, 1, "H");
+        assertThat(table.pieceCount()).isEqualTo(4);
+        // 删除跨越多个片段: H | el | orld
+        table.edit(3, 5, null);
+        assertThat(table.pieceCount()).isEqualTo(3);
+        assertThat(table.length()).isEqualTo(7);
+        assertThat(table.memoryChars()).isEqualTo(13);
+
+        assertThat(table.toString()).isEqualTo("Helorld");
+        assertThat(table.pieceCount()).isEqualTo(1);
+        assertThat(table.memoryChars()).isEqualTo(7);
+    }
+
+    @Test
+    void extendsPieceWhileTypingContinues() {
+        PieceTable table = new PieceTable("ab");
+        String typed = "xyz";
+        for (int i = 0; i < typed.length(); i++) {
+            table.edit(1 + i, 0, typed.substring(i, i + 1));
+        }
+        // a | xyz | b
+        assertThat(table.pieceCount()).isEqualTo(3);
+        assertThat(table.memoryChars()).isEqualTo(5);
+
+        // 在别处输入后, 回到原来的位置继续输入时追加缓冲区已经不连续, 使用新的片段
+        table.edit(0, 0, "Q");
+        table.edit(5, 0, "!");
+        assertThat(table.pieceCount()).isEqualTo(5);
+        // 接着最后一次输入继续输入时扩展同一个片段
+        table.edit(6, 0, "?");
+        assertThat(table.pieceCount()).isEqualTo(5);
+        assertThat(table.memoryChars()).isEqualTo(8);
+        assertThat(table.toString()).isEqualTo("Qaxyz!?b");
+    }
+
+    @Test
+    void resetsWhenPiecesExceedLimit() {
+        PieceTable table = new PieceTable("");
+        StringBuilder expected = new StringBuilder();
+        // 每次在开头插入, 不能扩展前一个片段, 每次增加一个片段
+        for (int i = 0; i < PieceTable.MAX_PIECES; i++) {
+            String text = Integer.toString(i % 10);
+            table.edit(0, 0, text);
+            expected.insert(0, text);
+        }
+        assertThat(table.pieceCount()).isEqualTo(PieceTable.MAX_PIECES);
+        assertThat(table.memoryChars()).isEqualTo(PieceTable.MAX_PIECES);
+
+        table.edit(0, 0, "z");
+        expected.insert(0, "z");
+        assertThat(table.pieceCount()).isEqualTo(1);
+        assertThat(table.memoryChars()).isEqualTo(expected.length());
+        assertThat(table.toString()).isEqualTo(expected.toString());
+    }
+
+    @Test
+    void appliesRandomEditsLikeStringBuilder() {
+        Random random = new Random(11);
+        StringBuilder expected = new StringBuilder("class A {\n}\n");
+        PieceTable table = new PieceTable(expected.toString());
+        for (int i = 0; i < 2000; i++) {
+            int offset = random.nextInt(expected.length() + 1);
+            int deleteLength = random.nextInt(Math.min(4, expected.length() - offset) + 1);
+            String insertText = random.nextInt(3) == 0 ? null : "abc\n".substring(random.nextInt(4));
+            table.edit(offset, deleteLength, insertText);
+            expected.replace(offset, offset + deleteLength, insertText == null ? "" : insertText);
+            assertThat(table.length()).isEqualTo(expected.length());
+            assertThat(table.pieceCount()).isLessThanOrEqualTo(PieceTable.MAX_PIECES);
+            if (i % 97 == 0) {
+                PieceTable.Snapshot snapshot = table.snapshot();
+                assertThat(snapshot.toString()).isEqualTo(expected.toString());
+                table.compact(snapshot, snapshot.toString());
+            }
+        }
+        assertThat(table.toString()).isEqualTo(expected.toString());
+    }
+
+    @Test
+    void rejectsEditOutOfRange() {
+        PieceTable table = new PieceTable("abc");
+        assertThatThrownBy(() -> table.edit(4, 0, "x")).isInstanceOf(IndexOutOfBoundsException.class);
+        assertThatThrownBy(() -> table.edit(2, 2, null)).isInstanceOf(IndexOutOfBoundsException.class);
+        assertThatThrownBy(() -> table.edit(-1, 0, "x")).isInstanceOf(IndexOutOfBoundsException.class);
+        assertThat(table.toString()).isEqualTo("abc");
+    }
+}
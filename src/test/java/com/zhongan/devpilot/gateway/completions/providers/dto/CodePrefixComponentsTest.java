@@ -0,0 +1,112 @@
+package com.zhongan.devpilot.gateway.completions.providers.dto;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.zhongan.devpilot.gateway.utils.TextSlice;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 对比从光标向前扫描的结果与之前按 {@code "\n"} 拆分再拼接的结果
+ */
+class CodePrefixComponentsTest {
+    @Test
+    void matchesLegacySplitOnFixedInputs() {
+        List<String> sources = List.of("", "\n", "\n\n\n", "   ", "a", "a\n", "a\nb", "a\nb\n", "a\n\nb\n\n",
+                "  int a = 1;\n  int b = 2;\n  ", "// Write some code\n    \n", "\r\nx\r\n\r\ny\r\n", "\t\n \n\tfoo()\n \n",
+                "package a;\n\nimport b;\n\nclass C {\n    void m() {\n        int x = 1;\n        \n");
+        for (String source : sources) {
+            assertSameAsLegacy(source, source);
+        }
+    }
+
+    @Test
+    void matchesLegacySplitOnRandomInputs() {
+        Random random = new Random(7);
+        String alphabet = "ab {}();\n\n\n  \t\r";
+        for (int i = 0; i < 5000; i++) {
+            int length = random.nextInt(80);
+            StringBuilder sb = new StringBuilder(length);
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String source = sb.toString();
+            assertSameAsLegacy(source, source);
+        }
+    }
+
+    @Test
+    void matchesLegacySplitOnDocumentSlices() {
+        Random random = new Random(11);
+        String alphabet = "xy =;\n\n  \t";
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(120); j > 0; j--) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String document = sb.toString();
+            int start = document.isEmpty() ? 0 : random.nextInt(document.length());
+            int end = start + random.nextInt(document.length() - start + 1);
+            assertSameAsLegacy(TextSlice.of(document, start, end), document.substring(start, end));
+        }
+    }
+
+    private static void assertSameAsLegacy(CharSequence source, String legacySource) {
+        CodePrefixComponents actual = CodePrefixComponents.getHeadAndTail(source);
+        CodePrefixComponents expected = legacyHeadAndTail(legacySource);
+        assertSameTrimmed(actual.getHead(), expected.getHead(), legacySource);
+        assertSameTrimmed(actual.getTail(), expected.getTail(), legacySource);
+        assertThat(String.valueOf(actual.getOverlap())).as("overlap of %s", legacySource).isEqualTo(String.valueOf(expected.getOverlap()));
+    }
+
+    private static void assertSameTrimmed(CodePrefixComponents.CodeTrimmed actual, CodePrefixComponents.CodeTrimmed expected, String source) {
+        assertThat(actual.getRaw().toString()).as("raw of %s", source).isEqualTo(expected.getRaw().toString());
+        assertThat(actual.getTrimmed().toString()).as("trimmed of %s", source).isEqualTo(expected.getTrimmed().toString());
+        assertThat(actual.getLeadSpace().toString()).as("lead space of %s", source).isEqualTo(expected.getLeadSpace().toString());
+        assertThat(actual.getRearSpace().toString()).as("rear space of %s", source).isEqualTo(expected.getRearSpace().toString());
+    }
+
+    /**
+     * 之前的实现
+     */
+    private static CodePrefixComponents legacyHeadAndTail(String source) {
+        String[] lines = source.split("\n");
+        int tailThreshold = 2;
+
+        int nonEmptyCount = 0;
+        int tailStart = -1;
+        for (int i = lines.length - 1; i >= 0; i--) {
+            if (!lines[i].trim().isEmpty()) {
+                nonEmptyCount++;
+            }
+            if (nonEmptyCount >= tailThreshold) {
+                tailStart = i;
+                break;
+            }
+        }
+
+        CodePrefixComponents headAndTail;
+        if (tailStart == -1) {
+            headAndTail = new CodePrefixComponents(legacyTrimSpace(source), legacyTrimSpace(source), source);
+        } else {
+            String head = String.join("\n", Arrays.copyOfRange(lines, 0, tailStart)) + "\n";
+            String tail = String.join("\n", Arrays.copyOfRange(lines, tailStart, lines.length));
+            headAndTail = new CodePrefixComponents(legacyTrimSpace(head), legacyTrimSpace(tail));
+        }
+        if (headAndTail.getTail().getRearSpace().toString().contains("\n")) {
+            headAndTail.getTail().setTrimmed(headAndTail.getTail().getTrimmed() + "\n");
+        }
+        return headAndTail;
+    }
+
+    private static CodePrefixComponents.CodeTrimmed legacyTrimSpace(String text) {
+        String trimmed = text.trim();
+        int headEnd = text.indexOf(trimmed);
+        String leadSpace = text.substring(0, headEnd);
+        String rearSpace = text.substring(headEnd + trimmed.length());
+        return new CodePrefixComponents.CodeTrimmed(text, trimmed, leadSpace, rearSpace);
+    }
+}
@@ -0,0 +1,69 @@
+package com.zhongan.devpilot.gateway.completions.stream;
+
+import java.util.List;
+
+import com.zhongan.devpilot.gateway.completions.providers.dto.OpenAiMessageResponse;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompletionStreamTest {
+    @Test
+    void dropsTheBracketThatClosesTheCursorBlock() {
+        CompletionStream stream = new CompletionStream(0, true);
+        StringBuilder deltas = new StringBuilder();
+        for (String content : List.of("<FILL_CODE_777>int a = 1;\n", "    return a;\n", "}", "\n\nvoid next() {")) {
+            deltas.append(stream.accept(chunk(content, null)));
+        }
+        assertThat(stream.isFinished()).isTrue();
+        assertThat(stream.getText()).isEqualTo("<FILL_CODE_777>int a = 1;\n    return a;\n");
+        assertThat(deltas.toString()).isEqualTo("int a = 1;\n    return a;\n");
+    }
+
+    @Test
+    void dropsTheIndentationOfAClosingBracketLine() {
+        CompletionStream stream = new CompletionStream(0, true);
+        stream.accept(chunk("foo();\n    }\n", null));
+        assertThat(stream.getText()).isEqualTo("foo();\n");
+    }
+
+    @Test
+    void keepsCodeBeforeTheClosingBracketOnTheSameLine() {
+        CompletionStream stream = new CompletionStream(0, true);
+        stream.accept(chunk("b, c);", null));
+        assertThat(stream.getText()).isEqualTo("b, c");
+    }
+
+    @Test
+    void keepsBracketsThatCloseBlocksOpenedByTheCompletion() {
+        CompletionStream stream = new CompletionStream(0, true);
+        stream.accept(chunk("if (x) {\n    y();\n}\n", "stop"));
+        assertThat(stream.getText()).isEqualTo("if (x) {\n    y();\n}\n");
+    }
+
+    @Test
+    void keepsClosingBracketWhenStopAtBlockEndIsDisabled() {
+        CompletionStream stream = new CompletionStream(0, false);
+        stream.accept(chunk("foo();\n}", "stop"));
+        assertThat(stream.getText()).isEqualTo("foo();\n}");
+    }
+
+    @Test
+    void stopsAtTheLineLimit() {
+        CompletionStream stream = new CompletionStream(1, true);
+        assertThat(stream.accept(chunk("```java\nfoo();\nbar();\n", null))).isEqualTo("foo();\n");
+        assertThat(stream.isFinished()).isTrue();
+    }
+
+    private static OpenAiMessageResponse chunk(String content, String finishReason) {
+        OpenAiMessageResponse.MessageContent delta = new OpenAiMessageResponse.MessageContent();
+        delta.setContent(content);
+        OpenAiMessageResponse.Choice choice = new OpenAiMessageResponse.Choice();
+        choice.setDelta(delta);
+        choice.setFinishReason(finishReason);
+        OpenAiMessageResponse response = new OpenAiMessageResponse();
+        response.setId("chatcmpl-1");
+        response.setChoices(List.of(choice));
+        return response;
+    }
+}
@@ -0,0 +1,176 @@
+package com.zhongan.devpilot.gateway.completions.template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zhongan.devpilot.gateway.utils.JacksonMapper;
+import com.zhongan.devpilot.gateway.utils.StringUtil;
+import com.zhongan.devpilot.gateway.utils.TextSlice;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 逐字节对比模板输出与之前 {@code toJson + removeQuote + String.replace} 的结果
+ */
+class CompletionRequestTemplateTest {
+    private static final JacksonMapper LEGACY_MAPPER = JacksonMapper.nonDefaultMapper();
+
+    private static String template;
+
+    @BeforeAll
+    static void loadTemplate() throws IOException {
+        try (InputStream inputStream = CompletionRequestTemplateTest.class.getResourceAsStream("/template/completion-template.json")) {
+            template = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void writesSameBytesAsLegacyReplace() {
+        CompletionRequestTemplate requestTemplate = CompletionRequestTemplate.compile(template);
+        List<String[]> cases = List.of(
+                new String[]{"", "", "", "src/Main.java"},
+                new String[]{"public class Main {\n    public static void main(String[] args) {\n        ", "\n    }\n}\n",
+                        "System.out.println(\"hello\");", "src/main/java/Main.java"},
+                new String[]{"String s = \"a\\\\b\\tc\";\r\n", "// 中文注释 \uD83D\uDE00\n", "\u0000\u0001\u001F\u007F\u2028", "a b/c.py"},
+                new String[]{"<FILL_CODE_777>", "</FILL_CODE_777>", "'single' `back` /slash/", "x.js"});
+        for (String[] inputs : cases) {
+            assertThat(write(requestTemplate, inputs[0], inputs[1], inputs[2], inputs[3]))
+                    .isEqualTo(legacy(inputs[0], inputs[1], inputs[2], inputs[3]));
+        }
+    }
+
+    @Test
+    void writesSameBytesAsLegacyReplaceForRandomText() {
+        CompletionRequestTemplate requestTemplate = CompletionRequestTemplate.compile(template);
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            String prefix = randomText(random, 200);
+            String suffix = randomText(random, 200);
+            String block = randomText(random, 50);
+            assertThat(write(requestTemplate, prefix, suffix, block, "src/File" + i + ".java"))
+                    .isEqualTo(legacy(prefix, suffix, block, "src/File" + i + ".java"));
+        }
+    }
+
+    @Test
+    void writesDocumentSlicesWithoutCopying() {
+        CompletionRequestTemplate requestTemplate = CompletionRequestTemplate.compile(template);
+        String document = "int a = 1;\n\"quoted\"\tint b = 2;\n";
+        int cursor = 11;
+        assertThat(write(requestTemplate, TextSlice.of(document, 0, cursor), TextSlice.of(document, cursor, document.length()), "", "a.c"))
+                .isEqualTo(legacy(document.substring(0, cursor), document.substring(cursor), "", "a.c"));
+    }
+
+    @Test
+    void replacesUnpairedSurrogatesLikeLegacyEncoding() {
+        CompletionRequestTemplate requestTemplate = CompletionRequestTemplate.compile(template);
+        String[] texts = {"a\uD800b", "\uDC00", "x\uD83D", "\uD83D\uDE00\uDE00", "\uDE00\uD83D\uDE00"};
+        for (String text : texts) {
+            assertThat(write(requestTemplate, text, "", "", "a.java")).isEqualTo(utf8(legacy(text, "", "", "a.java")));
+        }
+        // 光标在代理对中间
+        String document = "a\uD83D\uDE00b";
+        assertThat(write(requestTemplate, TextSlice.of(document, 0, 2), TextSlice.of(document, 2, document.length()), "", "a.java"))
+                .isEqualTo(utf8(legacy(document.substring(0, 2), document.substring(2), "", "a.java")));
+    }
+
+    @Test
+    void doesNotRescanInsertedCodeForPlaceholders() throws IOException {
+        CompletionRequestTemplate requestTemplate = CompletionRequestTemplate.compile(template);
+        String json = write(requestTemplate, "{infillSuffix}", "tail", "", "a.java");
+        String content = new ObjectMapper().readTree(json).at("/messages/0/content").asText();
+        assertThat(content).contains("{infillSuffix}<FILL_CODE_777></FILL_CODE_777>tail");
+    }
+
+    @Test
+    void escapesFilePath() throws IOException {
+        CompletionRequestTemplate requestTemplate = CompletionRequestTemplate.compile(template);
+        String json = write(requestTemplate, "", "", "", "C:\\work\\\"src\"\\Main.java");
+        String content = new ObjectMapper().readTree(json).at("/messages/0/content").asText();
+        assertThat(content).contains("file path C:\\work\\\"src\"\\Main.java.");
+    }
+
+    @Test
+    void addsStreamField() throws IOException {
+        JsonNode request = new ObjectMapper().readTree(write(CompletionRequestTemplate.compile(template, true), "a", "b", "", "a.java"));
+        assertThat(request.get("stream").asBoolean()).isTrue();
+        assertThat(request.get("model").asText()).isEqualTo("gpt-3.5-turbo");
+    }
+
+    @Test
+    void replacesExistingStreamFieldInsteadOfDuplicatingIt() {
+        CompletionRequestTemplate requestTemplate = CompletionRequestTemplate.compile(
+                "{\"stream\": false, \"nested\": {\"stream\": false}, \"prompt\": \"{infillPrefix}\"}", true);
+        assertThat(write(requestTemplate, "a", "", "", "a.java"))
+                .isEqualTo("{\"stream\": true, \"nested\": {\"stream\": false}, \"prompt\": \"a\"}");
+    }
+
+    @Test
+    void addsStreamFieldToEmptyObject() {
+        assertThat(write(CompletionRequestTemplate.compile("{}", true), "", "", "", "")).isEqualTo("{\"stream\":true}");
+    }
+
+    @Test
+    void rejectsInvalidTemplate() {
+        assertThatThrownBy(() -> CompletionRequestTemplate.compile("{\"prompt\": \"{infillPrefix}\""))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    private static String write(CompletionRequestTemplate requestTemplate, CharSequence prefix, CharSequence suffix,
+                                CharSequence block, CharSequence path) {
+        DataBuffer dataBuffer = requestTemplate.write(prefix, suffix, block, path);
+        try {
+            return dataBuffer.toString(dataBuffer.readPosition(), dataBuffer.readableByteCount(), StandardCharsets.UTF_8);
+        } finally {
+            DataBufferUtils.release(dataBuffer);
+        }
+    }
+
+    /**
+     * 之前的请求体按 UTF-8 编码后的内容, 不成对的代理字符变为 {@code ?}
+     */
+    private static String utf8(String json) {
+        return new String(json.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 之前 OpenAiProvider 生成请求体的方式
+     */
+    private static String legacy(String infillPrefix, String infillSuffix, String infillBlock, String relativeFilePath) {
+        String infillPrefixEncode = StringUtil.removeQuote(LEGACY_MAPPER.toJson(infillPrefix));
+        String infillSuffixEncode = StringUtil.removeQuote(LEGACY_MAPPER.toJson(infillSuffix));
+        String infillBlockEncode = StringUtil.removeQuote(LEGACY_MAPPER.toJson(infillBlock));
+        String replaced = template.replace("{OPENING_CODE_TAG}", "<FILL_CODE_777>");
+        replaced = replaced.replace("{CLOSING_CODE_TAG}", "</FILL_CODE_777>");
+        replaced = replaced.replace("{infillPrefix}", infillPrefixEncode);
+        replaced = replaced.replace("{infillSuffix}", infillSuffixEncode);
+        replaced = replaced.replace("{infillBlock}", infillBlockEncode);
+        replaced = replaced.replace("{relativeFilePath}", relativeFilePath);
+        return replaced;
+    }
+
+    private static String randomText(Random random, int maxLength) {
+        String alphabet = "abcXYZ019 (){}[];:.,=+-*/<>\"'\\\t\r\n\b\f\u0000\u001F\u007F\u00E9\u4E2D\u2028";
+        int length = random.nextInt(maxLength);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(40) == 0) {
+                sb.appendCodePoint(0x1F600 + random.nextInt(50));
+            } else {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.zhongan.devpilot.gateway.completions.tokenizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * BPE 合并顺序, 以及与 tiktoken cl100k_base 参考结果的对比
+ * <p>
+ * cl100k_base 词表没有随代码发布, 放在 {@code src/main/resources/tokenizer/} 目录或者通过
+ * {@code -Dtokenizer.vocabulary=<path>} 指定时才对比参考结果.
+ */
+class BpeTokenizerTest {
+    private static final String VOCABULARY_PROPERTY = "tokenizer.vocabulary";
+
+    @Test
+    void mergesLowestRankFirst() throws IOException {
+        BpeTokenizer tokenizer = BpeTokenizer.load(BpeEncoding.CL100K_BASE, vocabulary("ab", "bc", "abc"), 0);
+        // ab(256) 先于 bc(257) 合并, 之后 ab + c 合并为 abc(258), 剩下的 a b 合并为 ab
+        assertThat(tokenizer.encode("abcab")).containsExactly(258, 256);
+        assertThat(tokenizer.encode("abc")).containsExactly(258);
+        assertThat(tokenizer.encode("cb")).containsExactly('c', 'b');
+        assertThat(tokenizer.count("abcab abc")).isEqualTo(4);
+    }
+
+    @Test
+    void countsLikeEncodeWithAndWithoutCache() throws IOException {
+        String text = "int abc = bcab;\n\tabc();  // 注释 😀\r\n";
+        BpeTokenizer cached = BpeTokenizer.load(BpeEncoding.CL100K_BASE, vocabulary("ab", "bc", "abc"), 100);
+        BpeTokenizer uncached = BpeTokenizer.load(BpeEncoding.CL100K_BASE, vocabulary("ab", "bc", "abc"), 0);
+        for (int i = 0; i < 2; i++) {
+            assertThat(cached.count(text)).isEqualTo(cached.encode(text).length);
+            assertThat(cached.encode(text)).containsExactly(uncached.encode(text));
+        }
+        assertThat(cached.decode(cached.encode(text))).isEqualTo(text);
+        assertThat(cached.count("")).isZero();
+    }
+
+    @Test
+    void matchesTiktokenReference() throws IOException {
+        BpeTokenizer tokenizer;
+        try (InputStream inputStream = cl100kBase()) {
+            assumeTrue(inputStream != null, "cl100k_base vocabulary is not available");
+            tokenizer = BpeTokenizer.load(BpeEncoding.CL100K_BASE, inputStream, 0);
+        }
+        assertReference(tokenizer, "hello world", 15339, 1917);
+        assertReference(tokenizer, "tiktoken is great!", 83, 1609, 5963, 374, 2294, 0);
+        assertReference(tokenizer, "antidisestablishmentarianism", 519, 85342, 34500, 479, 8997, 2191);
+        assertReference(tokenizer, "2 + 2 = 4", 17, 489, 220, 17, 284, 220, 19);
+        assertReference(tokenizer, "お誕生日おめでとう", 33334, 45918, 243, 21990, 9080, 33334, 62004, 16556, 78699);
+    }
+
+    private static void assertReference(BpeTokenizer tokenizer, String text, int... expected) {
+        assertThat(tokenizer.encode(text)).as(text).containsExactly(expected);
+        assertThat(tokenizer.count(text)).as(text).isEqualTo(expected.length);
+        assertThat(tokenizer.decode(expected)).isEqualTo(text);
+    }
+
+    private static InputStream cl100kBase() throws IOException {
+        String path = System.getProperty(VOCABULARY_PROPERTY);
+        if (path != null && !path.isEmpty()) {
+            return Files.newInputStream(Path.of(path));
+        }
+        return BpeTokenizerTest.class.getClassLoader().getResourceAsStream("tokenizer/cl100k_base.tiktoken");
+    }
+
+    /**
+     * 单字节 token 的 rank 等于字节值, 合并出的 token 依次从 256 开始
+     */
+    private static InputStream vocabulary(String... merges) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 256; i++) {
+            builder.append(encoder.encodeToString(new byte[]{(byte) i})).append(' ').append(i).append('\n');
+        }
+        for (int i = 0; i < merges.length; i++) {
+            builder.append(encoder.encodeToString(merges[i].getBytes(StandardCharsets.UTF_8))).append(' ').append(256 + i).append('\n');
+        }
+        return new ByteArrayInputStream(builder.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,102 @@
+package com.zhongan.devpilot.gateway.completions.tokenizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * token 计数器的基准测试: 按字符类别估算和 BPE 分词
+ * <p>
+ * BPE 分词器需要 tiktoken 词表, 通过 {@code -Dtokenizer.vocabulary=<path>} 指定, 没有指定时只测试估算. 文本为随机生成的 Java 风格代码,
+ * 片段缓存开启和关闭各测一次, 缓存关闭时每个片段都执行 BPE 合并.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenCounterBenchmark {
+    private static final String VOCABULARY_PROPERTY = "tokenizer.vocabulary";
+
+    @Param({"4096", "65536"})
+    private int length;
+
+    private String text;
+
+    private TokenCounter charRatio;
+
+    private TokenCounter bpe;
+
+    private TokenCounter bpeWithoutCache;
+
+    @Setup
+    public void setup() throws IOException {
+        text = javaLikeText(length);
+        charRatio = new CharRatioTokenCounter();
+        String vocabulary = System.getProperty(VOCABULARY_PROPERTY);
+        if (vocabulary != null && !vocabulary.isEmpty()) {
+            bpe = load(Path.of(vocabulary), 100000);
+            bpeWithoutCache = load(Path.of(vocabulary), 0);
+        }
+    }
+
+    @Benchmark
+    public int charRatio() {
+        return charRatio.count(text);
+    }
+
+    @Benchmark
+    public int bpe() {
+        return bpe == null ? 0 : bpe.count(text);
+    }
+
+    @Benchmark
+    public int bpeWithoutCache() {
+        return bpeWithoutCache == null ? 0 : bpeWithoutCache.count(text);
+    }
+
+    private static TokenCounter load(Path vocabulary, long chunkCacheSize) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(vocabulary)) {
+            return BpeTokenizer.load(BpeEncoding.CL100K_BASE, inputStream, chunkCacheSize);
+        }
+    }
+
+    private static String javaLikeText(int length) {
+        String[] words = {"public", "private", "static", "final", "int", "String", "return", "if", "for", "new",
+                "List", "Map", "count", "index", "value", "result", "documentContext", "tokenCounter", "maxTokens"};
+        String[] symbols = {" ", " ", ".", "(", ")", ";\n", " = ", ", ", " {\n", "}\n", "    ", "// ", "\"", "0", "1"};
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder(length + 32);
+        while (sb.length() < length) {
+            sb.append(words[random.nextInt(words.length)]).append(symbols[random.nextInt(symbols.length)]);
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TokenCounterBenchmark.class.getSimpleName())
+                .jvmArgsAppend("-D" + VOCABULARY_PROPERTY + "=" + System.getProperty(VOCABULARY_PROPERTY, ""))
+                .build()).run();
+    }
+}
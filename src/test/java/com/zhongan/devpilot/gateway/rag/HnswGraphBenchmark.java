@@ -0,0 +1,145 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * HNSW 查询延迟的基准测试, 按采样模式输出延迟分位数
+ * <p>
+ * 向量为随机生成的归一化向量, 维度与 text-embedding-3-small 的 1536 维相同. 建图耗时随片段数量增长, 通过 {@code -Drag.benchmark.directory=<path>} 指定目录时,
+ * 向量和图的快照保存在目录中, 之后的运行直接恢复. 例如测试一百万个片段:
+ * {@code -Drag.benchmark.directory=/data/hnsw -Dsize=1000000}, 结果与机器、维度和 efSearch 有关.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HnswGraphBenchmark {
+    private static final String DIRECTORY_PROPERTY = "rag.benchmark.directory";
+
+    private static final int QUERIES = 1024;
+
+    @Param({"100000"})
+    private int size;
+
+    @Param({"1536"})
+    private int dimensions;
+
+    @Param({"64"})
+    private int efSearch;
+
+    private final int[] nodes = new int[10];
+
+    private final float[] scores = new float[10];
+
+    private Path directory;
+
+    private boolean temporary;
+
+    private VectorStore store;
+
+    private HnswGraph graph;
+
+    private float[][] queries;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String configured = System.getProperty(DIRECTORY_PROPERTY);
+        temporary = configured == null || configured.isEmpty();
+        directory = temporary ? Files.createTempDirectory("hnsw-benchmark") : Path.of(configured, size + "x" + dimensions);
+        store = VectorStore.open(directory, 16384);
+        graph = new HnswGraph(store, 16, 100);
+        Path snapshot = directory.resolve("graph.hnsw");
+        Random random = new Random(1);
+        boolean restored = store.size() >= size && graph.load(snapshot, store.size());
+        if (!restored) {
+            for (int i = store.size(); i < size; i++) {
+                store.append(normalize(randomVector(random)));
+            }
+            for (int i = 0; i < size; i++) {
+                graph.add(i);
+            }
+            store.force();
+            graph.save(snapshot);
+        }
+        queries = new float[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = normalize(randomVector(random));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        if (temporary) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int searchTop10() {
+        float[] query = queries[next++ & (QUERIES - 1)];
+        return graph.search(query, 10, efSearch, node -> true, nodes, scores);
+    }
+
+    private float[] randomVector(Random random) {
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] *= scale;
+        }
+        return vector;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder options = new OptionsBuilder();
+        options.include(HnswGraphBenchmark.class.getSimpleName())
+                .jvmArgsAppend("-D" + DIRECTORY_PROPERTY + "=" + System.getProperty(DIRECTORY_PROPERTY, ""));
+        String size = System.getProperty("size");
+        if (size != null) {
+            options.param("size", size);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,130 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 近邻图的召回率与暴力检索对比, 以及过滤条件和快照恢复
+ */
+class HnswGraphTest {
+    private static final int SIZE = 2000;
+
+    private static final int DIMENSIONS = 32;
+
+    private static final int K = 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recallMatchesBruteForce() throws IOException {
+        Random random = new Random(1);
+        try (VectorStore store = VectorStore.open(directory, 512)) {
+            HnswGraph graph = build(store, random);
+            int queries = 100;
+            int hits = 0;
+            int[] nodes = new int[K];
+            float[] scores = new float[K];
+            for (int q = 0; q < queries; q++) {
+                float[] query = normalize(randomVector(random));
+                int n = graph.search(query, K, 64, node -> true, nodes, scores);
+                assertThat(n).isEqualTo(K);
+                for (int i = 1; i < n; i++) {
+                    assertThat(scores[i]).isLessThanOrEqualTo(scores[i - 1]);
+                }
+                int[] expected = bruteForce(store, query);
+                for (int i = 0; i < n; i++) {
+                    int node = nodes[i];
+                    if (Arrays.stream(expected).anyMatch(e -> e == node)) {
+                        hits++;
+                    }
+                }
+            }
+            assertThat((double) hits / (queries * K)).isGreaterThanOrEqualTo(0.95);
+        }
+    }
+
+    @Test
+    void skipsRejectedNodes() throws IOException {
+        Random random = new Random(2);
+        try (VectorStore store = VectorStore.open(directory, 512)) {
+            HnswGraph graph = build(store, random);
+            int[] nodes = new int[K];
+            float[] scores = new float[K];
+            float[] query = normalize(randomVector(random));
+            int n = graph.search(query, K, 200, node -> node % 2 == 1, nodes, scores);
+            assertThat(n).isEqualTo(K);
+            assertThat(Arrays.stream(nodes, 0, n)).allMatch(node -> node % 2 == 1);
+        }
+    }
+
+    @Test
+    void restoresSnapshot() throws IOException {
+        Random random = new Random(3);
+        Path snapshot = directory.resolve("graph.hnsw");
+        float[] query;
+        int[] expected = new int[K];
+        try (VectorStore store = VectorStore.open(directory, 512)) {
+            HnswGraph graph = build(store, random);
+            graph.save(snapshot);
+            query = normalize(randomVector(random));
+            graph.search(query, K, 64, node -> true, expected, new float[K]);
+        }
+        try (VectorStore store = VectorStore.open(directory, 512)) {
+            assertThat(store.size()).isEqualTo(SIZE);
+            HnswGraph graph = new HnswGraph(store, 16, 100);
+            assertThat(graph.load(snapshot, store.size())).isTrue();
+            assertThat(graph.size()).isEqualTo(SIZE);
+            assertThat(graph.limit()).isEqualTo(SIZE);
+            int[] nodes = new int[K];
+            graph.search(query, K, 64, node -> true, nodes, new float[K]);
+            assertThat(nodes).containsExactly(expected);
+        }
+    }
+
+    private static HnswGraph build(VectorStore store, Random random) throws IOException {
+        HnswGraph graph = new HnswGraph(store, 16, 100);
+        for (int i = 0; i < SIZE; i++) {
+            graph.add(store.append(randomVector(random)));
+        }
+        return graph;
+    }
+
+    private static int[] bruteForce(VectorStore store, float[] query) {
+        return IntStream.range(0, store.size())
+                .boxed()
+                .sorted(Comparator.comparingDouble(node -> -store.dot(node, query)))
+                .limit(K)
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSIONS];
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] *= scale;
+        }
+        return vector;
+    }
+}
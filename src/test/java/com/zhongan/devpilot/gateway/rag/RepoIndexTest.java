@@ -0,0 +1,158 @@
+package com.zhongan.devpilot.gateway.rag;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+/**
+ * 仓库索引的写入、删除、压缩, 以及元数据日志不完整时的恢复
+ */
+class RepoIndexTest {
+    private static final int DIMENSIONS = 16;
+
+    private final AppCommonProperties.RagConfig config = config();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Random random = new Random(1);
+
+    @TempDir
+    Path root;
+
+    @Test
+    void findsChunkByItsOwnVector() throws IOException {
+        try (RepoIndex index = RepoIndex.open("repo", root, config, mapper)) {
+            List<RepoIndex.EmbeddedChunk> chunks = chunks("A.java", 50);
+            index.apply(List.of(), chunks);
+            for (RepoIndex.EmbeddedChunk chunk : chunks) {
+                RagSearchResult best = index.search(chunk.vector(), 1).get(0);
+                assertThat(best.getContent()).isEqualTo(chunk.content());
+                assertThat(best.getStartLine()).isEqualTo(chunk.startLine());
+                assertThat(best.getScore()).isCloseTo(1f, offset(1e-4f));
+            }
+        }
+    }
+
+    @Test
+    void deletedAndReplacedFilesAreNotReturned() throws IOException {
+        try (RepoIndex index = RepoIndex.open("repo", root, config, mapper)) {
+            List<RepoIndex.EmbeddedChunk> a = chunks("A.java", 20);
+            List<RepoIndex.EmbeddedChunk> b = chunks("B.java", 20);
+            List<RepoIndex.EmbeddedChunk> all = new ArrayList<>(a);
+            all.addAll(b);
+            index.apply(List.of(), all);
+            index.apply(List.of("A.java"), List.of());
+            // 重新写入同一个文件时旧的片段被删除
+            List<RepoIndex.EmbeddedChunk> replaced = chunks("B.java", 5);
+            index.apply(List.of(), replaced);
+
+            assertThat(index.status().getFiles()).isEqualTo(1);
+            assertThat(index.status().getChunks()).isEqualTo(5);
+            assertThat(index.status().getDeletedChunks()).isEqualTo(40);
+            for (RepoIndex.EmbeddedChunk chunk : a) {
+                assertThat(index.search(chunk.vector(), 10)).extracting(RagSearchResult::getPath).containsOnly("B.java");
+            }
+            for (RepoIndex.EmbeddedChunk chunk : b) {
+                assertThat(index.search(chunk.vector(), 10)).extracting(RagSearchResult::getContent)
+                        .doesNotContain(chunk.content());
+            }
+            assertThat(index.search(replaced.get(0).vector(), 10)).hasSize(5);
+        }
+    }
+
+    @Test
+    void compactionKeepsLiveChunks() throws IOException {
+        List<RepoIndex.EmbeddedChunk> b = chunks("B.java", 30);
+        try (RepoIndex index = RepoIndex.open("repo", root, config, mapper)) {
+            List<RepoIndex.EmbeddedChunk> all = new ArrayList<>(chunks("A.java", 30));
+            all.addAll(b);
+            index.apply(List.of(), all);
+            assertThat(index.needsCompaction()).isFalse();
+            index.apply(List.of("A.java"), List.of());
+            assertThat(index.needsCompaction()).isTrue();
+
+            index.compact();
+            assertThat(index.needsCompaction()).isFalse();
+            assertThat(index.status().getChunks()).isEqualTo(30);
+            assertThat(index.status().getDeletedChunks()).isZero();
+            assertThat(Files.readString(root.resolve("CURRENT")).trim()).isEqualTo("gen-00001");
+            assertThat(root.resolve("gen-00000")).doesNotExist();
+            assertBestMatches(index, b);
+        }
+        // 重新打开时使用压缩后的一代
+        try (RepoIndex index = RepoIndex.open("repo", root, config, mapper)) {
+            assertThat(index.status().getChunks()).isEqualTo(30);
+            assertBestMatches(index, b);
+        }
+    }
+
+    @Test
+    void recoversFromTruncatedLog() throws IOException {
+        List<RepoIndex.EmbeddedChunk> chunks = chunks("A.java", 10);
+        try (RepoIndex index = RepoIndex.open("repo", root, config, mapper)) {
+            index.apply(List.of(), chunks);
+        }
+        // 异常退出时没有保存近邻图快照, 元数据日志的最后一行只写入了一部分
+        Path generation = root.resolve("gen-00000");
+        Files.delete(generation.resolve("graph.hnsw"));
+        Path log = generation.resolve("chunks.ndjson");
+        byte[] bytes = Files.readAllBytes(log);
+        Files.write(log, Arrays.copyOf(bytes, bytes.length - 10));
+
+        List<RepoIndex.EmbeddedChunk> more = chunks("B.java", 3);
+        try (RepoIndex index = RepoIndex.open("repo", root, config, mapper)) {
+            assertThat(index.status().getChunks()).isEqualTo(9);
+            assertBestMatches(index, chunks.subList(0, 9));
+            assertThat(Files.size(log)).isLessThan(bytes.length - 10);
+            index.apply(List.of(), more);
+        }
+        // 截断后追加的日志可以正常回放
+        Files.write(log, "{\"ordinal\":".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (RepoIndex index = RepoIndex.open("repo", root, config, mapper)) {
+            assertThat(index.status().getChunks()).isEqualTo(12);
+            assertThat(index.status().getFiles()).isEqualTo(2);
+            assertBestMatches(index, chunks.subList(0, 9));
+            assertBestMatches(index, more);
+        }
+    }
+
+    private static void assertBestMatches(RepoIndex index, List<RepoIndex.EmbeddedChunk> chunks) throws IOException {
+        for (RepoIndex.EmbeddedChunk chunk : chunks) {
+            assertThat(index.search(chunk.vector(), 1)).extracting(RagSearchResult::getContent).containsExactly(chunk.content());
+        }
+    }
+
+    private List<RepoIndex.EmbeddedChunk> chunks(String path, int count) {
+        List<RepoIndex.EmbeddedChunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[DIMENSIONS];
+            for (int j = 0; j < DIMENSIONS; j++) {
+                vector[j] = (float) random.nextGaussian();
+            }
+            chunks.add(new RepoIndex.EmbeddedChunk(path, i * 10 + 1, i * 10 + 10, path + " chunk " + i + " " + random.nextInt(), vector));
+        }
+        return chunks;
+    }
+
+    private static AppCommonProperties.RagConfig config() {
+        AppCommonProperties.RagConfig config = new AppCommonProperties.RagConfig();
+        // 分段较小, 覆盖多个向量分段
+        config.setSegmentCapacity(16);
+        return config;
+    }
+}
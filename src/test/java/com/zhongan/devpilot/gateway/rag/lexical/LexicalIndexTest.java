@@ -0,0 +1,227 @@
+package com.zhongan.devpilot.gateway.rag.lexical;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import com.zhongan.devpilot.gateway.rag.dto.RagSearchResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+/**
+ * MaxScore 查询与暴力计算的 BM25 分数对比, 以及删除、重新写入和分段合并
+ */
+class LexicalIndexTest {
+    private static final int VOCABULARY = 80;
+
+    private static final int K = 5;
+
+    private final AppCommonProperties.LexicalConfig config = new AppCommonProperties.LexicalConfig();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Random random = new Random(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void maxScoreMatchesBruteForce() throws IOException {
+        List<LexicalSegment.Doc> all = new ArrayList<>();
+        try (LexicalIndex index = LexicalIndex.open("repo", directory, config, mapper)) {
+            // 多个分段, 每个分段的词表和上界不同
+            for (int batch = 0; batch < 4; batch++) {
+                List<LexicalSegment.Doc> docs = docs("src/batch" + batch + "/F", 40, 5);
+                index.apply(List.of(), docs);
+                all.addAll(docs);
+            }
+            assertThat(index.segmentCount()).isEqualTo(4);
+            for (int q = 0; q < 200; q++) {
+                assertMatchesBruteForce(index, all, query());
+            }
+        }
+    }
+
+    @Test
+    void deletedAndReplacedFilesAreNotReturned() throws IOException {
+        try (LexicalIndex index = LexicalIndex.open("repo", directory, config, mapper)) {
+            index.apply(List.of(), List.of(
+                    new LexicalSegment.Doc("src/A.java", 1, 10, "void parseWidget() { loadWidget(); }"),
+                    new LexicalSegment.Doc("src/A.java", 11, 20, "void renderWidget() {}"),
+                    new LexicalSegment.Doc("src/B.java", 1, 10, "int oldCounter = 0;")));
+            assertThat(index.liveDocs()).isEqualTo(3);
+            assertThat(search(index, "widget")).extracting(RagSearchResult::getPath).containsOnly("src/A.java").hasSize(2);
+
+            index.apply(List.of("src/A.java"), List.of());
+            // 重新写入同一个文件时旧的片段被删除
+            index.apply(List.of(), List.of(new LexicalSegment.Doc("src/B.java", 1, 10, "int newCounter = 0;")));
+            assertDeleted(index);
+        }
+        // 重新打开时回放删除记录
+        try (LexicalIndex index = LexicalIndex.open("repo", directory, config, mapper)) {
+            assertThat(index.segmentCount()).isEqualTo(2);
+            assertDeleted(index);
+        }
+    }
+
+    @Test
+    void mergeKeepsLiveDocuments() throws IOException {
+        config.setMaxSegments(3);
+        List<LexicalSegment.Doc> live = new ArrayList<>();
+        try (LexicalIndex index = LexicalIndex.open("repo", directory, config, mapper)) {
+            for (int batch = 0; batch < 4; batch++) {
+                List<LexicalSegment.Doc> docs = docs("src/batch" + batch + "/F", 20, 3);
+                index.apply(List.of(), docs);
+                live.addAll(docs);
+            }
+            index.apply(List.of("src/batch1/F0.java", "src/batch2/F5.java"), List.of());
+            live.removeIf(doc -> doc.path().equals("src/batch1/F0.java") || doc.path().equals("src/batch2/F5.java"));
+            assertThat(index.needsMerge()).isTrue();
+
+            index.merge();
+            assertThat(index.needsMerge()).isFalse();
+            assertThat(index.segmentCount()).isEqualTo(1);
+            assertThat(index.liveDocs()).isEqualTo(live.size());
+            assertThat(segmentFiles()).containsExactly("seg-00005.lex");
+            assertThat(Files.size(directory.resolve("deletes.ndjson"))).isZero();
+            for (int q = 0; q < 50; q++) {
+                assertMatchesBruteForce(index, live, query());
+            }
+        }
+        // 合并后的分段记录被合并的编号, 新的分段编号继续递增
+        try (LexicalIndex index = LexicalIndex.open("repo", directory, config, mapper)) {
+            assertThat(index.liveDocs()).isEqualTo(live.size());
+            index.apply(List.of(), List.of(new LexicalSegment.Doc("src/C.java", 1, 1, "extraTerm")));
+            assertThat(segmentFiles()).containsExactly("seg-00005.lex", "seg-00006.lex");
+            assertThat(search(index, "extraterm")).extracting(RagSearchResult::getPath).containsExactly("src/C.java");
+        }
+    }
+
+    private static void assertDeleted(LexicalIndex index) {
+        assertThat(index.liveDocs()).isEqualTo(1);
+        assertThat(search(index, "widget")).isEmpty();
+        assertThat(search(index, "oldcounter")).isEmpty();
+        assertThat(search(index, "counter")).extracting(RagSearchResult::getContent).containsExactly("int newCounter = 0;");
+    }
+
+    private static List<RagSearchResult> search(LexicalIndex index, String term) {
+        return index.search(List.of(term), new float[]{1}, 10, null, 0);
+    }
+
+    private List<String> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString()).filter(name -> name.endsWith(".lex")).sorted().toList();
+        }
+    }
+
+    private void assertMatchesBruteForce(LexicalIndex index, List<LexicalSegment.Doc> docs, Map<String, Float> query) {
+        List<String> terms = new ArrayList<>(query.keySet());
+        float[] weights = new float[terms.size()];
+        for (int t = 0; t < weights.length; t++) {
+            weights[t] = query.get(terms.get(t));
+        }
+        Map<String, Double> expected = bruteForce(docs, query);
+        List<Double> expectedTop = expected.values().stream().sorted(Comparator.reverseOrder()).limit(K).toList();
+
+        List<RagSearchResult> results = index.search(terms, weights, K, null, 0);
+        assertThat(results).hasSize(expectedTop.size());
+        for (int i = 0; i < results.size(); i++) {
+            RagSearchResult result = results.get(i);
+            // 分数相同的文档顺序不确定, 只对比分数
+            assertThat((double) result.getScore()).isCloseTo(expectedTop.get(i), offset(1e-3));
+            assertThat((double) result.getScore()).isCloseTo(expected.get(key(result.getPath(), result.getStartLine())), offset(1e-3));
+        }
+    }
+
+    /**
+     * 逐个文档计算 BM25 分数, 分词与写入分段时相同
+     *
+     * @return 文档(路径和开始行)到分数, 只包含分数大于 0 的文档
+     */
+    private Map<String, Double> bruteForce(List<LexicalSegment.Doc> docs, Map<String, Float> query) {
+        List<Map<String, Integer>> termFreqs = new ArrayList<>(docs.size());
+        int[] lengths = new int[docs.size()];
+        long totalLength = 0;
+        Map<String, Integer> docFreqs = new HashMap<>();
+        for (int d = 0; d < docs.size(); d++) {
+            LexicalSegment.Doc doc = docs.get(d);
+            Map<String, Integer> freqs = new HashMap<>();
+            CodeTokenizer.TermConsumer consumer = (term, offset, kind) -> freqs.merge(term, 1, Integer::sum);
+            CodeTokenizer.tokenize(doc.path(), doc.path().lastIndexOf('/') + 1, doc.path().length(), consumer);
+            CodeTokenizer.tokenize(doc.content(), 0, doc.content().length(), consumer);
+            lengths[d] = Math.max(freqs.values().stream().mapToInt(Integer::intValue).sum(), 1);
+            totalLength += lengths[d];
+            freqs.keySet().forEach(term -> docFreqs.merge(term, 1, Integer::sum));
+            termFreqs.add(freqs);
+        }
+        double k1 = config.getK1();
+        double b = config.getB();
+        double avgLength = (double) totalLength / docs.size();
+        Map<String, Double> scores = new HashMap<>();
+        for (int d = 0; d < docs.size(); d++) {
+            double score = 0;
+            for (Map.Entry<String, Float> entry : query.entrySet()) {
+                int tf = termFreqs.get(d).getOrDefault(entry.getKey(), 0);
+                if (tf == 0) {
+                    continue;
+                }
+                int df = docFreqs.get(entry.getKey());
+                double idf = Math.log(1 + (docs.size() - df + 0.5) / (df + 0.5)) * entry.getValue();
+                score += idf * tf * (k1 + 1) / (tf + k1 * (1 - b + b * lengths[d] / avgLength));
+            }
+            if (score > 0) {
+                scores.put(key(docs.get(d).path(), docs.get(d).startLine()), score);
+            }
+        }
+        return scores;
+    }
+
+    private static String key(String path, int startLine) {
+        return path + ":" + startLine;
+    }
+
+    /**
+     * 词的出现频率近似 Zipf 分布, 常见的词成为非必要的词
+     */
+    private String word() {
+        int rank = (int) Math.min(VOCABULARY - 1, Math.floor(Math.exp(random.nextDouble() * Math.log(VOCABULARY))) - 1);
+        return "w" + (char) ('a' + rank / 26) + (char) ('a' + rank % 26);
+    }
+
+    private List<LexicalSegment.Doc> docs(String prefix, int files, int chunksPerFile) {
+        List<LexicalSegment.Doc> docs = new ArrayList<>(files * chunksPerFile);
+        for (int f = 0; f < files; f++) {
+            for (int c = 0; c < chunksPerFile; c++) {
+                int words = 5 + random.nextInt(60);
+                StringBuilder content = new StringBuilder();
+                for (int w = 0; w < words; w++) {
+                    content.append(word()).append(w % 8 == 7 ? ";\n" : " ");
+                }
+                docs.add(new LexicalSegment.Doc(prefix + f + ".java", c * 10 + 1, c * 10 + 10, content.toString()));
+            }
+        }
+        return docs;
+    }
+
+    private Map<String, Float> query() {
+        float[] weights = {1.0f, 0.5f, 0.2f};
+        Map<String, Float> query = new HashMap<>();
+        int terms = 1 + random.nextInt(6);
+        for (int t = 0; t < terms; t++) {
+            query.put(word(), weights[random.nextInt(weights.length)]);
+        }
+        return query;
+    }
+}
@@ -0,0 +1,115 @@
+package com.zhongan.devpilot.gateway.rag.lexical;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 分段的词表查找、跨块的倒排表游标和按路径删除
+ */
+class LexicalSegmentTest {
+    private static final int DOCS = 1000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void findsTermsAndDocuments() throws IOException {
+        LexicalSegment segment = segment();
+        assertThat(segment.docCount()).isEqualTo(DOCS);
+        assertThat(segment.findTerm(bytes("common"))).isGreaterThanOrEqualTo(0);
+        assertThat(segment.findTerm(bytes("missing"))).isEqualTo(-1);
+        assertThat(segment.findTerm(bytes("comm"))).isEqualTo(-1);
+        assertThat(segment.findTerm(bytes("#return"))).isGreaterThanOrEqualTo(0);
+
+        int rare = segment.findTerm(bytes("rare"));
+        assertThat(segment.docFreq(rare)).isEqualTo(1);
+        assertThat(segment.maxTf(rare)).isEqualTo(1);
+        assertThat(segment.docPath(500)).isEqualTo("src/F50.java");
+        assertThat(segment.startLine(500)).isEqualTo(501);
+        assertThat(segment.content(500)).isEqualTo(content(500));
+    }
+
+    @Test
+    void cursorMatchesLinearScan() throws IOException {
+        LexicalSegment segment = segment();
+        int ordinal = segment.findTerm(bytes("common"));
+        List<Integer> expected = new ArrayList<>();
+        for (int doc = 0; doc < DOCS; doc += 3) {
+            expected.add(doc);
+        }
+        assertThat(segment.docFreq(ordinal)).isEqualTo(expected.size());
+        assertThat(segment.maxTf(ordinal)).isEqualTo(5);
+
+        LexicalSegment.PostingCursor cursor = segment.cursor(ordinal);
+        assertThat(cursor.doc()).isEqualTo(-1);
+        for (int doc : expected) {
+            assertThat(cursor.nextDoc()).isEqualTo(doc);
+            assertThat(cursor.freq()).isEqualTo(doc % 5 + 1);
+        }
+        assertThat(cursor.nextDoc()).isEqualTo(LexicalSegment.NO_MORE_DOCS);
+
+        // 倒排表超过两块, 跳表跳过整块后仍然定位到第一个不小于目标的文档
+        int[] targets = {0, 1, 2, 3, 200, 384, 385, 386, 700, 998, 999};
+        cursor = segment.cursor(ordinal);
+        for (int target : targets) {
+            int doc = cursor.advance(target);
+            assertThat(doc).isEqualTo(expected.stream().filter(d -> d >= target).findFirst().orElse(LexicalSegment.NO_MORE_DOCS));
+            if (doc != LexicalSegment.NO_MORE_DOCS) {
+                assertThat(cursor.freq()).isEqualTo(doc % 5 + 1);
+            }
+        }
+        assertThat(cursor.advance(DOCS)).isEqualTo(LexicalSegment.NO_MORE_DOCS);
+    }
+
+    @Test
+    void deletesAllDocumentsOfPath() throws IOException {
+        LexicalSegment segment = segment();
+        long length = segment.liveLength();
+        assertThat(segment.contains("src/F7.java")).isTrue();
+        segment.delete("src/F7.java");
+        segment.delete("src/F7.java");
+        assertThat(segment.contains("src/F7.java")).isFalse();
+        assertThat(segment.deletedDocs()).isEqualTo(10);
+        assertThat(segment.liveDocs()).isEqualTo(DOCS - 10);
+        assertThat(segment.isDeleted(70)).isTrue();
+        assertThat(segment.isDeleted(79)).isTrue();
+        assertThat(segment.isDeleted(80)).isFalse();
+        assertThat(segment.liveLength()).isLessThan(length);
+    }
+
+    /**
+     * 每个文件 10 个文档, 每 3 个文档包含 common, 词频为文档编号除以 5 的余数加 1
+     */
+    private LexicalSegment segment() throws IOException {
+        List<LexicalSegment.Doc> docs = new ArrayList<>(DOCS);
+        for (int doc = 0; doc < DOCS; doc++) {
+            docs.add(new LexicalSegment.Doc("src/F" + doc / 10 + ".java", doc + 1, doc + 1, content(doc)));
+        }
+        Path path = directory.resolve("seg-00000.lex");
+        LexicalSegment.write(path, docs, -1);
+        return LexicalSegment.open(path, 0);
+    }
+
+    private static String content(int doc) {
+        StringBuilder builder = new StringBuilder("return value;");
+        if (doc % 3 == 0) {
+            builder.append(" common".repeat(doc % 5 + 1));
+        }
+        if (doc == 500) {
+            builder.append(" rare");
+        }
+        return builder.toString();
+    }
+
+    private static byte[] bytes(String term) {
+        return term.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,45 @@
+package com.zhongan.devpilot.gateway.ratelimit;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 按用户的请求数和 token 数限流
+ */
+class RateLimiterTest {
+    private static final long SECOND = Duration.ofSeconds(1).toNanos();
+
+    @Test
+    void limitsRequestsPerKey() {
+        RateLimiter rateLimiter = new RateLimiter(TokenBucket.perMinute(60, 2), null, 100, Duration.ofMinutes(10));
+        assertThat(rateLimiter.tryAcquire("alice")).isZero();
+        assertThat(rateLimiter.tryAcquire("alice")).isZero();
+        assertThat(rateLimiter.tryAcquire("alice")).isPositive().isLessThanOrEqualTo(SECOND);
+        assertThat(rateLimiter.tryAcquire("bob")).isZero();
+        assertThat(rateLimiter.size()).isEqualTo(2);
+    }
+
+    @Test
+    void rejectsAfterTokenOverdraftWithRetryAfter() {
+        RateLimiter rateLimiter = new RateLimiter(null, TokenBucket.perMinute(600, 100), 100, Duration.ofMinutes(10));
+        assertThat(rateLimiter.tryAcquire("alice")).isZero();
+        rateLimiter.charge("alice", 1000);
+        // 透支 900 个 token, 每个 0.1 秒, 再加上一个 token 的间隔
+        assertThat(rateLimiter.tryAcquire("alice")).isBetween(89 * SECOND, 91 * SECOND);
+        assertThat(rateLimiter.tryAcquire("bob")).isZero();
+    }
+
+    @Test
+    void ignoresChargeForUnknownKeyOrNoTokens() {
+        RateLimiter rateLimiter = new RateLimiter(null, TokenBucket.perMinute(600, 100), 100, Duration.ofMinutes(10));
+        rateLimiter.charge("alice", 1000);
+        assertThat(rateLimiter.size()).isZero();
+        assertThat(rateLimiter.tryAcquire("alice")).isZero();
+        rateLimiter.charge("alice", 0);
+        rateLimiter.charge("alice", -5);
+        assertThat(rateLimiter.tryAcquire("alice")).isZero();
+    }
+}
@@ -0,0 +1,76 @@
+package com.zhongan.devpilot.gateway.ratelimit;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * GCRA 令牌桶的突发容量、恢复、等待时间和事后扣除的透支
+ */
+class TokenBucketTest {
+    private static final long SECOND = Duration.ofSeconds(1).toNanos();
+
+    @Test
+    void allowsBurstThenReturnsWait() {
+        TokenBucket bucket = TokenBucket.perMinute(60, 5);
+        AtomicLong state = new AtomicLong(0);
+        for (int i = 0; i < 5; i++) {
+            assertThat(bucket.tryAcquire(state, 1, 0)).isZero();
+        }
+        assertThat(bucket.tryAcquire(state, 1, 0)).isEqualTo(SECOND);
+        // 被拒绝的请求不消耗令牌
+        assertThat(bucket.tryAcquire(state, 1, SECOND / 2)).isEqualTo(SECOND / 2);
+    }
+
+    @Test
+    void refillsOneTokenPerEmissionInterval() {
+        TokenBucket bucket = TokenBucket.perMinute(60, 5);
+        AtomicLong state = new AtomicLong(0);
+        for (int i = 0; i < 5; i++) {
+            bucket.tryAcquire(state, 1, 0);
+        }
+        assertThat(bucket.tryAcquire(state, 1, SECOND)).isZero();
+        assertThat(bucket.tryAcquire(state, 1, SECOND)).isEqualTo(SECOND);
+        // 空闲很久之后最多恢复到突发容量
+        long later = 3600 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertThat(bucket.tryAcquire(state, 1, later)).isZero();
+        }
+        assertThat(bucket.tryAcquire(state, 1, later)).isPositive();
+    }
+
+    @Test
+    void rejectsCostAboveCapacity() {
+        TokenBucket bucket = TokenBucket.perMinute(60, 5);
+        AtomicLong state = new AtomicLong(0);
+        assertThat(bucket.tryAcquire(state, 6, 0)).isEqualTo(SECOND);
+        assertThat(state).hasValue(0);
+    }
+
+    @Test
+    void chargeOverdraftsUntilTokensRecover() {
+        TokenBucket bucket = TokenBucket.perMinute(60, 5);
+        AtomicLong state = new AtomicLong(0);
+        assertThat(bucket.overdraft(state, 0)).isZero();
+        bucket.charge(state, 10, 0);
+        // 透支 5 个令牌, 还需要等待 1 个令牌才能再次请求
+        assertThat(bucket.overdraft(state, 0)).isEqualTo(6 * SECOND);
+        assertThat(bucket.tryAcquire(state, 1, 0)).isEqualTo(6 * SECOND);
+        assertThat(bucket.overdraft(state, 6 * SECOND)).isZero();
+        assertThat(bucket.tryAcquire(state, 1, 6 * SECOND)).isZero();
+    }
+
+    @Test
+    void defaultsBurstToRatePerMinute() {
+        assertThat(TokenBucket.perMinute(0, 10)).isNull();
+        TokenBucket bucket = TokenBucket.perMinute(3, 0);
+        AtomicLong state = new AtomicLong(0);
+        for (int i = 0; i < 3; i++) {
+            assertThat(bucket.tryAcquire(state, 1, 0)).isZero();
+        }
+        assertThat(bucket.tryAcquire(state, 1, 0)).isEqualTo(20 * SECOND);
+    }
+}
@@ -0,0 +1,85 @@
+package com.zhongan.devpilot.gateway.ratelimit;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.http.HttpHeaders;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 受信任代理的用户请求头、凭证的格式和哈希, 以及每个地址的凭证数量上限
+ */
+class UserKeyResolverTest {
+    private static final String TOKEN = "Bearer sk-0123456789abcdef";
+
+    private static final InetSocketAddress PROXY = new InetSocketAddress("10.1.2.3", 40000);
+
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("203.0.113.7", 50000);
+
+    private final UserKeyResolver resolver = new UserKeyResolver(properties());
+
+    @Test
+    void usesUserHeaderOnlyFromTrustedProxy() {
+        assertThat(resolver.resolve(headers("alice", null), PROXY)).isEqualTo("user:alice");
+        assertThat(resolver.resolve(headers("alice", null), new InetSocketAddress("192.168.1.5", 1))).isEqualTo("user:alice");
+        assertThat(resolver.resolve(headers("alice", null), new InetSocketAddress("192.168.1.6", 1))).isEqualTo("ip:192.168.1.6");
+        assertThat(resolver.resolve(headers("alice", null), CLIENT)).isEqualTo("ip:203.0.113.7");
+        assertThat(resolver.resolve(headers("alice", TOKEN), CLIENT)).isEqualTo(resolver.resolve(headers(null, TOKEN), CLIENT));
+    }
+
+    @Test
+    void hashesCredential() {
+        String key = resolver.resolve(headers(null, TOKEN), CLIENT);
+        assertThat(key).startsWith("key:").hasSize(4 + 32).doesNotContain("sk-0123456789abcdef");
+        assertThat(UserKeyResolver.isAuthenticated(key)).isTrue();
+        assertThat(resolver.resolve(headers(null, TOKEN), new InetSocketAddress("203.0.113.8", 1))).isEqualTo(key);
+        assertThat(resolver.resolve(headers(null, TOKEN + "0"), CLIENT)).isNotEqualTo(key);
+    }
+
+    @Test
+    void fallsBackToAddressForMalformedCredential() {
+        assertThat(resolver.resolve(headers(null, "Bearer x"), CLIENT)).isEqualTo("ip:203.0.113.7");
+        assertThat(resolver.resolve(headers(null, "Bearer " + "a".repeat(600)), CLIENT)).isEqualTo("ip:203.0.113.7");
+        assertThat(resolver.resolve(headers(null, "Bearer abc def ghi jkl mno pqr"), CLIENT)).isEqualTo("ip:203.0.113.7");
+        assertThat(resolver.resolve(headers(null, null), null)).isEqualTo("anonymous");
+        assertThat(UserKeyResolver.isAuthenticated(resolver.resolve(headers(null, "Bearer x"), CLIENT))).isFalse();
+        assertThat(UserKeyResolver.isAuthenticated("anonymous")).isFalse();
+    }
+
+    @Test
+    void boundsCredentialsPerAddress() {
+        String first = resolver.resolve(headers(null, TOKEN + "1"), CLIENT);
+        String second = resolver.resolve(headers(null, TOKEN + "2"), CLIENT);
+        assertThat(first).startsWith("key:");
+        assertThat(second).startsWith("key:");
+        assertThat(resolver.resolve(headers(null, TOKEN + "3"), CLIENT)).isEqualTo("ip:203.0.113.7");
+        assertThat(resolver.resolve(headers(null, TOKEN + "1"), CLIENT)).isEqualTo(first);
+        // 其它地址和受信任的代理不受影响
+        assertThat(resolver.resolve(headers(null, TOKEN + "3"), new InetSocketAddress("203.0.113.8", 1))).startsWith("key:");
+        for (int i = 0; i < 10; i++) {
+            assertThat(resolver.resolve(headers(null, TOKEN + "p" + i), PROXY)).startsWith("key:");
+        }
+    }
+
+    private static HttpHeaders headers(String user, String authorization) {
+        HttpHeaders headers = new HttpHeaders();
+        if (user != null) {
+            headers.set("X-DevPilot-User", user);
+        }
+        if (authorization != null) {
+            headers.set(HttpHeaders.AUTHORIZATION, authorization);
+        }
+        return headers;
+    }
+
+    private static AppCommonProperties properties() {
+        AppCommonProperties properties = new AppCommonProperties();
+        properties.getRateLimit().setTrustedProxies(List.of("10.0.0.0/8", "192.168.1.5"));
+        properties.getRateLimit().setMaxKeysPerAddress(2);
+        return properties;
+    }
+}
@@ -0,0 +1,112 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.time.Duration;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 滑动窗口的失败率、打开和半开状态的探测许可
+ */
+class CircuitBreakerTest {
+    private static final long OPEN_NANOS = Duration.ofSeconds(1).toNanos();
+
+    @Test
+    void staysClosedBelowMinimumCalls() {
+        CircuitBreaker circuitBreaker = circuitBreaker();
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onFailure(0);
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        circuitBreaker.onFailure(0);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS - 1)).isFalse();
+    }
+
+    @Test
+    void tripsWhenSlidingWindowFailureRateReachesThreshold() {
+        CircuitBreaker circuitBreaker = circuitBreaker();
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onSuccess();
+        }
+        // 窗口为 10, 每次失败挤出一次成功
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onFailure(0);
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        circuitBreaker.onFailure(0);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.getOpenCount()).isEqualTo(1);
+    }
+
+    @Test
+    void closesAfterHalfOpenProbesSucceed() {
+        CircuitBreaker circuitBreaker = opened();
+        assertThat(circuitBreaker.isCallPermitted(OPEN_NANOS)).isTrue();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isTrue();
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isTrue();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isFalse();
+        assertThat(circuitBreaker.isCallPermitted(OPEN_NANOS)).isFalse();
+        circuitBreaker.onSuccess();
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        circuitBreaker.onSuccess();
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        // 关闭后重新统计, 之前的失败不计入
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onFailure(OPEN_NANOS);
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void reopensWhenHalfOpenProbeFails() {
+        CircuitBreaker circuitBreaker = opened();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isTrue();
+        circuitBreaker.onFailure(OPEN_NANOS);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.getOpenCount()).isEqualTo(2);
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS * 2 - 1)).isFalse();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS * 2)).isTrue();
+    }
+
+    @Test
+    void cancelledProbeReturnsPermit() {
+        CircuitBreaker circuitBreaker = opened();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isTrue();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isTrue();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isFalse();
+        circuitBreaker.onCancel();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isTrue();
+        // 归还的许可不会超过半开状态的探测数量
+        circuitBreaker.onSuccess();
+        circuitBreaker.onCancel();
+        circuitBreaker.onCancel();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isTrue();
+        assertThat(circuitBreaker.tryAcquire(OPEN_NANOS)).isFalse();
+    }
+
+    /**
+     * 在时间 0 打开
+     */
+    private static CircuitBreaker opened() {
+        CircuitBreaker circuitBreaker = circuitBreaker();
+        for (int i = 0; i < 5; i++) {
+            circuitBreaker.onFailure(0);
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        return circuitBreaker;
+    }
+
+    private static CircuitBreaker circuitBreaker() {
+        AppCommonProperties.CircuitBreakerConfig config = new AppCommonProperties.CircuitBreakerConfig();
+        config.setSlidingWindowSize(10);
+        config.setMinimumCalls(5);
+        config.setFailureRateThreshold(50);
+        config.setOpenTime(Duration.ofNanos(OPEN_NANOS));
+        config.setHalfOpenCalls(2);
+        return new CircuitBreaker(config);
+    }
+}
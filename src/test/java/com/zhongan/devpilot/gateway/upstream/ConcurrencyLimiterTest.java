@@ -0,0 +1,103 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 梯度算法的上限增长和退避, 以及取消的请求归还许可
+ */
+class ConcurrencyLimiterTest {
+    private static final long RTT = Duration.ofMillis(10).toNanos();
+
+    @Test
+    void rejectsAboveLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(config(2));
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isFalse();
+        assertThat(limiter.hasCapacity()).isFalse();
+        limiter.release();
+        assertThat(limiter.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void growsWhileBusyAndStableLatency() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(config(10));
+        acquire(limiter, 10);
+        for (int i = 0; i < 100; i++) {
+            limiter.onSample(RTT);
+        }
+        // 进行中的请求不到上限的一半后不再增长
+        assertThat(limiter.getLimit()).isGreaterThan(10).isLessThanOrEqualTo(21);
+    }
+
+    @Test
+    void doesNotGrowWhenIdle() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(config(10));
+        for (int i = 0; i < 100; i++) {
+            limiter.onSample(RTT);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    void shrinksWhenLatencyRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(config(40));
+        acquire(limiter, 40);
+        for (int i = 0; i < 100; i++) {
+            limiter.onSample(RTT);
+        }
+        int grown = limiter.getLimit();
+        for (int i = 0; i < 20; i++) {
+            limiter.onSample(RTT * 10);
+        }
+        assertThat(limiter.getLimit()).isLessThan(grown / 2);
+    }
+
+    @Test
+    void backsOffOnDropUntilMinLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(config(50));
+        limiter.onDropped();
+        assertThat(limiter.getLimit()).isEqualTo(45);
+        for (int i = 0; i < 100; i++) {
+            limiter.onDropped();
+        }
+        assertThat(limiter.getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    void cancelledRequestReturnsPermit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(config(1));
+        UpstreamEndpoint endpoint = new UpstreamEndpoint("a", 1, null, Duration.ofSeconds(10).toNanos(),
+                Map.of(TrafficClass.COMPLETION, limiter), null);
+        UpstreamPool pool = new UpstreamPool(List.of(endpoint), new AppCommonProperties.UpstreamConfig());
+        Disposable request = pool.execute(TrafficClass.COMPLETION, webClient -> Mono.never()).subscribe();
+        assertThat(limiter.getInFlight()).isEqualTo(1);
+        assertThat(endpoint.isAdmissible(System.nanoTime(), TrafficClass.COMPLETION)).isFalse();
+        request.dispose();
+        assertThat(limiter.getInFlight()).isZero();
+        assertThat(limiter.getLimit()).isEqualTo(1);
+    }
+
+    private static void acquire(ConcurrencyLimiter limiter, int permits) {
+        for (int i = 0; i < permits; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+        }
+    }
+
+    private static AppCommonProperties.LimiterConfig config(int initialLimit) {
+        AppCommonProperties.LimiterConfig config = new AppCommonProperties.LimiterConfig();
+        config.setInitialLimit(initialLimit);
+        config.setMinLimit(1);
+        config.setMaxLimit(1000);
+        return config;
+    }
+}
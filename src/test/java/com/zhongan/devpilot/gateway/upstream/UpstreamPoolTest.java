@@ -0,0 +1,88 @@
+package com.zhongan.devpilot.gateway.upstream;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zhongan.devpilot.gateway.config.AppCommonProperties;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 对冲请求: 一个请求失败时等待另一个请求, 预算用完时不发送对冲请求
+ */
+class UpstreamPoolTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final UpstreamPool pool = new UpstreamPool(List.of(
+            new UpstreamEndpoint("a", 1, null, Duration.ofSeconds(10).toNanos()),
+            new UpstreamEndpoint("b", 1, null, Duration.ofSeconds(10).toNanos())), new AppCommonProperties.UpstreamConfig());
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Test
+    void waitsForHedgeWhenPrimaryFails() {
+        Mono<String> result = pool.executeHedged(TrafficClass.COMPLETION, webClient -> attempts.getAndIncrement() == 0
+                ? failAfter(150, "primary")
+                : Mono.delay(Duration.ofMillis(250)).thenReturn("hedge"), hedgePolicy(1.0));
+        assertThat(result.block(TIMEOUT)).isEqualTo("hedge");
+        assertThat(attempts).hasValue(2);
+    }
+
+    @Test
+    void waitsForPrimaryWhenHedgeFails() {
+        Mono<String> result = pool.executeHedged(TrafficClass.COMPLETION, webClient -> attempts.getAndIncrement() == 0
+                ? Mono.delay(Duration.ofMillis(250)).thenReturn("primary")
+                : failAfter(10, "hedge"), hedgePolicy(1.0));
+        assertThat(result.block(TIMEOUT)).isEqualTo("primary");
+        assertThat(attempts).hasValue(2);
+    }
+
+    @Test
+    void failsWhenBothAttemptsFail() {
+        Mono<String> result = pool.executeHedged(TrafficClass.COMPLETION, webClient -> attempts.getAndIncrement() == 0
+                ? failAfter(150, "primary")
+                : failAfter(200, "hedge"), hedgePolicy(1.0));
+        assertThatThrownBy(() -> result.block(TIMEOUT)).hasMessage("hedge");
+    }
+
+    @Test
+    void failsWithoutHedgeWhenBudgetIsExhausted() {
+        Mono<String> result = pool.executeHedged(TrafficClass.COMPLETION, webClient -> attempts.getAndIncrement() == 0
+                ? failAfter(150, "primary")
+                : Mono.just("hedge"), hedgePolicy(0));
+        assertThatThrownBy(() -> result.block(TIMEOUT)).hasMessage("primary");
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void failsWithoutHedgeWhenPrimaryFailsBeforeDelay() {
+        Mono<String> result = pool.executeHedged(TrafficClass.COMPLETION, webClient -> attempts.getAndIncrement() == 0
+                ? Mono.<String>error(new IllegalStateException("primary"))
+                : Mono.just("hedge"), hedgePolicy(1.0));
+        assertThatThrownBy(() -> result.block(TIMEOUT)).hasMessage("primary");
+        assertThat(attempts).hasValue(1);
+    }
+
+    /**
+     * 对冲延迟固定为 50ms
+     */
+    private static HedgePolicy hedgePolicy(double budgetRatio) {
+        AppCommonProperties.HedgeConfig config = new AppCommonProperties.HedgeConfig();
+        config.setEnabled(true);
+        config.setMinSamples(1);
+        config.setMinDelay(Duration.ofMillis(50));
+        config.setBudgetRatio(budgetRatio);
+        config.setMaxBurst(1);
+        HedgePolicy hedgePolicy = new HedgePolicy(config);
+        hedgePolicy.record(Duration.ofMillis(1).toNanos(), false);
+        return hedgePolicy;
+    }
+
+    private static Mono<String> failAfter(long millis, String message) {
+        return Mono.delay(Duration.ofMillis(millis)).then(Mono.error(new IllegalStateException(message)));
+    }
+}
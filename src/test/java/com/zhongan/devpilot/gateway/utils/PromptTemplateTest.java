@@ -0,0 +1,66 @@
+package com.zhongan.devpilot.gateway.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 变量替换、默认值和转义, 对应之前 commons-text StringSubstitutor 的用法
+ */
+class PromptTemplateTest {
+    @Test
+    void substitutesVariables() {
+        PromptTemplate template = PromptTemplate.compile("Explain {{code}} in {{language}}.");
+        assertThat(template.render(Map.of("code", "a + b", "language", "Java"), null)).isEqualTo("Explain a + b in Java.");
+    }
+
+    @Test
+    void usesDefaultValueWhenVariableIsMissing() {
+        PromptTemplate template = PromptTemplate.compile("Answer in {{locale:English}}.");
+        assertThat(template.render(Map.of(), null)).isEqualTo("Answer in English.");
+        assertThat(template.render(Map.of("locale", "中文"), null)).isEqualTo("Answer in 中文.");
+    }
+
+    @Test
+    void keepsPlaceholderWithoutValueOrDefault() {
+        PromptTemplate template = PromptTemplate.compile("a {{missing}} b");
+        assertThat(template.render(null, null)).isEqualTo("a {{missing}} b");
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("missing", null);
+        assertThat(template.render(variables, null)).isEqualTo("a {{missing}} b");
+    }
+
+    @Test
+    void escapesVariablePrefix() {
+        PromptTemplate template = PromptTemplate.compile("literal ~{{code}} and {{code}}");
+        assertThat(template.render(Map.of("code", "x"), null)).isEqualTo("literal {{code}} and x");
+    }
+
+    @Test
+    void doesNotParseVariableValues() {
+        PromptTemplate template = PromptTemplate.compile("{{code}}");
+        assertThat(template.render(Map.of("code", "{{language}} ~{{x}}", "language", "Java"), null))
+                .isEqualTo("{{language}} ~{{x}}");
+    }
+
+    @Test
+    void keepsUnterminatedPlaceholderAsText() {
+        PromptTemplate template = PromptTemplate.compile("before {{code");
+        assertThat(template.render(Map.of("code", "x"), null)).isEqualTo("before {{code");
+    }
+
+    @Test
+    void appendsAppendixWithoutSubstitution() {
+        PromptTemplate template = PromptTemplate.compile("{{a}}");
+        assertThat(template.render(Map.of("a", 42), " {{a}}")).isEqualTo("42 {{a}}");
+    }
+
+    @Test
+    void rejectsNullTemplate() {
+        assertThatThrownBy(() -> PromptTemplate.compile(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+}